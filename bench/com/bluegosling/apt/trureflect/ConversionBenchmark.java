@@ -0,0 +1,154 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.function.Function;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * Benchmarks the conversions that {@link TruReflect} provides from elements and mirrors to their
+ * reflective counterparts. Each conversion is measured two ways:
+ * <dl>
+ * <dt>cold</dt>
+ * <dd>Each operation uses a new {@link TruReflect}, so it includes the cost of synthesizing all
+ * classes needed for the conversion.</dd>
+ * <dt>warm</dt>
+ * <dd>Operations are repeated using the same {@link TruReflect}, so classes are synthesized during
+ * warm-up and only the cost of the conversion itself is measured.</dd>
+ * </dl>
+ *
+ * <p>Throughput and bytes allocated per conversion are reported for each. Pass {@code quick} as an
+ * argument for a shorter run, with fewer iterations.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public class ConversionBenchmark {
+
+   private static final String PACKAGE = "bench.conversion";
+
+   private static final String SOURCE = "package " + PACKAGE + ";\n"
+         + "import java.lang.annotation.*;\n"
+         + "import java.util.*;\n"
+         + "@Retention(RetentionPolicy.RUNTIME)\n"
+         + "@interface Info {\n"
+         + "   String name();\n"
+         + "   int[] codes() default {};\n"
+         + "   Class<?>[] types() default {};\n"
+         + "   Kind[] kinds() default {};\n"
+         + "}\n"
+         + "enum Kind { A, B, C }\n"
+         + "public class Subject<T extends Number> {\n"
+         + "   public int primitive;\n"
+         + "   public String declared;\n"
+         + "   public Map<String, List<T>> parameterized;\n"
+         + "   public String[] array;\n"
+         + "   public List<T>[] genericArray;\n"
+         + "   public List<? extends T> wildcard;\n"
+         + "   public T typeVariable;\n"
+         + "   @Info(name = \"method\", codes = { 1, 2, 3, 4, 5, 6, 7, 8 },\n"
+         + "         types = { String.class, Integer.class, Subject.class },\n"
+         + "         kinds = { Kind.A, Kind.B, Kind.C })\n"
+         + "   public <X extends Comparable<X>> X method(@Info(name = \"param\") List<X> a,\n"
+         + "         int b) {\n"
+         + "      return null;\n"
+         + "   }\n"
+         + "}\n";
+
+   private final int warmups;
+   private final int iterations;
+
+   ConversionBenchmark(int warmups, int iterations) {
+      this.warmups = warmups;
+      this.iterations = iterations;
+   }
+
+   public static void main(String args[]) {
+      boolean quick = args.length > 0 && args[0].equals("quick");
+      ConversionBenchmark bench =
+            quick ? new ConversionBenchmark(5, 5) : new ConversionBenchmark(20, 50);
+      InMemoryCompilation.process(Collections.singletonMap(PACKAGE + ".Subject", SOURCE),
+            (env, roundEnv) -> {
+               for (Measurement m : bench.run(env)) {
+                  System.out.println(m);
+               }
+            });
+   }
+
+   List<Measurement> run(ProcessingEnvironment env) {
+      TypeElement subject = env.getElementUtils().getTypeElement(PACKAGE + ".Subject");
+      ExecutableElement method = null;
+      List<Entry<String, TypeMirror>> mirrors = new ArrayList<>();
+      for (Element e : subject.getEnclosedElements()) {
+         if (e.getKind() == ElementKind.FIELD) {
+            mirrors.add(new SimpleImmutableEntry<>(e.getSimpleName().toString(), e.asType()));
+         } else if (e.getKind() == ElementKind.METHOD) {
+            method = (ExecutableElement) e;
+         }
+      }
+      ExecutableElement m = method;
+      VariableElement param = method.getParameters().get(0);
+      AnnotationMirror annotation = method.getAnnotationMirrors().get(0);
+      Entry<? extends ExecutableElement, ? extends AnnotationValue> codes = null;
+      for (Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+            : annotation.getElementValues().entrySet()) {
+         if (entry.getKey().getSimpleName().contentEquals("codes")) {
+            codes = entry;
+         }
+      }
+      Entry<? extends ExecutableElement, ? extends AnnotationValue> arrayValue = codes;
+
+      List<Measurement> results = new ArrayList<>();
+      for (Entry<String, TypeMirror> mirror : mirrors) {
+         TypeMirror t = mirror.getValue();
+         measureBoth(results, env, "forTypeMirror(" + mirror.getKey() + ")",
+               tru -> tru.forTypeMirror(t));
+      }
+      measureBoth(results, env, "forAnnotationMirror", tru -> {
+         Annotation a = tru.forAnnotationMirror(annotation);
+         // access a member, through the proxy
+         try {
+            Method name = a.annotationType().getDeclaredMethod("name");
+            name.setAccessible(true);
+            return name.invoke(a);
+         } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+         }
+      });
+      measureBoth(results, env, "forAnnotationValue(array)",
+            tru -> tru.forAnnotationValue(arrayValue.getValue(), arrayValue.getKey()));
+      measureBoth(results, env, "forElement(method)", tru -> tru.forElement(m));
+      measureBoth(results, env, "forElement(parameter)", tru -> tru.forElement(param));
+      return results;
+   }
+
+   private void measureBoth(List<Measurement> results, ProcessingEnvironment env, String name,
+         Function<TruReflect, Object> conversion) {
+      // cold: a new instance each time, so each conversion must synthesize classes
+      results.add(Measurement.measure(name + " cold", warmups, iterations, () -> {
+         conversion.apply(new TruReflect(env));
+         return 1;
+      }));
+      // warm: repeated conversions with the same instance
+      TruReflect tru = new TruReflect(env);
+      results.add(Measurement.measure(name + " warm", warmups, iterations, () -> {
+         for (int i = 0; i < 100; i++) {
+            conversion.apply(tru);
+         }
+         return 100;
+      }));
+   }
+}
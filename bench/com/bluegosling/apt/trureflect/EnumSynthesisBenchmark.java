@@ -0,0 +1,84 @@
+package com.bluegosling.apt.trureflect;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * Benchmarks synthesis of enums with many constants. Each run compiles one enum, with a given
+ * number of constants, and measures two things:
+ * <dl>
+ * <dt>createClass</dt>
+ * <dd>Generating the bytecode for the enum, with a new class loader each time.</dd>
+ * <dt>getEnumConstants</dt>
+ * <dd>Converting the enum to a class with a new {@link TruReflect} and then querying its
+ * constants, which includes defining the class and running its static initializer.</dd>
+ * </dl>
+ *
+ * <p>Besides throughput, this reports the size of the synthesized class file, which grows with the
+ * number of constants. Pass {@code quick} as an argument for a shorter run, with fewer iterations.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public class EnumSynthesisBenchmark {
+   private static final String PACKAGE = "bench.enums";
+   private static final String NAME = PACKAGE + ".Large";
+
+   private final int warmups;
+   private final int iterations;
+
+   EnumSynthesisBenchmark(int warmups, int iterations) {
+      this.warmups = warmups;
+      this.iterations = iterations;
+   }
+
+   public static void main(String args[]) {
+      boolean quick = args.length > 0 && args[0].equals("quick");
+      EnumSynthesisBenchmark bench =
+            quick ? new EnumSynthesisBenchmark(2, 3) : new EnumSynthesisBenchmark(10, 20);
+      for (int size : new int[] { 10, 1_000, 10_000 }) {
+         InMemoryCompilation.process(source(size), (env, roundEnv) -> {
+            for (Measurement m : bench.run(env, size)) {
+               System.out.println(m);
+            }
+         });
+      }
+   }
+
+   private static Map<String, String> source(int size) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("package ").append(PACKAGE).append(";\n\npublic enum Large {\n   ");
+      for (int i = 0; i < size; i++) {
+         if (i > 0) {
+            sb.append(i % 10 == 0 ? ",\n   " : ", ");
+         }
+         sb.append("CONSTANT_").append(i);
+      }
+      sb.append(";\n}\n");
+      return Collections.singletonMap(NAME, sb.toString());
+   }
+
+   Measurement[] run(ProcessingEnvironment processingEnv, int size) {
+      Environment env = new Environment(processingEnv);
+      TypeElement type = env.elementUtils().getTypeElement(NAME);
+      long classFileBytes[] = new long[1];
+      Measurement create = Measurement.measure("createClass", warmups, iterations, () -> {
+         // new loader each time, so nothing is memoized from a prior iteration
+         TruReflectClassLoader loader = new TruReflectClassLoader(env);
+         classFileBytes[0] = loader.createClass(NAME, type, new HashSet<>()).length;
+         return 1;
+      });
+      create.extra("classFileBytes", classFileBytes[0]);
+      Measurement load = Measurement.measure("getEnumConstants", warmups, iterations, () -> {
+         Class<?> clazz = new TruReflect(processingEnv).forElement(type);
+         if (clazz.getEnumConstants().length != size) {
+            throw new AssertionError("wrong number of constants for " + clazz);
+         }
+         return 1;
+      });
+      return new Measurement[] { create.param("constants", size), load.param("constants", size) };
+   }
+}
@@ -0,0 +1,150 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A minimal benchmark harness. An operation is run for a number of warm-up iterations, whose
+ * results are discarded, and then for a number of measured iterations. Throughput and allocation
+ * rates are computed from the measured iterations.
+ *
+ * <p>Allocation is measured using the current thread's allocation counter, when the JVM provides
+ * one (HotSpot does). Benchmarks must run the measured operation on the calling thread for these
+ * numbers to be meaningful.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+final class Measurement {
+
+   /**
+    * An operation to measure. Each invocation performs a batch of operations and returns how many
+    * it performed.
+    */
+   @FunctionalInterface
+   interface Operation {
+      /**
+       * Performs a batch of operations.
+       *
+       * @return the number of operations performed
+       * @throws Exception if an operation fails
+       */
+      int run() throws Exception;
+   }
+
+   private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+   private final String name;
+   private final Map<String, String> params = new LinkedHashMap<>();
+   private final Map<String, Double> extras = new LinkedHashMap<>();
+   private double opsPerSecond;
+   private double bytesAllocatedPerOp = Double.NaN;
+   private long totalOps;
+
+   private Measurement(String name) {
+      this.name = name;
+   }
+
+   /**
+    * Measures the given operation.
+    *
+    * @param name the name of the benchmark
+    * @param warmups the number of warm-up iterations
+    * @param iterations the number of measured iterations
+    * @param op the operation to measure
+    * @return the measurement
+    */
+   static Measurement measure(String name, int warmups, int iterations, Operation op) {
+      Measurement m = new Measurement(name);
+      try {
+         for (int i = 0; i < warmups; i++) {
+            op.run();
+         }
+         long ops = 0;
+         long allocStart = allocatedBytes();
+         long start = System.nanoTime();
+         for (int i = 0; i < iterations; i++) {
+            ops += op.run();
+         }
+         long elapsed = System.nanoTime() - start;
+         long allocEnd = allocatedBytes();
+         m.totalOps = ops;
+         m.opsPerSecond = ops * 1_000_000_000.0 / Math.max(1, elapsed);
+         if (allocStart >= 0 && allocEnd >= 0 && ops > 0) {
+            m.bytesAllocatedPerOp = (allocEnd - allocStart) / (double) ops;
+         }
+      } catch (Exception e) {
+         throw new RuntimeException("Benchmark " + name + " failed", e);
+      }
+      return m;
+   }
+
+   /**
+    * Returns the number of bytes allocated so far by the current thread, or -1 if the JVM does not
+    * track allocations per thread.
+    */
+   static long allocatedBytes() {
+      if (THREADS instanceof com.sun.management.ThreadMXBean) {
+         com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+         if (threads.isThreadAllocatedMemorySupported()
+               && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Returns the CPU time used so far by the current thread, in nanoseconds, or -1 if the JVM does
+    * not track it.
+    */
+   static long cpuTimeNanos() {
+      return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+   }
+
+   /**
+    * Records a benchmark parameter, which is included in the report.
+    */
+   Measurement param(String key, Object value) {
+      params.put(key, String.valueOf(value));
+      return this;
+   }
+
+   /**
+    * Records an additional, benchmark-specific result, which is included in the report.
+    */
+   Measurement extra(String key, double value) {
+      extras.put(key, value);
+      return this;
+   }
+
+   long totalOps() {
+      return totalOps;
+   }
+
+   double opsPerSecond() {
+      return opsPerSecond;
+   }
+
+   double bytesAllocatedPerOp() {
+      return bytesAllocatedPerOp;
+   }
+
+   @Override public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%-40s", name));
+      if (!params.isEmpty()) {
+         sb.append(params);
+      }
+      sb.append(String.format("  %,14.1f ops/s", opsPerSecond));
+      if (!Double.isNaN(bytesAllocatedPerOp)) {
+         sb.append(String.format("  %,12.0f B/op", bytesAllocatedPerOp));
+      }
+      for (Entry<String, Double> entry : extras.entrySet()) {
+         sb.append(String.format("  %s=%,.1f", entry.getKey(), entry.getValue()));
+      }
+      return sb.toString();
+   }
+}
@@ -0,0 +1,75 @@
+package com.bluegosling.apt.trureflect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * Measures what {@linkplain TruReflect#prefetchReferencedTypes prefetching} referenced types buys.
+ * Each generated class extends another one, so loading a class also loads a chain of superclasses,
+ * which is the case prefetching is meant for. Every class in the corpus is converted and its
+ * members queried, once with prefetching disabled and once with it enabled, each time with a new
+ * instance so nothing is reused from a prior iteration.
+ *
+ * <p>For each run, this reports throughput (in types per second of wall time) and the CPU time
+ * spent on the calling thread per type. With prefetching, elements are still read and visited on
+ * the calling thread, and only the writing of class files moves to background threads, so the
+ * calling thread's CPU time shows how much work was actually taken off of it. Prefetch hits and
+ * misses are reported, too.
+ *
+ * <p>Pass {@code quick} as an argument for a shorter run, with fewer iterations.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public class PrefetchBenchmark {
+
+   public static void main(String args[]) {
+      boolean quick = args.length > 0 && args[0].equals("quick");
+      int warmups = quick ? 2 : 10;
+      int iterations = quick ? 3 : 20;
+      for (int members : new int[] { 6, 40 }) {
+         SourceCorpus corpus = new SourceCorpus().typeCount(200).memberCount(members)
+               .genericDepth(1).annotationDensity(0.3).enumSize(20);
+         System.out.println("# " + corpus);
+         InMemoryCompilation.process(corpus.generate(), (env, roundEnv) -> {
+            System.out.println(run(env, corpus, "noPrefetch", 0, warmups, iterations));
+            System.out.println(run(env, corpus, "prefetch", 2, warmups, iterations));
+         });
+         System.out.println();
+      }
+   }
+
+   private static Measurement run(ProcessingEnvironment env, SourceCorpus corpus, String name,
+         int depth, int warmups, int iterations) {
+      List<TypeElement> types = new ArrayList<>();
+      for (int i = corpus.typeCount() - 1; i >= 0; i--) {
+         types.add(env.getElementUtils().getTypeElement(SourceCorpus.className(i)));
+      }
+      long cpuNanos[] = new long[1];
+      long hits[] = new long[1];
+      long misses[] = new long[1];
+      Measurement m = Measurement.measure(name, warmups, iterations, () -> {
+         long cpuStart = Measurement.cpuTimeNanos();
+         TruReflect tru = new TruReflect(env)
+               .prefetchReferencedTypes(depth, depth == 0 ? 0 : 10, TimeUnit.SECONDS);
+         for (TypeElement type : types) {
+            Class<?> clazz = tru.forElement(type);
+            clazz.getDeclaredMethods();
+            clazz.getDeclaredFields();
+         }
+         cpuNanos[0] += Measurement.cpuTimeNanos() - cpuStart;
+         hits[0] = tru.metrics().prefetch().hitCount();
+         misses[0] = tru.metrics().prefetch().missCount();
+         return types.size();
+      });
+      // the CPU time includes warm-up iterations, so it is averaged over all of them
+      long ops = (long) types.size() * (warmups + iterations);
+      return m.param("types", types.size())
+            .extra("callerCpuMicrosPerType", cpuNanos[0] / 1000.0 / ops)
+            .extra("prefetchHits", hits[0])
+            .extra("prefetchMisses", misses[0]);
+   }
+}
@@ -0,0 +1,185 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+
+/**
+ * Measures how the overhead of an annotation processor that uses {@link TruReflect} grows with the
+ * size of the compilation. For each corpus size, this compiles generated sources twice: once with a
+ * processor that converts every root element via {@link TruReflect#forElement(Element)} (and
+ * queries each resulting class's members, as a typical processor would), and once with a baseline
+ * processor that inspects the same information using only elements and mirrors. The difference
+ * between the two is the cost of the reflection bridge.
+ *
+ * <p>For each run, this reports wall time and CPU time for the processor and for the whole
+ * compilation, bytes allocated, and, while the processor runs, growth in metaspace and the number
+ * of classes loaded. For the reflective processor, it also reports the number of classes it
+ * synthesized, which accounts for most of the classes it loads.
+ *
+ * <p>Corpus sizes can be given as arguments. The default is 100, 1000, 10000, and 50000 types.
+ * Large sizes need a correspondingly large heap. Pass {@code quick} to run only the two smallest
+ * sizes.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public class ProcessorScalingBenchmark {
+
+   /**
+    * A processor under test.
+    */
+   private interface Processor {
+      /**
+       * Processes the root elements of a round.
+       *
+       * @param env the processing environment
+       * @param roundEnv the round environment
+       * @param result receives statistics that only the processor knows
+       * @return a count of the items processed, to keep the work from being optimized away
+       */
+      long process(ProcessingEnvironment env, RoundEnvironment roundEnv, Result result);
+   }
+
+   private static final Processor REFLECTIVE = (env, roundEnv, result) -> {
+      TruReflect tru = new TruReflect(env);
+      long count = 0;
+      for (Element e : roundEnv.getRootElements()) {
+         AnnotatedElement ae = tru.forElement(e);
+         count += ae.getDeclaredAnnotations().length;
+         if (ae instanceof Class) {
+            Class<?> clazz = (Class<?>) ae;
+            count += clazz.getDeclaredFields().length + clazz.getDeclaredMethods().length;
+         }
+      }
+      result.classesSynthesized = tru.metrics().classesSynthesized();
+      return count;
+   };
+
+   private static final Processor BASELINE = (env, roundEnv, result) -> {
+      long count = 0;
+      for (Element e : roundEnv.getRootElements()) {
+         count += e.getAnnotationMirrors().size();
+         for (Element member : e.getEnclosedElements()) {
+            member.asType();
+            for (AnnotationMirror mirror : member.getAnnotationMirrors()) {
+               count += env.getElementUtils().getElementValuesWithDefaults(mirror).size();
+            }
+            count++;
+         }
+      }
+      return count;
+   };
+
+   public static void main(String args[]) {
+      List<Integer> sizes = new ArrayList<>();
+      if (args.length == 1 && args[0].equals("quick")) {
+         sizes.addAll(Arrays.asList(100, 1000));
+      } else if (args.length > 0) {
+         for (String arg : args) {
+            sizes.add(Integer.parseInt(arg));
+         }
+      } else {
+         sizes.addAll(Arrays.asList(100, 1000, 10000, 50000));
+      }
+      // warm up the compiler and the code under test, so the first size isn't penalized
+      Map<String, String> warmup = corpus(100).generate();
+      run(warmup, "warmup", REFLECTIVE);
+      run(warmup, "warmup", BASELINE);
+      for (int size : sizes) {
+         Map<String, String> sources = corpus(size).generate();
+         System.out.println(run(sources, "baseline", BASELINE).param("types", size));
+         System.out.println(run(sources, "reflective", REFLECTIVE).param("types", size));
+      }
+   }
+
+   private static SourceCorpus corpus(int size) {
+      return new SourceCorpus().typeCount(size).memberCount(6).genericDepth(1)
+            .annotationDensity(0.3).enumSize(20);
+   }
+
+   /**
+    * Compiles the given sources with the given processor and measures the costs.
+    */
+   private static Result run(Map<String, String> sources, String name, Processor processor) {
+      System.gc();
+      ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+      Result result = new Result(name);
+      long allocStart = Measurement.allocatedBytes();
+      long cpuStart = Measurement.cpuTimeNanos();
+      long start = System.nanoTime();
+      InMemoryCompilation.process(sources, (env, roundEnv) -> {
+         // measured from here, so classes that javac loads before processing aren't counted
+         long metaspaceStart = metaspaceUsed();
+         long classesStart = classLoading.getTotalLoadedClassCount();
+         long procAllocStart = Measurement.allocatedBytes();
+         long procCpuStart = Measurement.cpuTimeNanos();
+         long procStart = System.nanoTime();
+         processor.process(env, roundEnv, result);
+         result.processorNanos = System.nanoTime() - procStart;
+         result.processorCpuNanos = Measurement.cpuTimeNanos() - procCpuStart;
+         result.processorAllocatedBytes = Measurement.allocatedBytes() - procAllocStart;
+         result.processorClassesLoaded = classLoading.getTotalLoadedClassCount() - classesStart;
+         result.metaspaceBytes = metaspaceUsed() - metaspaceStart;
+      });
+      result.totalNanos = System.nanoTime() - start;
+      result.totalCpuNanos = Measurement.cpuTimeNanos() - cpuStart;
+      result.totalAllocatedBytes = Measurement.allocatedBytes() - allocStart;
+      return result;
+   }
+
+   private static long metaspaceUsed() {
+      long used = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getName().contains("Metaspace")) {
+            used += pool.getUsage().getUsed();
+         }
+      }
+      return used;
+   }
+
+   /**
+    * The costs measured for one compilation.
+    */
+   private static class Result {
+      final String name;
+      String params = "";
+      long totalNanos;
+      long totalCpuNanos;
+      long totalAllocatedBytes;
+      long processorNanos;
+      long processorCpuNanos;
+      long processorAllocatedBytes;
+      long processorClassesLoaded;
+      long classesSynthesized;
+      long metaspaceBytes;
+
+      Result(String name) {
+         this.name = name;
+      }
+
+      Result param(String key, Object value) {
+         params += key + "=" + value;
+         return this;
+      }
+
+      @Override public String toString() {
+         return String.format("%-12s %-12s compile: %,8d ms wall %,8d ms cpu %,10d KB alloc | "
+               + "processor: %,8d ms wall %,8d ms cpu %,10d KB alloc %,8d classes "
+               + "(%,8d synthesized) %,8d KB metaspace",
+               name, params, totalNanos / 1_000_000, totalCpuNanos / 1_000_000,
+               totalAllocatedBytes / 1024, processorNanos / 1_000_000,
+               processorCpuNanos / 1_000_000, processorAllocatedBytes / 1024,
+               processorClassesLoaded, classesSynthesized, metaspaceBytes / 1024);
+      }
+   }
+}
@@ -0,0 +1,195 @@
+package com.bluegosling.apt.trureflect;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic Java sources for benchmarks. The shape of the generated types is controlled
+ * by a handful of parameters, so benchmarks can measure how costs scale along each dimension. The
+ * output for a given set of parameters is always the same, so results are reproducible.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+final class SourceCorpus {
+   static final String PACKAGE = "bench.corpus";
+
+   private int typeCount = 10;
+   private int memberCount = 10;
+   private int genericDepth = 1;
+   private double annotationDensity = 0.5;
+   private int enumSize = 10;
+
+   /**
+    * Sets the number of classes to generate. In addition to these classes, the corpus always
+    * includes a handful of annotation types and one enum.
+    */
+   SourceCorpus typeCount(int typeCount) {
+      this.typeCount = typeCount;
+      return this;
+   }
+
+   /**
+    * Sets the number of fields and methods each generated class has.
+    */
+   SourceCorpus memberCount(int memberCount) {
+      this.memberCount = memberCount;
+      return this;
+   }
+
+   /**
+    * Sets how deeply generic types are nested in member signatures. Zero means no generics.
+    */
+   SourceCorpus genericDepth(int genericDepth) {
+      this.genericDepth = genericDepth;
+      return this;
+   }
+
+   /**
+    * Sets the fraction of members, between zero and one, that have annotations and type
+    * annotations.
+    */
+   SourceCorpus annotationDensity(double annotationDensity) {
+      this.annotationDensity = annotationDensity;
+      return this;
+   }
+
+   /**
+    * Sets the number of constants in the generated enum.
+    */
+   SourceCorpus enumSize(int enumSize) {
+      this.enumSize = enumSize;
+      return this;
+   }
+
+   int typeCount() {
+      return typeCount;
+   }
+
+   /**
+    * Returns the fully-qualified name of the generated class with the given index.
+    */
+   static String className(int i) {
+      return PACKAGE + ".Type" + i;
+   }
+
+   /**
+    * Returns the fully-qualified name of the generated enum.
+    */
+   static String enumName() {
+      return PACKAGE + ".Kind";
+   }
+
+   @Override public String toString() {
+      return String.format("types=%d, members=%d, genericDepth=%d, annotationDensity=%.2f, "
+            + "enumSize=%d", typeCount, memberCount, genericDepth, annotationDensity, enumSize);
+   }
+
+   /**
+    * Generates the sources.
+    *
+    * @return a map of fully-qualified class names to source code
+    */
+   Map<String, String> generate() {
+      Map<String, String> sources = new LinkedHashMap<>();
+      sources.put(PACKAGE + ".Marker", header()
+            + "@Retention(RetentionPolicy.RUNTIME)\n"
+            + "public @interface Marker {\n}\n");
+      sources.put(PACKAGE + ".Config", header()
+            + "@Retention(RetentionPolicy.RUNTIME)\n"
+            + "public @interface Config {\n"
+            + "   String name();\n"
+            + "   int[] values() default { 1, 2, 3 };\n"
+            + "   Kind kind() default Kind.K0;\n"
+            + "   Class<?> type() default Object.class;\n"
+            + "}\n");
+      sources.put(PACKAGE + ".TypeTag", header()
+            + "@Retention(RetentionPolicy.RUNTIME)\n"
+            + "@Target({ ElementType.TYPE_USE, ElementType.TYPE_PARAMETER })\n"
+            + "public @interface TypeTag {\n}\n");
+      StringBuilder sb = new StringBuilder(header());
+      sb.append("public enum Kind {\n   ");
+      for (int i = 0; i < enumSize; i++) {
+         if (i > 0) {
+            sb.append(i % 10 == 0 ? ",\n   " : ", ");
+         }
+         sb.append('K').append(i);
+      }
+      sb.append(";\n}\n");
+      sources.put(enumName(), sb.toString());
+      Random random = new Random(typeCount * 31L + memberCount);
+      for (int i = 0; i < typeCount; i++) {
+         sources.put(className(i), generateClass(i, random));
+      }
+      return sources;
+   }
+
+   private String header() {
+      return "package " + PACKAGE + ";\n\n"
+            + "import java.lang.annotation.*;\n"
+            + "import java.util.*;\n\n";
+   }
+
+   private String generateClass(int index, Random random) {
+      StringBuilder sb = new StringBuilder(header());
+      if (annotate(random)) {
+         sb.append("@Config(name = \"Type").append(index).append("\", kind = Kind.K0)\n");
+      }
+      sb.append("public class Type").append(index);
+      if (genericDepth > 0) {
+         sb.append("<T extends Comparable<T>>");
+      }
+      if (index > 0) {
+         // reference another generated type, so classes have a realistic reference graph
+         sb.append(" extends Type").append(random.nextInt(index));
+         if (genericDepth > 0) {
+            sb.append("<T>");
+         }
+      }
+      sb.append(" {\n");
+      for (int m = 0; m < memberCount; m++) {
+         boolean annotated = annotate(random);
+         String type = memberType(random, annotated);
+         if (m % 2 == 0) {
+            if (annotated) {
+               sb.append("   @Marker\n");
+            }
+            sb.append("   protected ").append(type).append(" field").append(m).append(";\n");
+         } else {
+            if (annotated) {
+               sb.append("   @Config(name = \"m").append(m).append("\", values = { ")
+                     .append(m).append(" }, type = Type").append(index).append(".class)\n");
+            }
+            sb.append("   public ").append(type).append(" method").append(m).append("(")
+                  .append(annotated ? "@Marker " : "").append(memberType(random, annotated))
+                  .append(" a, int b) { return null; }\n");
+         }
+      }
+      sb.append("}\n");
+      return sb.toString();
+   }
+
+   private boolean annotate(Random random) {
+      return random.nextDouble() < annotationDensity;
+   }
+
+   private String memberType(Random random, boolean annotated) {
+      String tag = annotated ? "@TypeTag " : "";
+      String leaf;
+      switch (random.nextInt(3)) {
+         case 0:
+            leaf = "String";
+            break;
+         case 1:
+            leaf = "Kind";
+            break;
+         default:
+            leaf = genericDepth > 0 ? "T" : "Integer";
+      }
+      String type = tag + leaf;
+      for (int d = 0; d < genericDepth; d++) {
+         type = (d % 2 == 0 ? "List<" : "Map<String, ") + type + ">";
+      }
+      return type;
+   }
+}
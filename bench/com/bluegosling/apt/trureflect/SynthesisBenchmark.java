@@ -0,0 +1,197 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+
+/**
+ * Benchmarks class synthesis, and the helpers it uses, over generated sources. Each benchmark is
+ * run against several corpora, each of which varies one dimension (member count, generic depth,
+ * annotation density, or enum size) from a baseline.
+ *
+ * <p>For each benchmark, this reports throughput (in types processed per second) and bytes
+ * allocated per type. The class synthesis benchmark also reports the average size of the
+ * synthesized class files.
+ *
+ * <p>Everything runs in memory, using the JDK's own compiler, so results are reproducible offline.
+ * Pass {@code quick} as an argument for a shorter run, with fewer iterations.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public class SynthesisBenchmark {
+
+   private final int warmups;
+   private final int iterations;
+
+   SynthesisBenchmark(int warmups, int iterations) {
+      this.warmups = warmups;
+      this.iterations = iterations;
+   }
+
+   public static void main(String args[]) {
+      boolean quick = args.length > 0 && args[0].equals("quick");
+      SynthesisBenchmark bench =
+            quick ? new SynthesisBenchmark(2, 3) : new SynthesisBenchmark(10, 20);
+      List<SourceCorpus> corpora = new ArrayList<>();
+      corpora.add(baseline());
+      for (int members : new int[] { 5, 80 }) {
+         corpora.add(baseline().memberCount(members));
+      }
+      for (int depth : new int[] { 0, 4 }) {
+         corpora.add(baseline().genericDepth(depth));
+      }
+      for (double density : new double[] { 0, 1 }) {
+         corpora.add(baseline().annotationDensity(density));
+      }
+      for (int enumSize : new int[] { 1, 120 }) {
+         corpora.add(baseline().enumSize(enumSize));
+      }
+      for (SourceCorpus corpus : corpora) {
+         System.out.println("# " + corpus);
+         InMemoryCompilation.process(corpus.generate(), (env, roundEnv) -> {
+            for (Measurement m : bench.run(env, corpus)) {
+               System.out.println(m);
+            }
+         });
+         System.out.println();
+      }
+   }
+
+   private static SourceCorpus baseline() {
+      return new SourceCorpus().typeCount(20).memberCount(20).genericDepth(1)
+            .annotationDensity(0.5).enumSize(10);
+   }
+
+   List<Measurement> run(ProcessingEnvironment processingEnv, SourceCorpus corpus) {
+      Environment env = new Environment(processingEnv);
+      List<TypeElement> types = new ArrayList<>();
+      for (int i = 0; i < corpus.typeCount(); i++) {
+         types.add(env.elementUtils().getTypeElement(SourceCorpus.className(i)));
+      }
+      types.add(env.elementUtils().getTypeElement(SourceCorpus.enumName()));
+
+      List<Measurement> results = new ArrayList<>();
+      long classFileBytes[] = new long[1];
+      Measurement m = Measurement.measure("createClass", warmups, iterations, () -> {
+         // new loader each time, so nothing is memoized from a prior iteration
+         TruReflectClassLoader loader = new TruReflectClassLoader(env);
+         long bytes = 0;
+         for (TypeElement type : types) {
+            String name = env.elementUtils().getBinaryName(type).toString();
+            bytes += loader.createClass(name, type, new HashSet<>()).length;
+         }
+         classFileBytes[0] = bytes;
+         return types.size();
+      });
+      results.add(m.extra("classFileBytes", classFileBytes[0] / (double) types.size()));
+
+      results.add(Measurement.measure("Signatures", warmups, iterations, () -> {
+         Signatures signatures = env.signatureUtils();
+         for (TypeElement type : types) {
+            signatures.getClassSignature(type);
+            for (Element e : type.getEnclosedElements()) {
+               if (e.getKind() == ElementKind.METHOD || e.getKind() == ElementKind.CONSTRUCTOR) {
+                  signatures.getMethodSignature((ExecutableElement) e);
+               } else if (e.getKind().isField()) {
+                  signatures.getTypeSignature(e.asType());
+               }
+            }
+         }
+         return types.size();
+      }));
+
+      results.add(Measurement.measure("TypeNames", warmups, iterations, () -> {
+         TypeNames typeNames = env.typeNameUtils();
+         for (TypeElement type : types) {
+            typeNames.getInternalName(type);
+            for (Element e : type.getEnclosedElements()) {
+               if (e.getKind() == ElementKind.METHOD || e.getKind() == ElementKind.CONSTRUCTOR) {
+                  typeNames.getDescriptor((ExecutableElement) e);
+               } else if (e.getKind().isField()) {
+                  typeNames.getDescriptor((VariableElement) e);
+               }
+            }
+         }
+         return types.size();
+      }));
+
+      results.add(Measurement.measure("Annotations", warmups, iterations, () -> {
+         Annotations annotations = env.annotationUtils();
+         for (TypeElement type : types) {
+            ClassWriter writer = newClassWriter();
+            for (AnnotationMirror mirror : type.getAnnotationMirrors()) {
+               annotations.recordAnnotation(writer, mirror);
+            }
+            for (Element e : type.getEnclosedElements()) {
+               if (e.getKind() == ElementKind.METHOD) {
+                  MethodVisitor mv = writer.visitMethod(ACC_ABSTRACT, "m",
+                        env.typeNameUtils().getDescriptor((ExecutableElement) e), null, null);
+                  for (AnnotationMirror mirror : e.getAnnotationMirrors()) {
+                     annotations.recordAnnotation(mv, mirror);
+                  }
+                  int i = 0;
+                  for (VariableElement param : ((ExecutableElement) e).getParameters()) {
+                     for (AnnotationMirror mirror : param.getAnnotationMirrors()) {
+                        annotations.recordParameterAnnotation(mv, i, mirror);
+                     }
+                     i++;
+                  }
+               } else if (e.getKind().isField()) {
+                  FieldVisitor fv = writer.visitField(0, "f", "I", null, null);
+                  for (AnnotationMirror mirror : e.getAnnotationMirrors()) {
+                     annotations.recordAnnotation(fv, mirror);
+                  }
+               }
+            }
+         }
+         return types.size();
+      }));
+
+      results.add(Measurement.measure("TypeAnnotations", warmups, iterations, () -> {
+         TypeAnnotations typeAnnotations = env.typeAnnotationUtils();
+         for (TypeElement type : types) {
+            ClassWriter writer = newClassWriter();
+            for (Element e : type.getEnclosedElements()) {
+               if (e.getKind() == ElementKind.METHOD) {
+                  ExecutableElement method = (ExecutableElement) e;
+                  MethodVisitor mv = writer.visitMethod(ACC_ABSTRACT, "m", "()V", null, null);
+                  typeAnnotations.recordReturnTypeAnnotations(mv, null, method.getReturnType());
+                  int i = 0;
+                  for (VariableElement param : method.getParameters()) {
+                     typeAnnotations.recordParameterTypeAnnotations(mv, null, param.asType(), i++);
+                  }
+               } else if (e.getKind().isField()) {
+                  FieldVisitor fv = writer.visitField(0, "f", "I", null, null);
+                  typeAnnotations.recordFieldTypeAnnotations(fv, null, e.asType());
+               }
+            }
+         }
+         return types.size();
+      }));
+
+      for (Measurement result : results) {
+         result.param("types", types.size());
+      }
+      return results;
+   }
+
+   private static ClassWriter newClassWriter() {
+      ClassWriter writer = new ClassWriter(0);
+      writer.visit(V1_8, ACC_PUBLIC, "bench/Scratch", null, "java/lang/Object", null);
+      return writer;
+   }
+}
@@ -0,0 +1,295 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedArrayType;
+import java.lang.reflect.AnnotatedParameterizedType;
+import java.lang.reflect.AnnotatedType;
+import java.lang.reflect.AnnotatedTypeVariable;
+import java.lang.reflect.AnnotatedWildcardType;
+import java.lang.reflect.Type;
+import java.util.List;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.IntersectionType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
+
+/**
+ * Implementations of {@link AnnotatedType} and its sub-interfaces that are built straight from type
+ * mirrors. The usual way to get an annotated type is to synthesize the class that uses it, whose
+ * {@code RuntimeVisibleTypeAnnotations} attributes the JDK then parses back out. These views skip
+ * that round-trip: annotations come from {@link TypeMirror#getAnnotationMirrors()}, and nested
+ * annotated types (type arguments, bounds, and component types) come from the mirror's structure.
+ *
+ * <p>Everything is computed when first queried. Reading annotations only loads the annotation
+ * types. The underlying {@link AnnotatedType#getType() type} is converted with {@link
+ * TruReflect#forTypeMirror(TypeMirror)}, so only asking for it synthesizes the types it refers to.
+ * As with lazy types, anything computed from the mirror is computed on the model thread when model
+ * access is {@linkplain TruReflect#confineModelAccess confined}.
+ *
+ * <p>The shape of the views matches what core reflection returns: declared types that are
+ * parameterized (or nested in a parameterized type) are {@link AnnotatedParameterizedType}s, and
+ * all array types, including arrays of primitives, are {@link AnnotatedArrayType}s. Like
+ * annotations recorded in synthesized classes, all annotations are present, regardless of their
+ * retention policy.
+ *
+ * @see TruReflect#forAnnotatedTypeMirror(TypeMirror)
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+final class AnnotatedTypes {
+   private AnnotatedTypes() {
+   }
+
+   /**
+    * Returns an annotated type view of the given mirror.
+    *
+    * @param mirror a type mirror
+    * @param truReflect converts the mirror's type and annotations
+    * @return an annotated type view of the mirror
+    */
+   static AnnotatedType of(TypeMirror mirror, TruReflect truReflect) {
+      switch (mirror.getKind()) {
+         case ARRAY:
+            return new AnnotatedArrayTypeImpl((ArrayType) mirror, truReflect);
+         case DECLARED:
+            return MirroredTypes.isParameterized((DeclaredType) mirror)
+                  ? new AnnotatedParameterizedTypeImpl((DeclaredType) mirror, truReflect)
+                  : new AnnotatedTypeImpl(mirror, truReflect);
+         case TYPEVAR:
+            return new AnnotatedTypeVariableImpl((TypeVariable) mirror, truReflect);
+         case WILDCARD:
+            return new AnnotatedWildcardTypeImpl((WildcardType) mirror, truReflect);
+         default:
+            return new AnnotatedTypeImpl(mirror, truReflect);
+      }
+   }
+
+   private static AnnotatedType[] of(List<? extends TypeMirror> mirrors, TruReflect truReflect) {
+      AnnotatedType types[] = new AnnotatedType[mirrors.size()];
+      for (int i = 0; i < types.length; i++) {
+         types[i] = of(mirrors.get(i), truReflect);
+      }
+      return types;
+   }
+
+   // marks a computed owner of a type that has none, so it isn't computed again
+   private static final AnnotatedType NO_OWNER = new AnnotatedTypeImpl(null, null);
+
+   private static AnnotatedType object(TruReflect truReflect) {
+      return new AnnotatedTypeImpl(truReflect.environment().elementUtils()
+            .getTypeElement(Object.class.getName()).asType(), truReflect);
+   }
+
+   /**
+    * An annotated type with no nested annotated types. This is also the base class for the
+    * other kinds of annotated types.
+    */
+   static class AnnotatedTypeImpl implements AnnotatedType {
+      final TypeMirror mirror;
+      final TruReflect truReflect;
+      private volatile Type type;
+      private volatile Annotation annotations[];
+      private volatile AnnotatedType owner;
+
+      AnnotatedTypeImpl(TypeMirror mirror, TruReflect truReflect) {
+         this.mirror = mirror;
+         this.truReflect = truReflect;
+      }
+
+      @Override public Type getType() {
+         Type t = type;
+         if (t == null) {
+            type = t = truReflect.forTypeMirror(mirror);
+         }
+         return t;
+      }
+
+      private Annotation[] annotations() {
+         Annotation a[] = annotations;
+         if (a == null) {
+            annotations = a = truReflect.onModelThread(() -> {
+               List<? extends AnnotationMirror> mirrors = mirror.getAnnotationMirrors();
+               Annotation converted[] = new Annotation[mirrors.size()];
+               for (int i = 0; i < converted.length; i++) {
+                  converted[i] = truReflect.forAnnotationMirror(mirrors.get(i));
+               }
+               return converted;
+            });
+         }
+         return a;
+      }
+
+      @Override public <T extends Annotation> T getAnnotation(Class<T> annotationClass) {
+         for (Annotation a : annotations()) {
+            if (a.annotationType() == annotationClass) {
+               return annotationClass.cast(a);
+            }
+         }
+         return null;
+      }
+
+      @Override public Annotation[] getAnnotations() {
+         return annotations().clone();
+      }
+
+      @Override public Annotation[] getDeclaredAnnotations() {
+         return annotations().clone();
+      }
+
+      /**
+       * Returns the annotated type of the owner of a nested declared type. This is {@code null} for
+       * top-level types and for anything other than a declared type. This implements a method that
+       * was added to {@link AnnotatedType} (and re-declared as abstract in its sub-interfaces) in
+       * Java 9, so it has no {@code @Override}, in order to still compile against Java 8.
+       *
+       * @return the annotated type of this type's owner, or {@code null} if it has no owner
+       */
+      public AnnotatedType getAnnotatedOwnerType() {
+         if (mirror.getKind() != TypeKind.DECLARED) {
+            return null;
+         }
+         AnnotatedType o = owner;
+         if (o == null) {
+            owner = o = truReflect.onModelThread(() -> {
+               TypeMirror enclosing = ((DeclaredType) mirror).getEnclosingType();
+               if (enclosing.getKind() == TypeKind.DECLARED) {
+                  return of(enclosing, truReflect);
+               }
+               // static nested types have no enclosing type, but core reflection still reports
+               // the raw declaring class as their owner
+               Element declaring = ((DeclaredType) mirror).asElement().getEnclosingElement();
+               if (!(declaring instanceof TypeElement)) {
+                  return NO_OWNER;
+               }
+               return of(truReflect.environment().typeUtils().erasure(declaring.asType()),
+                     truReflect);
+            });
+         }
+         return o == NO_OWNER ? null : o;
+      }
+
+      @Override public String toString() {
+         return truReflect.onModelThread(mirror::toString);
+      }
+   }
+
+   /**
+    * An annotated parameterized type.
+    */
+   static final class AnnotatedParameterizedTypeImpl extends AnnotatedTypeImpl
+         implements AnnotatedParameterizedType {
+      private volatile AnnotatedType typeArguments[];
+
+      AnnotatedParameterizedTypeImpl(DeclaredType mirror, TruReflect truReflect) {
+         super(mirror, truReflect);
+      }
+
+      @Override public AnnotatedType[] getAnnotatedActualTypeArguments() {
+         AnnotatedType args[] = typeArguments;
+         if (args == null) {
+            typeArguments = args = truReflect.onModelThread(
+                  () -> of(((DeclaredType) mirror).getTypeArguments(), truReflect));
+         }
+         return args.clone();
+      }
+   }
+
+   /**
+    * An annotated array type.
+    */
+   static final class AnnotatedArrayTypeImpl extends AnnotatedTypeImpl
+         implements AnnotatedArrayType {
+      private volatile AnnotatedType componentType;
+
+      AnnotatedArrayTypeImpl(ArrayType mirror, TruReflect truReflect) {
+         super(mirror, truReflect);
+      }
+
+      @Override public AnnotatedType getAnnotatedGenericComponentType() {
+         AnnotatedType comp = componentType;
+         if (comp == null) {
+            componentType = comp = truReflect.onModelThread(
+                  () -> of(((ArrayType) mirror).getComponentType(), truReflect));
+         }
+         return comp;
+      }
+   }
+
+   /**
+    * An annotated wildcard type. As in core reflection, a wildcard with no upper bound has an
+    * upper bound of {@code Object}.
+    */
+   static final class AnnotatedWildcardTypeImpl extends AnnotatedTypeImpl
+         implements AnnotatedWildcardType {
+      private volatile AnnotatedType upperBounds[];
+      private volatile AnnotatedType lowerBounds[];
+
+      AnnotatedWildcardTypeImpl(WildcardType mirror, TruReflect truReflect) {
+         super(mirror, truReflect);
+      }
+
+      @Override public AnnotatedType[] getAnnotatedUpperBounds() {
+         AnnotatedType bounds[] = upperBounds;
+         if (bounds == null) {
+            upperBounds = bounds = truReflect.onModelThread(() -> {
+               TypeMirror upper = ((WildcardType) mirror).getExtendsBound();
+               if (upper == null) {
+                  return new AnnotatedType[] { object(truReflect) };
+               } else if (upper.getKind() == TypeKind.INTERSECTION) {
+                  return of(((IntersectionType) upper).getBounds(), truReflect);
+               } else {
+                  return new AnnotatedType[] { of(upper, truReflect) };
+               }
+            });
+         }
+         return bounds.clone();
+      }
+
+      @Override public AnnotatedType[] getAnnotatedLowerBounds() {
+         AnnotatedType bounds[] = lowerBounds;
+         if (bounds == null) {
+            lowerBounds = bounds = truReflect.onModelThread(() -> {
+               TypeMirror lower = ((WildcardType) mirror).getSuperBound();
+               return lower == null
+                     ? new AnnotatedType[0] : new AnnotatedType[] { of(lower, truReflect) };
+            });
+         }
+         return bounds.clone();
+      }
+   }
+
+   /**
+    * An annotated type variable. Its bounds are those of the type parameter's declaration, along
+    * with the annotations on them.
+    */
+   static final class AnnotatedTypeVariableImpl extends AnnotatedTypeImpl
+         implements AnnotatedTypeVariable {
+      private volatile AnnotatedType bounds[];
+
+      AnnotatedTypeVariableImpl(TypeVariable mirror, TruReflect truReflect) {
+         super(mirror, truReflect);
+      }
+
+      @Override public AnnotatedType[] getAnnotatedBounds() {
+         AnnotatedType b[] = bounds;
+         if (b == null) {
+            bounds = b = truReflect.onModelThread(() -> {
+               List<? extends TypeMirror> declared =
+                     ((TypeParameterElement) ((TypeVariable) mirror).asElement()).getBounds();
+               return declared.isEmpty()
+                     ? new AnnotatedType[] { object(truReflect) }
+                     : of(declared, truReflect);
+            });
+         }
+         return b.clone();
+      }
+   }
+}
@@ -0,0 +1,249 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of synthesized class files that can be shared across compilations. This is useful in
+ * long-lived processes that run many compilations, like build daemons and compile servers, where
+ * the same library types are reflected on over and over again.
+ *
+ * <p>Entries are keyed by a type's binary name and its {@linkplain Fingerprints structural
+ * fingerprint}. Since a synthesized class depends only on the structure of its element, cached
+ * bytes can safely be defined by any class loader whose element has the same name and fingerprint.
+ *
+ * <p>Entries are held via soft references, so the garbage collector can reclaim them under memory
+ * pressure. The cache also has a maximum size, in bytes of cached class files. When that size would
+ * be exceeded, the least recently used entries are evicted.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @see TruReflect#useClassBytesCache(ClassBytesCache)
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class ClassBytesCache {
+
+   /**
+    * The default maximum size of the {@linkplain #shared() shared} cache: 64 megabytes.
+    */
+   public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+   private static final ClassBytesCache SHARED = new ClassBytesCache(DEFAULT_MAX_BYTES);
+
+   /**
+    * Returns a JVM-wide cache, with a maximum size of {@link #DEFAULT_MAX_BYTES}.
+    *
+    * @return a JVM-wide cache
+    */
+   public static ClassBytesCache shared() {
+      return SHARED;
+   }
+
+   /**
+    * A cached class file. In addition to the class's bytes, an entry records the names of all types
+    * referenced by the class. A class loader that defines the cached bytes must also be able to
+    * load all of those referenced types.
+    */
+   static final class Entry {
+      private final byte classBytes[];
+      private final String referencedBinaryNames[];
+      private final String referencedCanonicalNames[];
+
+      Entry(byte classBytes[], String referencedBinaryNames[],
+            String referencedCanonicalNames[]) {
+         assert referencedBinaryNames.length == referencedCanonicalNames.length;
+         this.classBytes = classBytes;
+         this.referencedBinaryNames = referencedBinaryNames;
+         this.referencedCanonicalNames = referencedCanonicalNames;
+      }
+
+      byte[] classBytes() {
+         return classBytes;
+      }
+
+      int referencedTypeCount() {
+         return referencedBinaryNames.length;
+      }
+
+      String referencedBinaryName(int i) {
+         return referencedBinaryNames[i];
+      }
+
+      String referencedCanonicalName(int i) {
+         return referencedCanonicalNames[i];
+      }
+
+      int size() {
+         return classBytes.length;
+      }
+   }
+
+   /**
+    * A soft reference to a cache entry, which remembers the entry's key and size so that the cache
+    * can account for it after the entry itself has been collected.
+    */
+   private static final class EntryReference extends SoftReference<Entry> {
+      final String key;
+      final int size;
+
+      EntryReference(String key, Entry entry, ReferenceQueue<Entry> queue) {
+         super(entry, queue);
+         this.key = key;
+         this.size = entry.size();
+      }
+   }
+
+   private final long maxBytes;
+   private final ReferenceQueue<Entry> queue = new ReferenceQueue<>();
+   // access-ordered, so iteration order is least recently used first
+   private final LinkedHashMap<String, EntryReference> entries = new LinkedHashMap<>(16, 0.75f, true);
+   private long totalBytes;
+   private long hits;
+   private long misses;
+
+   /**
+    * Constructs a new, empty cache.
+    *
+    * @param maxBytes the maximum total size of cached class files, in bytes
+    * @throws IllegalArgumentException if the given size is negative
+    */
+   public ClassBytesCache(long maxBytes) {
+      if (maxBytes < 0) {
+         throw new IllegalArgumentException("Maximum size must not be negative");
+      }
+      this.maxBytes = maxBytes;
+   }
+
+   /**
+    * Computes the cache key for a type with the given binary name and structural fingerprint.
+    *
+    * @param binaryName the binary name of a type
+    * @param fingerprint the structural fingerprint of the type
+    * @return a cache key
+    */
+   static String key(String binaryName, String fingerprint) {
+      return binaryName + '#' + fingerprint;
+   }
+
+   synchronized Entry get(String key) {
+      expungeCollectedEntries();
+      EntryReference ref = entries.get(key);
+      Entry entry = ref == null ? null : ref.get();
+      if (entry == null) {
+         misses++;
+         if (ref != null) {
+            removeReference(ref);
+         }
+      } else {
+         hits++;
+      }
+      return entry;
+   }
+
+   synchronized void put(String key, Entry entry) {
+      expungeCollectedEntries();
+      if (entry.size() > maxBytes) {
+         // too big to ever fit
+         return;
+      }
+      EntryReference existing = entries.remove(key);
+      if (existing != null) {
+         totalBytes -= existing.size;
+      }
+      entries.put(key, new EntryReference(key, entry, queue));
+      totalBytes += entry.size();
+      for (Iterator<EntryReference> iter = entries.values().iterator();
+            totalBytes > maxBytes && iter.hasNext(); ) {
+         EntryReference eldest = iter.next();
+         iter.remove();
+         totalBytes -= eldest.size;
+      }
+   }
+
+   private void expungeCollectedEntries() {
+      EntryReference ref;
+      while ((ref = (EntryReference) queue.poll()) != null) {
+         removeReference(ref);
+      }
+   }
+
+   private void removeReference(EntryReference ref) {
+      // only remove the mapping if it hasn't since been replaced with a newer entry
+      if (entries.get(ref.key) == ref) {
+         entries.remove(ref.key);
+         totalBytes -= ref.size;
+      }
+   }
+
+   /**
+    * Returns the maximum total size of cached class files, in bytes.
+    *
+    * @return the maximum size of the cache
+    */
+   public long maxBytes() {
+      return maxBytes;
+   }
+
+   /**
+    * Returns the total size of cached class files, in bytes.
+    *
+    * @return the current size of the cache
+    */
+   public synchronized long totalBytes() {
+      expungeCollectedEntries();
+      return totalBytes;
+   }
+
+   /**
+    * Returns the number of cached class files.
+    *
+    * @return the number of entries in the cache
+    */
+   public synchronized int size() {
+      expungeCollectedEntries();
+      return entries.size();
+   }
+
+   /**
+    * Returns the number of lookups that found a cached class file.
+    *
+    * @return the number of cache hits
+    */
+   public synchronized long hitCount() {
+      return hits;
+   }
+
+   /**
+    * Returns the number of lookups that did not find a cached class file.
+    *
+    * @return the number of cache misses
+    */
+   public synchronized long missCount() {
+      return misses;
+   }
+
+   /**
+    * Removes all entries from the cache.
+    */
+   public synchronized void clear() {
+      entries.clear();
+      totalBytes = 0;
+      // drain the queue; the references in it are no longer in the map
+      while (queue.poll() != null) {
+      }
+   }
+
+   @Override public synchronized String toString() {
+      Map<String, Object> props = new LinkedHashMap<>();
+      props.put("size", entries.size());
+      props.put("totalBytes", totalBytes);
+      props.put("maxBytes", maxBytes);
+      props.put("hits", hits);
+      props.put("misses", misses);
+      return "ClassBytesCache" + props;
+   }
+}
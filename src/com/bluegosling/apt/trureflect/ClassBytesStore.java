@@ -0,0 +1,334 @@
+package com.bluegosling.apt.trureflect;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An off-heap store of class files. Class files that are retained after their classes are defined
+ * (for defining them again in another class loader, for exporting stubs, and the like) would
+ * otherwise be held in byte arrays on the heap, where a long annotation processing session can
+ * accumulate many megabytes of them that the garbage collector has to trace and copy over and
+ * over. Instead, this store copies each class file into a large segment of memory outside the
+ * heap. The heap only holds the store's index: a few primitive arrays with one slot per class
+ * file.
+ *
+ * <p>Segments are either {@linkplain #direct(int, boolean) direct buffers} or {@linkplain
+ * #mapped(Path, int, boolean) memory-mapped files}, which the operating system can page out to
+ * disk. Class files are appended to the current segment, and a new segment is allocated when it
+ * fills up. A class file that is larger than a segment gets a segment of its own. Class files can
+ * optionally be compressed, which usually makes them about half as big, at the cost of a bit of
+ * CPU time to store and retrieve them. A class file is stored uncompressed if compressing it
+ * doesn't make it smaller.
+ *
+ * <p>Storing a class file returns a handle, which is later used to retrieve it. Handles are dense,
+ * starting at zero and increasing by one for each class file stored. Class files cannot be removed.
+ * Instead, the whole store is {@linkplain #close() closed} when it is no longer needed. This class
+ * is thread-safe.
+ *
+ * @see TruReflect#retainClassBytes(ClassBytesStore)
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class ClassBytesStore implements AutoCloseable {
+
+   /**
+    * The default size of a segment: four megabytes.
+    */
+   public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+   /**
+    * Creates a store whose segments are direct buffers.
+    *
+    * @param segmentSize the size of each segment, in bytes
+    * @param compress true if class files should be compressed
+    * @return a new store
+    * @throws IllegalArgumentException if the segment size is not positive
+    */
+   public static ClassBytesStore direct(int segmentSize, boolean compress) {
+      return new ClassBytesStore(null, segmentSize, compress);
+   }
+
+   /**
+    * Creates a store whose segments are memory-mapped files in the given directory. The files are
+    * deleted once they are mapped, where the platform allows, or else when the JVM exits.
+    *
+    * @param directory the directory in which to create segment files
+    * @param segmentSize the size of each segment, in bytes
+    * @param compress true if class files should be compressed
+    * @return a new store
+    * @throws IllegalArgumentException if the segment size is not positive or if the given path is
+    *       not a directory
+    */
+   public static ClassBytesStore mapped(Path directory, int segmentSize, boolean compress) {
+      if (!Files.isDirectory(directory)) {
+         throw new IllegalArgumentException(directory + " is not a directory");
+      }
+      return new ClassBytesStore(directory, segmentSize, compress);
+   }
+
+   private final Path directory;
+   private final int segmentSize;
+   private final Deflater deflater;
+   private final Inflater inflater;
+   private final List<ByteBuffer> segments = new ArrayList<>();
+   // the segment to which class files are appended; its position is the next free offset
+   private ByteBuffer current;
+   private int currentIndex;
+   // per handle: the segment index in the high 32 bits and the offset in the low 32 bits
+   private long locations[] = new long[64];
+   // per handle: stored size and original size, which differ if the class file is compressed
+   private int storedSizes[] = new int[64];
+   private int sizes[] = new int[64];
+   private int count;
+   private long storedBytes;
+   private long originalBytes;
+   private long reservedBytes;
+   // scratch space for compressing and decompressing
+   private byte buffer[] = new byte[0];
+   private boolean closed;
+
+   private ClassBytesStore(Path directory, int segmentSize, boolean compress) {
+      if (segmentSize <= 0) {
+         throw new IllegalArgumentException("Segment size must be positive");
+      }
+      this.directory = directory;
+      this.segmentSize = segmentSize;
+      this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+      this.inflater = compress ? new Inflater() : null;
+   }
+
+   /**
+    * Stores a class file.
+    *
+    * @param classBytes the contents of a class file
+    * @return the handle with which to retrieve the class file
+    * @throws IllegalStateException if this store has been closed
+    * @throws UncheckedIOException if a new segment is needed but cannot be mapped
+    */
+   public synchronized int put(byte classBytes[]) {
+      checkNotClosed();
+      byte stored[] = classBytes;
+      int storedSize = classBytes.length;
+      if (deflater != null) {
+         int compressedSize = compress(classBytes);
+         if (compressedSize < classBytes.length) {
+            stored = buffer;
+            storedSize = compressedSize;
+         }
+      }
+      int segmentIndex = segmentFor(storedSize);
+      ByteBuffer segment = segments.get(segmentIndex);
+      int offset = segment.position();
+      segment.put(stored, 0, storedSize);
+      int handle = count++;
+      if (handle == sizes.length) {
+         int len = handle * 2;
+         locations = Arrays.copyOf(locations, len);
+         storedSizes = Arrays.copyOf(storedSizes, len);
+         sizes = Arrays.copyOf(sizes, len);
+      }
+      locations[handle] = ((long) segmentIndex << 32) | offset;
+      storedSizes[handle] = storedSize;
+      sizes[handle] = classBytes.length;
+      storedBytes += storedSize;
+      originalBytes += classBytes.length;
+      return handle;
+   }
+
+   /**
+    * Retrieves a class file.
+    *
+    * @param handle the handle returned when the class file was stored
+    * @return a new array with the contents of the class file
+    * @throws IllegalArgumentException if the given handle is not valid
+    * @throws IllegalStateException if this store has been closed
+    */
+   public synchronized byte[] get(int handle) {
+      checkNotClosed();
+      checkHandle(handle);
+      long location = locations[handle];
+      ByteBuffer segment = segments.get((int) (location >>> 32)).duplicate();
+      segment.position((int) location);
+      int storedSize = storedSizes[handle];
+      byte classBytes[] = new byte[sizes[handle]];
+      if (storedSize == classBytes.length) {
+         segment.get(classBytes);
+         return classBytes;
+      }
+      ensureBufferCapacity(storedSize);
+      segment.get(buffer, 0, storedSize);
+      inflater.reset();
+      inflater.setInput(buffer, 0, storedSize);
+      try {
+         int len = inflater.inflate(classBytes);
+         assert len == classBytes.length && inflater.finished();
+      } catch (DataFormatException e) {
+         // we wrote it, so it can't be corrupt
+         throw new AssertionError(e);
+      }
+      return classBytes;
+   }
+
+   /**
+    * Returns the size of a class file, without retrieving it.
+    *
+    * @param handle the handle returned when the class file was stored
+    * @return the size of the class file, in bytes
+    * @throws IllegalArgumentException if the given handle is not valid
+    */
+   public synchronized int size(int handle) {
+      checkHandle(handle);
+      return sizes[handle];
+   }
+
+   private int compress(byte classBytes[]) {
+      // deflate only pays off if the output is smaller, so there's no need for more room
+      ensureBufferCapacity(classBytes.length);
+      deflater.reset();
+      deflater.setInput(classBytes);
+      deflater.finish();
+      int len = deflater.deflate(buffer, 0, classBytes.length);
+      return deflater.finished() ? len : classBytes.length;
+   }
+
+   private void ensureBufferCapacity(int capacity) {
+      if (buffer.length < capacity) {
+         buffer = new byte[Math.max(capacity, buffer.length * 2)];
+      }
+   }
+
+   private int segmentFor(int size) {
+      if (size > segmentSize) {
+         // oversized class files get a segment of their own
+         return newSegment(size);
+      }
+      if (current == null || current.remaining() < size) {
+         currentIndex = newSegment(segmentSize);
+         current = segments.get(currentIndex);
+      }
+      return currentIndex;
+   }
+
+   private int newSegment(int size) {
+      ByteBuffer segment = directory == null ? ByteBuffer.allocateDirect(size) : mapSegment(size);
+      segments.add(segment);
+      reservedBytes += size;
+      return segments.size() - 1;
+   }
+
+   private ByteBuffer mapSegment(int size) {
+      try {
+         Path file = Files.createTempFile(directory, "classbytes", ".seg");
+         ByteBuffer segment;
+         try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+               StandardOpenOption.WRITE)) {
+            // the mapping remains valid after the channel is closed
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+         }
+         try {
+            Files.delete(file);
+         } catch (IOException e) {
+            // some platforms can't delete a file that is mapped
+            file.toFile().deleteOnExit();
+         }
+         return segment;
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private void checkHandle(int handle) {
+      if (handle < 0 || handle >= count) {
+         throw new IllegalArgumentException("Invalid handle: " + handle);
+      }
+   }
+
+   private void checkNotClosed() {
+      if (closed) {
+         throw new IllegalStateException("Class bytes store has been closed");
+      }
+   }
+
+   /**
+    * Returns the number of stored class files.
+    *
+    * @return the number of stored class files
+    */
+   public synchronized int count() {
+      return count;
+   }
+
+   /**
+    * Returns the total size of all stored class files, before compression.
+    *
+    * @return the total size of stored class files, in bytes
+    */
+   public synchronized long originalBytes() {
+      return originalBytes;
+   }
+
+   /**
+    * Returns the total amount of memory used by stored class files, after compression. Without
+    * compression, this is the same as {@link #originalBytes()}.
+    *
+    * @return the total size of stored data, in bytes
+    */
+   public synchronized long storedBytes() {
+      return storedBytes;
+   }
+
+   /**
+    * Returns the total size of all segments, including space in them that is not yet used.
+    *
+    * @return the total size of all segments, in bytes
+    */
+   public synchronized long reservedBytes() {
+      return reservedBytes;
+   }
+
+   /**
+    * Closes this store. Class files can no longer be stored or retrieved. The segments' memory is
+    * released once they are garbage collected, which is when the JVM releases the memory of direct
+    * buffers and mapped files.
+    */
+   @Override public synchronized void close() {
+      if (!closed) {
+         closed = true;
+         segments.clear();
+         current = null;
+         buffer = null;
+         if (deflater != null) {
+            deflater.end();
+            inflater.end();
+         }
+      }
+   }
+
+   @Override public synchronized String toString() {
+      Map<String, Object> props = new LinkedHashMap<>();
+      props.put("type", directory == null ? "direct" : "mapped");
+      props.put("compressed", deflater != null);
+      props.put("count", count);
+      props.put("originalBytes", originalBytes);
+      props.put("storedBytes", storedBytes);
+      props.put("reservedBytes", reservedBytes);
+      props.put("segments", segments.size());
+      if (closed) {
+         props.put("closed", true);
+      }
+      return "ClassBytesStore" + props;
+   }
+}
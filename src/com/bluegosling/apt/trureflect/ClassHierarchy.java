@@ -0,0 +1,222 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Inherited;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A flattened view of a class and its supertypes. Asking reflection for "all methods, including
+ * inherited ones" or "all fields up the hierarchy" means walking {@link Class#getSuperclass()} and
+ * {@link Class#getInterfaces()} and copying the declared members of every level, on every call.
+ * This view does that once. It is built from the views of the class's direct supertypes, so a
+ * supertype's tables are computed once and then reused by all of its subtypes.
+ *
+ * <p>Methods are identified by name and parameter types. A method declared in a class hides any
+ * method with the same name and parameter types in its supertypes. Methods from the superclass take
+ * precedence over methods from interfaces, and earlier interfaces take precedence over later ones.
+ * Private methods of supertypes and static methods of interfaces are not inherited. The synthetic
+ * methods that assign the constants of very large synthesized enums are left out.
+ *
+ * <p>Instances are immutable and thread-safe.
+ *
+ * @see TruReflect#hierarchyOf(Class)
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class ClassHierarchy {
+
+   private final Class<?> type;
+   private final ClassHierarchy superclass;
+   private final List<ClassHierarchy> interfaces;
+   private final Map<String, Method> methods;
+   private final List<Method> methodList;
+   private final List<Field> fields;
+   private final Map<Class<? extends Annotation>, Annotation> annotations;
+   private final List<Annotation> annotationList;
+
+   /**
+    * Computes the view for the given class.
+    *
+    * @param type the class
+    * @param hierarchies a function that returns the (usually cached) views of supertypes
+    */
+   ClassHierarchy(Class<?> type, Function<Class<?>, ClassHierarchy> hierarchies) {
+      this.type = type;
+      Class<?> sup = type.getSuperclass();
+      this.superclass = sup == null ? null : hierarchies.apply(sup);
+      Class<?> ifaces[] = type.getInterfaces();
+      List<ClassHierarchy> interfaceList = new ArrayList<>(ifaces.length);
+      for (Class<?> iface : ifaces) {
+         interfaceList.add(hierarchies.apply(iface));
+      }
+      this.interfaces = Collections.unmodifiableList(interfaceList);
+
+      Map<String, Method> allMethods = new LinkedHashMap<>();
+      for (Method m : type.getDeclaredMethods()) {
+         if (!TruReflectClassLoader.isEnumAssignmentHelper(m)) {
+            allMethods.put(key(m), m);
+         }
+      }
+      if (superclass != null) {
+         for (Map.Entry<String, Method> entry : superclass.methods.entrySet()) {
+            if (!Modifier.isPrivate(entry.getValue().getModifiers())) {
+               allMethods.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+         }
+      }
+      for (ClassHierarchy iface : interfaces) {
+         for (Map.Entry<String, Method> entry : iface.methods.entrySet()) {
+            int mods = entry.getValue().getModifiers();
+            if (!Modifier.isPrivate(mods) && !Modifier.isStatic(mods)) {
+               allMethods.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+         }
+      }
+      this.methods = allMethods;
+      this.methodList = Collections.unmodifiableList(new ArrayList<>(allMethods.values()));
+
+      Set<Field> allFields = new LinkedHashSet<>();
+      Collections.addAll(allFields, type.getDeclaredFields());
+      if (superclass != null) {
+         allFields.addAll(superclass.fields);
+      }
+      for (ClassHierarchy iface : interfaces) {
+         allFields.addAll(iface.fields);
+      }
+      this.fields = Collections.unmodifiableList(new ArrayList<>(allFields));
+
+      Map<Class<? extends Annotation>, Annotation> allAnnotations = new LinkedHashMap<>();
+      for (Annotation a : type.getDeclaredAnnotations()) {
+         allAnnotations.put(a.annotationType(), a);
+      }
+      if (superclass != null) {
+         for (Annotation a : superclass.annotations.values()) {
+            if (a.annotationType().isAnnotationPresent(Inherited.class)) {
+               allAnnotations.putIfAbsent(a.annotationType(), a);
+            }
+         }
+      }
+      this.annotations = allAnnotations;
+      this.annotationList = Collections.unmodifiableList(new ArrayList<>(allAnnotations.values()));
+   }
+
+   private static String key(Method m) {
+      return key(m.getName(), m.getParameterTypes());
+   }
+
+   private static String key(String name, Class<?> parameterTypes[]) {
+      StringBuilder sb = new StringBuilder(name).append('(');
+      for (Class<?> p : parameterTypes) {
+         sb.append(p.getName()).append(';');
+      }
+      return sb.append(')').toString();
+   }
+
+   /**
+    * Returns the class that this view describes.
+    *
+    * @return the class
+    */
+   public Class<?> type() {
+      return type;
+   }
+
+   /**
+    * Returns the view of this class's superclass.
+    *
+    * @return the view of the superclass, or {@code null} if this class has no superclass (like
+    *       interfaces and {@code Object})
+    */
+   public ClassHierarchy superclass() {
+      return superclass;
+   }
+
+   /**
+    * Returns the views of the interfaces this class directly implements (or, for an interface, the
+    * interfaces it directly extends).
+    *
+    * @return the views of the direct superinterfaces
+    */
+   public List<ClassHierarchy> interfaces() {
+      return interfaces;
+   }
+
+   /**
+    * Returns all methods of this class, including inherited ones. Each method declared by this
+    * class comes first, in the order returned by {@link Class#getDeclaredMethods()}, followed by
+    * inherited methods that it doesn't hide.
+    *
+    * @return all declared and inherited methods
+    */
+   public List<Method> allMethods() {
+      return methodList;
+   }
+
+   /**
+    * Finds a declared or inherited method with the given name and parameter types.
+    *
+    * @param name the method name
+    * @param parameterTypes the method's parameter types
+    * @return the method, or {@code null} if there is no such method
+    */
+   public Method findMethod(String name, Class<?>... parameterTypes) {
+      return methods.get(key(name, parameterTypes));
+   }
+
+   /**
+    * Returns all fields of this class and of all of its supertypes, including fields that are
+    * hidden by fields of the same name in subtypes. Fields declared by this class come first.
+    *
+    * @return all declared and inherited fields
+    */
+   public List<Field> allFields() {
+      return fields;
+   }
+
+   /**
+    * Returns the annotations that are present on this class: those it declares plus those it
+    * inherits from its superclasses because their types are annotated with {@link Inherited}.
+    *
+    * @return the annotations present on this class
+    */
+   public List<Annotation> annotations() {
+      return annotationList;
+   }
+
+   /**
+    * Returns the annotation of the given type if it is present on this class, either declared or
+    * inherited.
+    *
+    * @param annotationType the annotation type
+    * @return the annotation, or {@code null} if it is not present
+    */
+   public <A extends Annotation> A getAnnotation(Class<A> annotationType) {
+      return annotationType.cast(annotations.get(annotationType));
+   }
+
+   /**
+    * Returns true if an annotation of the given type is present on this class, either declared or
+    * inherited.
+    *
+    * @param annotationType the annotation type
+    * @return true if the annotation is present
+    */
+   public boolean isAnnotationPresent(Class<? extends Annotation> annotationType) {
+      return annotations.containsKey(annotationType);
+   }
+
+   @Override public String toString() {
+      return "ClassHierarchy[" + type.getName() + ", methods=" + methodList.size() + ", fields="
+            + fields.size() + ", annotations=" + annotations.size() + "]";
+   }
+}
@@ -0,0 +1,240 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.lang.model.element.TypeElement;
+
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Synthesizes classes ahead of time, before they are requested. Synthesis is split in two. Classes
+ * are first visited on the calling thread, which must be the thread that owns the processing
+ * environment, since that is where elements are read. The visits are {@linkplain
+ * RecordingClassVisitor recorded} and then written to class files on background threads. When a
+ * class is later requested, its class file is usually ready.
+ *
+ * <p>Only writing class files moves off of the calling thread. Reading elements and visiting them
+ * still happens synchronously, while holding the class loader's lock, so prefetching saves at most
+ * the time spent in {@link ClassWriter}, and it costs the time to visit classes that are never
+ * requested. {@code PrefetchBenchmark} measures the difference.
+ *
+ * <p>Prefetching is limited by a CPU budget: the total CPU time spent prefetching, on the calling
+ * thread and on background threads, over the life of the prefetcher. Both are measured as thread
+ * CPU time, where the JVM supports it, and as elapsed time otherwise. Time on background threads is
+ * only counted when a task finishes, so the budget may be exceeded by the tasks that are running
+ * when it runs out.
+ *
+ * <p>This class is not thread-safe. Except for the background tasks, it is only used while holding
+ * the class loader's lock.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+final class ClassPrefetcher {
+
+   private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+   private static final ExecutorService EXECUTOR;
+   static {
+      AtomicInteger threadCount = new AtomicInteger();
+      EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+            r -> {
+               Thread t = new Thread(r, "trureflect-prefetch-" + threadCount.incrementAndGet());
+               t.setDaemon(true);
+               return t;
+            });
+   }
+
+   /**
+    * A class whose class file is being written in the background.
+    */
+   private static final class Prefetched {
+      final Future<byte[]> classBytes;
+      final Set<TypeElement> referencedTypes;
+
+      Prefetched(Future<byte[]> classBytes, Set<TypeElement> referencedTypes) {
+         this.classBytes = classBytes;
+         this.referencedTypes = referencedTypes;
+      }
+   }
+
+   private final TruReflectClassLoader loader;
+   private int depth;
+   private long cpuBudgetNanos;
+   private final AtomicLong spentNanos = new AtomicLong();
+   private final Map<String, Prefetched> pending = new HashMap<>();
+
+   /**
+    * Creates a new prefetcher. Prefetching of references is disabled until it is
+    * {@linkplain #configure configured}.
+    *
+    * @param loader the class loader whose classes are prefetched
+    */
+   ClassPrefetcher(TruReflectClassLoader loader) {
+      this.loader = loader;
+   }
+
+   /**
+    * Configures prefetching of references. A depth or budget of zero disables it.
+    *
+    * @param depth how many levels of references to follow from each synthesized class
+    * @param cpuBudgetNanos the total CPU time, in nanoseconds, that can be spent prefetching
+    */
+   void configure(int depth, long cpuBudgetNanos) {
+      this.depth = depth;
+      this.cpuBudgetNanos = cpuBudgetNanos;
+   }
+
+   /**
+    * Returns true if prefetching of references is enabled.
+    *
+    * @return true if prefetching of references is enabled
+    */
+   boolean isEnabled() {
+      return depth > 0 && cpuBudgetNanos > 0;
+   }
+
+   /**
+    * Prefetches the given types and, up to the configured depth, the types they reference. This
+    * is called after a class is synthesized, with the types the class references. This does
+    * nothing if prefetching of references is disabled.
+    *
+    * @param types the types to prefetch
+    */
+   void prefetchReferences(Collection<TypeElement> types) {
+      if (isEnabled()) {
+         prefetch(types, depth, true);
+      }
+   }
+
+   /**
+    * Prefetches all of the given types, but not the types they reference. This is not limited by
+    * the CPU budget and works even if prefetching of references is disabled.
+    *
+    * @param types the types to prefetch
+    * @return the number of types prefetched
+    */
+   int prefetchAll(Collection<TypeElement> types) {
+      return prefetch(types, 1, false);
+   }
+
+   /**
+    * Prefetches the given types and, up to the given depth, the types they reference. Types that
+    * have already been loaded or prefetched are skipped.
+    *
+    * @param types the types to prefetch
+    * @param maxDepth how many levels of types to prefetch; one prefetches only the given types
+    * @param limited true if prefetching stops when the CPU budget is used up
+    * @return the number of types prefetched
+    */
+   private int prefetch(Collection<TypeElement> types, int maxDepth, boolean limited) {
+      int count = 0;
+      Collection<TypeElement> level = types;
+      for (int d = 0; d < maxDepth && !level.isEmpty(); d++) {
+         List<TypeElement> next = new ArrayList<>();
+         for (TypeElement type : level) {
+            if (limited && spentNanos.get() >= cpuBudgetNanos) {
+               return count;
+            }
+            String name = loader.prefetchCandidate(type);
+            if (name == null || pending.containsKey(name)) {
+               continue;
+            }
+            long start = cpuTimeNanos();
+            RecordingClassVisitor recording = new RecordingClassVisitor();
+            Set<TypeElement> referencedTypes = new LinkedHashSet<>();
+            loader.emitPrefetched(recording, name, type, referencedTypes);
+            spentNanos.addAndGet(cpuTimeNanos() - start);
+            pending.put(name, new Prefetched(EXECUTOR.submit(() -> write(recording)),
+                  referencedTypes));
+            if (d + 1 < maxDepth) {
+               next.addAll(referencedTypes);
+            }
+            count++;
+         }
+         level = next;
+      }
+      return count;
+   }
+
+   private byte[] write(RecordingClassVisitor recording) {
+      long start = cpuTimeNanos();
+      ClassWriter writer = new ClassWriter(0);
+      recording.accept(writer);
+      byte classBytes[] = writer.toByteArray();
+      spentNanos.addAndGet(cpuTimeNanos() - start);
+      return classBytes;
+   }
+
+   private static long cpuTimeNanos() {
+      return THREADS.isCurrentThreadCpuTimeSupported()
+            ? THREADS.getCurrentThreadCpuTime()
+            : System.nanoTime();
+   }
+
+   /**
+    * Takes the class file for a prefetched class, waiting for it to be written if necessary.
+    *
+    * @param name the binary name of the class
+    * @param referencedTypes a set that, if the class was prefetched, will contain all types
+    *       referenced by the class
+    * @return the class file, or {@code null} if the class was not prefetched or could not be
+    *       written
+    */
+   byte[] take(String name, Set<TypeElement> referencedTypes) {
+      Prefetched p = pending.remove(name);
+      if (p == null) {
+         return null;
+      }
+      try {
+         byte classBytes[] = p.classBytes.get();
+         referencedTypes.addAll(p.referencedTypes);
+         return classBytes;
+      } catch (ExecutionException e) {
+         // the caller will synthesize the class itself
+         return null;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return null;
+      }
+   }
+
+   /**
+    * Discards a prefetched class, if there is one, because it is no longer needed.
+    *
+    * @param name the binary name of the class
+    */
+   void discard(String name) {
+      Prefetched p = pending.remove(name);
+      if (p != null) {
+         p.classBytes.cancel(false);
+      }
+   }
+
+   /**
+    * Discards all prefetched classes that have not been taken and disables prefetching of
+    * references. This is called when the class loader is frozen, since it can no longer define
+    * them.
+    */
+   void discardAll() {
+      for (Prefetched p : pending.values()) {
+         p.classBytes.cancel(false);
+      }
+      pending.clear();
+      depth = 0;
+   }
+}
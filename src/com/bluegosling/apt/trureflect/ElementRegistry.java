@@ -0,0 +1,240 @@
+package com.bluegosling.apt.trureflect;
+
+import java.util.Arrays;
+
+import javax.lang.model.element.TypeElement;
+
+/**
+ * Assigns a dense integer ID to each type element that a class loader has seen, in the order they
+ * are registered. Per-element data is kept in arrays indexed by ID, instead of in maps keyed by
+ * elements or names. So each element is hashed once, to find its ID, and everything else about it
+ * is an array access. Other per-element data can be kept in {@linkplain SideTable side tables}.
+ *
+ * <p>Elements and names are found via open-addressed tables of IDs. Elements are compared by
+ * identity, which is how javac's elements implement equality, so finding an ID never calls into
+ * the compiler.
+ *
+ * <p>This class is not thread-safe. It is only modified while holding the class loader's lock.
+ * Once the class loader is frozen, nothing is registered anymore, and it can be read from any
+ * thread.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+final class ElementRegistry {
+
+   /**
+    * The ID returned when an element or name is not registered.
+    */
+   static final int NONE = -1;
+
+   /**
+    * Per-element data, indexed by ID.
+    *
+    * @param <T> the type of the data
+    */
+   static final class SideTable<T> {
+      private Object values[] = new Object[16];
+
+      /**
+       * Returns the value for the element with the given ID.
+       *
+       * @param id an element ID
+       * @return the value, or {@code null} if none has been stored
+       */
+      @SuppressWarnings("unchecked") // put only accepts values of type T
+      T get(int id) {
+         return id < values.length ? (T) values[id] : null;
+      }
+
+      /**
+       * Stores a value for the element with the given ID.
+       *
+       * @param id an element ID
+       * @param value the value
+       */
+      void put(int id, T value) {
+         if (id >= values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, id + 1));
+         }
+         values[id] = value;
+      }
+   }
+
+   /**
+    * Per-element {@code int} data, indexed by ID. This avoids boxing for data like handles.
+    */
+   static final class IntSideTable {
+      private int values[] = new int[16];
+
+      IntSideTable() {
+         Arrays.fill(values, NONE);
+      }
+
+      /**
+       * Returns the value for the element with the given ID.
+       *
+       * @param id an element ID
+       * @return the value, or {@link ElementRegistry#NONE} if none has been stored
+       */
+      int get(int id) {
+         return id < values.length ? values[id] : NONE;
+      }
+
+      /**
+       * Stores a value for the element with the given ID.
+       *
+       * @param id an element ID
+       * @param value the value
+       */
+      void put(int id, int value) {
+         if (id >= values.length) {
+            int oldLength = values.length;
+            values = Arrays.copyOf(values, Math.max(oldLength * 2, id + 1));
+            Arrays.fill(values, oldLength, values.length, NONE);
+         }
+         values[id] = value;
+      }
+   }
+
+   private TypeElement elements[] = new TypeElement[16];
+   private String binaryNames[] = new String[16];
+   private Class<?> classes[] = new Class<?>[16];
+   private int size;
+   // open-addressed tables of IDs plus one, so that zero marks an empty slot
+   private int byElement[] = new int[32];
+   private int byName[] = new int[32];
+
+   /**
+    * Returns the number of registered elements. IDs are between zero (inclusive) and this
+    * (exclusive).
+    *
+    * @return the number of registered elements
+    */
+   int size() {
+      return size;
+   }
+
+   /**
+    * Returns the ID of the given element.
+    *
+    * @param element a type element
+    * @return the element's ID, or {@link #NONE} if it is not registered
+    */
+   int idOf(TypeElement element) {
+      int mask = byElement.length - 1;
+      for (int i = hash(System.identityHashCode(element)) & mask; ; i = (i + 1) & mask) {
+         int id = byElement[i] - 1;
+         if (id == NONE || elements[id] == element) {
+            return id;
+         }
+      }
+   }
+
+   /**
+    * Returns the ID of the element with the given binary name.
+    *
+    * @param binaryName a binary class name
+    * @return the ID of the element with that name, or {@link #NONE} if there is none
+    */
+   int idOf(String binaryName) {
+      int mask = byName.length - 1;
+      for (int i = hash(binaryName.hashCode()) & mask; ; i = (i + 1) & mask) {
+         int id = byName[i] - 1;
+         if (id == NONE || binaryNames[id].equals(binaryName)) {
+            return id;
+         }
+      }
+   }
+
+   /**
+    * Registers an element with the given binary name. Neither the element nor the name can already
+    * be registered.
+    *
+    * @param element a type element
+    * @param binaryName the element's binary name
+    * @return the element's new ID
+    */
+   int register(TypeElement element, String binaryName) {
+      assert idOf(element) == NONE && idOf(binaryName) == NONE;
+      int id = size++;
+      if (id == elements.length) {
+         int len = id * 2;
+         elements = Arrays.copyOf(elements, len);
+         binaryNames = Arrays.copyOf(binaryNames, len);
+         classes = Arrays.copyOf(classes, len);
+      }
+      elements[id] = element;
+      binaryNames[id] = binaryName;
+      if (size * 2 > byElement.length) {
+         rehash(byElement.length * 2);
+      } else {
+         insert(byElement, System.identityHashCode(element), id);
+         insert(byName, binaryName.hashCode(), id);
+      }
+      return id;
+   }
+
+   /**
+    * Returns the element with the given ID.
+    *
+    * @param id an element ID
+    * @return the element
+    */
+   TypeElement element(int id) {
+      return elements[id];
+   }
+
+   /**
+    * Returns the binary name of the element with the given ID.
+    *
+    * @param id an element ID
+    * @return the element's binary name
+    */
+   String binaryName(int id) {
+      return binaryNames[id];
+   }
+
+   /**
+    * Returns the class loaded for the element with the given ID.
+    *
+    * @param id an element ID
+    * @return the element's class, or {@code null} if it hasn't been recorded
+    */
+   Class<?> loadedClass(int id) {
+      return classes[id];
+   }
+
+   /**
+    * Records the class loaded for the element with the given ID.
+    *
+    * @param id an element ID
+    * @param clazz the element's class
+    */
+   void setLoadedClass(int id, Class<?> clazz) {
+      classes[id] = clazz;
+   }
+
+   private void rehash(int capacity) {
+      byElement = new int[capacity];
+      byName = new int[capacity];
+      for (int id = 0; id < size; id++) {
+         insert(byElement, System.identityHashCode(elements[id]), id);
+         insert(byName, binaryNames[id].hashCode(), id);
+      }
+   }
+
+   private static void insert(int table[], int hashCode, int id) {
+      int mask = table.length - 1;
+      int i = hash(hashCode) & mask;
+      while (table[i] != 0) {
+         i = (i + 1) & mask;
+      }
+      table[i] = id + 1;
+   }
+
+   private static int hash(int h) {
+      // spreads the bits, since consecutive slots are probed
+      h *= 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+}
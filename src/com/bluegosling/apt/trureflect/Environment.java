@@ -14,10 +14,12 @@ import javax.lang.model.util.Types;
 public class Environment {
    private final Elements elementUtils;
    private final Types typeUtils;
+   private final StringTable stringTable;
    private final TypeNames typeNameUtils;
    private final Signatures signatureUtils;
    private final Annotations annotationUtils;
    private final TypeAnnotations typeAnnotationUtils;
+   private final Fingerprints fingerprintUtils;
    
    public Environment(ProcessingEnvironment env) {
       this(env.getElementUtils(), env.getTypeUtils());
@@ -26,12 +28,14 @@ public class Environment {
    public Environment(Elements elementUtils, Types typeUtils) {
       this.elementUtils = elementUtils;
       this.typeUtils = typeUtils;
+      this.stringTable = new StringTable();
       this.typeNameUtils = new TypeNames(elementUtils, typeUtils);
       TypeMirror javaLangObject =
             elementUtils.getTypeElement(Object.class.getCanonicalName()).asType();
       this.signatureUtils = new Signatures(javaLangObject, typeUtils, typeNameUtils);
       this.annotationUtils = new Annotations(elementUtils, typeNameUtils);
       this.typeAnnotationUtils = new TypeAnnotations(elementUtils, typeNameUtils, annotationUtils);
+      this.fingerprintUtils = new Fingerprints(elementUtils);
    }
    
    public Elements elementUtils() {
@@ -42,6 +46,18 @@ public class Environment {
       return typeUtils;
    }
    
+   /**
+    * Returns the table of canonical strings for this environment. Names that are retained for as
+    * long as the environment is, like the binary names of synthesized classes, are canonicalized
+    * through this table. Transient strings, like the descriptors and signatures written into class
+    * files, are not.
+    * 
+    * @return the table of canonical strings
+    */
+   public StringTable stringTable() {
+      return stringTable;
+   }
+   
    public TypeNames typeNameUtils() {
       return typeNameUtils;
    }
@@ -57,4 +73,8 @@ public class Environment {
    public TypeAnnotations typeAnnotationUtils() {
       return typeAnnotationUtils;
    }
+   
+   public Fingerprints fingerprintUtils() {
+      return fingerprintUtils;
+   }
 }
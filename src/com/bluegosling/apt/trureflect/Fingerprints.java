@@ -0,0 +1,348 @@
+package com.bluegosling.apt.trureflect;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.IntersectionType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.UnionType;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.SimpleAnnotationValueVisitor8;
+import javax.lang.model.util.SimpleElementVisitor8;
+import javax.lang.model.util.SimpleTypeVisitor8;
+
+/**
+ * Computes structural fingerprints for type elements. A fingerprint is a digest of everything about
+ * a type that is conveyed to the class synthesized for it: its modifiers, supertypes, type
+ * parameters, annotations (including default values of annotation methods), type annotations, and
+ * the signatures, modifiers, and annotations of all of its members. Two elements with the same
+ * binary name and the same fingerprint will result in identical synthesized classes, even if they
+ * come from different compilations.
+ *
+ * @see Environment
+ * @see ClassBytesCache
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public class Fingerprints {
+   private final Elements elementUtils;
+
+   Fingerprints(Elements elementUtils) {
+      this.elementUtils = elementUtils;
+   }
+
+   /**
+    * Computes the structural fingerprint for the given type element.
+    *
+    * @param element a type element
+    * @return a hex-encoded digest of the element's structure
+    */
+   public String getFingerprint(TypeElement element) {
+      Hasher h = new Hasher();
+      h.put(elementUtils.getBinaryName(element));
+      h.put(element.getKind());
+      h.put(element.getNestingKind());
+      putModifiers(h, element.getModifiers());
+      element.getEnclosingElement().accept(enclosingVisitor, h);
+      putTypeParameters(h, element.getTypeParameters());
+      putType(h, element.getSuperclass());
+      putTypes(h, element.getInterfaces());
+      putAnnotations(h, element.getAnnotationMirrors());
+      for (Element e : element.getEnclosedElements()) {
+         e.accept(memberVisitor, h);
+      }
+      return h.finish();
+   }
+
+   /**
+    * Incrementally digests the structure of an element.
+    */
+   private static class Hasher {
+      private final MessageDigest digest;
+
+      Hasher() {
+         try {
+            digest = MessageDigest.getInstance("SHA-256");
+         } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is required to be supported", e);
+         }
+      }
+
+      void put(CharSequence s) {
+         digest.update(s.toString().getBytes(StandardCharsets.UTF_8));
+         // separator, so adjacent strings can't be confused for one another
+         digest.update((byte) 0);
+      }
+
+      void put(Enum<?> e) {
+         put(e.name());
+      }
+
+      void put(int i) {
+         digest.update((byte) (i >>> 24));
+         digest.update((byte) (i >>> 16));
+         digest.update((byte) (i >>> 8));
+         digest.update((byte) i);
+      }
+
+      String finish() {
+         byte bytes[] = digest.digest();
+         StringBuilder sb = new StringBuilder(bytes.length * 2);
+         for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+         }
+         return sb.toString();
+      }
+   }
+
+   private void putModifiers(Hasher h, Set<Modifier> modifiers) {
+      h.put(modifiers.size());
+      // modifier sets are enum sets in practice, so iteration order is stable
+      for (Modifier m : modifiers) {
+         h.put(m);
+      }
+   }
+
+   private void putTypes(Hasher h, List<? extends TypeMirror> types) {
+      h.put(types.size());
+      for (TypeMirror t : types) {
+         putType(h, t);
+      }
+   }
+
+   private void putType(Hasher h, TypeMirror type) {
+      h.put(type.getKind());
+      putAnnotations(h, type.getAnnotationMirrors());
+      type.accept(typeVisitor, h);
+   }
+
+   private void putTypeParameters(Hasher h, List<? extends TypeParameterElement> typeParams) {
+      h.put(typeParams.size());
+      for (TypeParameterElement typeParam : typeParams) {
+         h.put(typeParam.getSimpleName());
+         putAnnotations(h, typeParam.getAnnotationMirrors());
+         putTypes(h, typeParam.getBounds());
+      }
+   }
+
+   private void putAnnotations(Hasher h, List<? extends AnnotationMirror> annotations) {
+      h.put(annotations.size());
+      for (AnnotationMirror mirror : annotations) {
+         putAnnotation(h, mirror);
+      }
+   }
+
+   private void putAnnotation(Hasher h, AnnotationMirror mirror) {
+      putType(h, mirror.getAnnotationType());
+      Map<? extends ExecutableElement, ? extends AnnotationValue> values =
+            elementUtils.getElementValuesWithDefaults(mirror);
+      h.put(values.size());
+      for (Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+            : values.entrySet()) {
+         h.put(entry.getKey().getSimpleName());
+         entry.getValue().accept(annotationValueVisitor, h);
+      }
+   }
+
+   private final SimpleTypeVisitor8<Void, Hasher> typeVisitor =
+         new SimpleTypeVisitor8<Void, Hasher>() {
+            @Override
+            protected Void defaultAction(TypeMirror t, Hasher h) {
+               return null;
+            }
+
+            @Override
+            public Void visitArray(ArrayType t, Hasher h) {
+               putType(h, t.getComponentType());
+               return null;
+            }
+
+            @Override
+            public Void visitDeclared(DeclaredType t, Hasher h) {
+               TypeElement element = (TypeElement) t.asElement();
+               h.put(elementUtils.getBinaryName(element));
+               if (element.getNestingKind().isNested()) {
+                  // referenced inner classes are recorded, along with their flags, in the
+                  // synthesized class's inner class attributes; the kind decides the interface,
+                  // annotation, and enum flags
+                  h.put(element.getKind());
+                  putModifiers(h, element.getModifiers());
+               }
+               putType(h, t.getEnclosingType());
+               putTypes(h, t.getTypeArguments());
+               return null;
+            }
+
+            @Override
+            public Void visitTypeVariable(TypeVariable t, Hasher h) {
+               h.put(t.asElement().getSimpleName());
+               return null;
+            }
+
+            @Override
+            public Void visitWildcard(WildcardType t, Hasher h) {
+               TypeMirror bound = t.getExtendsBound();
+               if (bound != null) {
+                  putType(h, bound);
+               }
+               bound = t.getSuperBound();
+               if (bound != null) {
+                  h.put("super");
+                  putType(h, bound);
+               }
+               return null;
+            }
+
+            @Override
+            public Void visitIntersection(IntersectionType t, Hasher h) {
+               putTypes(h, t.getBounds());
+               return null;
+            }
+
+            @Override
+            public Void visitUnion(UnionType t, Hasher h) {
+               putTypes(h, t.getAlternatives());
+               return null;
+            }
+         };
+
+   private final SimpleAnnotationValueVisitor8<Void, Hasher> annotationValueVisitor =
+         new SimpleAnnotationValueVisitor8<Void, Hasher>() {
+            @Override
+            protected Void defaultAction(Object o, Hasher h) {
+               // primitives and strings: include the type so that, for example, 1 and 1L differ
+               h.put(o.getClass().getName());
+               h.put(String.valueOf(o));
+               return null;
+            }
+
+            @Override
+            public Void visitType(TypeMirror t, Hasher h) {
+               putType(h, t);
+               return null;
+            }
+
+            @Override
+            public Void visitEnumConstant(VariableElement c, Hasher h) {
+               h.put(elementUtils.getBinaryName((TypeElement) c.getEnclosingElement()));
+               h.put(c.getSimpleName());
+               return null;
+            }
+
+            @Override
+            public Void visitAnnotation(AnnotationMirror a, Hasher h) {
+               putAnnotation(h, a);
+               return null;
+            }
+
+            @Override
+            public Void visitArray(List<? extends AnnotationValue> vals, Hasher h) {
+               h.put(vals.size());
+               for (AnnotationValue val : vals) {
+                  val.accept(this, h);
+               }
+               return null;
+            }
+         };
+
+   private final SimpleElementVisitor8<Void, Hasher> enclosingVisitor =
+         new SimpleElementVisitor8<Void, Hasher>() {
+            @Override
+            protected Void defaultAction(Element e, Hasher h) {
+               h.put(e.getKind());
+               return null;
+            }
+
+            @Override
+            public Void visitType(TypeElement e, Hasher h) {
+               h.put(elementUtils.getBinaryName(e));
+               // a nested class's inner class attributes record each enclosing nested type, along
+               // with its flags, which come from its kind and modifiers
+               for (Element t = e; (t.getKind().isClass() || t.getKind().isInterface())
+                     && ((TypeElement) t).getNestingKind().isNested();
+                     t = t.getEnclosingElement()) {
+                  h.put(t.getKind());
+                  putModifiers(h, t.getModifiers());
+               }
+               return null;
+            }
+
+            @Override
+            public Void visitExecutable(ExecutableElement e, Hasher h) {
+               visitType((TypeElement) e.getEnclosingElement(), h);
+               h.put(e.getSimpleName());
+               putType(h, e.asType());
+               return null;
+            }
+         };
+
+   private final SimpleElementVisitor8<Void, Hasher> memberVisitor =
+         new SimpleElementVisitor8<Void, Hasher>() {
+            @Override
+            protected Void defaultAction(Element e, Hasher h) {
+               h.put(e.getKind());
+               h.put(e.getSimpleName());
+               putModifiers(h, e.getModifiers());
+               return null;
+            }
+
+            @Override
+            public Void visitType(TypeElement e, Hasher h) {
+               defaultAction(e, h);
+               h.put(elementUtils.getBinaryName(e));
+               return null;
+            }
+
+            @Override
+            public Void visitVariable(VariableElement e, Hasher h) {
+               defaultAction(e, h);
+               putType(h, e.asType());
+               h.put(String.valueOf(e.getConstantValue()));
+               putAnnotations(h, e.getAnnotationMirrors());
+               return null;
+            }
+
+            @Override
+            public Void visitExecutable(ExecutableElement e, Hasher h) {
+               defaultAction(e, h);
+               putTypeParameters(h, e.getTypeParameters());
+               h.put(e.getParameters().size());
+               for (VariableElement param : e.getParameters()) {
+                  h.put(param.getSimpleName());
+                  putModifiers(h, param.getModifiers());
+                  putType(h, param.asType());
+                  putAnnotations(h, param.getAnnotationMirrors());
+               }
+               putType(h, e.getReturnType());
+               TypeMirror receiverType = e.getReceiverType();
+               if (receiverType != null) {
+                  putType(h, receiverType);
+               }
+               putTypes(h, e.getThrownTypes());
+               AnnotationValue defaultValue = e.getDefaultValue();
+               if (defaultValue != null) {
+                  defaultValue.accept(annotationValueVisitor, h);
+               }
+               putAnnotations(h, e.getAnnotationMirrors());
+               return null;
+            }
+         };
+}
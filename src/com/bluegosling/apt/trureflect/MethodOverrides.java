@@ -0,0 +1,232 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+
+/**
+ * The methods of a class and, for each one, the methods it overrides or implements. Working this
+ * out with reflection on synthesized classes means comparing every method with every method of
+ * every supertype. Instead, this is computed from the elements, using {@link
+ * Elements#overrides(ExecutableElement, ExecutableElement, TypeElement)}, and each class's table is
+ * built from the tables of its direct supertypes. Only methods with the same name are compared, and
+ * a method that overrides another also overrides everything that one overrides, so nothing is
+ * compared twice.
+ *
+ * <p>The methods of a class are those it declares plus those it inherits: methods of supertypes
+ * that are not overridden or hidden, except private methods and static methods of interfaces. A
+ * static method hides, rather than overrides, a static method of its superclass, so it is mapped to
+ * nothing, but the hidden method is not inherited. An inherited method can implement an interface
+ * method that the class inherits through another path, as when a superclass provides a method that
+ * matches one in an interface the class implements. Such a method is mapped to the interface method
+ * in this class's table, even though it isn't in the superclass's table.
+ *
+ * <p>Instances are immutable and thread-safe.
+ *
+ * @see TruReflect#overridesOf(TypeElement)
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class MethodOverrides {
+
+   /**
+    * A method of the class and the methods it overrides, nearest first.
+    */
+   private static final class Entry {
+      final ExecutableElement element;
+      final Method method;
+      final List<Method> overridden;
+
+      Entry(ExecutableElement element, Method method, List<Method> overridden) {
+         this.element = element;
+         this.method = method;
+         this.overridden = overridden;
+      }
+   }
+
+   private final Class<?> type;
+   private final Map<String, List<Entry>> membersByName;
+   private final Map<Method, List<Method>> overrides;
+   private final List<Method> methods;
+
+   /**
+    * Computes the table for the given type.
+    *
+    * @param element the type element
+    * @param type the class for the type element
+    * @param supertypes the tables for the type's direct supertypes, superclass first
+    * @param elements the element utilities
+    * @param methods a function that returns the method for a method element
+    */
+   MethodOverrides(TypeElement element, Class<?> type, List<MethodOverrides> supertypes,
+         Elements elements, Function<ExecutableElement, Method> methods) {
+      this.type = type;
+      Map<String, List<Entry>> members = new LinkedHashMap<>();
+      // declared methods
+      for (Element e : element.getEnclosedElements()) {
+         if (e.getKind() != ElementKind.METHOD) {
+            continue;
+         }
+         ExecutableElement declared = (ExecutableElement) e;
+         Set<Method> overridden = new LinkedHashSet<>();
+         if (!declared.getModifiers().contains(Modifier.STATIC)
+               && !declared.getModifiers().contains(Modifier.PRIVATE)) {
+            for (MethodOverrides sup : supertypes) {
+               addOverridden(declared, sup, element, elements, overridden);
+            }
+         }
+         members.computeIfAbsent(declared.getSimpleName().toString(), n -> new ArrayList<>())
+               .add(new Entry(declared, methods.apply(declared), toList(overridden)));
+      }
+      // inherited methods
+      boolean first = true;
+      for (MethodOverrides sup : supertypes) {
+         boolean isSuperclass = first && !element.getKind().isInterface();
+         first = false;
+         for (Map.Entry<String, List<Entry>> byName : sup.membersByName.entrySet()) {
+            List<Entry> existing =
+                  members.computeIfAbsent(byName.getKey(), n -> new ArrayList<>());
+            for (Entry inherited : byName.getValue()) {
+               Set<Modifier> mods = inherited.element.getModifiers();
+               if (mods.contains(Modifier.PRIVATE) || (mods.contains(Modifier.STATIC)
+                     && inherited.element.getEnclosingElement().getKind().isInterface())
+                     || isHidden(inherited, existing, elements)) {
+                  continue;
+               }
+               Entry entry = inherited;
+               if (isSuperclass && !mods.contains(Modifier.STATIC)) {
+                  // an inherited method may implement methods of this type's interfaces
+                  Set<Method> overridden = new LinkedHashSet<>(inherited.overridden);
+                  for (MethodOverrides iface : supertypes.subList(1, supertypes.size())) {
+                     addOverridden(inherited.element, iface, element, elements, overridden);
+                  }
+                  if (overridden.size() > inherited.overridden.size()) {
+                     entry = new Entry(inherited.element, inherited.method, toList(overridden));
+                  }
+               }
+               existing.add(entry);
+            }
+         }
+      }
+      members.values().removeIf(List::isEmpty);
+      this.membersByName = members;
+      Map<Method, List<Method>> overridesMap = new LinkedHashMap<>();
+      for (List<Entry> entries : members.values()) {
+         for (Entry entry : entries) {
+            overridesMap.put(entry.method, entry.overridden);
+         }
+      }
+      this.overrides = Collections.unmodifiableMap(overridesMap);
+      this.methods = Collections.unmodifiableList(new ArrayList<>(overridesMap.keySet()));
+   }
+
+   /**
+    * Adds the methods of the given supertype that the given method overrides, along with the
+    * methods they override in turn.
+    */
+   private static void addOverridden(ExecutableElement overrider, MethodOverrides supertype,
+         TypeElement type, Elements elements, Set<Method> overridden) {
+      List<Entry> candidates = supertype.membersByName.get(overrider.getSimpleName().toString());
+      if (candidates == null) {
+         return;
+      }
+      int paramCount = overrider.getParameters().size();
+      for (Entry candidate : candidates) {
+         if (candidate.element.getParameters().size() == paramCount
+               && !overridden.contains(candidate.method)
+               && elements.overrides(overrider, candidate.element, type)) {
+            overridden.add(candidate.method);
+            overridden.addAll(candidate.overridden);
+         }
+      }
+   }
+
+   /**
+    * Determines if an inherited method is already accounted for: either it is overridden or hidden
+    * by a method already in the table or it is the same method, inherited through another path.
+    */
+   private static boolean isHidden(Entry inherited, List<Entry> existing, Elements elements) {
+      for (Entry e : existing) {
+         if (e.method.equals(inherited.method) || e.overridden.contains(inherited.method)
+               || elements.hides(e.element, inherited.element)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static List<Method> toList(Set<Method> methods) {
+      return methods.isEmpty()
+            ? Collections.emptyList()
+            : Collections.unmodifiableList(new ArrayList<>(methods));
+   }
+
+   /**
+    * Returns the class that this table describes.
+    *
+    * @return the class
+    */
+   public Class<?> type() {
+      return type;
+   }
+
+   /**
+    * Returns all methods of the class: those it declares followed by those it inherits.
+    *
+    * @return the methods of the class
+    */
+   public List<Method> methods() {
+      return methods;
+   }
+
+   /**
+    * Returns the methods that the given method overrides or implements, directly or indirectly,
+    * nearest first.
+    *
+    * @param method a method of the class
+    * @return the methods it overrides or implements, or an empty list if it overrides nothing or is
+    *       not a method of the class
+    */
+   public List<Method> overriddenBy(Method method) {
+      List<Method> overridden = overrides.get(method);
+      return overridden == null ? Collections.emptyList() : overridden;
+   }
+
+   /**
+    * Returns true if one method of the class overrides or implements another method.
+    *
+    * @param overrider a method of the class
+    * @param overridden another method
+    * @return true if the first method overrides or implements the second
+    */
+   public boolean overrides(Method overrider, Method overridden) {
+      return overriddenBy(overrider).contains(overridden);
+   }
+
+   /**
+    * Returns the whole table: each method of the class mapped to the methods it overrides or
+    * implements.
+    *
+    * @return a map of methods to the methods they override
+    */
+   public Map<Method, List<Method>> asMap() {
+      return overrides;
+   }
+
+   @Override public String toString() {
+      return "MethodOverrides[" + type.getName() + ", methods=" + methods.size() + "]";
+   }
+}
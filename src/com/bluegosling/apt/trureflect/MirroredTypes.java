@@ -0,0 +1,683 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedType;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.GenericDeclaration;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.IntersectionType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * Implementations of the generic reflection types that remember the type mirrors they were
+ * converted from. Remembering the mirror lets {@link TypeRelations} answer questions about these
+ * types with javac's {@link javax.lang.model.util.Types} instead of walking class hierarchies.
+ *
+ * <p>Equality, hash codes, and string representations follow the JDK's own implementations, so
+ * these types are interchangeable with the generic types returned by core reflection (e.g. {@link
+ * Class#getGenericSuperclass()}).
+ *
+ * <p>The {@code Lazy*} implementations back {@link TruReflect#forTypeMirrorLazily(TypeMirror)}.
+ * They convert their component types on first use and only turn a type element into a class when
+ * a real class token is needed, like {@link ParameterizedType#getRawType()}. Declared types that
+ * aren't parameterized are represented by {@link LazyClassType}, which stands in for a class
+ * without being one. Lazy declared types are equal to each other if javac says their mirrors are
+ * the {@linkplain javax.lang.model.util.Types#isSameType same type}, and their hash codes are
+ * computed from their elements' names, so comparing and hashing them never synthesizes a class
+ * either. They are never equal to types that aren't lazy. Their string representations are
+ * computed from the mirrors, too. Anything computed from a mirror is computed on the model thread
+ * when model access is {@linkplain TruReflect#confineModelAccess confined}.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+final class MirroredTypes {
+   private MirroredTypes() {
+   }
+
+   /**
+    * A reflection type that was converted from a type mirror.
+    */
+   interface MirroredType extends Type {
+      /**
+       * Returns the mirror from which this type was converted.
+       *
+       * @return the type mirror
+       */
+      TypeMirror mirror();
+   }
+
+   static String typeName(Type t) {
+      return t instanceof Class ? ((Class<?>) t).getName() : t.getTypeName();
+   }
+
+   /**
+    * Compares two types, treating a lazily converted type variable as the variable it resolves
+    * to. That keeps comparisons between the eager and lazy implementations symmetric.
+    */
+   static boolean typeEquals(Type a, Type b) {
+      if (b instanceof LazyTypeVariable) {
+         return b.equals(a);
+      }
+      return Objects.equals(a, b);
+   }
+
+   static boolean typesEqual(Type a[], Type b[]) {
+      if (a.length != b.length) {
+         return false;
+      }
+      for (int i = 0; i < a.length; i++) {
+         if (!typeEquals(a[i], b[i])) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   static boolean parameterizedEquals(ParameterizedType t, Object o) {
+      if (t == o) {
+         return true;
+      }
+      if (!(o instanceof ParameterizedType) || isLazy(o)) {
+         return false;
+      }
+      ParameterizedType other = (ParameterizedType) o;
+      return typeEquals(t.getOwnerType(), other.getOwnerType())
+            && Objects.equals(t.getRawType(), other.getRawType())
+            && typesEqual(t.getActualTypeArguments(), other.getActualTypeArguments());
+   }
+
+   static int parameterizedHashCode(ParameterizedType t) {
+      return Arrays.hashCode(t.getActualTypeArguments()) ^ Objects.hashCode(t.getOwnerType())
+            ^ Objects.hashCode(t.getRawType());
+   }
+
+   static String parameterizedToString(Type ownerType, String rawTypeName, String simpleName,
+         Type typeArguments[]) {
+      StringBuilder sb = new StringBuilder();
+      if (ownerType != null) {
+         sb.append(typeName(ownerType)).append('$').append(simpleName);
+      } else {
+         sb.append(rawTypeName);
+      }
+      if (typeArguments.length > 0) {
+         sb.append('<');
+         for (int i = 0; i < typeArguments.length; i++) {
+            if (i > 0) {
+               sb.append(", ");
+            }
+            sb.append(typeArguments[i].getTypeName());
+         }
+         sb.append('>');
+      }
+      return sb.toString();
+   }
+
+   static boolean wildcardEquals(WildcardType t, Object o) {
+      if (!(o instanceof WildcardType)) {
+         return false;
+      }
+      WildcardType other = (WildcardType) o;
+      return typesEqual(t.getUpperBounds(), other.getUpperBounds())
+            && typesEqual(t.getLowerBounds(), other.getLowerBounds());
+   }
+
+   static int wildcardHashCode(WildcardType t) {
+      return Arrays.hashCode(t.getUpperBounds()) ^ Arrays.hashCode(t.getLowerBounds());
+   }
+
+   static String wildcardToString(Type upperBounds[], Type lowerBounds[]) {
+      Type bounds[];
+      StringBuilder sb;
+      if (lowerBounds.length > 0) {
+         bounds = lowerBounds;
+         sb = new StringBuilder("? super ");
+      } else if (upperBounds.length > 0 && !upperBounds[0].equals(Object.class)) {
+         bounds = upperBounds;
+         sb = new StringBuilder("? extends ");
+      } else {
+         return "?";
+      }
+      for (int i = 0; i < bounds.length; i++) {
+         if (i > 0) {
+            sb.append(" & ");
+         }
+         sb.append(bounds[i].getTypeName());
+      }
+      return sb.toString();
+   }
+
+   /**
+    * A parameterized type.
+    */
+   static final class ParameterizedTypeImpl implements ParameterizedType, MirroredType {
+      private final TypeMirror mirror;
+      private final Type ownerType;
+      private final Class<?> rawType;
+      private final Type typeArguments[];
+
+      ParameterizedTypeImpl(TypeMirror mirror, Type ownerType, Class<?> rawType,
+            Type typeArguments[]) {
+         this.mirror = mirror;
+         this.ownerType = ownerType;
+         this.rawType = rawType;
+         this.typeArguments = typeArguments;
+      }
+
+      @Override public TypeMirror mirror() {
+         return mirror;
+      }
+
+      @Override public Type getRawType() {
+         return rawType;
+      }
+
+      @Override public Type getOwnerType() {
+         return ownerType;
+      }
+
+      @Override public Type[] getActualTypeArguments() {
+         return typeArguments.clone();
+      }
+
+      @Override public boolean equals(Object o) {
+         return parameterizedEquals(this, o);
+      }
+
+      @Override public int hashCode() {
+         return parameterizedHashCode(this);
+      }
+
+      @Override public String toString() {
+         return parameterizedToString(ownerType, rawType.getName(), rawType.getSimpleName(),
+               typeArguments);
+      }
+   }
+
+   /**
+    * A generic array type.
+    */
+   static final class GenericArrayTypeImpl implements GenericArrayType, MirroredType {
+      private final TypeMirror mirror;
+      private final Type componentType;
+
+      GenericArrayTypeImpl(TypeMirror mirror, Type componentType) {
+         this.mirror = mirror;
+         this.componentType = componentType;
+      }
+
+      @Override public TypeMirror mirror() {
+         return mirror;
+      }
+
+      @Override public Type getGenericComponentType() {
+         return componentType;
+      }
+
+      @Override public boolean equals(Object o) {
+         return o instanceof GenericArrayType
+               && typeEquals(componentType, ((GenericArrayType) o).getGenericComponentType());
+      }
+
+      @Override public int hashCode() {
+         return componentType.hashCode();
+      }
+
+      @Override public String toString() {
+         return componentType.getTypeName() + "[]";
+      }
+   }
+
+   /**
+    * A wildcard type.
+    */
+   static final class WildcardTypeImpl implements WildcardType, MirroredType {
+      private final TypeMirror mirror;
+      private final Type upperBounds[];
+      private final Type lowerBounds[];
+
+      WildcardTypeImpl(TypeMirror mirror, Type upperBounds[], Type lowerBounds[]) {
+         this.mirror = mirror;
+         this.upperBounds = upperBounds;
+         this.lowerBounds = lowerBounds;
+      }
+
+      @Override public TypeMirror mirror() {
+         return mirror;
+      }
+
+      @Override public Type[] getUpperBounds() {
+         return upperBounds.clone();
+      }
+
+      @Override public Type[] getLowerBounds() {
+         return lowerBounds.clone();
+      }
+
+      @Override public boolean equals(Object o) {
+         return wildcardEquals(this, o);
+      }
+
+      @Override public int hashCode() {
+         return wildcardHashCode(this);
+      }
+
+      @Override public String toString() {
+         return wildcardToString(upperBounds, lowerBounds);
+      }
+   }
+
+   /**
+    * Returns true if the given object is one of the lazily converted types.
+    */
+   static boolean isLazy(Object type) {
+      return type instanceof LazyClassType || type instanceof LazyParameterizedType
+            || type instanceof LazyGenericArrayType || type instanceof LazyWildcardType
+            || type instanceof LazyTypeVariable;
+   }
+
+   /**
+    * Returns true if the given declared type has type arguments or is nested in a type that does.
+    * Such a type is represented by a {@link ParameterizedType}; others are represented by classes.
+    */
+   static boolean isParameterized(DeclaredType type) {
+      for (TypeMirror t = type; t.getKind() == TypeKind.DECLARED;
+            t = ((DeclaredType) t).getEnclosingType()) {
+         if (!((DeclaredType) t).getTypeArguments().isEmpty()) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static Type[] lazily(TruReflect truReflect, List<? extends TypeMirror> mirrors) {
+      Type types[] = new Type[mirrors.size()];
+      for (int i = 0; i < types.length; i++) {
+         types[i] = truReflect.forTypeMirrorLazily(mirrors.get(i));
+      }
+      return types;
+   }
+
+   /**
+    * Determines if a lazy declared type is equal to the given object: another lazy declared type
+    * whose mirror is the same type.
+    */
+   private static boolean lazyDeclaredEquals(DeclaredType mirror, TruReflect truReflect,
+         Object o) {
+      TypeMirror other;
+      if (o instanceof LazyClassType) {
+         other = ((LazyClassType) o).mirror;
+      } else if (o instanceof LazyParameterizedType) {
+         other = ((LazyParameterizedType) o).mirror;
+      } else {
+         return false;
+      }
+      return mirror == other || truReflect.onModelThread(
+            () -> truReflect.environment().typeUtils().isSameType(mirror, other));
+   }
+
+   /**
+    * A declared type that is not parameterized, standing in for its class. The class is only
+    * loaded when asked for. The type's names come from the mirror, as if it were a class: {@link
+    * #getTypeName()} is the binary name and {@link #toString()} is prefixed by "class" or
+    * "interface".
+    */
+   static final class LazyClassType implements MirroredType {
+      private final DeclaredType mirror;
+      private final TruReflect truReflect;
+      private volatile String name;
+      private volatile Class<?> clazz;
+
+      LazyClassType(DeclaredType mirror, TruReflect truReflect) {
+         this.mirror = mirror;
+         this.truReflect = truReflect;
+      }
+
+      @Override public TypeMirror mirror() {
+         return mirror;
+      }
+
+      private TypeElement element() {
+         return (TypeElement) mirror.asElement();
+      }
+
+      /**
+       * Returns the class for this type, synthesizing it if necessary.
+       *
+       * @return the class for this type
+       */
+      Class<?> asClass() {
+         Class<?> c = clazz;
+         if (c == null) {
+            clazz = c = truReflect.onModelThread(() -> truReflect.forElement(element()));
+         }
+         return c;
+      }
+
+      @Override public String getTypeName() {
+         String n = name;
+         if (n == null) {
+            name = n = truReflect.onModelThread(() -> truReflect.environment().elementUtils()
+                  .getBinaryName(element()).toString());
+         }
+         return n;
+      }
+
+      @Override public boolean equals(Object o) {
+         return o == this || lazyDeclaredEquals(mirror, truReflect, o);
+      }
+
+      @Override public int hashCode() {
+         return getTypeName().hashCode();
+      }
+
+      @Override public String toString() {
+         boolean isInterface = truReflect.onModelThread(() -> element().getKind().isInterface());
+         return (isInterface ? "interface " : "class ") + getTypeName();
+      }
+   }
+
+   /**
+    * A parameterized type whose raw type is only loaded when asked for. (Core reflection also uses
+    * this shape, with no type arguments, for nested types whose owner is parameterized.)
+    */
+   static final class LazyParameterizedType implements ParameterizedType, MirroredType {
+      private final DeclaredType mirror;
+      private final TruReflect truReflect;
+      private volatile Class<?> rawType;
+      private volatile Type ownerType;
+      private volatile Type typeArguments[];
+      private volatile String rawTypeName;
+
+      LazyParameterizedType(DeclaredType mirror, TruReflect truReflect) {
+         this.mirror = mirror;
+         this.truReflect = truReflect;
+      }
+
+      @Override public TypeMirror mirror() {
+         return mirror;
+      }
+
+      private TypeElement element() {
+         return (TypeElement) mirror.asElement();
+      }
+
+      @Override public Type getRawType() {
+         Class<?> raw = rawType;
+         if (raw == null) {
+            rawType = raw = truReflect.onModelThread(() -> truReflect.forElement(element()));
+         }
+         return raw;
+      }
+
+      @Override public Type getOwnerType() {
+         Type owner = ownerType;
+         if (owner == null) {
+            ownerType = owner = truReflect.onModelThread(() -> {
+               TypeMirror enclosing = mirror.getEnclosingType();
+               if (enclosing.getKind() != TypeKind.DECLARED) {
+                  return null;
+               }
+               // like core reflection, an owner that isn't parameterized is a class (or stands in
+               // for one)
+               return truReflect.forTypeMirrorLazily(enclosing);
+            });
+         }
+         return owner;
+      }
+
+      private Type[] typeArguments() {
+         Type args[] = typeArguments;
+         if (args == null) {
+            typeArguments = args = truReflect.onModelThread(
+                  () -> lazily(truReflect, mirror.getTypeArguments()));
+         }
+         return args;
+      }
+
+      @Override public Type[] getActualTypeArguments() {
+         return typeArguments().clone();
+      }
+
+      @Override public boolean equals(Object o) {
+         return o == this || lazyDeclaredEquals(mirror, truReflect, o);
+      }
+
+      private String rawTypeName() {
+         String n = rawTypeName;
+         if (n == null) {
+            rawTypeName = n = truReflect.onModelThread(() -> truReflect.environment()
+                  .elementUtils().getBinaryName(element()).toString());
+         }
+         return n;
+      }
+
+      @Override public int hashCode() {
+         // only the raw type is hashed, since type arguments that are the same type can still
+         // have different mirrors (and different hash codes)
+         return rawTypeName().hashCode();
+      }
+
+      @Override public String toString() {
+         return truReflect.onModelThread(() -> {
+            TypeMirror enclosing = mirror.getEnclosingType();
+            Type owner = enclosing.getKind() == TypeKind.DECLARED
+                  && isParameterized((DeclaredType) enclosing)
+                        ? getOwnerType() : null;
+            return parameterizedToString(owner, rawTypeName(),
+                  element().getSimpleName().toString(), typeArguments());
+         });
+      }
+   }
+
+   /**
+    * A generic array type whose component type is converted when first used.
+    */
+   static final class LazyGenericArrayType implements GenericArrayType, MirroredType {
+      private final ArrayType mirror;
+      private final TruReflect truReflect;
+      private volatile Type componentType;
+
+      LazyGenericArrayType(ArrayType mirror, TruReflect truReflect) {
+         this.mirror = mirror;
+         this.truReflect = truReflect;
+      }
+
+      @Override public TypeMirror mirror() {
+         return mirror;
+      }
+
+      @Override public Type getGenericComponentType() {
+         Type comp = componentType;
+         if (comp == null) {
+            componentType = comp = truReflect.onModelThread(
+                  () -> truReflect.forTypeMirrorLazily(mirror.getComponentType()));
+         }
+         return comp;
+      }
+
+      @Override public boolean equals(Object o) {
+         return o instanceof GenericArrayType && typeEquals(getGenericComponentType(),
+               ((GenericArrayType) o).getGenericComponentType());
+      }
+
+      @Override public int hashCode() {
+         return getGenericComponentType().hashCode();
+      }
+
+      @Override public String toString() {
+         return getGenericComponentType().getTypeName() + "[]";
+      }
+   }
+
+   /**
+    * A wildcard type whose bounds are converted when first used.
+    */
+   static final class LazyWildcardType implements WildcardType, MirroredType {
+      private final javax.lang.model.type.WildcardType mirror;
+      private final TruReflect truReflect;
+      private volatile Type upperBounds[];
+      private volatile Type lowerBounds[];
+
+      LazyWildcardType(javax.lang.model.type.WildcardType mirror, TruReflect truReflect) {
+         this.mirror = mirror;
+         this.truReflect = truReflect;
+      }
+
+      @Override public TypeMirror mirror() {
+         return mirror;
+      }
+
+      private Type[] upperBounds() {
+         Type bounds[] = upperBounds;
+         if (bounds == null) {
+            upperBounds = bounds = truReflect.onModelThread(() -> {
+               TypeMirror upper = mirror.getExtendsBound();
+               if (upper == null) {
+                  return new Type[] { Object.class };
+               } else if (upper.getKind() == TypeKind.INTERSECTION) {
+                  return lazily(truReflect, ((IntersectionType) upper).getBounds());
+               } else {
+                  return new Type[] { truReflect.forTypeMirrorLazily(upper) };
+               }
+            });
+         }
+         return bounds;
+      }
+
+      private Type[] lowerBounds() {
+         Type bounds[] = lowerBounds;
+         if (bounds == null) {
+            lowerBounds = bounds = truReflect.onModelThread(() -> {
+               TypeMirror lower = mirror.getSuperBound();
+               return lower == null
+                     ? new Type[0] : new Type[] { truReflect.forTypeMirrorLazily(lower) };
+            });
+         }
+         return bounds;
+      }
+
+      @Override public Type[] getUpperBounds() {
+         return upperBounds().clone();
+      }
+
+      @Override public Type[] getLowerBounds() {
+         return lowerBounds().clone();
+      }
+
+      @Override public boolean equals(Object o) {
+         return wildcardEquals(this, o);
+      }
+
+      @Override public int hashCode() {
+         return wildcardHashCode(this);
+      }
+
+      @Override public String toString() {
+         // like the JDK, a wildcard bounded only by Object prints as "?", which is decided from
+         // the mirror so the bounds needn't be converted
+         if (truReflect.onModelThread(this::isUnbounded)) {
+            return "?";
+         }
+         return wildcardToString(upperBounds(), lowerBounds());
+      }
+
+      private boolean isUnbounded() {
+         if (mirror.getSuperBound() != null) {
+            return false;
+         }
+         TypeMirror upper = mirror.getExtendsBound();
+         return upper == null || (upper.getKind() == TypeKind.DECLARED
+               && ((TypeElement) ((DeclaredType) upper).asElement()).getQualifiedName()
+                     .contentEquals("java.lang.Object"));
+      }
+   }
+
+   /**
+    * A type variable whose name and bounds come from the mirror. Everything that involves the
+    * variable's declaration (including equality) is answered by the variable of the synthesized
+    * class, method, or constructor, which is resolved when first needed.
+    */
+   static final class LazyTypeVariable<D extends GenericDeclaration>
+         implements TypeVariable<D>, MirroredType {
+      private final javax.lang.model.type.TypeVariable mirror;
+      private final TruReflect truReflect;
+      private volatile Type bounds[];
+      private volatile TypeVariable<D> resolved;
+
+      LazyTypeVariable(javax.lang.model.type.TypeVariable mirror, TruReflect truReflect) {
+         this.mirror = mirror;
+         this.truReflect = truReflect;
+      }
+
+      @Override public TypeMirror mirror() {
+         return mirror;
+      }
+
+      @SuppressWarnings("unchecked") // we can't actually verify D, but it's erased anyway
+      private TypeVariable<D> resolved() {
+         TypeVariable<D> var = resolved;
+         if (var == null) {
+            resolved = var = (TypeVariable<D>) truReflect.forTypeMirror(mirror);
+         }
+         return var;
+      }
+
+      @Override public String getName() {
+         return truReflect.onModelThread(() -> mirror.asElement().getSimpleName().toString());
+      }
+
+      @Override public Type[] getBounds() {
+         Type b[] = bounds;
+         if (b == null) {
+            bounds = b = truReflect.onModelThread(() -> lazily(truReflect,
+                  ((TypeParameterElement) mirror.asElement()).getBounds()));
+         }
+         return b.clone();
+      }
+
+      @Override public D getGenericDeclaration() {
+         return resolved().getGenericDeclaration();
+      }
+
+      @Override public AnnotatedType[] getAnnotatedBounds() {
+         return resolved().getAnnotatedBounds();
+      }
+
+      @Override public <T extends Annotation> T getAnnotation(Class<T> annotationClass) {
+         return resolved().getAnnotation(annotationClass);
+      }
+
+      @Override public Annotation[] getAnnotations() {
+         return resolved().getAnnotations();
+      }
+
+      @Override public Annotation[] getDeclaredAnnotations() {
+         return resolved().getDeclaredAnnotations();
+      }
+
+      @Override public boolean equals(Object o) {
+         return resolved().equals(o instanceof LazyTypeVariable
+               ? ((LazyTypeVariable<?>) o).resolved() : o);
+      }
+
+      @Override public int hashCode() {
+         return resolved().hashCode();
+      }
+
+      @Override public String toString() {
+         return getName();
+      }
+   }
+}
@@ -0,0 +1,217 @@
+package com.bluegosling.apt.trureflect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * A thread to which all access to the compiler's model is confined. javac's {@link Elements} and
+ * {@link Types}, and the elements and mirrors they return, are not thread-safe, so a {@link
+ * TruReflect} instance can normally only be used from the processor's thread. An instance that is
+ * {@linkplain TruReflect#confineModelAccess(ModelExecutor) confined} to an executor can instead be
+ * used from any number of threads, including virtual threads: conversions requested on other
+ * threads are forwarded to the executor's thread, which runs them one at a time.
+ *
+ * <p>Requests are put on a queue and the model thread takes them off in batches. Each time it
+ * wakes up, it runs every request that is waiting, so when many threads are converting at once
+ * the cost of handing off work is paid per batch instead of per request. The calling thread
+ * blocks until its request is done. If it is interrupted while waiting, it keeps waiting, since
+ * the request may already be running, and its interrupt status is restored once the request is
+ * done.
+ *
+ * <p>While an executor is in use, the processor's own thread must not use elements, mirrors, or
+ * the compiler's utilities directly, since the model thread may be using them at the same time.
+ * It can instead {@linkplain #call(Task) run} such code on the model thread. The processor's thread
+ * typically hands work to other threads and waits for it to finish, so the model is not used
+ * concurrently with the compiler itself.
+ *
+ * <p>The model thread is a daemon thread, so an executor that is never {@linkplain #close()
+ * closed} won't prevent the JVM from exiting. This class is thread-safe.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class ModelExecutor implements AutoCloseable {
+
+   /**
+    * A task that runs on the model thread.
+    *
+    * @param <T> the type of the task's result
+    * @param <X> the type of exception the task can throw
+    */
+   @FunctionalInterface
+   public interface Task<T, X extends Exception> {
+      /**
+       * Runs the task.
+       *
+       * @return the task's result
+       * @throws X if the task fails
+       */
+      T run() throws X;
+   }
+
+   private static final int MAX_BATCH_SIZE = 256;
+
+   private static final AtomicInteger threadCount = new AtomicInteger();
+
+   // queued by close() to stop the model thread
+   private static final FutureTask<?> SHUTDOWN = new FutureTask<>(() -> null);
+
+   private final BlockingQueue<FutureTask<?>> queue = new LinkedBlockingQueue<>();
+   private final Thread thread;
+   private final LongAdder requests = new LongAdder();
+   private final LongAdder batches = new LongAdder();
+   private volatile boolean closed;
+
+   /**
+    * Constructs a new executor and starts its model thread.
+    */
+   public ModelExecutor() {
+      thread = new Thread(this::serve, "trureflect-model-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Returns true if the current thread is this executor's model thread.
+    *
+    * @return true if called from the model thread
+    */
+   public boolean isModelThread() {
+      return Thread.currentThread() == thread;
+   }
+
+   /**
+    * Runs the given task on the model thread and returns its result. If called from the model
+    * thread, the task is run right away.
+    *
+    * @param task the task
+    * @return the task's result
+    * @throws X if the task throws an exception
+    * @throws RejectedExecutionException if this executor has been closed
+    */
+   public <T, X extends Exception> T call(Task<T, X> task) throws X {
+      if (isModelThread()) {
+         return task.run();
+      }
+      if (closed) {
+         throw new RejectedExecutionException("Model executor has been closed");
+      }
+      FutureTask<T> future = new FutureTask<>(task::run);
+      queue.add(future);
+      if (closed && queue.remove(future)) {
+         // closed concurrently, and the model thread has stopped taking requests
+         throw new RejectedExecutionException("Model executor has been closed");
+      }
+      boolean interrupted = false;
+      try {
+         while (true) {
+            try {
+               return future.get();
+            } catch (InterruptedException e) {
+               interrupted = true;
+            } catch (ExecutionException e) {
+               throw ModelExecutor.<X>rethrow(e.getCause());
+            } catch (CancellationException e) {
+               throw new RejectedExecutionException("Model executor has been closed");
+            }
+         }
+      } finally {
+         if (interrupted) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   @SuppressWarnings("unchecked") // the task can only throw unchecked exceptions or an X
+   private static <X extends Exception> RuntimeException rethrow(Throwable t) throws X {
+      if (t instanceof RuntimeException) {
+         throw (RuntimeException) t;
+      } else if (t instanceof Error) {
+         throw (Error) t;
+      }
+      throw (X) t;
+   }
+
+   private void serve() {
+      List<FutureTask<?>> batch = new ArrayList<>();
+      while (true) {
+         try {
+            batch.add(queue.take());
+         } catch (InterruptedException e) {
+            // nothing else interrupts this thread
+            continue;
+         }
+         queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+         batches.increment();
+         for (int i = 0, len = batch.size(); i < len; i++) {
+            FutureTask<?> task = batch.get(i);
+            if (task == SHUTDOWN) {
+               // cancel everything that was queued after the executor was closed
+               for (FutureTask<?> rest : batch.subList(i + 1, len)) {
+                  rest.cancel(false);
+               }
+               for (FutureTask<?> rest = queue.poll(); rest != null; rest = queue.poll()) {
+                  rest.cancel(false);
+               }
+               return;
+            }
+            requests.increment();
+            task.run();
+         }
+         batch.clear();
+      }
+   }
+
+   /**
+    * Returns the number of requests that have been run on the model thread. This doesn't include
+    * requests made on the model thread itself, which are run right away.
+    *
+    * @return the number of requests run
+    */
+   public long requestCount() {
+      return requests.sum();
+   }
+
+   /**
+    * Returns the number of batches in which requests have been run. The average batch size is the
+    * {@linkplain #requestCount() number of requests} divided by this.
+    *
+    * @return the number of batches
+    */
+   public long batchCount() {
+      return batches.sum();
+   }
+
+   /**
+    * Returns the number of requests waiting for the model thread.
+    */
+   int queuedCount() {
+      return queue.size();
+   }
+
+   /**
+    * Stops the model thread. Requests that are already queued are run first, but new requests are
+    * rejected. This method does not wait for the model thread to stop.
+    */
+   @Override public synchronized void close() {
+      if (!closed) {
+         closed = true;
+         queue.add(SHUTDOWN);
+      }
+   }
+
+   @Override public String toString() {
+      return "ModelExecutor[" + thread.getName() + ", requests=" + requestCount() + ", batches="
+            + batchCount() + (closed ? ", closed" : "") + "]";
+   }
+}
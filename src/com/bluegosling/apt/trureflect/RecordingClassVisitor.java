@@ -0,0 +1,397 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.objectweb.asm.Opcodes.ASM5;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.TypePath;
+
+/**
+ * A class visitor that records everything it visits, so it can be replayed later to another
+ * visitor. This separates synthesizing a class into two steps: visiting it, which reads elements
+ * and so must happen on the thread that owns the processing environment, and writing it, which
+ * needs only the recording and so can happen on any thread.
+ *
+ * <p>A recording can be replayed at most once. Replay is not thread-safe, but a recording can be
+ * safely replayed on a different thread from the one that recorded it, as long as the hand-off
+ * establishes a <em>happens-before</em> relationship (like submitting a task to an executor).
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+final class RecordingClassVisitor extends ClassVisitor {
+
+   private final List<Consumer<ClassVisitor>> ops = new ArrayList<>();
+
+   RecordingClassVisitor() {
+      super(ASM5);
+   }
+
+   /**
+    * Replays everything recorded to the given visitor.
+    *
+    * @param cv the visitor that receives the recorded calls
+    */
+   void accept(ClassVisitor cv) {
+      for (Consumer<ClassVisitor> op : ops) {
+         op.accept(cv);
+      }
+   }
+
+   @Override
+   public void visit(int version, int access, String name, String signature, String superName,
+         String[] interfaces) {
+      ops.add(cv -> cv.visit(version, access, name, signature, superName, interfaces));
+   }
+
+   @Override
+   public void visitSource(String source, String debug) {
+      ops.add(cv -> cv.visitSource(source, debug));
+   }
+
+   @Override
+   public void visitOuterClass(String owner, String name, String desc) {
+      ops.add(cv -> cv.visitOuterClass(owner, name, desc));
+   }
+
+   @Override
+   public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+      RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+      ops.add(cv -> rec.accept(cv.visitAnnotation(desc, visible)));
+      return rec;
+   }
+
+   @Override
+   public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc,
+         boolean visible) {
+      RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+      ops.add(cv -> rec.accept(cv.visitTypeAnnotation(typeRef, typePath, desc, visible)));
+      return rec;
+   }
+
+   @Override
+   public void visitAttribute(Attribute attr) {
+      ops.add(cv -> cv.visitAttribute(attr));
+   }
+
+   @Override
+   public void visitInnerClass(String name, String outerName, String innerName, int access) {
+      ops.add(cv -> cv.visitInnerClass(name, outerName, innerName, access));
+   }
+
+   @Override
+   public FieldVisitor visitField(int access, String name, String desc, String signature,
+         Object value) {
+      RecordingFieldVisitor rec = new RecordingFieldVisitor();
+      ops.add(cv -> rec.accept(cv.visitField(access, name, desc, signature, value)));
+      return rec;
+   }
+
+   @Override
+   public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+         String[] exceptions) {
+      RecordingMethodVisitor rec = new RecordingMethodVisitor();
+      ops.add(cv -> rec.accept(cv.visitMethod(access, name, desc, signature, exceptions)));
+      return rec;
+   }
+
+   @Override
+   public void visitEnd() {
+      ops.add(ClassVisitor::visitEnd);
+   }
+
+   /**
+    * Records calls to an annotation visitor.
+    */
+   private static final class RecordingAnnotationVisitor extends AnnotationVisitor {
+      private final List<Consumer<AnnotationVisitor>> ops = new ArrayList<>();
+
+      RecordingAnnotationVisitor() {
+         super(ASM5);
+      }
+
+      void accept(AnnotationVisitor av) {
+         if (av == null) {
+            return;
+         }
+         for (Consumer<AnnotationVisitor> op : ops) {
+            op.accept(av);
+         }
+      }
+
+      @Override
+      public void visit(String name, Object value) {
+         ops.add(av -> av.visit(name, value));
+      }
+
+      @Override
+      public void visitEnum(String name, String desc, String value) {
+         ops.add(av -> av.visitEnum(name, desc, value));
+      }
+
+      @Override
+      public AnnotationVisitor visitAnnotation(String name, String desc) {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(av -> rec.accept(av.visitAnnotation(name, desc)));
+         return rec;
+      }
+
+      @Override
+      public AnnotationVisitor visitArray(String name) {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(av -> rec.accept(av.visitArray(name)));
+         return rec;
+      }
+
+      @Override
+      public void visitEnd() {
+         ops.add(AnnotationVisitor::visitEnd);
+      }
+   }
+
+   /**
+    * Records calls to a field visitor.
+    */
+   private static final class RecordingFieldVisitor extends FieldVisitor {
+      private final List<Consumer<FieldVisitor>> ops = new ArrayList<>();
+
+      RecordingFieldVisitor() {
+         super(ASM5);
+      }
+
+      void accept(FieldVisitor fv) {
+         if (fv == null) {
+            return;
+         }
+         for (Consumer<FieldVisitor> op : ops) {
+            op.accept(fv);
+         }
+      }
+
+      @Override
+      public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(fv -> rec.accept(fv.visitAnnotation(desc, visible)));
+         return rec;
+      }
+
+      @Override
+      public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc,
+            boolean visible) {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(fv -> rec.accept(fv.visitTypeAnnotation(typeRef, typePath, desc, visible)));
+         return rec;
+      }
+
+      @Override
+      public void visitAttribute(Attribute attr) {
+         ops.add(fv -> fv.visitAttribute(attr));
+      }
+
+      @Override
+      public void visitEnd() {
+         ops.add(FieldVisitor::visitEnd);
+      }
+   }
+
+   /**
+    * Records calls to a method visitor.
+    */
+   private static final class RecordingMethodVisitor extends MethodVisitor {
+      private final List<Consumer<MethodVisitor>> ops = new ArrayList<>();
+
+      RecordingMethodVisitor() {
+         super(ASM5);
+      }
+
+      void accept(MethodVisitor mv) {
+         if (mv == null) {
+            return;
+         }
+         for (Consumer<MethodVisitor> op : ops) {
+            op.accept(mv);
+         }
+      }
+
+      @Override
+      public void visitParameter(String name, int access) {
+         ops.add(mv -> mv.visitParameter(name, access));
+      }
+
+      @Override
+      public AnnotationVisitor visitAnnotationDefault() {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(mv -> rec.accept(mv.visitAnnotationDefault()));
+         return rec;
+      }
+
+      @Override
+      public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(mv -> rec.accept(mv.visitAnnotation(desc, visible)));
+         return rec;
+      }
+
+      @Override
+      public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc,
+            boolean visible) {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(mv -> rec.accept(mv.visitTypeAnnotation(typeRef, typePath, desc, visible)));
+         return rec;
+      }
+
+      @Override
+      public AnnotationVisitor visitParameterAnnotation(int parameter, String desc,
+            boolean visible) {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(mv -> rec.accept(mv.visitParameterAnnotation(parameter, desc, visible)));
+         return rec;
+      }
+
+      @Override
+      public void visitAttribute(Attribute attr) {
+         ops.add(mv -> mv.visitAttribute(attr));
+      }
+
+      @Override
+      public void visitCode() {
+         ops.add(MethodVisitor::visitCode);
+      }
+
+      @Override
+      public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+         ops.add(mv -> mv.visitFrame(type, nLocal, local, nStack, stack));
+      }
+
+      @Override
+      public void visitInsn(int opcode) {
+         ops.add(mv -> mv.visitInsn(opcode));
+      }
+
+      @Override
+      public void visitIntInsn(int opcode, int operand) {
+         ops.add(mv -> mv.visitIntInsn(opcode, operand));
+      }
+
+      @Override
+      public void visitVarInsn(int opcode, int var) {
+         ops.add(mv -> mv.visitVarInsn(opcode, var));
+      }
+
+      @Override
+      public void visitTypeInsn(int opcode, String type) {
+         ops.add(mv -> mv.visitTypeInsn(opcode, type));
+      }
+
+      @Override
+      public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+         ops.add(mv -> mv.visitFieldInsn(opcode, owner, name, desc));
+      }
+
+      @Override
+      public void visitMethodInsn(int opcode, String owner, String name, String desc,
+            boolean itf) {
+         ops.add(mv -> mv.visitMethodInsn(opcode, owner, name, desc, itf));
+      }
+
+      @Override
+      public void visitInvokeDynamicInsn(String name, String desc, Handle bsm,
+            Object... bsmArgs) {
+         ops.add(mv -> mv.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs));
+      }
+
+      @Override
+      public void visitJumpInsn(int opcode, Label label) {
+         ops.add(mv -> mv.visitJumpInsn(opcode, label));
+      }
+
+      @Override
+      public void visitLabel(Label label) {
+         ops.add(mv -> mv.visitLabel(label));
+      }
+
+      @Override
+      public void visitLdcInsn(Object cst) {
+         ops.add(mv -> mv.visitLdcInsn(cst));
+      }
+
+      @Override
+      public void visitIincInsn(int var, int increment) {
+         ops.add(mv -> mv.visitIincInsn(var, increment));
+      }
+
+      @Override
+      public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+         ops.add(mv -> mv.visitTableSwitchInsn(min, max, dflt, labels));
+      }
+
+      @Override
+      public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+         ops.add(mv -> mv.visitLookupSwitchInsn(dflt, keys, labels));
+      }
+
+      @Override
+      public void visitMultiANewArrayInsn(String desc, int dims) {
+         ops.add(mv -> mv.visitMultiANewArrayInsn(desc, dims));
+      }
+
+      @Override
+      public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String desc,
+            boolean visible) {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(mv -> rec.accept(mv.visitInsnAnnotation(typeRef, typePath, desc, visible)));
+         return rec;
+      }
+
+      @Override
+      public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+         ops.add(mv -> mv.visitTryCatchBlock(start, end, handler, type));
+      }
+
+      @Override
+      public AnnotationVisitor visitTryCatchAnnotation(int typeRef, TypePath typePath,
+            String desc, boolean visible) {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(mv -> rec.accept(mv.visitTryCatchAnnotation(typeRef, typePath, desc, visible)));
+         return rec;
+      }
+
+      @Override
+      public void visitLocalVariable(String name, String desc, String signature, Label start,
+            Label end, int index) {
+         ops.add(mv -> mv.visitLocalVariable(name, desc, signature, start, end, index));
+      }
+
+      @Override
+      public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath,
+            Label[] start, Label[] end, int[] index, String desc, boolean visible) {
+         RecordingAnnotationVisitor rec = new RecordingAnnotationVisitor();
+         ops.add(mv -> rec.accept(mv.visitLocalVariableAnnotation(typeRef, typePath, start, end,
+               index, desc, visible)));
+         return rec;
+      }
+
+      @Override
+      public void visitLineNumber(int line, Label start) {
+         ops.add(mv -> mv.visitLineNumber(line, start));
+      }
+
+      @Override
+      public void visitMaxs(int maxStack, int maxLocals) {
+         ops.add(mv -> mv.visitMaxs(maxStack, maxLocals));
+      }
+
+      @Override
+      public void visitEnd() {
+         ops.add(MethodVisitor::visitEnd);
+      }
+   }
+}
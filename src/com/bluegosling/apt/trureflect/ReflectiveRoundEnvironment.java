@@ -0,0 +1,369 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Parameter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * A view of a {@link RoundEnvironment} in terms of reflection objects. Elements are queried by
+ * annotation {@link Class} tokens, and the results are the reflective objects for the annotated
+ * elements, as if each were converted with {@link TruReflect#forElement(Element)}.
+ *
+ * <p>The first query builds an index of the whole round. Every element in the round's root
+ * elements that has an annotation, including inherited annotations, is found in a single walk. The
+ * classes that declare them are all synthesized in one batch, with their class files written in
+ * parallel, and then each element is converted once. Annotated elements are grouped by kind: types,
+ * executables (methods and constructors), fields (including enum constants), and parameters. After
+ * that, all queries are map lookups.
+ *
+ * <p>For very large rounds, the elements can instead be {@linkplain #stream() streamed}. Classes
+ * are then synthesized one at a time, only as the stream reaches them.
+ *
+ * <p>As with {@link RoundEnvironment#getElementsAnnotatedWith(Class)}, annotations are identified
+ * by name, so the given class token can be a class synthesized by {@link TruReflect} or a class on
+ * the processor's class path. Annotations that are only present inside a container annotation, for
+ * a repeatable annotation type, are not indexed under the repeatable type.
+ *
+ * <p>Instances are not thread-safe. They should only be used on the processor's thread, and only
+ * for the round they wrap.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class ReflectiveRoundEnvironment {
+
+   /**
+    * The reflective objects for the elements annotated with a single annotation type, grouped by
+    * kind.
+    */
+   private static final class Group {
+      static final Group EMPTY = new Group();
+
+      final Set<AnnotatedElement> all = new LinkedHashSet<>();
+      final Set<Class<?>> types = new LinkedHashSet<>();
+      final Set<Executable> executables = new LinkedHashSet<>();
+      final Set<Field> fields = new LinkedHashSet<>();
+      final Set<Parameter> parameters = new LinkedHashSet<>();
+
+      void add(AnnotatedElement e) {
+         all.add(e);
+         if (e instanceof Class) {
+            types.add((Class<?>) e);
+         } else if (e instanceof Executable) {
+            executables.add((Executable) e);
+         } else if (e instanceof Field) {
+            fields.add((Field) e);
+         } else if (e instanceof Parameter) {
+            parameters.add((Parameter) e);
+         }
+      }
+   }
+
+   private final TruReflect truReflect;
+   private final RoundEnvironment roundEnv;
+   private Map<String, Group> index;
+
+   /**
+    * Creates a reflective view of the given round.
+    *
+    * @param truReflect the instance used to synthesize classes and convert elements
+    * @param roundEnv the round environment
+    */
+   public ReflectiveRoundEnvironment(TruReflect truReflect, RoundEnvironment roundEnv) {
+      this.truReflect = truReflect;
+      this.roundEnv = roundEnv;
+   }
+
+   /**
+    * Returns the wrapped round environment.
+    *
+    * @return the wrapped round environment
+    */
+   public RoundEnvironment roundEnvironment() {
+      return roundEnv;
+   }
+
+   /**
+    * Returns true if this is the last round of processing.
+    *
+    * @return true if this is the last round
+    *
+    * @see RoundEnvironment#processingOver()
+    */
+   public boolean processingOver() {
+      return roundEnv.processingOver();
+   }
+
+   /**
+    * Returns true if an error was raised in the prior round.
+    *
+    * @return true if an error was raised in the prior round
+    *
+    * @see RoundEnvironment#errorRaised()
+    */
+   public boolean errorRaised() {
+      return roundEnv.errorRaised();
+   }
+
+   /**
+    * Returns the reflective objects for all elements in this round annotated with the given
+    * annotation type. This includes packages and type variables, in addition to the kinds of
+    * objects returned by the other query methods.
+    *
+    * @param annotationType the annotation type
+    * @return the reflective objects for the annotated elements
+    *
+    * @see RoundEnvironment#getElementsAnnotatedWith(Class)
+    */
+   public Set<AnnotatedElement> getElementsAnnotatedWith(
+         Class<? extends Annotation> annotationType) {
+      return Collections.unmodifiableSet(group(annotationType).all);
+   }
+
+   /**
+    * Returns the classes for all types in this round annotated with the given annotation type.
+    *
+    * @param annotationType the annotation type
+    * @return the annotated classes
+    */
+   public Set<Class<?>> getTypesAnnotatedWith(Class<? extends Annotation> annotationType) {
+      return Collections.unmodifiableSet(group(annotationType).types);
+   }
+
+   /**
+    * Returns all methods and constructors in this round annotated with the given annotation type.
+    *
+    * @param annotationType the annotation type
+    * @return the annotated methods and constructors
+    */
+   public Set<Executable> getExecutablesAnnotatedWith(
+         Class<? extends Annotation> annotationType) {
+      return Collections.unmodifiableSet(group(annotationType).executables);
+   }
+
+   /**
+    * Returns all fields and enum constants in this round annotated with the given annotation type.
+    *
+    * @param annotationType the annotation type
+    * @return the annotated fields
+    */
+   public Set<Field> getFieldsAnnotatedWith(Class<? extends Annotation> annotationType) {
+      return Collections.unmodifiableSet(group(annotationType).fields);
+   }
+
+   /**
+    * Returns all method and constructor parameters in this round annotated with the given
+    * annotation type.
+    *
+    * @param annotationType the annotation type
+    * @return the annotated parameters
+    */
+   public Set<Parameter> getParametersAnnotatedWith(Class<? extends Annotation> annotationType) {
+      return Collections.unmodifiableSet(group(annotationType).parameters);
+   }
+
+   /**
+    * Returns a lazy stream of the reflective objects for the round's root elements and everything
+    * they enclose. Each type is followed by its type variables, fields, methods, and constructors
+    * (each executable followed by its type variables and parameters), and then by its nested types.
+    * A root package is represented by its {@link Package}.
+    *
+    * <p>Classes are synthesized as the stream reaches them, one class at a time, so
+    * short-circuiting operations like {@link Stream#findFirst()} or {@link Stream#anyMatch} skip
+    * synthesis of the classes that remain. The stream is sequential and must be consumed on the
+    * processor's thread.
+    *
+    * @return a stream of reflective objects for all elements in the round
+    */
+   public Stream<AnnotatedElement> stream() {
+      return StreamSupport.stream(spliterator(), false);
+   }
+
+   /**
+    * Returns a lazy spliterator over the reflective objects for the round's root elements and
+    * everything they enclose. The spliterator does not split.
+    *
+    * @return a spliterator over all elements in the round
+    *
+    * @see #stream()
+    */
+   public Spliterator<AnnotatedElement> spliterator() {
+      return new ElementSpliterator(roundEnv.getRootElements());
+   }
+
+   /**
+    * Walks the elements of a round, converting them as it goes. Root elements and nested types are
+    * queued as groups. When a type is reached, its class is synthesized and its members are queued,
+    * so every member is converted right after its declaring class.
+    */
+   private class ElementSpliterator implements Spliterator<AnnotatedElement> {
+      private final Deque<Element> groups;
+      private final Deque<Element> members = new ArrayDeque<>();
+
+      ElementSpliterator(Set<? extends Element> roots) {
+         this.groups = new ArrayDeque<>(roots);
+      }
+
+      @Override public boolean tryAdvance(Consumer<? super AnnotatedElement> action) {
+         Element next = members.pollFirst();
+         if (next == null) {
+            next = groups.pollFirst();
+            if (next == null) {
+               return false;
+            }
+            if (next instanceof TypeElement) {
+               enqueueMembers((TypeElement) next);
+            }
+         }
+         action.accept(truReflect.forElement(next));
+         return true;
+      }
+
+      private void enqueueMembers(TypeElement type) {
+         members.addAll(type.getTypeParameters());
+         List<Element> nested = new ArrayList<>();
+         for (Element member : type.getEnclosedElements()) {
+            switch (member.getKind()) {
+               case FIELD:
+               case ENUM_CONSTANT:
+                  members.add(member);
+                  break;
+               case METHOD:
+               case CONSTRUCTOR:
+                  ExecutableElement executable = (ExecutableElement) member;
+                  members.add(executable);
+                  members.addAll(executable.getTypeParameters());
+                  members.addAll(executable.getParameters());
+                  break;
+               case CLASS:
+               case INTERFACE:
+               case ENUM:
+               case ANNOTATION_TYPE:
+                  nested.add(member);
+                  break;
+               default:
+                  // initializers have no reflective counterpart
+                  break;
+            }
+         }
+         // nested types come next, before the rest of the enclosing type's siblings
+         for (int i = nested.size() - 1; i >= 0; i--) {
+            groups.addFirst(nested.get(i));
+         }
+      }
+
+      @Override public Spliterator<AnnotatedElement> trySplit() {
+         // elements can only be read on the processor's thread, so this never splits
+         return null;
+      }
+
+      @Override public long estimateSize() {
+         return Long.MAX_VALUE;
+      }
+
+      @Override public int characteristics() {
+         return ORDERED | DISTINCT | NONNULL;
+      }
+   }
+
+   private Group group(Class<? extends Annotation> annotationType) {
+      if (index == null) {
+         index = buildIndex();
+      }
+      Group g = index.get(annotationType.getName());
+      return g == null ? Group.EMPTY : g;
+   }
+
+   private Map<String, Group> buildIndex() {
+      // find all annotated elements, keyed by the binary names of their annotations
+      Map<String, List<Element>> annotated = new LinkedHashMap<>();
+      Map<Element, String> annotationNames = new HashMap<>();
+      Set<TypeElement> declaringTypes = new LinkedHashSet<>();
+      for (Element root : roundEnv.getRootElements()) {
+         scan(root, annotated, annotationNames, declaringTypes);
+      }
+      // synthesize everything up front, so the conversions below only look up members
+      truReflect.synthesizeAll(declaringTypes);
+      Map<Element, AnnotatedElement> converted = new HashMap<>();
+      Map<String, Group> result = new HashMap<>();
+      for (Map.Entry<String, List<Element>> entry : annotated.entrySet()) {
+         Group g = new Group();
+         for (Element e : entry.getValue()) {
+            g.add(converted.computeIfAbsent(e, truReflect::forElement));
+         }
+         result.put(entry.getKey(), g);
+      }
+      return result;
+   }
+
+   private void scan(Element e, Map<String, List<Element>> annotated,
+         Map<Element, String> annotationNames, Set<TypeElement> declaringTypes) {
+      List<? extends AnnotationMirror> mirrors =
+            truReflect.environment().elementUtils().getAllAnnotationMirrors(e);
+      if (!mirrors.isEmpty()) {
+         for (AnnotationMirror mirror : mirrors) {
+            Element annotationType = mirror.getAnnotationType().asElement();
+            String name = annotationNames.computeIfAbsent(annotationType,
+                  t -> truReflect.environment().elementUtils()
+                        .getBinaryName((TypeElement) t).toString());
+            annotated.computeIfAbsent(name, n -> new ArrayList<>()).add(e);
+         }
+         TypeElement declaringType = declaringType(e);
+         if (declaringType != null) {
+            declaringTypes.add(declaringType);
+         }
+      }
+      if (e instanceof TypeElement) {
+         TypeElement type = (TypeElement) e;
+         for (Element child : type.getTypeParameters()) {
+            scan(child, annotated, annotationNames, declaringTypes);
+         }
+         for (Element child : type.getEnclosedElements()) {
+            scan(child, annotated, annotationNames, declaringTypes);
+         }
+      } else if (e instanceof ExecutableElement) {
+         ExecutableElement executable = (ExecutableElement) e;
+         for (Element child : executable.getTypeParameters()) {
+            scan(child, annotated, annotationNames, declaringTypes);
+         }
+         for (Element child : executable.getParameters()) {
+            scan(child, annotated, annotationNames, declaringTypes);
+         }
+      }
+   }
+
+   /**
+    * Returns the type whose class must be synthesized to convert the given element: the element
+    * itself if it is a type, otherwise its nearest enclosing type.
+    *
+    * @param e an element
+    * @return the declaring type, or {@code null} if the element is a package
+    */
+   private static TypeElement declaringType(Element e) {
+      while (e != null && !(e instanceof TypeElement)) {
+         e = e.getEnclosingElement();
+      }
+      return (TypeElement) e;
+   }
+}
@@ -0,0 +1,125 @@
+package com.bluegosling.apt.trureflect;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A table of canonical strings, shared by everything in an {@link Environment}. Names are computed
+ * over and over, for every class that refers to them, and each computation produces a new string.
+ * Names that are retained, like the binary names of synthesized classes, the names in their inner
+ * class entries, package names, and profile entries, go through this table and are replaced with a
+ * single canonical instance. So only one copy of each is retained, no matter how many class
+ * loaders, caches, and traces refer to it.
+ *
+ * <p>The table holds its strings strongly, so only strings that are retained anyway should be
+ * canonicalized. Transient strings, like the descriptors and signatures that are only written into
+ * class files, would otherwise be kept alive by the table for no benefit.
+ *
+ * <p>Unlike {@link String#intern()}, strings in this table are only retained as long as the
+ * environment is. So a processor that shares its environment, via {@link TruReflectRegistry},
+ * shares a single table for the whole compilation, and the table can be garbage collected along
+ * with the compilation.
+ *
+ * <p>The table counts how many strings it has deduplicated and estimates their size. A
+ * deduplicated string is a copy of a canonical string that was given to the table and then
+ * discarded in favor of the canonical instance. Its size is estimated based on the layout of
+ * strings in a 64-bit JVM with compressed references and two bytes per character (which is an
+ * over-estimate for JVMs that use compact strings). This is an upper bound on the memory saved,
+ * since a copy only costs memory for as long as the caller would have kept it. This class is
+ * thread-safe.
+ *
+ * @see Environment#stringTable()
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class StringTable {
+   private final ConcurrentMap<String, String> strings = new ConcurrentHashMap<>();
+   private final LongAdder lookups = new LongAdder();
+   private final LongAdder deduplicated = new LongAdder();
+   private final LongAdder duplicateBytes = new LongAdder();
+
+   StringTable() {
+   }
+
+   /**
+    * Returns the canonical instance of the given string. If the table has no string equal to the
+    * given one, the given one becomes canonical.
+    *
+    * @param s a string
+    * @return the canonical instance of the string
+    */
+   public String canonicalize(String s) {
+      lookups.increment();
+      String canonical = strings.putIfAbsent(s, s);
+      if (canonical == null) {
+         return s;
+      }
+      if (canonical != s) {
+         deduplicated.increment();
+         duplicateBytes.add(estimateSize(s));
+      }
+      return canonical;
+   }
+
+   /**
+    * Returns the canonical string with the same characters as the given sequence, like a {@link
+    * javax.lang.model.element.Name}.
+    *
+    * @param s a sequence of characters
+    * @return the canonical instance of the string
+    */
+   public String canonicalize(CharSequence s) {
+      return canonicalize(s.toString());
+   }
+
+   private static long estimateSize(String s) {
+      // object header, reference to the char array, and hash code, plus the char array itself
+      // with its header and length (all aligned to 8 bytes)
+      return 24 + ((16 + 2L * s.length() + 7) & ~7);
+   }
+
+   /**
+    * Returns the number of canonical strings in this table.
+    *
+    * @return the number of canonical strings
+    */
+   public int size() {
+      return strings.size();
+   }
+
+   /**
+    * Returns the number of strings that have been canonicalized. This includes strings that became
+    * canonical and strings that were already canonical.
+    *
+    * @return the number of lookups in this table
+    */
+   public long lookupCount() {
+      return lookups.sum();
+   }
+
+   /**
+    * Returns the number of strings that were discarded in favor of an equal canonical string.
+    *
+    * @return the number of deduplicated strings
+    */
+   public long deduplicatedCount() {
+      return deduplicated.sum();
+   }
+
+   /**
+    * Returns the estimated total size, in bytes, of all {@linkplain #deduplicatedCount()
+    * deduplicated strings}. This is an upper bound on the memory saved by the table, since not
+    * every copy would otherwise have been retained.
+    *
+    * @return the estimated size of deduplicated strings, in bytes
+    */
+   public long duplicateBytes() {
+      return duplicateBytes.sum();
+   }
+
+   @Override public String toString() {
+      return "StringTable[size=" + size() + ", lookups=" + lookupCount() + ", deduplicated="
+            + deduplicatedCount() + ", duplicateBytes=" + duplicateBytes() + "]";
+   }
+}
@@ -0,0 +1,284 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Member;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for class synthesis and for conversions done by {@link TruReflect}.
+ * When a recording is in progress, these attribute the time spent in an annotation processor to
+ * the specific types that it reflects on.
+ *
+ * <p>The JFR API is only present in JVMs that support it (Java 8u262 and newer, and Java 11 and
+ * newer). Code that uses these events must first check {@link #ENABLED}. If it is false, the event
+ * classes must not be touched, since loading them would fail. This is the only class that refers
+ * to the JFR API, but compiling it still needs one of those JDKs.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+final class SynthesisEvents {
+
+   private static final String CATEGORY = "TruReflect";
+
+   /**
+    * True if the JFR API is available, in which case events can be emitted.
+    */
+   static final boolean ENABLED = isJfrAvailable();
+
+   private SynthesisEvents() {
+   }
+
+   private static boolean isJfrAvailable() {
+      try {
+         Class.forName("jdk.jfr.Event", false, SynthesisEvents.class.getClassLoader());
+         return true;
+      } catch (ClassNotFoundException | LinkageError e) {
+         return false;
+      }
+   }
+
+   /**
+    * Emitted for each class loaded by {@link TruReflectClassLoader#findClass(String)}, including
+    * the time to synthesize and define it.
+    */
+   @Name("com.bluegosling.apt.trureflect.FindClass")
+   @Label("Find Class")
+   @Description("Synthesizes and defines a class")
+   @Category({ CATEGORY, "Synthesis" })
+   static final class FindClass extends Event {
+      @Label("Class Name")
+      String className;
+
+      @Label("Class File Size")
+      @DataAmount
+      int bytes;
+
+      @Label("Member Count")
+      int memberCount;
+   }
+
+   /**
+    * Emitted for each class file produced by
+    * {@link TruReflectClassLoader#createClass(String, javax.lang.model.element.TypeElement,
+    * java.util.Set)}.
+    */
+   @Name("com.bluegosling.apt.trureflect.CreateClass")
+   @Label("Create Class")
+   @Description("Crawls a type's elements and emits a class file")
+   @Category({ CATEGORY, "Synthesis" })
+   static final class CreateClass extends Event {
+      @Label("Class Name")
+      String className;
+
+      @Label("Class File Size")
+      @DataAmount
+      int bytes;
+
+      @Label("Member Count")
+      int memberCount;
+   }
+
+   /**
+    * Emitted for each call to {@link ClassLoader#defineClass(String, byte[], int, int)}, which
+    * includes the JVM's parsing and verification of a synthesized class file.
+    */
+   @Name("com.bluegosling.apt.trureflect.DefineClass")
+   @Label("Define Class")
+   @Description("Defines a class from a synthesized class file")
+   @Category({ CATEGORY, "Synthesis" })
+   static final class DefineClass extends Event {
+      @Label("Class Name")
+      String className;
+
+      @Label("Class File Size")
+      @DataAmount
+      int bytes;
+
+      @Label("Member Count")
+      int memberCount;
+   }
+
+   /**
+    * Emitted for each package defined by
+    * {@link TruReflectClassLoader#ensurePackageDefined(String,
+    * javax.lang.model.element.PackageElement)}.
+    */
+   @Name("com.bluegosling.apt.trureflect.DefinePackage")
+   @Label("Define Package")
+   @Category({ CATEGORY, "Synthesis" })
+   static final class DefinePackage extends Event {
+      @Label("Package Name")
+      String packageName;
+   }
+
+   /**
+    * Emitted for each conversion of an element or mirror by {@link TruReflect}. Conversions that
+    * recurse, like that of a parameterized type, emit events for the nested conversions, too.
+    */
+   @Name("com.bluegosling.apt.trureflect.Conversion")
+   @Label("Conversion")
+   @Description("Converts an element or mirror to its reflective counterpart")
+   @Category({ CATEGORY, "Conversion" })
+   static final class Conversion extends Event {
+      @Label("Conversion")
+      @Description("The kind of conversion, such as forTypeMirror")
+      String conversion;
+
+      @Label("Subject")
+      @Description("The element or mirror that was converted")
+      String subject;
+
+      @Label("Class Name")
+      @Description("The class of the result, or the class that declares it")
+      String className;
+   }
+
+   // The methods below begin and end events. A begin method returns null if JFR isn't available,
+   // and the end methods do nothing when given null. Describing the event, which can be costly,
+   // only happens if the event will actually be recorded.
+
+   static FindClass beginFindClass() {
+      if (!ENABLED) {
+         return null;
+      }
+      FindClass event = new FindClass();
+      event.begin();
+      return event;
+   }
+
+   static void endFindClass(FindClass event, String className, int bytes, Element element) {
+      if (event == null) {
+         return;
+      }
+      event.end();
+      if (event.shouldCommit()) {
+         event.className = className;
+         event.bytes = bytes;
+         event.memberCount = memberCount(element);
+         event.commit();
+      }
+   }
+
+   static CreateClass beginCreateClass() {
+      if (!ENABLED) {
+         return null;
+      }
+      CreateClass event = new CreateClass();
+      event.begin();
+      return event;
+   }
+
+   static void endCreateClass(CreateClass event, String className, int bytes, Element element) {
+      if (event == null) {
+         return;
+      }
+      event.end();
+      if (event.shouldCommit()) {
+         event.className = className;
+         event.bytes = bytes;
+         event.memberCount = memberCount(element);
+         event.commit();
+      }
+   }
+
+   static DefineClass beginDefineClass() {
+      if (!ENABLED) {
+         return null;
+      }
+      DefineClass event = new DefineClass();
+      event.begin();
+      return event;
+   }
+
+   static void endDefineClass(DefineClass event, String className, int bytes, Element element) {
+      if (event == null) {
+         return;
+      }
+      event.end();
+      if (event.shouldCommit()) {
+         event.className = className;
+         event.bytes = bytes;
+         event.memberCount = memberCount(element);
+         event.commit();
+      }
+   }
+
+   static DefinePackage beginDefinePackage() {
+      if (!ENABLED) {
+         return null;
+      }
+      DefinePackage event = new DefinePackage();
+      event.begin();
+      return event;
+   }
+
+   static void endDefinePackage(DefinePackage event, String packageName) {
+      if (event == null) {
+         return;
+      }
+      event.end();
+      if (event.shouldCommit()) {
+         event.packageName = packageName;
+         event.commit();
+      }
+   }
+
+   static Conversion beginConversion() {
+      if (!ENABLED) {
+         return null;
+      }
+      Conversion event = new Conversion();
+      event.begin();
+      return event;
+   }
+
+   static void endConversion(Conversion event, String conversion, Object subject,
+         Object result) {
+      if (event == null) {
+         return;
+      }
+      event.end();
+      if (event.shouldCommit()) {
+         event.conversion = conversion;
+         event.subject = String.valueOf(subject);
+         event.className = className(result);
+         event.commit();
+      }
+   }
+
+   private static int memberCount(Element element) {
+      return element instanceof TypeElement ? element.getEnclosedElements().size() : 0;
+   }
+
+   private static String className(Object result) {
+      if (result instanceof ParameterizedType) {
+         result = ((ParameterizedType) result).getRawType();
+      }
+      if (result instanceof Class) {
+         return ((Class<?>) result).getName();
+      } else if (result instanceof Member) {
+         return ((Member) result).getDeclaringClass().getName();
+      } else if (result instanceof Parameter) {
+         return ((Parameter) result).getDeclaringExecutable().getDeclaringClass().getName();
+      } else if (result instanceof Annotation) {
+         return ((Annotation) result).annotationType().getName();
+      } else if (result instanceof Package) {
+         return ((Package) result).getName();
+      } else {
+         // type variables, wildcards, generic arrays, and annotation values other than classes
+         // and annotations don't have a single class
+         return null;
+      }
+   }
+}
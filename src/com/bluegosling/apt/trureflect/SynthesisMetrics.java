@@ -0,0 +1,493 @@
+package com.bluegosling.apt.trureflect;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics that describe the work done by a {@link TruReflect} instance: how many classes it has
+ * synthesized, how long each phase of synthesis took, how effective its caches are, and how many
+ * conversions it has performed.
+ *
+ * <p>All metrics are cumulative over the life of the instance. Recording a metric never blocks and
+ * reading one is cheap, so they can be polled at any time, from any thread. Timers record only the
+ * time spent in their own phase. For example, time spent synthesizing a superclass, which the JVM
+ * loads while defining a subclass, is not counted towards defining the subclass.
+ *
+ * <p>To publish these metrics to a monitoring system, like a Micrometer {@code MeterRegistry},
+ * {@linkplain #bindTo(Binder, String) bind} them using a small adapter. For example:
+ * <pre>
+ * metrics.bindTo(new SynthesisMetrics.Binder() {
+ *    public void counter(String name, String description, LongSupplier value) {
+ *       FunctionCounter.builder(name, value, LongSupplier::getAsLong)
+ *             .description(description).register(registry);
+ *    }
+ *    // and likewise for timers and gauges
+ * }, "trureflect");
+ * </pre>
+ *
+ * <p>The environment's {@link StringTable} is not covered by these metrics. It is shared by all
+ * instances that share the environment, so its lookups can't be attributed to any one of them.
+ * It reports its own statistics instead.
+ *
+ * @see TruReflect#metrics()
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class SynthesisMetrics {
+
+   /**
+    * Receives metrics so they can be registered with a monitoring system. Each metric is provided
+    * as a function that reads its current value, so the monitoring system can poll it as often as
+    * it likes.
+    */
+   public interface Binder {
+      /**
+       * Registers a monotonically increasing count.
+       *
+       * @param name the name of the metric
+       * @param description a description of the metric
+       * @param value reads the current count
+       */
+      void counter(String name, String description, LongSupplier value);
+
+      /**
+       * Registers a timer.
+       *
+       * @param name the name of the metric
+       * @param description a description of the metric
+       * @param count reads the number of timed events
+       * @param totalNanos reads the total duration of timed events, in nanoseconds
+       */
+      void timer(String name, String description, LongSupplier count, LongSupplier totalNanos);
+
+      /**
+       * Registers a value that can go up or down, like a ratio.
+       *
+       * @param name the name of the metric
+       * @param description a description of the metric
+       * @param value reads the current value
+       */
+      void gauge(String name, String description, DoubleSupplier value);
+   }
+
+   /**
+    * Accumulates the number and total duration of events in one phase of class synthesis.
+    */
+   public static final class Timer {
+      private final LongAdder count = new LongAdder();
+      private final LongAdder totalNanos = new LongAdder();
+
+      Timer() {
+      }
+
+      void record(long nanos) {
+         count.increment();
+         totalNanos.add(nanos);
+      }
+
+      /**
+       * Returns the number of timed events.
+       *
+       * @return the number of timed events
+       */
+      public long count() {
+         return count.sum();
+      }
+
+      /**
+       * Returns the total duration of all timed events, in nanoseconds.
+       *
+       * @return the total duration of all timed events
+       */
+      public long totalNanos() {
+         return totalNanos.sum();
+      }
+
+      @Override public String toString() {
+         return count() + " in " + totalNanos() / 1_000_000 + "ms";
+      }
+   }
+
+   /**
+    * Counts the hits and misses of a cache.
+    */
+   public static final class CacheStats {
+      private final LongAdder hits = new LongAdder();
+      private final LongAdder misses = new LongAdder();
+
+      CacheStats() {
+      }
+
+      void hit() {
+         hits.increment();
+      }
+
+      void miss() {
+         misses.increment();
+      }
+
+      /**
+       * Returns the number of lookups that found an entry in the cache.
+       *
+       * @return the number of cache hits
+       */
+      public long hitCount() {
+         return hits.sum();
+      }
+
+      /**
+       * Returns the number of lookups that did not find an entry in the cache.
+       *
+       * @return the number of cache misses
+       */
+      public long missCount() {
+         return misses.sum();
+      }
+
+      /**
+       * Returns the fraction of lookups that were hits. If there have been no lookups, this returns
+       * {@link Double#NaN}.
+       *
+       * @return the cache hit rate, between zero and one
+       */
+      public double hitRate() {
+         long h = hits.sum();
+         long total = h + misses.sum();
+         return total == 0 ? Double.NaN : h / (double) total;
+      }
+
+      @Override public String toString() {
+         return hitCount() + " hits, " + missCount() + " misses";
+      }
+   }
+
+   private final LongAdder classesSynthesized = new LongAdder();
+   private final LongAdder classesDelegated = new LongAdder();
+   private final LongAdder bytesEmitted = new LongAdder();
+   private final Timer elementCrawl = new Timer();
+   private final Timer classEmission = new Timer();
+   private final Timer classDefinition = new Timer();
+   private final Timer packageDefinition = new Timer();
+   private final CacheStats loadedClasses = new CacheStats();
+   private final CacheStats classBytesCache = new CacheStats();
+   private final CacheStats prefetch = new CacheStats();
+   private final CacheStats nest = new CacheStats();
+   private final CacheStats hierarchies = new CacheStats();
+   private final CacheStats methodOverrides = new CacheStats();
+   private final CacheStats subtypeChecks = new CacheStats();
+   private final CacheStats assignabilityChecks = new CacheStats();
+   private final CacheStats supertypes = new CacheStats();
+   private final CacheStats typeMirrors = new CacheStats();
+   private final LongAdder typeMirrorConversions = new LongAdder();
+   private final LongAdder annotationMirrorConversions = new LongAdder();
+
+   SynthesisMetrics() {
+   }
+
+   void classSynthesized(int classFileBytes) {
+      classesSynthesized.increment();
+      bytesEmitted.add(classFileBytes);
+   }
+
+   void classDelegated() {
+      classesDelegated.increment();
+   }
+
+   void typeMirrorConverted() {
+      typeMirrorConversions.increment();
+   }
+
+   void annotationMirrorConverted() {
+      annotationMirrorConversions.increment();
+   }
+
+   /**
+    * Returns the number of classes defined from synthesized class files, including those whose
+    * class files came from a {@link ClassBytesCache}.
+    *
+    * @return the number of classes synthesized
+    */
+   public long classesSynthesized() {
+      return classesSynthesized.sum();
+   }
+
+   /**
+    * Returns the number of classes provided by the parent class loader instead of being
+    * synthesized. This includes all classes in {@code java.*} packages.
+    *
+    * @return the number of classes delegated to the parent class loader
+    */
+   public long classesDelegated() {
+      return classesDelegated.sum();
+   }
+
+   /**
+    * Returns the total size of all synthesized class files, in bytes.
+    *
+    * @return the number of bytes emitted
+    */
+   public long bytesEmitted() {
+      return bytesEmitted.sum();
+   }
+
+   /**
+    * Returns the timer for crawling elements, which finds all types referenced by a class before
+    * its class file is emitted.
+    *
+    * @return the timer for crawling elements
+    */
+   public Timer elementCrawl() {
+      return elementCrawl;
+   }
+
+   /**
+    * Returns the timer for emitting class files with ASM.
+    *
+    * @return the timer for emitting class files
+    */
+   public Timer classEmission() {
+      return classEmission;
+   }
+
+   /**
+    * Returns the timer for defining classes from class files, which includes the JVM's parsing and
+    * verification of the class file.
+    *
+    * @return the timer for defining classes
+    */
+   public Timer classDefinition() {
+      return classDefinition;
+   }
+
+   /**
+    * Returns the timer for defining packages.
+    *
+    * @return the timer for defining packages
+    */
+   public Timer packageDefinition() {
+      return packageDefinition;
+   }
+
+   /**
+    * Returns the statistics for lookups of classes that were already loaded. A miss means the class
+    * had to be synthesized or loaded from the parent class loader.
+    *
+    * @return statistics for lookups of loaded classes
+    */
+   public CacheStats loadedClasses() {
+      return loadedClasses;
+   }
+
+   /**
+    * Returns the statistics for lookups in the configured {@link ClassBytesCache}, as seen by this
+    * instance. (The cache itself reports the totals of all instances that share it.) A cached class
+    * file that can't be used, because a type it references isn't available, counts as a miss.
+    *
+    * @return statistics for lookups of cached class files
+    *
+    * @see TruReflect#useClassBytesCache(ClassBytesCache)
+    */
+   public CacheStats classBytesCache() {
+      return classBytesCache;
+   }
+
+   /**
+    * Returns the statistics for classes that were prefetched. A hit means a class was defined from
+    * a class file that was written in the background. A miss means a class had to be synthesized
+    * on demand while prefetching was enabled. Nothing is counted when prefetching is disabled.
+    *
+    * @return statistics for prefetched classes
+    *
+    * @see TruReflect#prefetchReferencedTypes(int, long, java.util.concurrent.TimeUnit)
+    */
+   public CacheStats prefetch() {
+      return prefetch;
+   }
+
+   /**
+    * Returns the statistics for classes that were synthesized along with their nest. A hit means a
+    * class was defined from a class file that was written when another class in its nest was
+    * loaded. A miss means a class had to be synthesized on demand (along with the rest of its
+    * nest) while nest synthesis was enabled. Nothing is counted when nest synthesis is disabled.
+    *
+    * @return statistics for classes synthesized with their nest
+    *
+    * @see TruReflect#synthesizeNests(boolean)
+    */
+   public CacheStats nest() {
+      return nest;
+   }
+
+   /**
+    * Returns the statistics for lookups of cached class hierarchy views. Views of supertypes that
+    * are looked up while computing a view are counted, too.
+    *
+    * @return statistics for lookups of class hierarchy views
+    *
+    * @see TruReflect#hierarchyOf(Class)
+    */
+   public CacheStats hierarchies() {
+      return hierarchies;
+   }
+
+   /**
+    * Returns the statistics for lookups of cached tables of overridden methods. Tables of
+    * supertypes that are looked up while computing a table are counted, too.
+    *
+    * @return statistics for lookups of method override tables
+    *
+    * @see TruReflect#overridesOf(javax.lang.model.element.TypeElement)
+    */
+   public CacheStats methodOverrides() {
+      return methodOverrides;
+   }
+
+   /**
+    * Returns the statistics for memoized subtype checks. Checks that involve lazily converted
+    * types are not memoized, so they are not counted.
+    *
+    * @return statistics for memoized subtype checks
+    *
+    * @see TypeRelations#isSubtype(java.lang.reflect.Type, java.lang.reflect.Type)
+    */
+   public CacheStats subtypeChecks() {
+      return subtypeChecks;
+   }
+
+   /**
+    * Returns the statistics for memoized assignability checks. Checks that involve lazily
+    * converted types are not memoized, so they are not counted.
+    *
+    * @return statistics for memoized assignability checks
+    *
+    * @see TypeRelations#isAssignable(java.lang.reflect.Type, java.lang.reflect.Type)
+    */
+   public CacheStats assignabilityChecks() {
+      return assignabilityChecks;
+   }
+
+   /**
+    * Returns the statistics for memoized supertype queries. Queries for lazily converted types are
+    * not memoized, so they are not counted.
+    *
+    * @return statistics for memoized supertype queries
+    *
+    * @see TypeRelations#asSuper(java.lang.reflect.Type, Class)
+    */
+   public CacheStats supertypes() {
+      return supertypes;
+   }
+
+   /**
+    * Returns the statistics for lookups of the type mirrors that correspond to reflection types.
+    * Types that were converted from mirrors remember them, so they are not counted.
+    *
+    * @return statistics for lookups of type mirrors
+    *
+    * @see TypeRelations#mirrorOf(java.lang.reflect.Type)
+    */
+   public CacheStats typeMirrors() {
+      return typeMirrors;
+   }
+
+   /**
+    * Returns the number of type mirrors converted to reflection types. This includes conversions
+    * of component types, type arguments, and bounds, which are converted along with the mirrors
+    * that contain them.
+    *
+    * @return the number of type mirror conversions
+    */
+   public long typeMirrorConversions() {
+      return typeMirrorConversions.sum();
+   }
+
+   /**
+    * Returns the number of annotation mirrors converted to annotation instances. This includes
+    * conversions of nested annotations.
+    *
+    * @return the number of annotation mirror conversions
+    */
+   public long annotationMirrorConversions() {
+      return annotationMirrorConversions.sum();
+   }
+
+   /**
+    * Binds all metrics to the given binder. Each metric's name is the given prefix, a period, and a
+    * dot-separated name (like {@code trureflect.classes.synthesized}).
+    *
+    * @param binder the binder
+    * @param prefix the prefix for all metric names
+    */
+   public void bindTo(Binder binder, String prefix) {
+      binder.counter(prefix + ".classes.synthesized",
+            "classes defined from synthesized class files", this::classesSynthesized);
+      binder.counter(prefix + ".classes.delegated", "classes provided by the parent class loader",
+            this::classesDelegated);
+      binder.counter(prefix + ".bytes.emitted", "total size of synthesized class files",
+            this::bytesEmitted);
+      bindTimer(binder, prefix + ".phase.crawl", "crawling elements for referenced types",
+            elementCrawl);
+      bindTimer(binder, prefix + ".phase.emit", "emitting class files", classEmission);
+      bindTimer(binder, prefix + ".phase.define", "defining classes", classDefinition);
+      bindTimer(binder, prefix + ".phase.package", "defining packages", packageDefinition);
+      bindCache(binder, prefix + ".cache.loaded", "lookups of loaded classes", loadedClasses);
+      bindCache(binder, prefix + ".cache.bytes", "lookups of cached class files",
+            classBytesCache);
+      bindCache(binder, prefix + ".cache.prefetch", "lookups of prefetched classes", prefetch);
+      bindCache(binder, prefix + ".cache.nest", "lookups of classes synthesized with their nest",
+            nest);
+      bindCache(binder, prefix + ".cache.hierarchy", "lookups of class hierarchy views",
+            hierarchies);
+      bindCache(binder, prefix + ".cache.overrides", "lookups of method override tables",
+            methodOverrides);
+      bindCache(binder, prefix + ".cache.subtype", "memoized subtype checks", subtypeChecks);
+      bindCache(binder, prefix + ".cache.assignable", "memoized assignability checks",
+            assignabilityChecks);
+      bindCache(binder, prefix + ".cache.supertype", "memoized supertype queries", supertypes);
+      bindCache(binder, prefix + ".cache.mirror", "lookups of type mirrors for reflection types",
+            typeMirrors);
+      binder.counter(prefix + ".conversions.typeMirror", "type mirrors converted",
+            this::typeMirrorConversions);
+      binder.counter(prefix + ".conversions.annotationMirror", "annotation mirrors converted",
+            this::annotationMirrorConversions);
+   }
+
+   private static void bindTimer(Binder binder, String name, String description, Timer timer) {
+      binder.timer(name, description, timer::count, timer::totalNanos);
+   }
+
+   private static void bindCache(Binder binder, String name, String description,
+         CacheStats stats) {
+      binder.counter(name + ".hits", description + " that hit", stats::hitCount);
+      binder.counter(name + ".misses", description + " that missed", stats::missCount);
+      binder.gauge(name + ".hitRate", description + " that hit, as a fraction",
+            stats::hitRate);
+   }
+
+   @Override public String toString() {
+      Map<String, Object> props = new LinkedHashMap<>();
+      props.put("classesSynthesized", classesSynthesized());
+      props.put("classesDelegated", classesDelegated());
+      props.put("bytesEmitted", bytesEmitted());
+      props.put("elementCrawl", elementCrawl);
+      props.put("classEmission", classEmission);
+      props.put("classDefinition", classDefinition);
+      props.put("packageDefinition", packageDefinition);
+      props.put("loadedClasses", loadedClasses);
+      props.put("classBytesCache", classBytesCache);
+      props.put("prefetch", prefetch);
+      props.put("nest", nest);
+      props.put("hierarchies", hierarchies);
+      props.put("methodOverrides", methodOverrides);
+      props.put("subtypeChecks", subtypeChecks);
+      props.put("assignabilityChecks", assignabilityChecks);
+      props.put("supertypes", supertypes);
+      props.put("typeMirrors", typeMirrors);
+      props.put("typeMirrorConversions", typeMirrorConversions());
+      props.put("annotationMirrorConversions", annotationMirrorConversions());
+      return "SynthesisMetrics" + props;
+   }
+}
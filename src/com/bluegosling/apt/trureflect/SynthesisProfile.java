@@ -0,0 +1,175 @@
+package com.bluegosling.apt.trureflect;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A record of the classes synthesized during a compilation, used to warm up the next one.
+ * Processors tend to reflect on much the same types in every build. So, when a profile from an
+ * earlier build is {@linkplain TruReflect#useProfile(SynthesisProfile) used}, all of the classes it
+ * lists are synthesized up front, in bulk, with their class files written in parallel. The classes
+ * synthesized during this compilation are recorded and can then be {@linkplain #save() saved}
+ * for the next build.
+ *
+ * <p>The profile is a small text file with one class per line: its binary name and, if different,
+ * its canonical name, separated by a tab. Lines that start with {@code #} are comments. Entries
+ * whose names no longer resolve, via {@link javax.lang.model.util.Elements#getTypeElement}, to a
+ * type with the same binary name are stale. They are not synthesized, and they are not saved.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class SynthesisProfile {
+
+   private static final String HEADER = "# TruReflect synthesis profile";
+
+   private final Path file;
+   // binary names to canonical names, in the order classes were synthesized
+   private final Map<String, String> entries;
+   private final Map<String, String> recorded = new LinkedHashMap<>();
+   private int droppedCount;
+
+   private SynthesisProfile(Path file, Map<String, String> entries) {
+      this.file = file;
+      this.entries = entries;
+   }
+
+   /**
+    * Loads a profile from the given file. If the file does not exist, the profile is empty, and
+    * the file will be created when the profile is saved. Malformed lines are ignored.
+    *
+    * @param file the profile file
+    * @return the profile
+    * @throws IOException if the file exists but cannot be read
+    */
+   public static SynthesisProfile load(Path file) throws IOException {
+      Map<String, String> entries = new LinkedHashMap<>();
+      try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+         String line;
+         while ((line = in.readLine()) != null) {
+            if (line.startsWith("#")) {
+               continue;
+            }
+            int tab = line.indexOf('\t');
+            String binaryName = (tab < 0 ? line : line.substring(0, tab)).trim();
+            String canonicalName = tab < 0 ? binaryName : line.substring(tab + 1).trim();
+            if (!binaryName.isEmpty() && !canonicalName.isEmpty()) {
+               entries.put(binaryName, canonicalName);
+            }
+         }
+      } catch (NoSuchFileException e) {
+         // no profile yet
+      }
+      return new SynthesisProfile(file, entries);
+   }
+
+   /**
+    * Returns the file from which this profile was loaded and to which it is saved.
+    *
+    * @return the profile file
+    */
+   public Path file() {
+      return file;
+   }
+
+   /**
+    * Returns the number of classes listed in the profile when it was loaded.
+    *
+    * @return the number of classes loaded from the profile file
+    */
+   public int size() {
+      return entries.size();
+   }
+
+   /**
+    * Returns the number of stale entries that were dropped because their names no longer resolve
+    * to the same type.
+    *
+    * @return the number of stale entries
+    */
+   public synchronized int droppedCount() {
+      return droppedCount;
+   }
+
+   /**
+    * Returns the number of classes recorded so far during this compilation.
+    *
+    * @return the number of classes recorded
+    */
+   public synchronized int recordedCount() {
+      return recorded.size();
+   }
+
+   Map<String, String> entries() {
+      return Collections.unmodifiableMap(entries);
+   }
+
+   synchronized void dropped() {
+      droppedCount++;
+   }
+
+   /**
+    * Records a synthesized class. Local and anonymous classes, which have no canonical name, can't
+    * be found by name and so are not recorded.
+    *
+    * @param binaryName the binary name of the class
+    * @param canonicalName the canonical name of the class, or an empty string if it has none
+    */
+   synchronized void record(String binaryName, String canonicalName) {
+      if (!canonicalName.isEmpty()) {
+         recorded.putIfAbsent(binaryName, canonicalName);
+      }
+   }
+
+   /**
+    * Saves the classes recorded during this compilation to the profile file, replacing its
+    * contents. The file is written to a temporary file first and then moved into place, so
+    * concurrent readers never see a partial profile.
+    *
+    * @throws IOException if the profile cannot be written
+    */
+   public void save() throws IOException {
+      Map<String, String> snapshot;
+      synchronized (this) {
+         snapshot = new LinkedHashMap<>(recorded);
+      }
+      Path dir = file.toAbsolutePath().getParent();
+      if (dir != null) {
+         Files.createDirectories(dir);
+      }
+      Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+      try {
+         try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.write('\n');
+            for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+               out.write(entry.getKey());
+               if (!entry.getKey().equals(entry.getValue())) {
+                  out.write('\t');
+                  out.write(entry.getValue());
+               }
+               out.write('\n');
+            }
+         }
+         Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+         Files.deleteIfExists(tmp);
+      }
+   }
+
+   @Override public synchronized String toString() {
+      return "SynthesisProfile[" + file + ", loaded=" + entries.size() + ", dropped="
+            + droppedCount + ", recorded=" + recorded.size() + "]";
+   }
+}
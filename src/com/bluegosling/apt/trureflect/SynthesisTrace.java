@@ -0,0 +1,268 @@
+package com.bluegosling.apt.trureflect;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Records why each class was synthesized. Converting one element can synthesize many classes:
+ * every type referenced by a synthesized class (from its supertypes, members, annotations, and
+ * type annotations) may itself need to be synthesized, when the JVM or a reflective query loads it.
+ * A trace attributes each synthesized class to the reference that caused it, and to the root: the
+ * class that was requested from {@link TruReflect} and that started the chain of references.
+ *
+ * <p>A trace can {@linkplain #explain(String) explain} the synthesis of any class and can
+ * {@linkplain #writeReport(Appendable, int) write a report} of the roots that caused the most
+ * synthesis and of the members whose references caused the most synthesis. Processors can use
+ * these to find the conversions that are most expensive and to touch fewer types.
+ *
+ * <p>The cause recorded for a class is the first reference to it that was seen. When a class is
+ * referenced from several places, only one of them is reported. Classes whose class files came
+ * from a {@link ClassBytesCache} record references from the class as a whole, since the members
+ * aren't crawled.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @see TruReflect#enableSynthesisTracing()
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class SynthesisTrace {
+
+   /**
+    * The member name used for references that come from a class's declaration (its supertypes,
+    * type parameters, and annotations) instead of from one of its members.
+    */
+   static final String DECLARATION = "<declaration>";
+
+   /**
+    * A reference from a member of one class to another class.
+    */
+   private static final class Reference {
+      final String fromClass;
+      final String member;
+
+      Reference(String fromClass, String member) {
+         this.fromClass = fromClass;
+         this.member = member;
+      }
+
+      @Override public boolean equals(Object o) {
+         if (!(o instanceof Reference)) {
+            return false;
+         }
+         Reference other = (Reference) o;
+         return fromClass.equals(other.fromClass) && member.equals(other.member);
+      }
+
+      @Override public int hashCode() {
+         return fromClass.hashCode() * 31 + member.hashCode();
+      }
+
+      @Override public String toString() {
+         return member == DECLARATION ? fromClass : fromClass + "#" + member;
+      }
+   }
+
+   /**
+    * A synthesized class: what caused it, and what it cost.
+    */
+   private static final class Synthesis {
+      final Reference cause;
+      final String root;
+      int bytes;
+      long nanos;
+
+      Synthesis(Reference cause, String root) {
+         this.cause = cause;
+         this.root = root;
+      }
+   }
+
+   /**
+    * The total cost of a set of synthesized classes.
+    */
+   private static final class Cost {
+      int classes;
+      long bytes;
+      long nanos;
+
+      void add(Synthesis s) {
+         classes++;
+         bytes += s.bytes;
+         nanos += s.nanos;
+      }
+   }
+
+   private final Map<String, Reference> firstReferences = new HashMap<>();
+   private final Map<String, Synthesis> syntheses = new LinkedHashMap<>();
+   private String activeRoot;
+
+   SynthesisTrace() {
+   }
+
+   /**
+    * Records that a class was requested, directly, by a conversion. If no other request is in
+    * progress, the class becomes the root for everything synthesized until the request finishes.
+    *
+    * @param className the name of the requested class
+    * @return true if the class is now the active root, in which case the caller must call {@link
+    *       #endRequest()} when the request finishes
+    */
+   synchronized boolean beginRequest(String className) {
+      if (activeRoot != null) {
+         return false;
+      }
+      activeRoot = className;
+      return true;
+   }
+
+   synchronized void endRequest() {
+      activeRoot = null;
+   }
+
+   /**
+    * Records a reference from a member of one class to another class.
+    *
+    * @param fromClass the name of the class that contains the reference
+    * @param member the name of the member that contains the reference, or {@link #DECLARATION}
+    * @param toClass the name of the referenced class
+    */
+   synchronized void reference(String fromClass, String member, String toClass) {
+      if (!fromClass.equals(toClass) && !firstReferences.containsKey(toClass)) {
+         firstReferences.put(toClass, new Reference(fromClass, member));
+      }
+   }
+
+   /**
+    * Records that a class is being synthesized. This must be called before the class's own
+    * references are crawled, so that classes synthesized because of it can be traced back to its
+    * root.
+    *
+    * @param className the name of the class being synthesized
+    */
+   synchronized void synthesizing(String className) {
+      Reference cause = className.equals(activeRoot) ? null : firstReferences.get(className);
+      String root;
+      if (cause == null) {
+         root = className;
+      } else {
+         Synthesis from = syntheses.get(cause.fromClass);
+         root = from != null ? from.root : activeRoot != null ? activeRoot : cause.fromClass;
+      }
+      syntheses.put(className, new Synthesis(cause, root));
+   }
+
+   /**
+    * Records the cost of synthesizing a class.
+    *
+    * @param className the name of the synthesized class
+    * @param bytes the size of its class file
+    * @param nanos the time spent synthesizing and defining it, excluding time spent on other
+    *       classes
+    */
+   synchronized void synthesized(String className, int bytes, long nanos) {
+      Synthesis s = syntheses.get(className);
+      if (s != null) {
+         s.bytes = bytes;
+         s.nanos = nanos;
+      }
+   }
+
+   /**
+    * Returns the number of classes synthesized while tracing.
+    *
+    * @return the number of classes synthesized
+    */
+   public synchronized int synthesizedCount() {
+      return syntheses.size();
+   }
+
+   /**
+    * Explains why the given class was synthesized. The returned list starts with the root, the
+    * class that was requested, and ends with the given class. The elements in between are the
+    * references that lead from one to the other, each in the form {@code Class#member} (or just
+    * {@code Class}, for references from a class's declaration).
+    *
+    * @param className the binary name of a class
+    * @return the chain of references that caused the class to be synthesized, or an empty list if
+    *       the class was not synthesized while tracing
+    */
+   public synchronized List<String> explain(String className) {
+      List<String> chain = new ArrayList<>();
+      Synthesis s = syntheses.get(className);
+      if (s == null) {
+         return chain;
+      }
+      chain.add(className);
+      // a class can be referenced before it's requested, so guard against cycles
+      for (int i = 0; s != null && s.cause != null && i < syntheses.size(); i++) {
+         chain.add(s.cause.toString());
+         s = syntheses.get(s.cause.fromClass);
+      }
+      Collections.reverse(chain);
+      return chain;
+   }
+
+   /**
+    * Writes a report of the most expensive roots and the members with the widest fan-out. A
+    * root's cost is the number of classes it caused to be synthesized (including itself), with
+    * their total size and synthesis time. A member's fan-out is the number of classes synthesized
+    * because of references from that member.
+    *
+    * @param out where the report is written
+    * @param limit the maximum number of roots, and of members, to include
+    * @throws IOException if writing fails
+    */
+   public void writeReport(Appendable out, int limit) throws IOException {
+      Map<String, Cost> roots = new HashMap<>();
+      Map<Reference, Cost> edges = new HashMap<>();
+      int total;
+      synchronized (this) {
+         total = syntheses.size();
+         for (Synthesis s : syntheses.values()) {
+            roots.computeIfAbsent(s.root, k -> new Cost()).add(s);
+            if (s.cause != null) {
+               edges.computeIfAbsent(s.cause, k -> new Cost()).add(s);
+            }
+         }
+      }
+      out.append(String.format("%,d classes synthesized from %,d roots%n", total, roots.size()));
+      out.append(String.format("%nMost expensive roots:%n"));
+      for (Entry<String, Cost> entry : top(roots, limit)) {
+         Cost c = entry.getValue();
+         out.append(String.format("%,8d classes %,10d bytes %,8d us  %s%n", c.classes, c.bytes,
+               c.nanos / 1000, entry.getKey()));
+      }
+      out.append(String.format("%nWidest fan-out:%n"));
+      for (Entry<Reference, Cost> entry : top(edges, limit)) {
+         Cost c = entry.getValue();
+         out.append(String.format("%,8d classes %,10d bytes %,8d us  %s%n", c.classes, c.bytes,
+               c.nanos / 1000, entry.getKey()));
+      }
+   }
+
+   private static <K> List<Entry<K, Cost>> top(Map<K, Cost> costs, int limit) {
+      List<Entry<K, Cost>> entries = new ArrayList<>(costs.entrySet());
+      entries.sort(Comparator.comparingInt((Entry<K, Cost> e) -> e.getValue().classes)
+            .thenComparingLong(e -> e.getValue().nanos)
+            .reversed());
+      return entries.size() > limit ? entries.subList(0, limit) : entries;
+   }
+
+   @Override public String toString() {
+      StringBuilder sb = new StringBuilder();
+      try {
+         writeReport(sb, 10);
+      } catch (IOException e) {
+         throw new AssertionError(e);
+      }
+      return sb.toString();
+   }
+}
@@ -2,21 +2,31 @@ package com.bluegosling.apt.trureflect;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.AnnotatedType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Executable;
 import java.lang.reflect.Field;
 import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.GenericDeclaration;
+import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.lang.model.element.AnnotationMirror;
@@ -61,8 +71,15 @@ import javax.lang.model.util.Types;
  * 
  * <p>In addition to viewing {@link Element}s using reflection types, this class also allows for
  * viewing {@link TypeMirror}s as reflection {@link Type}s and {@link AnnotationMirror}s as actual
- * instances of {@link Annotation}s. 
- * 
+ * instances of {@link Annotation}s.
+ *
+ * <p>Each instance synthesizes its own copy of every class it reflects on. Multiple processors in
+ * the same compilation can share a single instance via {@link TruReflectRegistry}.
+ *
+ * <p>Like the compiler's own utilities, an instance must only be used on the processor's thread,
+ * unless its access to the compiler's model is {@linkplain #confineModelAccess(ModelExecutor)
+ * confined} to a {@link ModelExecutor}.
+ *
  * @author Joshua Humphries (jhumphries131@gmail.com)
  */
 // TODO: javadoc, tests
@@ -70,6 +87,17 @@ public final class TruReflect {
 
    private final Environment env;
    private final TruReflectClassLoader loader;
+   private final Map<Class<?>, ClassHierarchy> hierarchies = new ConcurrentHashMap<>();
+   private final Map<TypeElement, MethodOverrides> overrides = new ConcurrentHashMap<>();
+   private final TypeRelations typeRelations;
+   private volatile ModelExecutor modelExecutor;
+   // results of conversions, for snapshots; null unless enabled, and only used on the thread that
+   // accesses the model
+   private Map<TypeMirror, Type> convertedTypes;
+   private Map<AnnotationMirror, Annotation> convertedAnnotations;
+   // nesting of conversions, so that only the outermost are recorded
+   private int conversionDepth;
+   private volatile TruReflectSnapshot snapshot;
    
    /**
     * Constructs a new instance for the current processing environment.
@@ -89,6 +117,346 @@ public final class TruReflect {
    public TruReflect(Environment env) {
       this.env = env;
       loader = new TruReflectClassLoader(env);
+      typeRelations = new TypeRelations(this, env, loader);
+   }
+
+   /**
+    * Configures a cache of synthesized class files. Before synthesizing a class, the cache is
+    * consulted for a class file with the same name and structure, possibly synthesized during an
+    * earlier compilation. Newly synthesized classes are added to the cache. Classes that have
+    * already been loaded are not affected.
+    *
+    * <p>The cache is typically {@link ClassBytesCache#shared()}, for processes that run many
+    * compilations. It can be {@code null} to disable caching, which is the default.
+    *
+    * @param cache the cache of synthesized class files, or {@code null}
+    * @return this, for method chaining
+    */
+   public TruReflect useClassBytesCache(ClassBytesCache cache) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> useClassBytesCache(cache));
+      }
+      loader.setClassBytesCache(cache);
+      return this;
+   }
+
+   /**
+    * Configures a store in which to retain the class files of synthesized classes, so they can be
+    * {@linkplain #classBytesOf(Class) retrieved} after the classes are defined. The store keeps
+    * them outside the heap, so retaining them doesn't add to the work of the garbage collector.
+    * Only classes synthesized after the store is configured are retained. The store can be {@code
+    * null} to stop retaining class files, which is the default.
+    *
+    * <p>Class files that were already retained stay in the store they were put in, even if a
+    * different store (or {@code null}) is configured later. So they remain available until that
+    * store is closed. The store can be shared by many instances. It is not closed by this instance.
+    *
+    * @param store the store in which to retain synthesized class files, or {@code null}
+    * @return this, for method chaining
+    */
+   public TruReflect retainClassBytes(ClassBytesStore store) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> retainClassBytes(store));
+      }
+      loader.setClassBytesStore(store);
+      return this;
+   }
+
+   /**
+    * Returns the class file from which the given class was defined. The class file is only
+    * available if this instance synthesized the class while {@linkplain
+    * #retainClassBytes(ClassBytesStore) retaining class files}.
+    *
+    * @param clazz a class
+    * @return a copy of the class's class file, or {@code null} if it was not retained
+    * @throws IllegalStateException if the store in which the class file was retained has been
+    *       closed
+    */
+   public byte[] classBytesOf(Class<?> clazz) {
+      return loader.retainedClassBytes(clazz);
+   }
+
+   /**
+    * Configures speculative synthesis of the types referenced by synthesized classes. After a class
+    * is synthesized, the types it references, and the types they reference, up to the given depth,
+    * are prepared ahead of time. Elements are still read on the calling thread, but class files are
+    * written on background threads, so a later request for one of these types usually finds its
+    * class file ready. Types in {@code java.*} packages are never prefetched.
+    *
+    * <p>Prefetching stops once the given CPU budget, summed across the calling thread and the
+    * background threads, is used up. Prefetched classes that are never requested are wasted work,
+    * so the budget should be small relative to the cost of the compilation. Since only the writing
+    * of class files moves to other threads, the gain is small at best, and it needs idle cores.
+    * Prefetching is disabled by default, and a depth or budget of zero disables it.
+    *
+    * @param depth how many levels of references to prefetch; one prefetches only the types that
+    *       synthesized classes reference directly
+    * @param cpuBudget the total CPU time that can be spent prefetching
+    * @param unit the unit of the CPU budget
+    * @return this, for method chaining
+    *
+    * @see SynthesisMetrics#prefetch()
+    */
+   public TruReflect prefetchReferencedTypes(int depth, long cpuBudget, TimeUnit unit) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> prefetchReferencedTypes(depth, cpuBudget, unit));
+      }
+      if (depth < 0 || cpuBudget < 0) {
+         throw new IllegalArgumentException("depth and CPU budget must not be negative");
+      }
+      loader.setPrefetch(depth, unit.toNanos(cpuBudget));
+      return this;
+   }
+
+   /**
+    * Configures whether classes are synthesized a whole nest at a time. A nest is a top-level type
+    * and all of its member types, at any depth. When enabled, loading any class in a nest writes
+    * the class files for all of its members in one pass, and the other classes are then only
+    * defined when they are loaded. This pays off for deep nests, like generated builders, whose
+    * classes are usually all used together. Nest synthesis is disabled by default.
+    *
+    * @param enabled true to synthesize whole nests at a time
+    * @return this, for method chaining
+    *
+    * @see SynthesisMetrics#nest()
+    */
+   public TruReflect synthesizeNests(boolean enabled) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> synthesizeNests(enabled));
+      }
+      loader.setNestSynthesis(enabled);
+      return this;
+   }
+
+   /**
+    * Warms up this instance using a profile from an earlier compilation. All classes listed in the
+    * profile are synthesized now, in bulk, so the processor's first queries find them already
+    * loaded. Elements are read on the calling thread, but class files are written in parallel.
+    * Stale entries, whose names no longer resolve to the same type, are skipped.
+    *
+    * <p>From now on, classes that this instance synthesizes or hands out are recorded to the
+    * profile. Classes synthesized during warm-up are only recorded once they are used, or once a
+    * class that uses them is recorded, so types that processors no longer use drop out of the
+    * profile. Call {@link SynthesisProfile#save()} at the end of the compilation to write them out
+    * for the next one. This should be called right after construction, before any other queries.
+    *
+    * @param profile a profile from an earlier compilation
+    * @return this, for method chaining
+    */
+   public TruReflect useProfile(SynthesisProfile profile) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> useProfile(profile));
+      }
+      loader.useProfile(profile);
+      return this;
+   }
+
+   /**
+    * Confines all access to the compiler's model to the given executor's thread. After this call,
+    * this instance can be used from any thread: conversions requested on other threads, and
+    * classes that they load, are synthesized on the model thread. This includes the lazily
+    * computed parts of types from {@link #forTypeMirrorLazily(TypeMirror)} and {@link
+    * #forAnnotatedTypeMirror(TypeMirror)} and queries of {@link #typeRelations()}. Configuration
+    * methods, like {@link #useProfile(SynthesisProfile)}, also run on the model thread, since they
+    * can read elements and synthesize classes, too. Reflecting on classes that are already loaded
+    * happens on the calling thread.
+    *
+    * <p>Each conversion is a separate request to the model thread, so threads that make many
+    * small conversions pay for a handoff each time. The executor groups requests that arrive
+    * together, so throughput improves as more threads make requests at once. Model access is not
+    * confined by default, and a {@code null} executor turns confinement back off.
+    *
+    * @param executor the executor whose thread accesses the model, or {@code null}
+    * @return this, for method chaining
+    */
+   public TruReflect confineModelAccess(ModelExecutor executor) {
+      this.modelExecutor = executor;
+      loader.setModelExecutor(executor);
+      return this;
+   }
+
+   /**
+    * Configures whether the results of {@link #forTypeMirror(TypeMirror)} and {@link
+    * #forAnnotationMirror(AnnotationMirror)} are recorded, so that a {@linkplain #freeze()
+    * snapshot} can look them up. Only the caller's own conversions are recorded, not the nested
+    * ones they make internally. Recording keeps every converted mirror, and its result, reachable
+    * until this instance is frozen, so it is disabled by default. Disabling it discards what has
+    * been recorded.
+    *
+    * @param enabled true to record conversions for snapshots
+    * @return this, for method chaining
+    */
+   public TruReflect recordConversions(boolean enabled) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> recordConversions(enabled));
+      }
+      if (!enabled) {
+         convertedTypes = null;
+         convertedAnnotations = null;
+      } else if (convertedTypes == null && snapshot == null) {
+         convertedTypes = new IdentityHashMap<>();
+         convertedAnnotations = new IdentityHashMap<>();
+      }
+      return this;
+   }
+
+   /**
+    * Returns the executor to which model access must be forwarded, or {@code null} if the current
+    * thread can access the model itself.
+    */
+   ModelExecutor forwardingExecutor() {
+      ModelExecutor executor = modelExecutor;
+      return executor == null || executor.isModelThread() ? null : executor;
+   }
+
+   /**
+    * Runs the given task on the model thread if model access is confined. Otherwise, it is run on
+    * the current thread.
+    */
+   <T> T onModelThread(ModelExecutor.Task<T, RuntimeException> task) {
+      ModelExecutor executor = forwardingExecutor();
+      return executor == null ? task.run() : executor.call(task);
+   }
+
+   /**
+    * Freezes this instance and returns an immutable snapshot of everything it has converted. The
+    * snapshot can be used from any thread without locking and without going near the compiler, so
+    * it can be handed to a pool of worker threads for analysis.
+    *
+    * <p>Freezing loads the classes for all types that synthesized classes refer to, which may
+    * synthesize more classes. Afterwards, no more classes can be synthesized: conversions of
+    * elements and mirrors whose classes are already loaded still work, but any conversion that
+    * would need a new class throws {@link IllegalStateException}. Calling this more than once
+    * returns the same snapshot.
+    *
+    * @return a snapshot of this instance's classes and conversions
+    */
+   public TruReflectSnapshot freeze() {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(this::freeze);
+      }
+      TruReflectSnapshot s = snapshot;
+      if (s != null) {
+         return s;
+      }
+      Map<Element, AnnotatedElement> members = new IdentityHashMap<>();
+      Set<TypeElement> indexed = new HashSet<>();
+      Map<TypeElement, Class<?>> classes;
+      while (true) {
+         // indexing members can map more types, whose classes are then loaded by the next pass
+         classes = loader.loadMappedClasses();
+         boolean indexedMore = false;
+         for (Entry<TypeElement, Class<?>> entry : classes.entrySet()) {
+            if (entry.getValue().getClassLoader() == loader && indexed.add(entry.getKey())) {
+               indexMembers(entry.getKey(), members);
+               indexedMore = true;
+            }
+         }
+         if (!indexedMore) {
+            break;
+         }
+      }
+      loader.freeze();
+      Map<TypeMirror, Type> types = convertedTypes == null
+            ? Collections.emptyMap() : new IdentityHashMap<>(convertedTypes);
+      Map<AnnotationMirror, Annotation> annotations = convertedAnnotations == null
+            ? Collections.emptyMap() : new IdentityHashMap<>(convertedAnnotations);
+      // the snapshot has its own copies, and nothing more can be recorded
+      convertedTypes = null;
+      convertedAnnotations = null;
+      snapshot = s = new TruReflectSnapshot(classes, members, loader.definedPackages(), types,
+            annotations);
+      return s;
+   }
+
+   private void indexMembers(TypeElement type, Map<Element, AnnotatedElement> members) {
+      for (TypeParameterElement param : type.getTypeParameters()) {
+         members.put(param, forElement(param));
+      }
+      for (Element e : type.getEnclosedElements()) {
+         switch (e.getKind()) {
+            case FIELD:
+            case ENUM_CONSTANT:
+               members.put(e, forElement(e));
+               break;
+            case METHOD:
+            case CONSTRUCTOR:
+               ExecutableElement executable = (ExecutableElement) e;
+               members.put(e, forElement(executable));
+               for (TypeParameterElement param : executable.getTypeParameters()) {
+                  members.put(param, forElement(param));
+               }
+               for (VariableElement param : executable.getParameters()) {
+                  members.put(param, forElement(param));
+               }
+               break;
+            default:
+               break;
+         }
+      }
+   }
+
+   Environment environment() {
+      return env;
+   }
+
+   /**
+    * Synthesizes classes for all of the given types in one batch, writing their class files in
+    * parallel.
+    *
+    * @param types the types to synthesize
+    */
+   void synthesizeAll(Collection<TypeElement> types) {
+      loader.synthesizeAll(types);
+   }
+
+   /**
+    * Returns metrics that describe the work done by this instance, including the classes it has
+    * synthesized and the conversions it has performed.
+    * 
+    * @return metrics for this instance
+    */
+   public SynthesisMetrics metrics() {
+      return loader.metrics();
+   }
+
+   /**
+    * Returns the table of canonical names retained by this instance. The table reports how many
+    * duplicate names were discarded and roughly how big they were. Instances constructed with the
+    * same {@link Environment} share a table.
+    * 
+    * @return the table of canonical strings for this instance
+    */
+   public StringTable stringTable() {
+      return env.stringTable();
+   }
+
+   /**
+    * Returns the graph of references between the types synthesized by this instance. The graph
+    * grows as more classes are synthesized.
+    * 
+    * @return the graph of type references
+    */
+   public TypeReferenceGraph referenceGraph() {
+      return loader.referenceGraph();
+   }
+
+   /**
+    * Starts tracing why classes are synthesized. Once enabled, tracing stays on for the life of
+    * this instance. The returned trace records every class synthesized after this call, so it
+    * should be enabled before the conversions of interest.
+    * 
+    * @return the trace, which is the same object if this method is called more than once
+    */
+   public SynthesisTrace enableSynthesisTracing() {
+      return loader.enableTracing();
    }
 
    /**
@@ -106,8 +474,119 @@ public final class TruReflect {
     * @see #forElement(Element)
     */
    public Class<?> forElement(TypeElement element) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forElement(element));
+      }
       return loader.loadClass(element);
    }
+
+   /**
+    * Returns the relations between reflection types, like subtyping and assignability, as
+    * determined by the compiler.
+    * 
+    * @return the type relations for this instance
+    */
+   public TypeRelations typeRelations() {
+      return typeRelations;
+   }
+   
+   /**
+    * Returns a flattened view of the given class and its supertypes, with tables of all methods
+    * and fields, including inherited ones, and of all annotations present on the class. Views are
+    * computed once per class and cached, and each is built from the cached views of its direct
+    * supertypes.
+    * 
+    * @param clazz a class, typically one synthesized by this instance
+    * @return the hierarchy view for the class
+    */
+   public ClassHierarchy hierarchyOf(Class<?> clazz) {
+      ClassHierarchy h = hierarchies.get(clazz);
+      if (h != null) {
+         loader.metrics().hierarchies().hit();
+      } else {
+         loader.metrics().hierarchies().miss();
+         // computed outside of the map, since it recursively computes views for supertypes
+         h = new ClassHierarchy(clazz, this::hierarchyOf);
+         ClassHierarchy existing = hierarchies.putIfAbsent(clazz, h);
+         if (existing != null) {
+            h = existing;
+         }
+      }
+      return h;
+   }
+   
+   /**
+    * Returns a flattened view of the class for the given type element and its supertypes.
+    * 
+    * @param element the type element
+    * @return the hierarchy view for the element's class
+    * 
+    * @see #hierarchyOf(Class)
+    */
+   public ClassHierarchy hierarchyOf(TypeElement element) {
+      return hierarchyOf(forElement(element));
+   }
+
+   /**
+    * Returns the methods of the given type and, for each one, the methods it overrides or
+    * implements. The table is computed from elements, via {@link Elements#overrides}, once per type
+    * and cached. Each table is built from the cached tables of the type's direct supertypes.
+    * 
+    * @param element the type element
+    * @return the table of overridden methods for the element's class
+    */
+   public MethodOverrides overridesOf(TypeElement element) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> overridesOf(element));
+      }
+      MethodOverrides o = overrides.get(element);
+      if (o != null) {
+         loader.metrics().methodOverrides().hit();
+      } else {
+         loader.metrics().methodOverrides().miss();
+         // computed outside of the map, since it recursively computes tables for supertypes
+         List<MethodOverrides> supertypes = new ArrayList<>();
+         TypeMirror superclass = element.getSuperclass();
+         if (superclass.getKind() == TypeKind.DECLARED) {
+            supertypes.add(overridesOf((TypeElement) ((DeclaredType) superclass).asElement()));
+         }
+         for (TypeMirror iface : element.getInterfaces()) {
+            supertypes.add(overridesOf((TypeElement) ((DeclaredType) iface).asElement()));
+         }
+         o = new MethodOverrides(element, forElement(element), supertypes, env.elementUtils(),
+               m -> (Method) forElement(m));
+         MethodOverrides existing = overrides.putIfAbsent(element, o);
+         if (existing != null) {
+            o = existing;
+         }
+      }
+      return o;
+   }
+   
+   /**
+    * Returns the methods of the given class and, for each one, the methods it overrides or
+    * implements. The class's type element is found by its canonical name.
+    * 
+    * @param clazz a class
+    * @return the table of overridden methods for the class
+    * @throws IllegalArgumentException if the class has no corresponding type element
+    * 
+    * @see #overridesOf(TypeElement)
+    */
+   public MethodOverrides overridesOf(Class<?> clazz) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> overridesOf(clazz));
+      }
+      String name = clazz.getCanonicalName();
+      TypeElement element = name == null ? null : env.elementUtils().getTypeElement(name);
+      if (element == null) {
+         throw new IllegalArgumentException("No type element for " + clazz.getName());
+      }
+      return overridesOf(element);
+   }
    
    /**
     * Returns a type variable for the given element.
@@ -123,6 +602,10 @@ public final class TruReflect {
     * @see #forElement(Element)
     */
    public TypeVariable<?> forElement(TypeParameterElement element) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forElement(element));
+      }
       Element generic = element.getGenericElement(); 
       GenericDeclaration d = (GenericDeclaration) forElement(generic);
       String variableName = element.getSimpleName().toString();
@@ -148,6 +631,10 @@ public final class TruReflect {
     * @see #forElement(Element)
     */
    public Package forElement(PackageElement element) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forElement(element));
+      }
       String packageName = element.getQualifiedName().toString(); 
       return loader.ensurePackageDefined(packageName, element);
    }
@@ -168,6 +655,10 @@ public final class TruReflect {
     * @see #forElement(Element)
     */
    public Executable forElement(ExecutableElement element) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forElement(element));
+      }
       String methodName;
       switch (element.getKind()) {
          case METHOD:
@@ -184,7 +675,9 @@ public final class TruReflect {
       List<? extends VariableElement> args = element.getParameters();
       Class<?> argTypes[] = new Class<?>[args.size()];
       for (int i = 0, len = argTypes.length; i < len; i++) {
-         Type t = forTypeMirror(args.get(i).asType());
+         // use the erasure, so that we never need to resolve type variables (which, for a generic
+         // method's own type parameters, would require the very method we're trying to find)
+         Type t = forTypeMirror(env.typeUtils().erasure(args.get(i).asType()));
          argTypes[i] = rawType(t);
       }
       // get declaring type
@@ -193,7 +686,7 @@ public final class TruReflect {
       // finally, query for the executable member
       try {
          return methodName == null
-               ? clazz.getConstructor(argTypes)
+               ? clazz.getDeclaredConstructor(argTypes)
                : clazz.getDeclaredMethod(methodName, argTypes);
       } catch (NoSuchMethodException e) {
          throw new AssertionError("Failed to extract method|ctor from synthesized class", e);
@@ -353,10 +846,18 @@ public final class TruReflect {
     *       type
     */
    public AnnotatedElement forElement(Element element) {
-      return element.accept(elementVisitor, null);
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forElement(element));
+      }
+      SynthesisEvents.Conversion event = SynthesisEvents.beginConversion();
+      AnnotatedElement ret = element.accept(elementVisitor, null);
+      SynthesisEvents.endConversion(event, "forElement", element, ret);
+      return ret;
    }
 
    public Class<?> forTypeMirror(PrimitiveType type) {
+      loader.metrics().typeMirrorConverted();
       switch (type.getKind()) {
          case BOOLEAN:
             return boolean.class;
@@ -381,10 +882,20 @@ public final class TruReflect {
    }
 
    public TypeVariable<?> forTypeMirror(javax.lang.model.type.TypeVariable type) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forTypeMirror(type));
+      }
+      loader.metrics().typeMirrorConverted();
       return forElement((TypeParameterElement) env.typeUtils().asElement(type));
    }
 
    public WildcardType forTypeMirror(javax.lang.model.type.WildcardType type) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forTypeMirror(type));
+      }
+      loader.metrics().typeMirrorConverted();
       TypeMirror upper = type.getExtendsBound();
       Type upperBounds[];
       if (upper == null) {
@@ -402,22 +913,11 @@ public final class TruReflect {
       }
       TypeMirror lower = type.getSuperBound();
       Type lowerBounds[] = lower == null ? new Type[0] : new Type[] { forTypeMirror(lower) };
-      return new WildcardType() {
-         @Override
-         public Type[] getUpperBounds() {
-            return upperBounds.clone();
-         }
-
-         @Override
-         public Type[] getLowerBounds() {
-            return lowerBounds.clone();
-         }
-         
-         // TODO: hashCode, equals, toString
-      };
+      return new MirroredTypes.WildcardTypeImpl(type, upperBounds, lowerBounds);
    }
    
    private Type forDeclaredType(DeclaredType type) {
+      loader.metrics().typeMirrorConverted();
       TypeMirror owner = type.getEnclosingType();
       Type ownerType = owner.getKind() == TypeKind.NONE
             ? null : forTypeMirror(owner);
@@ -431,39 +931,16 @@ public final class TruReflect {
          for (int i = 0, len = argTypes.length; i < len; i++) {
             argTypes[i] = forTypeMirror(args.get(i));
          }
-         return new ParameterizedType() {
-            @Override
-            public Type getRawType() {
-               return rawType;
-            }
-            
-            @Override
-            public Type getOwnerType() {
-               return ownerType;
-            }
-            
-            @Override
-            public Type[] getActualTypeArguments() {
-               return argTypes.clone();
-            }
-            
-            // TODO: hashCode, equals, toString
-         };
+         return new MirroredTypes.ParameterizedTypeImpl(type, ownerType, rawType, argTypes);
       }
    }
 
    private Type forArrayType(ArrayType type) {
+      loader.metrics().typeMirrorConverted();
       Type comp = forTypeMirror(type.getComponentType());
       return comp instanceof Class
             ? Array.newInstance((Class<?>) comp, 0).getClass()
-            : new GenericArrayType() {
-               @Override
-               public Type getGenericComponentType() {
-                  return comp;
-               }
-               
-               // TODO: hashCode, equals, toString
-            };
+            : new MirroredTypes.GenericArrayTypeImpl(type, comp);
    }
    
    private final SimpleTypeVisitor8<Type, Void> typeMirrorVisitor =
@@ -495,7 +972,11 @@ public final class TruReflect {
       
             @Override
             public Type visitNoType(NoType t, Void p) {
-               return t.getKind() == TypeKind.VOID ? void.class : defaultAction(t, p);
+               if (t.getKind() != TypeKind.VOID) {
+                  return defaultAction(t, p);
+               }
+               loader.metrics().typeMirrorConverted();
+               return void.class;
             }
       
             @Override
@@ -506,10 +987,146 @@ public final class TruReflect {
          };
 
    public Type forTypeMirror(TypeMirror type) {
-      return type.accept(typeMirrorVisitor, null);
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forTypeMirror(type));
+      }
+      SynthesisEvents.Conversion event = SynthesisEvents.beginConversion();
+      Type ret;
+      conversionDepth++;
+      try {
+         ret = type.accept(typeMirrorVisitor, null);
+      } finally {
+         conversionDepth--;
+      }
+      if (convertedTypes != null && conversionDepth == 0) {
+         convertedTypes.put(type, ret);
+      }
+      SynthesisEvents.endConversion(event, "forTypeMirror", type, ret);
+      return ret;
+   }
+
+   /**
+    * Returns a view of the given type mirror that is backed by the mirror instead of by
+    * synthesized classes. Unlike {@link #forTypeMirror(TypeMirror)}, this does not load the raw
+    * types of declared types (and thus synthesize them and the classes they refer to) up front.
+    * Type arguments, bounds, and component types are converted, just as lazily, when first
+    * queried, and names and string representations come straight from the mirror. A class is
+    * only produced when something needs a real class token, like {@link
+    * ParameterizedType#getRawType()}.
+    *
+    * <p>Primitive types, {@code void}, and types in {@code java.*} packages that aren't
+    * parameterized are returned as classes, since getting those never requires synthesis. Other
+    * declared types that aren't parameterized are returned as a {@link Type} that stands in for
+    * the class: its {@linkplain Type#getTypeName() type name} and string representation are those
+    * of the class, but it is not a {@link Class}. Use {@link #forTypeMirror(TypeMirror)} to get the
+    * class itself.
+    *
+    * <p>Returned types are equal to each other if their mirrors are the same type, which is decided
+    * by the compiler, so comparing and hashing them synthesizes nothing. They are never equal to
+    * the types returned by {@link #forTypeMirror(TypeMirror)}, though they have the same structure
+    * and string representation. The returned types work with {@link #typeRelations()} without any
+    * synthesis.
+    *
+    * @param type the type mirror
+    * @return the reflection type that corresponds to the given mirror
+    * @throws IllegalArgumentException if the given mirror cannot be represented via a reflection
+    *       type
+    */
+   public Type forTypeMirrorLazily(TypeMirror type) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forTypeMirrorLazily(type));
+      }
+      switch (type.getKind()) {
+         case ARRAY:
+            TypeMirror component = type;
+            do {
+               component = ((ArrayType) component).getComponentType();
+            } while (component.getKind() == TypeKind.ARRAY);
+            return isEagerlyConverted(component)
+                  ? forTypeMirror(type)
+                  : new MirroredTypes.LazyGenericArrayType((ArrayType) type, this);
+         case DECLARED:
+            if (isEagerlyConverted(type)) {
+               return forTypeMirror(type);
+            }
+            return MirroredTypes.isParameterized((DeclaredType) type)
+                  ? new MirroredTypes.LazyParameterizedType((DeclaredType) type, this)
+                  : new MirroredTypes.LazyClassType((DeclaredType) type, this);
+         case TYPEVAR:
+            return new MirroredTypes.LazyTypeVariable<>(
+                  (javax.lang.model.type.TypeVariable) type, this);
+         case WILDCARD:
+            return new MirroredTypes.LazyWildcardType(
+                  (javax.lang.model.type.WildcardType) type, this);
+         default:
+            return forTypeMirror(type);
+      }
+   }
+
+   /**
+    * Returns an annotated type view of the given type mirror, including its type annotations and
+    * those of any nested types (type arguments, bounds, and array component types). The view is
+    * built from the mirror, so unlike asking a synthesized member for its annotated type (e.g.
+    * {@link Method#getAnnotatedReturnType()}), no classes are synthesized just to read the
+    * annotations back out of their bytecode. Reading annotations only loads the annotation
+    * types, and {@link AnnotatedType#getType()} converts the mirror via {@link
+    * #forTypeMirror(TypeMirror)} when first called.
+    *
+    * @param type the type mirror
+    * @return an annotated type that corresponds to the given mirror
+    */
+   public AnnotatedType forAnnotatedTypeMirror(TypeMirror type) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forAnnotatedTypeMirror(type));
+      }
+      loader.metrics().typeMirrorConverted();
+      SynthesisEvents.Conversion event = SynthesisEvents.beginConversion();
+      AnnotatedType ret = AnnotatedTypes.of(type, this);
+      SynthesisEvents.endConversion(event, "forAnnotatedTypeMirror", type, ret);
+      return ret;
+   }
+
+   /**
+    * Determines if the given type mirror can be converted to a class without synthesizing
+    * anything.
+    */
+   private boolean isEagerlyConverted(TypeMirror type) {
+      if (type.getKind().isPrimitive()) {
+         return true;
+      }
+      if (type.getKind() != TypeKind.DECLARED
+            || MirroredTypes.isParameterized((DeclaredType) type)) {
+         return false;
+      }
+      TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+      return env.elementUtils().getBinaryName(element).toString().startsWith("java.");
    }
 
    public Annotation forAnnotationMirror(AnnotationMirror annotation) {
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forAnnotationMirror(annotation));
+      }
+      loader.metrics().annotationMirrorConverted();
+      SynthesisEvents.Conversion event = SynthesisEvents.beginConversion();
+      Annotation ret;
+      conversionDepth++;
+      try {
+         ret = createAnnotation(annotation);
+      } finally {
+         conversionDepth--;
+      }
+      if (convertedAnnotations != null && conversionDepth == 0) {
+         convertedAnnotations.put(annotation, ret);
+      }
+      SynthesisEvents.endConversion(event, "forAnnotationMirror", annotation, ret);
+      return ret;
+   }
+   
+   private Annotation createAnnotation(AnnotationMirror annotation) {
       Map<? extends ExecutableElement, ? extends AnnotationValue> mirrorValues =
             env.elementUtils().getElementValuesWithDefaults(annotation);
       Map<String, Object> annotationValues = new HashMap<>((mirrorValues.size() + 1) * 4 / 3);
@@ -629,6 +1246,13 @@ public final class TruReflect {
          };
 
    public Object forAnnotationValue(AnnotationValue value, ExecutableElement method) {
-      return value.accept(annotationValueVisitor, method);
+      ModelExecutor executor = forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> forAnnotationValue(value, method));
+      }
+      SynthesisEvents.Conversion event = SynthesisEvents.beginConversion();
+      Object ret = value.accept(annotationValueVisitor, method);
+      SynthesisEvents.endConversion(event, "forAnnotationValue", value, ret);
+      return ret;
    }
 }
\ No newline at end of file
@@ -14,16 +14,21 @@ import java.lang.reflect.AnnotatedType;
 import java.lang.reflect.AnnotatedTypeVariable;
 import java.lang.reflect.AnnotatedWildcardType;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -39,14 +44,21 @@ import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.TypeParameterElement;
 import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.IntersectionType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
 import javax.lang.model.util.ElementKindVisitor8;
 import javax.lang.model.util.SimpleElementVisitor8;
+import javax.lang.model.util.SimpleTypeVisitor8;
 
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassReader;
@@ -71,6 +83,12 @@ import org.objectweb.asm.util.TraceClassVisitor;
  */
 class TruReflectClassLoader extends ClassLoader {
    
+   static {
+      // Otherwise, the JVM holds this loader's lock while loading a class on any thread, which
+      // would deadlock with the model thread when model access is confined.
+      registerAsParallelCapable();
+   }
+   
    // We have to reflectively construct packages because ClassLoader provides no other API for
    // defining packages that could also be defined by a parent ClassLoader.
    private static final Constructor<Package> PACKAGE_CTOR;
@@ -88,24 +106,137 @@ class TruReflectClassLoader extends ClassLoader {
    private static final Pattern ENUM_CTOR_DESC_PATTERN =
          Pattern.compile("\\(Ljava/lang/String;I(Z*)\\)V");
    
+   private static final String ENUM_VALUES_FIELD = "$VALUES";
+   
+   // at 8 bytes of code per constant, this keeps each method that assigns constants under 64KB,
+   // with room left in the static initializer for constructing the constants
+   private static final int ENUM_CONSTANTS_PER_METHOD = 6144;
+
+   private static final String ENUM_ASSIGNMENT_HELPER_PREFIX = "$assignConstants$";
+   
+   // string constants are limited to 65,535 bytes, in modified UTF-8
+   private static final int ENUM_NAMES_CHUNK_BYTES = 65000;
+   
+   /**
+    * An entry in the {@code InnerClasses} attribute for a nested class. Every class file that
+    * refers to the nested class includes the same entry, so it is computed once.
+    */
+   private static final class InnerClassEntry {
+      final String outerInternalName;
+      final String simpleName;
+      final int flags;
+      
+      InnerClassEntry(String outerInternalName, String simpleName, int flags) {
+         this.outerInternalName = outerInternalName;
+         this.simpleName = simpleName;
+         this.flags = flags;
+      }
+   }
+   
+   /**
+    * A class file that was emitted along with the rest of its nest and is waiting to be defined.
+    */
+   private static final class NestMember {
+      final byte classBytes[];
+      final Set<TypeElement> referencedTypes;
+      
+      NestMember(byte classBytes[], Set<TypeElement> referencedTypes) {
+         this.classBytes = classBytes;
+         this.referencedTypes = referencedTypes;
+      }
+   }
+   
    private final Set<String> observedClassNames = new HashSet<>();
-   private final Map<String, TypeElement> typeElements = new HashMap<>(); 
-   private final Map<TypeElement, String> classNamesByElement = new HashMap<>(); 
+   private final ElementRegistry registry = new ElementRegistry();
    private final Map<String, PackageElement> packageElements = new HashMap<>();
    private final Map<String, Package> packages = new HashMap<>();
    private final Environment env;
+   private final SynthesisMetrics metrics = new SynthesisMetrics();
+   private final TypeReferenceGraph referenceGraph = new TypeReferenceGraph();
+   private ClassBytesCache classBytesCache;
+   private ClassBytesStore classBytesStore;
+   // retained class files: the store each was put in (which may no longer be the configured one)
+   // and its handle in that store
+   private final ElementRegistry.SideTable<ClassBytesStore> classBytesStores =
+         new ElementRegistry.SideTable<>();
+   private final ElementRegistry.IntSideTable classBytesHandles =
+         new ElementRegistry.IntSideTable();
+   private SynthesisTrace trace;
+   private final ClassPrefetcher prefetcher = new ClassPrefetcher(this);
+   private SynthesisProfile profile;
+   // classes synthesized while warming up from the profile, which are only recorded to the profile
+   // once the processor uses them (binary names to canonical names)
+   private final Map<String, String> warmedUp = new HashMap<>();
+   private boolean warmingUp;
+   private final ElementRegistry.SideTable<InnerClassEntry> innerClassEntries =
+         new ElementRegistry.SideTable<>();
+   private boolean nestSynthesis;
+   private final Map<String, NestMember> pendingNestMembers = new HashMap<>();
+   // time spent in nested calls to findClass, so timers can exclude it from enclosing phases
+   private long nestedFindClassNanos;
+   private volatile ModelExecutor modelExecutor;
+   private volatile boolean frozen;
    
    TruReflectClassLoader(Environment env) {
       this.env = env;
    }
    
-   @Override protected synchronized Class<?> loadClass(String name, boolean resolve)
+   @Override protected Class<?> loadClass(String name, boolean resolve)
+         throws ClassNotFoundException {
+      if (frozen) {
+         return loadFrozenClass(name, resolve);
+      }
+      ModelExecutor executor = modelExecutor;
+      if (executor != null && !executor.isModelThread() && !name.startsWith("java.")
+            && findLoadedClass(name) == null) {
+         // Forwarded before taking the lock: the model thread may need the lock to finish what
+         // it's doing, so waiting for it while holding the lock could deadlock.
+         return executor.call(() -> loadClass(name, resolve));
+      }
+      return loadClassLocked(name, resolve);
+   }
+   
+   /**
+    * Loads a class once frozen, without taking the lock. Only classes that were already loaded
+    * and classes from the parent class loader can be loaded.
+    */
+   private Class<?> loadFrozenClass(String name, boolean resolve) throws ClassNotFoundException {
+      // nothing is registered once frozen, so the registry can be read without the lock
+      int id = registry.idOf(name);
+      Class<?> c = id == ElementRegistry.NONE ? null : registry.loadedClass(id);
+      if (c == null) {
+         c = findLoadedClass(name);
+      }
+      if (c == null) {
+         c = getParent().loadClass(name);
+      }
+      if (resolve) {
+         resolveClass(c);
+      }
+      return c;
+   }
+   
+   private synchronized Class<?> loadClassLocked(String name, boolean resolve)
          throws ClassNotFoundException {
       Class<?> c = super.loadClass(name, false);
       if (observedClassNames.add(name)) {
-         if (c.getClassLoader() != this && !name.startsWith("java.") && !verifyStructure(c)) {
+         metrics.loadedClasses().miss();
+         if (c.getClassLoader() != this && !name.startsWith("java.") && hasElement(name)
+               && !verifyStructure(c)) {
             // Class provided by parent class loader doesn't match elements, so synthesize one
             c = findClass(name);
+         } else if (c.getClassLoader() != this) {
+            metrics.classDelegated();
+         }
+      } else {
+         metrics.loadedClasses().hit();
+         if (!warmingUp && !warmedUp.isEmpty()) {
+            String canonicalName = warmedUp.remove(name);
+            if (canonicalName != null) {
+               // first use of a class that was synthesized during warm-up
+               profile.record(name, canonicalName);
+               recordWarmedUpReferences(name);
+            }
          }
       }
       if (resolve) {
@@ -132,23 +263,502 @@ class TruReflectClassLoader extends ClassLoader {
    }
 
    @Override protected synchronized Class<?> findClass(String name) throws ClassNotFoundException {
+      if (frozen) {
+         throw new ClassNotFoundException(name + " (no classes can be synthesized once frozen)");
+      }
       Element e = findElement(name);
       if (e == null) {
          throw new ClassNotFoundException(name);
       }
-      byte classBytes[] = e instanceof PackageElement
-            ? createPackageInfo(name, (PackageElement) e)
-            : createClass(name, (TypeElement) e);
-      return defineClass(name, classBytes, 0, classBytes.length);
+      SynthesisEvents.FindClass findEvent = SynthesisEvents.beginFindClass();
+      long start = System.nanoTime();
+      long outerNestedNanos = nestedFindClassNanos;
+      nestedFindClassNanos = 0;
+      if (trace != null) {
+         trace.synthesizing(name);
+      }
+      try {
+         byte classBytes[];
+         if (e instanceof PackageElement) {
+            classBytes = createPackageInfo(name, (PackageElement) e);
+         } else {
+            Set<TypeElement> referencedTypes = new LinkedHashSet<>();
+            classBytes = takeNestMember(name, referencedTypes);
+            if (classBytes == null) {
+               classBytes = nestSynthesis
+                     ? synthesizeNest(name, (TypeElement) e, referencedTypes)
+                     : synthesizeClass(name, (TypeElement) e, referencedTypes);
+            }
+            recordReferences(name, referencedTypes);
+            prefetcher.prefetchReferences(referencedTypes);
+            if (profile != null) {
+               String canonicalName =
+                     env.stringTable().canonicalize(((TypeElement) e).getQualifiedName());
+               if (warmingUp) {
+                  warmedUp.put(name, canonicalName);
+               } else {
+                  profile.record(name, canonicalName);
+                  recordWarmedUpReferences(name);
+               }
+            }
+         }
+         // defining the class loads its supertypes, which may synthesize them, too
+         SynthesisEvents.DefineClass defineEvent = SynthesisEvents.beginDefineClass();
+         long defineStart = System.nanoTime();
+         long nestedBeforeDefine = nestedFindClassNanos;
+         Class<?> c = defineClass(name, classBytes, 0, classBytes.length);
+         metrics.classDefinition().record(System.nanoTime() - defineStart
+               - (nestedFindClassNanos - nestedBeforeDefine));
+         SynthesisEvents.endDefineClass(defineEvent, name, classBytes.length, e);
+         metrics.classSynthesized(classBytes.length);
+         if (classBytesStore != null && e instanceof TypeElement) {
+            int id = registry.idOf(name);
+            classBytesHandles.put(id, classBytesStore.put(classBytes));
+            classBytesStores.put(id, classBytesStore);
+         }
+         SynthesisEvents.endFindClass(findEvent, name, classBytes.length, e);
+         if (trace != null) {
+            trace.synthesized(name, classBytes.length,
+                  System.nanoTime() - start - nestedFindClassNanos);
+         }
+         return c;
+      } finally {
+         nestedFindClassNanos = outerNestedNanos + System.nanoTime() - start;
+      }
+   }
+   
+   synchronized void setClassBytesCache(ClassBytesCache cache) {
+      this.classBytesCache = cache;
+   }
+   
+   synchronized void setClassBytesStore(ClassBytesStore store) {
+      this.classBytesStore = store;
+   }
+   
+   /**
+    * Returns the class file from which the given class was defined, if it was retained.
+    *
+    * @param clazz a class
+    * @return the class's class file, or {@code null} if it wasn't synthesized by this class loader
+    *       or wasn't retained
+    */
+   synchronized byte[] retainedClassBytes(Class<?> clazz) {
+      if (clazz.getClassLoader() != this) {
+         return null;
+      }
+      int id = registry.idOf(clazz.getName());
+      ClassBytesStore store = id == ElementRegistry.NONE ? null : classBytesStores.get(id);
+      return store == null ? null : store.get(classBytesHandles.get(id));
+   }
+   
+   synchronized void setPrefetch(int depth, long cpuBudgetNanos) {
+      prefetcher.configure(depth, cpuBudgetNanos);
+   }
+   
+   synchronized void setNestSynthesis(boolean enabled) {
+      this.nestSynthesis = enabled;
+   }
+   
+   void setModelExecutor(ModelExecutor executor) {
+      this.modelExecutor = executor;
+   }
+   
+   /**
+    * Synthesizes the class files for the whole nest of the given type in one pass: its top-level
+    * type and all member types, at any depth. The class file for the given type is returned. The
+    * others are held until their classes are loaded, which then only has to define them. Members
+    * that are already loaded are skipped. Local and anonymous classes are not part of a nest, so
+    * they are synthesized by themselves.
+    * 
+    * @param name the binary name of the class
+    * @param element the element that defines the class
+    * @param referencedTypes a set that, on return, will contain all types referenced by the class
+    * @return the bytes of the synthesized class file
+    */
+   private byte[] synthesizeNest(String name, TypeElement element,
+         Set<TypeElement> referencedTypes) {
+      if (element.getNestingKind() == NestingKind.LOCAL
+            || element.getNestingKind() == NestingKind.ANONYMOUS) {
+         return synthesizeClass(name, element, referencedTypes);
+      }
+      TypeElement top = element;
+      while (top.getNestingKind() == NestingKind.MEMBER) {
+         top = (TypeElement) top.getEnclosingElement();
+      }
+      List<TypeElement> nest = new ArrayList<>();
+      collectNest(top, nest);
+      if (nest.size() == 1) {
+         return synthesizeClass(name, element, referencedTypes);
+      }
+      byte classBytes[] = null;
+      // siblings are traced when they are taken, like prefetched classes
+      SynthesisTrace t = trace;
+      for (TypeElement member : nest) {
+         if (member.equals(element)) {
+            classBytes = synthesizeClass(name, element, referencedTypes);
+            continue;
+         }
+         String memberName = mapType(member);
+         if (observedClassNames.contains(memberName) || findLoadedClass(memberName) != null
+               || pendingNestMembers.containsKey(memberName)) {
+            continue;
+         }
+         Set<TypeElement> memberReferences = new LinkedHashSet<>();
+         trace = null;
+         try {
+            byte memberBytes[] = synthesizeClass(memberName, member, memberReferences);
+            pendingNestMembers.put(memberName, new NestMember(memberBytes, memberReferences));
+         } finally {
+            trace = t;
+         }
+      }
+      return classBytes;
+   }
+   
+   private static void collectNest(TypeElement type, List<TypeElement> nest) {
+      nest.add(type);
+      for (TypeElement member : ElementFilter.typesIn(type.getEnclosedElements())) {
+         collectNest(member, nest);
+      }
+   }
+   
+   /**
+    * Takes the class file for the given class if it was synthesized with its nest.
+    * 
+    * @param name the binary name of the class
+    * @param referencedTypes a set that, if the class was found, will contain all types referenced
+    *       by the class
+    * @return the class file, or {@code null} if the class was not synthesized with its nest
+    */
+   private byte[] takeNestMember(String name, Set<TypeElement> referencedTypes) {
+      NestMember member = pendingNestMembers.remove(name);
+      if (member == null) {
+         if (nestSynthesis) {
+            metrics.nest().miss();
+         }
+         return null;
+      }
+      metrics.nest().hit();
+      referencedTypes.addAll(member.referencedTypes);
+      if (trace != null) {
+         for (TypeElement referenced : referencedTypes) {
+            trace.reference(name, SynthesisTrace.DECLARATION, classNameOf(referenced));
+         }
+      }
+      return member.classBytes;
+   }
+   
+   /**
+    * Starts recording synthesized classes to the given profile and pre-synthesizes the classes it
+    * already lists. Entries whose names no longer resolve to the same type are dropped.
+    * 
+    * @param profile a profile from an earlier compilation
+    * @return the number of classes pre-synthesized
+    */
+   synchronized int useProfile(SynthesisProfile profile) {
+      checkNotFrozen();
+      this.profile = profile;
+      List<TypeElement> types = new ArrayList<>();
+      for (Map.Entry<String, String> entry : profile.entries().entrySet()) {
+         String name = entry.getKey();
+         TypeElement e = env.elementUtils().getTypeElement(entry.getValue());
+         if (e == null || !env.elementUtils().getBinaryName(e).contentEquals(name)) {
+            profile.dropped();
+            continue;
+         }
+         mapClassName(name, e);
+         types.add(e);
+      }
+      // defined in profile order; warmed up classes are only recorded once they are used, so types
+      // that processors no longer use drop out of the profile
+      warmingUp = true;
+      try {
+         return synthesizeAll(types);
+      } finally {
+         warmingUp = false;
+      }
+   }
+   
+   /**
+    * Records to the profile the classes synthesized during warm-up that are referenced, directly
+    * or indirectly, by the given class. The JVM loads these without asking this class loader, since
+    * they are already defined, so they are recorded along with the class that refers to them.
+    *
+    * @param name the binary name of a class that was just recorded
+    */
+   private void recordWarmedUpReferences(String name) {
+      ArrayDeque<String> queue = new ArrayDeque<>();
+      queue.add(name);
+      while (!warmedUp.isEmpty() && !queue.isEmpty()) {
+         for (String referenced : referenceGraph.references(queue.remove())) {
+            String canonicalName = warmedUp.remove(referenced);
+            if (canonicalName != null) {
+               profile.record(referenced, canonicalName);
+               queue.add(referenced);
+            }
+         }
+      }
+   }
+   
+   /**
+    * Synthesizes classes for all of the given types in one batch. Elements are read on the calling
+    * thread, but class files are written in parallel. The classes are then defined in the given
+    * order. Types whose classes are already loaded are skipped.
+    * 
+    * @param types the types to synthesize
+    * @return the number of classes loaded
+    */
+   synchronized int synthesizeAll(Collection<TypeElement> types) {
+      checkNotFrozen();
+      for (TypeElement e : types) {
+         mapType(e);
+      }
+      prefetcher.prefetchAll(types);
+      int count = 0;
+      for (TypeElement e : types) {
+         if (findLoadedClass(classNameOf(e)) == null) {
+            loadClass(e);
+            count++;
+         }
+      }
+      return count;
+   }
+   
+   /**
+    * Returns the binary name of the given type if it is a candidate for prefetching. Types that
+    * are in {@code java.*} packages or that have already been loaded are not candidates.
+    * 
+    * @param type a type referenced by a synthesized class
+    * @return the binary name of the type, or {@code null} if it should not be prefetched
+    */
+   synchronized String prefetchCandidate(TypeElement type) {
+      String name = classNameOf(type);
+      if (name == null || name.startsWith("java.") || observedClassNames.contains(name)
+            || findLoadedClass(name) != null) {
+         return null;
+      }
+      return name;
+   }
+   
+   /**
+    * Emits a class that is being prefetched. This is like {@link #emitClass} except that
+    * references are not traced, since the class may never be loaded. They are traced if and when
+    * the prefetched class is {@linkplain #takePrefetched taken}.
+    * 
+    * @param writer the visitor to which the class is emitted
+    * @param name the binary name of the class
+    * @param element the element that defines the class
+    * @param referencedTypes a set that, on return, will contain all types referenced by the class
+    */
+   synchronized void emitPrefetched(ClassVisitor writer, String name, TypeElement element,
+         Set<TypeElement> referencedTypes) {
+      SynthesisTrace t = trace;
+      trace = null;
+      try {
+         long emitStart = emitClass(writer, name, element, referencedTypes);
+         metrics.classEmission().record(System.nanoTime() - emitStart);
+      } finally {
+         trace = t;
+      }
+   }
+   
+   /**
+    * Takes the class file for the given class if it was prefetched.
+    * 
+    * @param name the binary name of the class
+    * @param referencedTypes a set that, if the class was prefetched, will contain all types
+    *       referenced by the class
+    * @return the prefetched class file, or {@code null} if the class was not prefetched
+    */
+   private byte[] takePrefetched(String name, Set<TypeElement> referencedTypes) {
+      byte classBytes[] = prefetcher.take(name, referencedTypes);
+      if (classBytes == null) {
+         if (prefetcher.isEnabled()) {
+            metrics.prefetch().miss();
+         }
+         return null;
+      }
+      metrics.prefetch().hit();
+      if (trace != null) {
+         // members were crawled while untraced, so references are attributed to the class itself
+         for (TypeElement referenced : referencedTypes) {
+            trace.reference(name, SynthesisTrace.DECLARATION, classNameOf(referenced));
+         }
+      }
+      return classBytes;
+   }
+   
+   SynthesisMetrics metrics() {
+      return metrics;
+   }
+   
+   TypeReferenceGraph referenceGraph() {
+      return referenceGraph;
+   }
+   
+   private void recordReferences(String name, Set<TypeElement> referencedTypes) {
+      List<String> names = new ArrayList<>(referencedTypes.size());
+      for (TypeElement referenced : referencedTypes) {
+         names.add(classNameOf(referenced));
+      }
+      referenceGraph.addReferences(name, names);
+   }
+   
+   /**
+    * Loads the classes for all types mapped so far. Synthesizing a class maps the types it refers
+    * to, so this repeats until every mapped type has been loaded.
+    *
+    * @return the class for each mapped type
+    */
+   synchronized Map<TypeElement, Class<?>> loadMappedClasses() {
+      // types mapped while loading get higher IDs, so this loop loads them, too
+      for (int id = 0; id < registry.size(); id++) {
+         if (registry.loadedClass(id) == null) {
+            loadClass(registry.element(id));
+         }
+      }
+      Map<TypeElement, Class<?>> classes = new LinkedHashMap<>();
+      for (int id = 0; id < registry.size(); id++) {
+         classes.put(registry.element(id), registry.loadedClass(id));
+      }
+      return classes;
+   }
+   
+   /**
+    * Returns the packages defined so far.
+    *
+    * @return the package for each package element
+    */
+   synchronized Map<PackageElement, Package> definedPackages() {
+      Map<PackageElement, Package> defined = new LinkedHashMap<>();
+      for (Map.Entry<String, PackageElement> entry : packageElements.entrySet()) {
+         defined.put(entry.getValue(), getPackage(entry.getKey()));
+      }
+      return defined;
+   }
+   
+   /**
+    * Freezes this class loader. From now on, no more classes are synthesized and loading a class
+    * never takes the lock. All mapped types should be {@linkplain #loadMappedClasses() loaded}
+    * first. Nest members and prefetched classes that were never loaded are discarded, since they
+    * can no longer be defined.
+    */
+   synchronized void freeze() {
+      frozen = true;
+      pendingNestMembers.clear();
+      prefetcher.discardAll();
+   }
+   
+   private void checkNotFrozen() {
+      if (frozen) {
+         throw new IllegalStateException("No classes can be synthesized once frozen");
+      }
+   }
+   
+   synchronized SynthesisTrace enableTracing() {
+      if (trace == null) {
+         trace = new SynthesisTrace();
+      }
+      return trace;
+   }
+   
+   /**
+    * Synthesizes the class file for the given element, using the cache of class files if one is
+    * configured.
+    * 
+    * @param name the binary name of the class
+    * @param element the element that defines the class
+    * @param referencedTypes a set that, on return, will contain all types referenced by the class
+    * @return the bytes of the synthesized class file
+    */
+   private byte[] synthesizeClass(String name, TypeElement element,
+         Set<TypeElement> referencedTypes) {
+      ClassBytesCache cache = classBytesCache;
+      if (cache == null) {
+         byte prefetched[] = takePrefetched(name, referencedTypes);
+         return prefetched != null ? prefetched : createClass(name, element, referencedTypes);
+      }
+      String key = ClassBytesCache.key(name, env.fingerprintUtils().getFingerprint(element));
+      ClassBytesCache.Entry cached = cache.get(key);
+      if (cached != null && mapReferencedTypes(cached, referencedTypes)) {
+         metrics.classBytesCache().hit();
+         if (trace != null) {
+            // members weren't crawled, so all references are attributed to the class itself
+            for (int i = 0, len = cached.referencedTypeCount(); i < len; i++) {
+               trace.reference(name, SynthesisTrace.DECLARATION, cached.referencedBinaryName(i));
+            }
+         }
+         PackageElement pkg = env.elementUtils().getPackageOf(element);
+         ensurePackageDefined(pkg.getQualifiedName().toString(), pkg);
+         prefetcher.discard(name);
+         return cached.classBytes();
+      }
+      metrics.classBytesCache().miss();
+      byte classBytes[] = takePrefetched(name, referencedTypes);
+      if (classBytes == null) {
+         classBytes = createClass(name, element, referencedTypes);
+      }
+      String binaryNames[] = new String[referencedTypes.size()];
+      String canonicalNames[] = new String[binaryNames.length];
+      int i = 0;
+      for (TypeElement referenced : referencedTypes) {
+         String canonicalName = referenced.getQualifiedName().toString();
+         if (canonicalName.isEmpty()) {
+            // local and anonymous classes can't be found by name, so we can't cache this class
+            return classBytes;
+         }
+         binaryNames[i] = classNameOf(referenced);
+         canonicalNames[i++] = canonicalName;
+      }
+      cache.put(key, new ClassBytesCache.Entry(classBytes, binaryNames, canonicalNames));
+      return classBytes;
+   }
+   
+   /**
+    * Maps all types referenced by a cached class file to their elements. If any of the referenced
+    * types cannot be found in the current processing environment then the cached class file cannot
+    * be used.
+    * 
+    * @param cached a cached class file
+    * @param referencedTypes a set that, if all types are mapped, will contain the referenced types
+    * @return true if all referenced types were mapped; false otherwise
+    */
+   private boolean mapReferencedTypes(ClassBytesCache.Entry cached,
+         Set<TypeElement> referencedTypes) {
+      int len = cached.referencedTypeCount();
+      TypeElement elements[] = new TypeElement[len];
+      for (int i = 0; i < len; i++) {
+         TypeElement e = env.elementUtils().getTypeElement(cached.referencedCanonicalName(i));
+         String binaryName = cached.referencedBinaryName(i);
+         if (e == null || !env.elementUtils().getBinaryName(e).contentEquals(binaryName)) {
+            return false;
+         }
+         elements[i] = e;
+      }
+      for (int i = 0; i < len; i++) {
+         mapClassName(cached.referencedBinaryName(i), elements[i]);
+         referencedTypes.add(elements[i]);
+      }
+      return true;
    }
    
    private String mapType(TypeElement e) {
-      String className = env.elementUtils().getBinaryName(e).toString();
-      mapClassName(className, e);
-      return className;
+      return registry.binaryName(mapTypeId(e));
+   }
+   
+   private int mapTypeId(TypeElement e) {
+      int id = registry.idOf(e);
+      return id != ElementRegistry.NONE
+            ? id : mapClassName(env.typeNameUtils().getBinaryName(e), e);
+   }
+   
+   private String classNameOf(TypeElement e) {
+      int id = registry.idOf(e);
+      return id == ElementRegistry.NONE ? null : registry.binaryName(id);
    }
 
    private byte[] createPackageInfo(String name, PackageElement element) {
+      long start = System.nanoTime();
       ClassWriter writer = new ClassWriter(0);
       // Class header
       writer.visit(V1_8, ACC_INTERFACE | ACC_ABSTRACT | ACC_SYNTHETIC, name.replace('.', '/'),
@@ -158,15 +768,47 @@ class TruReflectClassLoader extends ClassLoader {
          env.annotationUtils().recordAnnotation(writer, mirror);
       }
       writer.visitEnd();
-      return writer.toByteArray();
+      byte classBytes[] = writer.toByteArray();
+      metrics.classEmission().record(System.nanoTime() - start);
+      return classBytes;
    }
    
-   private byte[] createClass(String name, TypeElement element) {
+   /**
+    * Creates the class file for the given element.
+    * 
+    * @param name the binary name of the class
+    * @param element the element that defines the class
+    * @param referencedTypes a set that, on return, will contain all types referenced by the class
+    * @return the bytes of the synthesized class file
+    */
+   byte[] createClass(String name, TypeElement element, Set<TypeElement> referencedTypes) {
+      SynthesisEvents.CreateClass event = SynthesisEvents.beginCreateClass();
+      ClassWriter writer = new ClassWriter(0);
+      long emitStart = emitClass(writer, name, element, referencedTypes);
+      byte classBytes[] = writer.toByteArray();
+      metrics.classEmission().record(System.nanoTime() - emitStart);
+      SynthesisEvents.endCreateClass(event, name, classBytes.length, element);
+      return classBytes;
+   }
+   
+   /**
+    * Emits the class for the given element to the given visitor. This crawls the element, to map
+    * all referenced types, and then visits the class.
+    * 
+    * @param writer the visitor to which the class is emitted
+    * @param name the binary name of the class
+    * @param element the element that defines the class
+    * @param referencedTypes a set that, on return, will contain all types referenced by the class
+    * @return the time, per {@link System#nanoTime()}, at which the crawl finished and emission
+    *       began
+    */
+   long emitClass(ClassVisitor writer, String name, TypeElement element,
+         Set<TypeElement> referencedTypes) {
       // TODO: refactor this behemoth!!!
       
       PackageElement pkg = env.elementUtils().getPackageOf(element);
       ensurePackageDefined(pkg.getQualifiedName().toString(), pkg);
-      ClassWriter writer = new ClassWriter(0);
+      long crawlStart = System.nanoTime();
       boolean isInterface = element.getKind().isInterface();
       boolean isEnum = element.getKind() == ElementKind.ENUM;
       String typeDescriptor = env.typeNameUtils().getDescriptor(element.asType());
@@ -187,9 +829,63 @@ class TruReflectClassLoader extends ClassLoader {
       EnumProperties enumProps = new EnumProperties();
       HashMap<String, TypeElement> innerClasses = new HashMap<>();
       class TypeScanner extends SimpleElementVisitor8<Void, Void> {
+         // the member being scanned, or null when scanning the class's declaration
+         Element member;
+         // guards against infinite recursion for recursive bounds, like T extends Comparable<T>
+         final Set<TypeParameterElement> scannedTypeParameters = new HashSet<>();
+         // scans all parts of a type: type arguments, bounds, and component types, too
+         final SimpleTypeVisitor8<Void, Void> mirrorScanner = new SimpleTypeVisitor8<Void, Void>() {
+            @Override
+            public Void visitDeclared(DeclaredType t, Void p) {
+               t.asElement().accept(TypeScanner.this, null);
+               t.getEnclosingType().accept(this, null);
+               for (TypeMirror arg : t.getTypeArguments()) {
+                  arg.accept(this, null);
+               }
+               return null;
+            }
+            
+            @Override
+            public Void visitArray(ArrayType t, Void p) {
+               return t.getComponentType().accept(this, null);
+            }
+            
+            @Override
+            public Void visitWildcard(WildcardType t, Void p) {
+               if (t.getExtendsBound() != null) {
+                  t.getExtendsBound().accept(this, null);
+               }
+               if (t.getSuperBound() != null) {
+                  t.getSuperBound().accept(this, null);
+               }
+               return null;
+            }
+            
+            @Override
+            public Void visitIntersection(IntersectionType t, Void p) {
+               for (TypeMirror bound : t.getBounds()) {
+                  bound.accept(this, null);
+               }
+               return null;
+            }
+            
+            @Override
+            protected Void defaultAction(TypeMirror t, Void p) {
+               Element element = env.typeUtils().asElement(t);
+               if (element != null) {
+                  element.accept(TypeScanner.this, null);
+               }
+               return null;
+            }
+         };
+         
          @Override
          public Void visitType(TypeElement e, Void p) {
             String className = mapType(e);
+            referencedTypes.add(e);
+            if (trace != null) {
+               trace.reference(name, memberName(member), className);
+            }
             if (e.getNestingKind().isNested()) {
                // save all inner classes for later
                innerClasses.put(className.replace('.', '/'), e);
@@ -198,16 +894,13 @@ class TruReflectClassLoader extends ClassLoader {
          }
          
          void visitTypeMirror(TypeMirror type) {
-            Element element = env.typeUtils().asElement(type);
-            if (element != null) {
-               element.accept(this, null);
-            }
+            type.accept(mirrorScanner, null);
          }
 
          @Override
          public Void visitVariable(VariableElement e, Void p) {
             if (e.getKind() == ElementKind.ENUM_CONSTANT) {
-               enumConstants.add(e.getSimpleName().toString());
+               enumConstants.add(env.typeNameUtils().getSimpleName(e));
             }
             visitTypeMirror(e.asType());
             return null;
@@ -219,7 +912,7 @@ class TruReflectClassLoader extends ClassLoader {
                if (e.getModifiers().contains(Modifier.ABSTRACT)) {
                   enumProps.hasAbstractMethods = true;
                }
-               String methodName = e.getSimpleName().toString();
+               String methodName = env.typeNameUtils().getSimpleName(e);
                if (e.getKind() == ElementKind.STATIC_INIT) {
                   enumProps.hasClInit = true;  
                } else if (e.getKind() == ElementKind.CONSTRUCTOR) {
@@ -246,6 +939,9 @@ class TruReflectClassLoader extends ClassLoader {
          
          @Override
          public Void visitTypeParameter(TypeParameterElement e, Void p) {
+            if (!scannedTypeParameters.add(e)) {
+               return null;
+            }
             e.getBounds().forEach(this::visitTypeMirror);
             return null;
          }
@@ -253,8 +949,10 @@ class TruReflectClassLoader extends ClassLoader {
       TypeScanner scanner = new TypeScanner();
       // scan all elements in this class
       for (Element e : element.getEnclosedElements()) {
+         scanner.member = e;
          e.accept(scanner, null);
       }
+      scanner.member = null;
       if (isEnum) {
          ExecutableElement ctor = enumConstructors.get(0);
          enumProps.hasBaseConstructor = ctor != null;
@@ -293,28 +991,22 @@ class TruReflectClassLoader extends ClassLoader {
          }
       }
       
+      long emitStart = System.nanoTime();
+      metrics.elementCrawl().record(emitStart - crawlStart);
+      
       // Class header
       int modifiers = computeModifierFlags(element.getModifiers());
       if (!isInterface) {
          modifiers |= ACC_SUPER;
       }
-      switch (element.getKind()) {
-         case ANNOTATION_TYPE:
-            modifiers |= ACC_ANNOTATION;
-            // intentional fall-through
-         case INTERFACE:
-            modifiers |= ACC_INTERFACE | ACC_ABSTRACT;
-            break;
-         case ENUM:
-            modifiers |= ACC_ENUM;
-            if (!enumProps.hasAbstractMethods) {
-               modifiers |= ACC_FINAL;               
-            }
-            break;
-         default:
-            // no extra modifiers
+      modifiers |= kindFlags(element.getKind());
+      if (isEnum && !enumProps.hasAbstractMethods) {
+         modifiers |= ACC_FINAL;
+      }
+      // scan the element's type parameters and type hierarchy
+      for (TypeParameterElement typeParam : element.getTypeParameters()) {
+         scanner.visitTypeParameter(typeParam, null);
       }
-      // scan the element's type hierarchy
       scanner.visitTypeMirror(element.getSuperclass());
       for (TypeMirror iface : element.getInterfaces()) {
          scanner.visitTypeMirror(iface);
@@ -351,24 +1043,27 @@ class TruReflectClassLoader extends ClassLoader {
          env.typeAnnotationUtils().recordClassTypeParameterAnnotations(writer,
                scanner::visitTypeMirror, typeVar, i++);
       }
-      // Outer Class Info
-      Element enclosing = element.getEnclosingElement();
-      enclosing.accept(new SimpleElementVisitor8<Void, Void>() {
-         @Override
-         public Void visitType(TypeElement element, Void p) {
-            writer.visitOuterClass(env.typeNameUtils().getInternalName(element), null, null);
-            return null;
-         }
-         
-         @Override
-         public Void visitExecutable(ExecutableElement element, Void p) {
-            writer.visitOuterClass(
-                  env.typeNameUtils().getInternalName((TypeElement) element.getEnclosingElement()),
-                  element.getSimpleName().toString(),
-                  env.typeNameUtils().getDescriptor(element));
-            return null;
-         }
-      }, null);
+      // Outer Class Info (only for local and anonymous classes; member classes are described
+      // entirely by the InnerClasses attribute)
+      if (element.getNestingKind() != NestingKind.MEMBER) {
+         element.getEnclosingElement().accept(new SimpleElementVisitor8<Void, Void>() {
+            @Override
+            public Void visitType(TypeElement element, Void p) {
+               writer.visitOuterClass(env.typeNameUtils().getInternalName(element), null, null);
+               return null;
+            }
+            
+            @Override
+            public Void visitExecutable(ExecutableElement element, Void p) {
+               writer.visitOuterClass(
+                     env.typeNameUtils().getInternalName(
+                           (TypeElement) element.getEnclosingElement()),
+                     env.typeNameUtils().getSimpleName(element),
+                     env.typeNameUtils().getDescriptor(element));
+               return null;
+            }
+         }, null);
+      }
       // Fields and Methods
       //  - Emit all fields and methods
       for (Element e : element.getEnclosedElements()) {
@@ -380,13 +1075,14 @@ class TruReflectClassLoader extends ClassLoader {
 
             @Override
             public Void visitVariableAsField(VariableElement e, Void p) {
+               scanner.member = e;
                int access = computeModifierFlags(e.getModifiers());
                if (isInterface) {
                   access |= ACC_PUBLIC | ACC_STATIC;
                }
                // Field declaration
                FieldVisitor visitor = writer.visitField(access,
-                     e.getSimpleName().toString(),
+                     env.typeNameUtils().getSimpleName(e),
                      env.typeNameUtils().getDescriptor(e),
                      env.signatureUtils().getTypeSignature(e.asType()),
                      (access & ACC_STATIC) == 0 ? null : e.getConstantValue());
@@ -405,10 +1101,13 @@ class TruReflectClassLoader extends ClassLoader {
 
             @Override
             public Void visitExecutable(ExecutableElement e, Void p) {
+               scanner.member = e;
                int access = computeModifierFlags(e.getModifiers());
                if (isInterface) {
                   access |= ACC_PUBLIC;
-                  if (!e.getModifiers().contains(Modifier.DEFAULT)) {
+                  // default and static methods have bodies
+                  if (!e.getModifiers().contains(Modifier.DEFAULT)
+                        && !e.getModifiers().contains(Modifier.STATIC)) {
                      access |= ACC_ABSTRACT;
                   }
                }
@@ -423,7 +1122,7 @@ class TruReflectClassLoader extends ClassLoader {
                      break;
                   default:
                      assert e.getKind() == ElementKind.METHOD;
-                     methodName = e.getSimpleName().toString();
+                     methodName = env.typeNameUtils().getSimpleName(e);
                      break;
                }
                MethodVisitor visitor = writer.visitMethod(access, methodName,
@@ -449,7 +1148,7 @@ class TruReflectClassLoader extends ClassLoader {
                // Parameters and parameter annotations
                int i = 0;
                for (VariableElement param : e.getParameters()) {
-                  visitor.visitParameter(param.getSimpleName().toString(),
+                  visitor.visitParameter(env.typeNameUtils().getSimpleName(param),
                         computeModifierFlags(param.getModifiers()));
                   for (AnnotationMirror mirror : param.getAnnotationMirrors()) {
                      env.annotationUtils().recordParameterAnnotation(visitor, i, mirror);
@@ -493,8 +1192,9 @@ class TruReflectClassLoader extends ClassLoader {
                   boolean writeDefaultImpl = true; 
                   if (isEnum) {
                      if (methodName.equals("<clinit>")) {
-                        writeEnumClInitImplementation(visitor, enumConstants, internalName,
-                              typeDescriptor, enumProps.numParametersForUsableConstructor);
+                        writeEnumClInitImplementation(writer, visitor, enumConstants,
+                              internalName, typeDescriptor,
+                              enumProps.numParametersForUsableConstructor);
                         writeDefaultImpl = false;
                      } else if (methodName.equals("<init>")
                            && env.typeNameUtils().getDescriptor(e).equals("(Ljava/lang/String;I)V")) {
@@ -505,16 +1205,15 @@ class TruReflectClassLoader extends ClassLoader {
                         writeDefaultImpl = false;
                      } else if (methodName.equals("values") &&
                            env.typeNameUtils().getDescriptor(e).equals("()[" + typeDescriptor)) {
-                        writeEnumValuesImplementation(visitor, enumConstants, internalName,
-                              typeDescriptor);
+                        writeEnumValuesImplementation(visitor, internalName, typeDescriptor);
                         writeDefaultImpl = false;
                      } else if (methodName.equals("valueOf")
                            && env.typeNameUtils().getDescriptor(e).equals("(Ljava/lang/String;)"
                                  + typeDescriptor)) {
                         assert e.getParameters().size() == 1;
                         writeEnumValueOfImplementation(visitor,
-                              e.getParameters().get(0).getSimpleName().toString(), internalName,
-                              typeDescriptor);
+                              env.typeNameUtils().getSimpleName(e.getParameters().get(0)),
+                              internalName, typeDescriptor);
                         writeDefaultImpl = false;
                      }
                   }
@@ -530,6 +1229,9 @@ class TruReflectClassLoader extends ClassLoader {
       }
       //  - Synthesize enum methods if necessary
       if (isEnum) {
+         // cached array of constants, for the static initializer and values()
+         writer.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC, ENUM_VALUES_FIELD,
+               "[" + typeDescriptor, null, null).visitEnd();
          if (enumProps.hasAbstractMethods) {
             if (!enumProps.hasVisibleConstructor) {
                // must synthesize a visible constructor
@@ -558,8 +1260,8 @@ class TruReflectClassLoader extends ClassLoader {
          }
          if (!enumProps.hasClInit) {
             MethodVisitor mv = writer.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
-            writeEnumClInitImplementation(mv, enumConstants, internalName, typeDescriptor,
-                  enumProps.numParametersForUsableConstructor);
+            writeEnumClInitImplementation(writer, mv, enumConstants, internalName,
+                  typeDescriptor, enumProps.numParametersForUsableConstructor);
             mv.visitEnd();
          }
          if (!enumProps.hasValueOf) {
@@ -571,37 +1273,101 @@ class TruReflectClassLoader extends ClassLoader {
          if (!enumProps.hasValues) {
             MethodVisitor mv = writer.visitMethod(ACC_PUBLIC + ACC_STATIC, "values",
                   "()[" + typeDescriptor, null, null);
-            writeEnumValuesImplementation(mv, enumConstants, internalName, typeDescriptor);
+            writeEnumValuesImplementation(mv, internalName, typeDescriptor);
             mv.visitEnd();
          }
       }
       // Inner Class Info
       // (We save this for last since, at this point, we've scanned every type that is referenced
       // from within this type, including annotations and type annotations on fields and methods.)
+      // A nested class must also list itself and the classes that enclose it.
+      for (TypeElement e = element; e != null && e.getNestingKind().isNested();
+            e = enclosingType(e)) {
+         innerClasses.putIfAbsent(mapType(e).replace('.', '/'), e);
+      }
       for (Entry<String, TypeElement> entry : innerClasses.entrySet()) {
-         String innerClassInternalName = entry.getKey();
-         TypeElement innerClass = entry.getValue();
-         TypeElement outerClass = null;
-         for (Element e = innerClass.getEnclosingElement(); e != null;
-               e = e.getEnclosingElement()) {
-            outerClass = e.accept(new SimpleElementVisitor8<TypeElement, Void>() {
-               public TypeElement visitType(TypeElement e, Void p) {
-                  return e;
-               }
-            }, null);
-            if (outerClass != null) {
-               break;
-            }
-         }
-         assert outerClass != null;
-         writer.visitInnerClass(innerClassInternalName,
-               env.typeNameUtils().getInternalName(outerClass),
-               innerClass.getSimpleName().toString(),
-               computeModifierFlags(innerClass.getModifiers()));
+         InnerClassEntry inner = innerClassEntry(entry.getValue());
+         writer.visitInnerClass(entry.getKey(), inner.outerInternalName, inner.simpleName,
+               inner.flags);
       }
       // Done!
       writer.visitEnd();
-      return writer.toByteArray();
+      return emitStart;
+   }
+   
+   private InnerClassEntry innerClassEntry(TypeElement innerClass) {
+      int id = mapTypeId(innerClass);
+      InnerClassEntry entry = innerClassEntries.get(id);
+      if (entry == null) {
+         TypeElement outerClass = enclosingType(innerClass);
+         assert outerClass != null;
+         // core reflection reports these flags as the modifiers of a nested class, so they
+         // must include the kind of class, too (e.g. Class#isEnum() needs ACC_ENUM)
+         int flags = computeModifierFlags(innerClass.getModifiers())
+               | kindFlags(innerClass.getKind());
+         // entries are retained for the life of the loader, so their names are canonical
+         StringTable strings = env.stringTable();
+         entry = new InnerClassEntry(
+               strings.canonicalize(env.typeNameUtils().getInternalName(outerClass)),
+               strings.canonicalize(innerClass.getSimpleName()), flags);
+         innerClassEntries.put(id, entry);
+      }
+      return entry;
+   }
+   
+   /**
+    * Returns the class file flags implied by the given kind of type, in addition to those for its
+    * modifiers.
+    */
+   private static int kindFlags(ElementKind kind) {
+      switch (kind) {
+         case ANNOTATION_TYPE:
+            return ACC_ANNOTATION | ACC_INTERFACE | ACC_ABSTRACT;
+         case INTERFACE:
+            return ACC_INTERFACE | ACC_ABSTRACT;
+         case ENUM:
+            return ACC_ENUM;
+         default:
+            return 0;
+      }
+   }
+   
+   /**
+    * Returns the innermost type that encloses the given type, or {@code null} for top-level types.
+    */
+   private static TypeElement enclosingType(TypeElement type) {
+      for (Element e = type.getEnclosingElement(); e != null; e = e.getEnclosingElement()) {
+         if (e.getKind().isClass() || e.getKind().isInterface()) {
+            return (TypeElement) e;
+         }
+      }
+      return null;
+   }
+   
+   /**
+    * Computes the name of a member, for tracing. Methods and constructors include their
+    * descriptor, to distinguish overloads.
+    * 
+    * @param member a member, or {@code null} to indicate a class's declaration
+    * @return the name of the member
+    */
+   private String memberName(Element member) {
+      if (member == null) {
+         return SynthesisTrace.DECLARATION;
+      }
+      switch (member.getKind()) {
+         case METHOD:
+            return member.getSimpleName() + env.typeNameUtils().getDescriptor(
+                  (ExecutableElement) member);
+         case CONSTRUCTOR:
+            return "<init>" + env.typeNameUtils().getDescriptor((ExecutableElement) member);
+         case STATIC_INIT:
+            return "<clinit>";
+         case INSTANCE_INIT:
+            return "<init>";
+         default:
+            return member.getSimpleName().toString();
+      }
    }
    
    private int computeModifierFlags(Set<Modifier> modifiers) {
@@ -651,8 +1417,19 @@ class TruReflectClassLoader extends ClassLoader {
       return ret;
    }
 
-   private void writeEnumClInitImplementation(MethodVisitor mv, List<String> enumConstants,
-         String internalName, String typeDescriptor, int numParams) {
+   /**
+    * Writes the static initializer for an enum. Instead of one block of code per constant, which
+    * overflows the 64KB limit on a method's code for enums with a few thousand constants, this
+    * stores the constants' names in one string per {@link #ENUM_NAMES_CHUNK_BYTES} bytes of names,
+    * separated by commas, and constructs the constants in a loop. The constants are stored in the
+    * synthetic {@code $VALUES} array, from which they are then copied to their fields. That copy
+    * is still one instruction sequence per constant. It stays in the static initializer for every
+    * enum that javac could compile, but for larger ones it is split into synthetic helper methods.
+    * Those show up in {@link Class#getDeclaredMethods()}, so views that list members, like {@link
+    * ClassHierarchy}, leave them out (see {@link #isEnumAssignmentHelper(Method)}).
+    */
+   private void writeEnumClInitImplementation(ClassVisitor writer, MethodVisitor mv,
+         List<String> enumConstants, String internalName, String typeDescriptor, int numParams) {
       mv.visitCode();
       Label scopeEnter = new Label();
       mv.visitLabel(scopeEnter);
@@ -663,23 +1440,174 @@ class TruReflectClassLoader extends ClassLoader {
          sb.append('Z');
       }
       String consDescriptor = sb.append(")V").toString();
+      String arrayDescriptor = "[" + typeDescriptor;
 
-      int i = 0;
-      for (String enumConst : enumConstants) {
+      pushInt(mv, enumConstants.size());
+      mv.visitTypeInsn(ANEWARRAY, internalName);
+      mv.visitFieldInsn(PUTSTATIC, internalName, ENUM_VALUES_FIELD, arrayDescriptor);
+      // local 0: ordinal, 1: names, 2: start of name, 3: end of name
+      mv.visitInsn(ICONST_0);
+      mv.visitVarInsn(ISTORE, 0);
+      Object loopLocals[] = { INTEGER, "java/lang/String", INTEGER };
+      Object bodyLocals[] = { INTEGER, "java/lang/String", INTEGER, INTEGER };
+      for (String names : chunkEnumNames(enumConstants)) {
+         Label loop = new Label();
+         Label found = new Label();
+         Label done = new Label();
+         mv.visitLdcInsn(names);
+         mv.visitVarInsn(ASTORE, 1);
+         mv.visitInsn(ICONST_0);
+         mv.visitVarInsn(ISTORE, 2);
+         // end = names.indexOf(',', start), or names.length() if there are no more commas
+         mv.visitLabel(loop);
+         mv.visitFrame(F_FULL, loopLocals.length, loopLocals, 0, null);
+         mv.visitVarInsn(ALOAD, 1);
+         mv.visitIntInsn(BIPUSH, ',');
+         mv.visitVarInsn(ILOAD, 2);
+         mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "indexOf", "(II)I", false);
+         mv.visitVarInsn(ISTORE, 3);
+         mv.visitVarInsn(ILOAD, 3);
+         mv.visitJumpInsn(IFGE, found);
+         mv.visitVarInsn(ALOAD, 1);
+         mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+         mv.visitVarInsn(ISTORE, 3);
+         // $VALUES[ordinal] = new Enum(names.substring(start, end), ordinal, ...)
+         mv.visitLabel(found);
+         mv.visitFrame(F_FULL, bodyLocals.length, bodyLocals, 0, null);
+         mv.visitFieldInsn(GETSTATIC, internalName, ENUM_VALUES_FIELD, arrayDescriptor);
+         mv.visitVarInsn(ILOAD, 0);
          mv.visitTypeInsn(NEW, internalName);
          mv.visitInsn(DUP);
-         mv.visitLdcInsn(enumConst);
-         mv.visitIntInsn(BIPUSH, i++);
+         mv.visitVarInsn(ALOAD, 1);
+         mv.visitVarInsn(ILOAD, 2);
+         mv.visitVarInsn(ILOAD, 3);
+         mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "substring",
+               "(II)Ljava/lang/String;", false);
+         mv.visitVarInsn(ILOAD, 0);
          for (int p = 2; p < numParams; p++) {
             mv.visitInsn(ICONST_0);
          }
          mv.visitMethodInsn(INVOKESPECIAL, internalName, "<init>", consDescriptor, false);
-         mv.visitFieldInsn(PUTSTATIC, internalName, enumConst, typeDescriptor);
+         mv.visitInsn(AASTORE);
+         mv.visitIincInsn(0, 1);
+         // loop until the end of the names
+         mv.visitVarInsn(ILOAD, 3);
+         mv.visitVarInsn(ALOAD, 1);
+         mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+         mv.visitJumpInsn(IF_ICMPGE, done);
+         mv.visitVarInsn(ILOAD, 3);
+         mv.visitInsn(ICONST_1);
+         mv.visitInsn(IADD);
+         mv.visitVarInsn(ISTORE, 2);
+         mv.visitJumpInsn(GOTO, loop);
+         mv.visitLabel(done);
+         mv.visitFrame(F_FULL, bodyLocals.length, bodyLocals, 0, null);
+      }
+      // copy the constants to their fields
+      int size = enumConstants.size();
+      if (size <= ENUM_CONSTANTS_PER_METHOD) {
+         writeEnumFieldAssignments(mv, enumConstants, 0, size, internalName, typeDescriptor);
+      } else {
+         for (int from = 0, n = 0; from < size; from += ENUM_CONSTANTS_PER_METHOD, n++) {
+            String helperName = ENUM_ASSIGNMENT_HELPER_PREFIX + n;
+            MethodVisitor helper = writer.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC,
+                  helperName, "()V", null, null);
+            helper.visitCode();
+            writeEnumFieldAssignments(helper, enumConstants, from,
+                  Math.min(size, from + ENUM_CONSTANTS_PER_METHOD), internalName, typeDescriptor);
+            helper.visitInsn(RETURN);
+            helper.visitMaxs(3, 1);
+            helper.visitEnd();
+            mv.visitMethodInsn(INVOKESTATIC, internalName, helperName, "()V", false);
+         }
       }
       mv.visitInsn(RETURN);
       Label scopeExit = new Label();
       mv.visitLabel(scopeExit);
-      mv.visitMaxs(2 + numParams, 0);
+      // the most is while constructing a constant: array, index, new, dup, and the constructor's
+      // arguments (or the names, start, and end, before they are replaced by the substring)
+      mv.visitMaxs(Math.max(7, 4 + numParams), 4);
+   }
+   
+   /**
+    * Determines if the given method is one of the helpers that a synthesized enum's static
+    * initializer uses to assign its constants to their fields.
+    *
+    * @param m a method
+    * @return true if the method is a synthetic helper of a synthesized enum
+    */
+   static boolean isEnumAssignmentHelper(Method m) {
+      Class<?> declaringClass = m.getDeclaringClass();
+      return m.isSynthetic() && m.getName().startsWith(ENUM_ASSIGNMENT_HELPER_PREFIX)
+            && declaringClass.isEnum()
+            && declaringClass.getClassLoader() instanceof TruReflectClassLoader;
+   }
+
+   /**
+    * Copies a range of enum constants from the {@code $VALUES} array to their fields. Uses local 0
+    * to hold the array.
+    */
+   private void writeEnumFieldAssignments(MethodVisitor mv, List<String> enumConstants, int from,
+         int to, String internalName, String typeDescriptor) {
+      mv.visitFieldInsn(GETSTATIC, internalName, ENUM_VALUES_FIELD, "[" + typeDescriptor);
+      mv.visitVarInsn(ASTORE, 0);
+      for (int i = from; i < to; i++) {
+         mv.visitVarInsn(ALOAD, 0);
+         pushInt(mv, i);
+         mv.visitInsn(AALOAD);
+         mv.visitFieldInsn(PUTSTATIC, internalName, enumConstants.get(i), typeDescriptor);
+      }
+   }
+   
+   /**
+    * Joins the given enum constant names with commas (which can't appear in identifiers) into
+    * strings short enough to be string constants in a class file.
+    */
+   private static List<String> chunkEnumNames(List<String> enumConstants) {
+      List<String> chunks = new ArrayList<>();
+      StringBuilder sb = new StringBuilder();
+      int bytes = 0;
+      for (String name : enumConstants) {
+         int len = modifiedUtf8Length(name) + 1;
+         if (sb.length() > 0 && bytes + len > ENUM_NAMES_CHUNK_BYTES) {
+            chunks.add(sb.toString());
+            sb.setLength(0);
+            bytes = 0;
+         }
+         if (sb.length() > 0) {
+            sb.append(',');
+         }
+         sb.append(name);
+         bytes += len;
+      }
+      if (sb.length() > 0) {
+         chunks.add(sb.toString());
+      }
+      return chunks;
+   }
+   
+   private static int modifiedUtf8Length(String s) {
+      int len = 0;
+      for (int i = 0, n = s.length(); i < n; i++) {
+         char ch = s.charAt(i);
+         len += ch != 0 && ch < 0x80 ? 1 : (ch < 0x800 ? 2 : 3);
+      }
+      return len;
+   }
+   
+   /**
+    * Pushes an int constant, using the shortest instruction that can represent it.
+    */
+   private static void pushInt(MethodVisitor mv, int value) {
+      if (value >= -1 && value <= 5) {
+         mv.visitInsn(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+         mv.visitIntInsn(BIPUSH, value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+         mv.visitIntInsn(SIPUSH, value);
+      } else {
+         mv.visitLdcInsn(value);
+      }
    }
 
    private void writeEnumBaseConstructorImplementation(MethodVisitor mv,
@@ -704,24 +1632,19 @@ class TruReflectClassLoader extends ClassLoader {
       mv.visitMaxs(3, parameterNames.size() + 1);
    }
 
-   private void writeEnumValuesImplementation(MethodVisitor mv, List<String> enumConstants,
-         String internalName, String typeDescriptor) {
+   private void writeEnumValuesImplementation(MethodVisitor mv, String internalName,
+         String typeDescriptor) {
       mv.visitCode();
       Label scopeEnter = new Label();
       mv.visitLabel(scopeEnter);
-      mv.visitIntInsn(BIPUSH, enumConstants.size());
-      mv.visitTypeInsn(ANEWARRAY, internalName);
-      int i = 0;
-      for (String enumConst : enumConstants) {
-         mv.visitInsn(DUP);
-         mv.visitIntInsn(BIPUSH, i++);
-         mv.visitFieldInsn(GETSTATIC, internalName, enumConst, typeDescriptor);
-         mv.visitInsn(AASTORE);
-      }
+      String arrayDescriptor = "[" + typeDescriptor;
+      mv.visitFieldInsn(GETSTATIC, internalName, ENUM_VALUES_FIELD, arrayDescriptor);
+      mv.visitMethodInsn(INVOKEVIRTUAL, arrayDescriptor, "clone", "()Ljava/lang/Object;", false);
+      mv.visitTypeInsn(CHECKCAST, arrayDescriptor);
       mv.visitInsn(ARETURN);
       Label scopeExit = new Label();
       mv.visitLabel(scopeExit);
-      mv.visitMaxs(4, 0);
+      mv.visitMaxs(1, 0);
    }
 
    private void writeEnumValueOfImplementation(MethodVisitor mv, String parameterName,
@@ -764,7 +1687,7 @@ class TruReflectClassLoader extends ClassLoader {
       }
       int i = offset;
       for (VariableElement param : parameters) {
-         mv.visitLocalVariable(param.getSimpleName().toString(),
+         mv.visitLocalVariable(env.typeNameUtils().getSimpleName(param),
                env.typeNameUtils().getDescriptor(param.asType()), null, scopeEnter, scopeExit, i++);
       }
       mv.visitMaxs(2, parameters.size() + offset);
@@ -772,10 +1695,26 @@ class TruReflectClassLoader extends ClassLoader {
 
    private List<String> getParameterNames(List<? extends VariableElement> parameters) {
       return parameters.stream()
-            .map(p -> p.getSimpleName().toString())
+            .map(env.typeNameUtils()::getSimpleName)
             .collect(Collectors.toList());
    }
    
+   /**
+    * Determines whether the given class name has an associated element. Classes without elements,
+    * like those that the JRE loads on behalf of reflection and proxy implementations, are always
+    * provided by the parent class loader.
+    * 
+    * @param name a class name
+    * @return true if the class has an associated element; false otherwise
+    */
+   private synchronized boolean hasElement(String name) {
+      int pos = name.lastIndexOf('.');
+      if (name.endsWith(".package-info") || name.equals("package-info")) {
+         return packageElements.containsKey(pos == -1 ? "" : name.substring(0, pos));
+      }
+      return registry.idOf(name) != ElementRegistry.NONE;
+   }
+   
    private synchronized Element findElement(String name) {
       int pos = name.lastIndexOf('.');
       String simpleName = pos == -1 ? name : name.substring(pos + 1);
@@ -788,44 +1727,85 @@ class TruReflectClassLoader extends ClassLoader {
                   + pkgName + " without associated PackageElement");
          }
       } else {
-         ret = typeElements.get(name);
-         if (ret == null) {
+         int id = registry.idOf(name);
+         if (id == ElementRegistry.NONE) {
             throw new IllegalStateException(
                   "Cannot load class " + name + " without associated TypeElement");
          }
+         ret = registry.element(id);
       }
       return ret;
    }
    
+   /**
+    * Returns the type element for the given class: the element from which it was synthesized or,
+    * for other classes, the element with the same canonical name.
+    * 
+    * @param clazz a class
+    * @return the class's type element, or {@code null} if it has none
+    */
+   synchronized TypeElement typeElementFor(Class<?> clazz) {
+      if (clazz.getClassLoader() == this) {
+         int id = registry.idOf(clazz.getName());
+         return id == ElementRegistry.NONE ? null : registry.element(id);
+      }
+      String canonicalName = clazz.getCanonicalName();
+      return canonicalName == null ? null : env.elementUtils().getTypeElement(canonicalName);
+   }
+   
    synchronized Class<?> loadClass(TypeElement element) {
-      String className = classNamesByElement.get(element);
-      if (className == null) {
-         className = env.elementUtils().getBinaryName(element).toString();
-         mapClassName(className, element);
+      if (frozen) {
+         int id = registry.idOf(element);
+         Class<?> c = id == ElementRegistry.NONE ? null : registry.loadedClass(id);
+         if (c == null) {
+            throw new IllegalStateException(
+                  "Cannot synthesize " + element.getQualifiedName() + " once frozen");
+         }
+         return c;
       }
-      assert element.equals(typeElements.get(className));
+      int id = mapTypeId(element);
+      String className = registry.binaryName(id);
+      boolean isRoot = trace != null && trace.beginRequest(className);
       try {
-         return loadClass(className);
+         Class<?> c = loadClass(className);
+         registry.setLoadedClass(id, c);
+         return c;
       } catch (ClassNotFoundException e) {
          throw new AssertionError("Failed to load class for TypeElement", e);
+      } finally {
+         if (isRoot) {
+            trace.endRequest();
+         }
       }
    }
    
-   private synchronized void mapClassName(String name, TypeElement element) {
-      TypeElement existing = typeElements.putIfAbsent(name, element);
-      if (existing == null) {
-         String existingName = classNamesByElement.put(element, name);
-         assert existingName == null;
-      } else if (!existing.equals(element)) {
+   private synchronized int mapClassName(String name, TypeElement element) {
+      int id = registry.idOf(name);
+      if (id == ElementRegistry.NONE) {
+         // registered names are retained for the life of the loader
+         return registry.register(element, env.stringTable().canonicalize(name));
+      } else if (!registry.element(id).equals(element)) {
          throw new IllegalStateException(
                "Class " + name + " already defined with different TypeElement");
       }
+      return id;
    }
    
    synchronized Package ensurePackageDefined(String name, PackageElement e) {
-      PackageElement existing = packageElements.putIfAbsent(name, e);
+      if (frozen && !packageElements.containsKey(name)) {
+         throw new IllegalStateException("Cannot define package " + name + " once frozen");
+      }
+      PackageElement existing = packageElements.get(name);
       if (existing == null) {
-         return definePackage(name, "", "", "", "", "", "", null);
+         // the name is retained, as the key of the package and its element
+         name = env.stringTable().canonicalize(name);
+         packageElements.put(name, e);
+         SynthesisEvents.DefinePackage event = SynthesisEvents.beginDefinePackage();
+         long start = System.nanoTime();
+         Package p = definePackage(name, "", "", "", "", "", "", null);
+         metrics.packageDefinition().record(System.nanoTime() - start);
+         SynthesisEvents.endDefinePackage(event, name);
+         return p;
       } else if (!existing.equals(e)) {
          throw new IllegalStateException(
                "Package " + name + " already defined with different PackageElement");
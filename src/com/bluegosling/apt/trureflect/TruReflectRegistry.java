@@ -0,0 +1,156 @@
+package com.bluegosling.apt.trureflect;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * A registry of {@link TruReflect} instances that are shared across annotation processors in the
+ * same compilation. Each processor that constructs its own {@link TruReflect} gets its own
+ * {@link Environment} and its own class loader, so every synthesized class would be created (and
+ * retained) once per processor. Processors that instead {@linkplain #acquire(ProcessingEnvironment)
+ * acquire} an instance from this registry share a single instance per compilation.
+ *
+ * <p>Instances are keyed by the identity of the compilation's {@link Elements} and {@link Types}
+ * utilities, which are the same for all processors that run in a given compilation. Each call to
+ * {@code acquire} must be paired with a call to {@link #release(TruReflect)}. When the last
+ * reference to a shared instance is released, it is removed from the registry so that it (and all
+ * of its synthesized classes) can be garbage collected.
+ *
+ * <p>The registry holds its instances strongly, in a static map, so an instance that is not
+ * released outlives its compilation, along with the compiler's model and every class it
+ * synthesized. Processors should release their instance when processing is over (in the final
+ * round, when {@link javax.annotation.processing.RoundEnvironment#processingOver()
+ * processingOver()} is true).
+ *
+ * <p>The methods on this class can be called from any thread, but the instances they return are
+ * no more thread-safe than any other {@link TruReflect}: the processors that share an instance
+ * must all use it on the processor thread (which is what the compiler does when it runs them),
+ * unless its model access is {@linkplain TruReflect#confineModelAccess(ModelExecutor) confined}.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class TruReflectRegistry {
+
+   /**
+    * The key for a shared instance: the element and type utilities of a compilation, compared by
+    * identity.
+    */
+   private static final class Key {
+      final Elements elementUtils;
+      final Types typeUtils;
+
+      Key(Elements elementUtils, Types typeUtils) {
+         this.elementUtils = elementUtils;
+         this.typeUtils = typeUtils;
+      }
+
+      @Override public boolean equals(Object o) {
+         if (!(o instanceof Key)) {
+            return false;
+         }
+         Key other = (Key) o;
+         return elementUtils == other.elementUtils && typeUtils == other.typeUtils;
+      }
+
+      @Override public int hashCode() {
+         return System.identityHashCode(elementUtils) * 31 + System.identityHashCode(typeUtils);
+      }
+   }
+
+   /**
+    * A shared instance and the number of outstanding references to it.
+    */
+   private static final class Registration {
+      final Key key;
+      final TruReflect instance;
+      int refCount;
+
+      Registration(Key key, TruReflect instance) {
+         this.key = key;
+         this.instance = instance;
+      }
+   }
+
+   private static final Map<Key, Registration> registrations = new HashMap<>();
+   private static final Map<TruReflect, Registration> registrationsByInstance =
+         new IdentityHashMap<>();
+
+   private TruReflectRegistry() {
+   }
+
+   /**
+    * Acquires the shared instance for the given processing environment. If no instance is yet
+    * registered for the environment's compilation, one is created.
+    *
+    * <p>Every call must be paired with a call to {@link #release(TruReflect)}. Until then, the
+    * instance stays reachable from this registry, even after the compilation is over. The returned
+    * instance must only be used on the thread that runs the processors, like the environment
+    * itself.
+    *
+    * @param env the current processing environment
+    * @return the instance shared by all processors in the same compilation
+    */
+   public static TruReflect acquire(ProcessingEnvironment env) {
+      return acquire(env.getElementUtils(), env.getTypeUtils());
+   }
+
+   /**
+    * Acquires the shared instance for the given element and type utilities. If no instance is yet
+    * registered for these utilities, one is created. As with {@link
+    * #acquire(ProcessingEnvironment)}, every call must be paired with a call to {@link
+    * #release(TruReflect)}, and the returned instance must only be used on the thread that owns the
+    * utilities.
+    *
+    * @param elementUtils element utilities for the current processing environment
+    * @param typeUtils type mirror utilities for the current processing environment
+    * @return the instance shared by all processors that use the same utilities
+    */
+   public static synchronized TruReflect acquire(Elements elementUtils, Types typeUtils) {
+      Key key = new Key(elementUtils, typeUtils);
+      Registration reg = registrations.get(key);
+      if (reg == null) {
+         reg = new Registration(key, new TruReflect(elementUtils, typeUtils));
+         registrations.put(key, reg);
+         registrationsByInstance.put(reg.instance, reg);
+      }
+      reg.refCount++;
+      return reg.instance;
+   }
+
+   /**
+    * Releases a reference to a shared instance. Once all references acquired for an instance have
+    * been released, the instance is removed from the registry and a subsequent call to
+    * {@code acquire} will create a new instance.
+    *
+    * @param instance a shared instance, previously returned from {@code acquire}
+    * @throws IllegalArgumentException if the given instance is not registered (including if all
+    *       references to it have already been released)
+    */
+   public static synchronized void release(TruReflect instance) {
+      Registration reg = registrationsByInstance.get(instance);
+      if (reg == null) {
+         throw new IllegalArgumentException("Given instance is not registered");
+      }
+      if (--reg.refCount == 0) {
+         registrations.remove(reg.key);
+         registrationsByInstance.remove(instance);
+      }
+   }
+
+   /**
+    * Returns the number of outstanding references to the given shared instance.
+    *
+    * @param instance a shared instance
+    * @return the number of references acquired but not yet released; zero if the instance is not
+    *       registered
+    */
+   public static synchronized int referenceCount(TruReflect instance) {
+      Registration reg = registrationsByInstance.get(instance);
+      return reg == null ? 0 : reg.refCount;
+   }
+}
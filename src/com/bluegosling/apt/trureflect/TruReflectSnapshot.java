@@ -0,0 +1,186 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * An immutable view of everything a {@link TruReflect} instance had converted when it was
+ * {@linkplain TruReflect#freeze() frozen}. This is meant for handing the results of a round to
+ * other threads for analysis, without going near the compiler, whose model is not thread-safe.
+ *
+ * <p>A snapshot includes the class of every type that had been mapped to a class, either because
+ * it was converted or because a synthesized class refers to it. Classes a synthesized class refers
+ * to are loaded as part of freezing, so reflecting on the classes in a snapshot never needs to
+ * synthesize anything. For the types whose classes were synthesized, the snapshot also includes
+ * the reflective objects for their fields, methods, constructors, parameters, and type
+ * parameters. Lastly, it includes the packages that were defined and, if the instance was
+ * {@linkplain TruReflect#recordConversions(boolean) recording conversions}, the results of prior
+ * calls to {@link TruReflect#forTypeMirror(TypeMirror)} and {@link
+ * TruReflect#forAnnotationMirror(AnnotationMirror)}.
+ *
+ * <p>Elements and mirrors are looked up by identity, so the given objects are never used other than
+ * as keys. Lookups never block. They return {@code null} for anything that is not in the snapshot,
+ * since it can't be converted anymore. This class is thread-safe.
+ *
+ * @see TruReflect#freeze()
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class TruReflectSnapshot {
+
+   private final Map<Element, AnnotatedElement> elements;
+   private final Map<Class<?>, TypeElement> typeElements;
+   private final Map<String, Class<?>> classesByName;
+   private final Collection<Class<?>> classes;
+   private final Map<TypeMirror, Type> types;
+   private final Map<AnnotationMirror, Annotation> annotations;
+
+   /**
+    * Creates a new snapshot. The given maps must not be modified afterwards.
+    *
+    * @param classes the class for each type element
+    * @param members the reflective objects for members, parameters, and type parameters
+    * @param packages the package for each package element
+    * @param types converted type mirrors
+    * @param annotations converted annotation mirrors
+    */
+   TruReflectSnapshot(Map<TypeElement, Class<?>> classes, Map<Element, AnnotatedElement> members,
+         Map<PackageElement, Package> packages, Map<TypeMirror, Type> types,
+         Map<AnnotationMirror, Annotation> annotations) {
+      Map<Element, AnnotatedElement> allElements = new IdentityHashMap<>(
+            classes.size() + members.size() + packages.size());
+      allElements.putAll(members);
+      allElements.putAll(packages);
+      allElements.putAll(classes);
+      this.elements = allElements;
+      Map<Class<?>, TypeElement> elementsByClass = new HashMap<>(classes.size() * 4 / 3 + 1);
+      Map<String, Class<?>> byName = new HashMap<>(classes.size() * 4 / 3 + 1);
+      for (Map.Entry<TypeElement, Class<?>> entry : classes.entrySet()) {
+         elementsByClass.put(entry.getValue(), entry.getKey());
+         byName.put(entry.getValue().getName(), entry.getValue());
+      }
+      this.typeElements = elementsByClass;
+      this.classesByName = byName;
+      this.classes = Collections.unmodifiableCollection(elementsByClass.keySet());
+      this.types = types;
+      this.annotations = annotations;
+   }
+
+   /**
+    * Returns the class for the given type element.
+    *
+    * @param element a type element
+    * @return the element's class, or {@code null} if it is not in this snapshot
+    */
+   public Class<?> forElement(TypeElement element) {
+      return (Class<?>) elements.get(element);
+   }
+
+   /**
+    * Returns the package for the given package element.
+    *
+    * @param element a package element
+    * @return the element's package, or {@code null} if it is not in this snapshot
+    */
+   public Package forElement(PackageElement element) {
+      return (Package) elements.get(element);
+   }
+
+   /**
+    * Returns the method or constructor for the given executable element.
+    *
+    * @param element an executable element
+    * @return the element's method or constructor, or {@code null} if it is not in this snapshot
+    */
+   public Executable forElement(ExecutableElement element) {
+      return (Executable) elements.get(element);
+   }
+
+   /**
+    * Returns the reflective object for the given element: a class, package, field, method,
+    * constructor, parameter, or type variable.
+    *
+    * @param element an element
+    * @return the element's reflective object, or {@code null} if it is not in this snapshot
+    *
+    * @see TruReflect#forElement(Element)
+    */
+   public AnnotatedElement forElement(Element element) {
+      return elements.get(element);
+   }
+
+   /**
+    * Returns the type element for the given class.
+    *
+    * @param clazz a class in this snapshot
+    * @return the class's type element, or {@code null} if the class is not in this snapshot
+    */
+   public TypeElement elementOf(Class<?> clazz) {
+      return typeElements.get(clazz);
+   }
+
+   /**
+    * Returns the class with the given binary name.
+    *
+    * @param binaryName the binary name of a class, like {@code com.foo.Outer$Inner}
+    * @return the class, or {@code null} if there is no such class in this snapshot
+    */
+   public Class<?> forName(String binaryName) {
+      return classesByName.get(binaryName);
+   }
+
+   /**
+    * Returns the result of converting the given type mirror before this snapshot was taken.
+    *
+    * @param mirror a type mirror
+    * @return the converted type, or {@code null} if the mirror was never converted or conversions
+    *       were not recorded
+    *
+    * @see TruReflect#forTypeMirror(TypeMirror)
+    */
+   public Type forTypeMirror(TypeMirror mirror) {
+      return types.get(mirror);
+   }
+
+   /**
+    * Returns the result of converting the given annotation mirror before this snapshot was taken.
+    *
+    * @param mirror an annotation mirror
+    * @return the annotation, or {@code null} if the mirror was never converted or conversions
+    *       were not recorded
+    *
+    * @see TruReflect#forAnnotationMirror(AnnotationMirror)
+    */
+   public Annotation forAnnotationMirror(AnnotationMirror mirror) {
+      return annotations.get(mirror);
+   }
+
+   /**
+    * Returns all classes in this snapshot, including classes provided by the parent class loader
+    * (like those in {@code java.*} packages).
+    *
+    * @return the classes in this snapshot
+    */
+   public Collection<Class<?>> classes() {
+      return classes;
+   }
+
+   @Override public String toString() {
+      return "TruReflectSnapshot[classes=" + classes.size() + ", elements=" + elements.size()
+            + ", types=" + types.size() + ", annotations=" + annotations.size() + "]";
+   }
+}
@@ -220,7 +220,7 @@ public class TypeAnnotations {
                recordDirectTypeAnnotations(
                      ctx.tv, ctx.forEachAnnotationType, ctx.typeRef, ctx.path, t);
                ctx.path.push(PathElement.arrayPathElement());
-               t.getComponentType().accept(this, null);
+               t.getComponentType().accept(this, ctx);
                ctx.path.pop();
                return null;
             }
@@ -242,7 +242,7 @@ public class TypeAnnotations {
                   int i = 0;
                   for (TypeMirror typeArg : t.getTypeArguments()) {
                      ctx.path.push(PathElement.typeArgPathElement(i++));
-                     typeArg.accept(this, null);
+                     typeArg.accept(this, ctx);
                      ctx.path.pop();
                   }
                   ctx.path.push(PathElement.nestedPathElement());
@@ -265,7 +265,7 @@ public class TypeAnnotations {
                }
                if (bound != null) {
                   ctx.path.push(PathElement.wildcardPathElement());
-                  bound.accept(this, null);
+                  bound.accept(this, ctx);
                   ctx.path.pop();
                }
                return null;
@@ -1,5 +1,6 @@
 package com.bluegosling.apt.trureflect;
 
+import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
@@ -15,7 +16,9 @@ import javax.lang.model.util.TypeKindVisitor8;
 import javax.lang.model.util.Types;
 
 /**
- * Computes type names and descriptors for elements and mirrors.
+ * Computes type names and descriptors for elements and mirrors. Each call returns a new string.
+ * Callers that retain a name should {@linkplain StringTable#canonicalize(String) canonicalize} it
+ * first, so that only one copy of it is retained.
  * 
  * @see Environment
  * 
@@ -30,6 +33,27 @@ public class TypeNames {
       this.typeUtils = typeUtils;
    }
 
+   /**
+    * Returns the simple name of the given element.
+    * 
+    * @param element an element
+    * @return the element's simple name
+    */
+   public String getSimpleName(Element element) {
+      return element.getSimpleName().toString();
+   }
+
+   /**
+    * Computes the binary name for the given type element, like {@code com.foo.Outer$Inner}.
+    * 
+    * @param element a type element
+    * @return the binary name for the given element
+    * @see Elements#getBinaryName(TypeElement)
+    */
+   public String getBinaryName(TypeElement element) {
+      return elementUtils.getBinaryName(element).toString();
+   }
+
    /**
     * Computes the internal form of the binary name for the given type element. The internal form
     * used in class files is described in JLS section 4.2.1, <em><a
@@ -0,0 +1,212 @@
+package com.bluegosling.apt.trureflect;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A graph of the references between types, recorded as classes are synthesized. There is an edge
+ * from one type to another if the class synthesized for the first refers to the second: from its
+ * supertypes, type parameters, members, annotations, or type annotations. Edges only originate from
+ * synthesized classes, but they can point to any type, including those in {@code java.*} packages
+ * and others provided by the parent class loader.
+ *
+ * <p>Types are identified by their binary names, as returned by
+ * {@link javax.lang.model.util.Elements#getBinaryName(javax.lang.model.element.TypeElement)}.
+ * Internally, each type is assigned a dense integer ID, and edges are stored as arrays of IDs, in
+ * both directions. So the graph stays compact even when thousands of classes are synthesized.
+ *
+ * <p>Incremental processors can use {@link #dependents(Collection)} to find the types that may be
+ * affected by a change to some other types, without scanning the round themselves.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @see TruReflect#referenceGraph()
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class TypeReferenceGraph {
+
+   private final Map<String, Integer> ids = new HashMap<>();
+   private String names[] = new String[64];
+   // forward edges, set once for each synthesized type
+   private int forward[][] = new int[64][];
+   // reverse edges, appended to as types are synthesized
+   private int reverse[][] = new int[64][];
+   private int reverseSizes[] = new int[64];
+   private int nodeCount;
+   private int edgeCount;
+
+   TypeReferenceGraph() {
+   }
+
+   private int id(String name) {
+      Integer id = ids.get(name);
+      if (id != null) {
+         return id;
+      }
+      int newId = nodeCount++;
+      if (newId == names.length) {
+         int newLength = names.length * 2;
+         names = Arrays.copyOf(names, newLength);
+         forward = Arrays.copyOf(forward, newLength);
+         reverse = Arrays.copyOf(reverse, newLength);
+         reverseSizes = Arrays.copyOf(reverseSizes, newLength);
+      }
+      names[newId] = name;
+      ids.put(name, newId);
+      return newId;
+   }
+
+   /**
+    * Records the types referenced by a synthesized class. References from a class to itself are
+    * ignored. This must be called at most once per class.
+    *
+    * @param from the binary name of the synthesized class
+    * @param to the binary names of the types it references
+    */
+   synchronized void addReferences(String from, Collection<String> to) {
+      int fromId = id(from);
+      assert forward[fromId] == null;
+      int edges[] = new int[to.size()];
+      int len = 0;
+      for (String name : to) {
+         int toId = id(name);
+         if (toId == fromId) {
+            continue;
+         }
+         edges[len++] = toId;
+         int in[] = reverse[toId];
+         int inSize = reverseSizes[toId];
+         if (in == null) {
+            in = reverse[toId] = new int[4];
+         } else if (inSize == in.length) {
+            in = reverse[toId] = Arrays.copyOf(in, inSize * 2);
+         }
+         in[inSize] = fromId;
+         reverseSizes[toId] = inSize + 1;
+      }
+      forward[fromId] = len == edges.length ? edges : Arrays.copyOf(edges, len);
+      edgeCount += len;
+   }
+
+   /**
+    * Returns the number of types in the graph: all synthesized types plus all types they
+    * reference.
+    *
+    * @return the number of types in the graph
+    */
+   public synchronized int typeCount() {
+      return nodeCount;
+   }
+
+   /**
+    * Returns the number of references in the graph.
+    *
+    * @return the number of edges in the graph
+    */
+   public synchronized int referenceCount() {
+      return edgeCount;
+   }
+
+   /**
+    * Returns true if the given type is in the graph, either because it was synthesized or because
+    * a synthesized type references it.
+    *
+    * @param binaryName the binary name of a type
+    * @return true if the type is in the graph
+    */
+   public synchronized boolean contains(String binaryName) {
+      return ids.containsKey(binaryName);
+   }
+
+   /**
+    * Returns the types referenced by the given type. If the type was not synthesized, this returns
+    * an empty list.
+    *
+    * @param binaryName the binary name of a type
+    * @return the binary names of the types it references
+    */
+   public synchronized List<String> references(String binaryName) {
+      Integer id = ids.get(binaryName);
+      if (id == null) {
+         return Collections.emptyList();
+      }
+      int edges[] = forward[id];
+      return edges == null ? Collections.emptyList() : names(edges, edges.length);
+   }
+
+   /**
+    * Returns the synthesized types that reference the given type.
+    *
+    * @param binaryName the binary name of a type
+    * @return the binary names of the synthesized types that reference it
+    */
+   public synchronized List<String> referencedBy(String binaryName) {
+      Integer id = ids.get(binaryName);
+      if (id == null) {
+         return Collections.emptyList();
+      }
+      int edges[] = reverse[id];
+      return edges == null ? Collections.emptyList() : names(edges, reverseSizes[id]);
+   }
+
+   /**
+    * Returns all synthesized types that depend on any of the given types, directly or
+    * transitively. A type depends on another if it references it or if it references a type that
+    * depends on it. The given types are not included in the result unless they depend on one
+    * another (for example, because of a cycle of references).
+    *
+    * @param binaryNames the binary names of some types, like those that have changed
+    * @return the binary names of all synthesized types that depend on them
+    */
+   public synchronized Set<String> dependents(Collection<String> binaryNames) {
+      BitSet visited = new BitSet(nodeCount);
+      int queue[] = new int[nodeCount];
+      int head = 0, tail = 0;
+      BitSet queued = new BitSet(nodeCount);
+      for (String name : binaryNames) {
+         Integer id = ids.get(name);
+         if (id != null && !queued.get(id)) {
+            queued.set(id);
+            queue[tail++] = id;
+         }
+      }
+      Set<String> result = new LinkedHashSet<>();
+      while (head < tail) {
+         int id = queue[head++];
+         int edges[] = reverse[id];
+         for (int i = 0, len = reverseSizes[id]; i < len; i++) {
+            int dependent = edges[i];
+            if (!visited.get(dependent)) {
+               visited.set(dependent);
+               result.add(names[dependent]);
+               if (!queued.get(dependent)) {
+                  queued.set(dependent);
+                  queue[tail++] = dependent;
+               }
+            }
+         }
+      }
+      return result;
+   }
+
+   private List<String> names(int ids[], int len) {
+      // snapshot the names, since the arrays may grow after this method returns
+      String result[] = new String[len];
+      for (int i = 0; i < len; i++) {
+         result[i] = names[ids[i]];
+      }
+      return Collections.unmodifiableList(Arrays.asList(result));
+   }
+
+   @Override public synchronized String toString() {
+      return "TypeReferenceGraph[types=" + nodeCount + ", references=" + edgeCount + "]";
+   }
+}
@@ -0,0 +1,399 @@
+package com.bluegosling.apt.trureflect;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.GenericDeclaration;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.IntersectionType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+
+/**
+ * Relations between reflection types, like subtyping and assignability. Answering these with
+ * reflection alone means walking class hierarchies and resolving type variables by hand. Instead,
+ * each type is mapped back to a {@link TypeMirror} and the question is answered by javac's {@link
+ * Types}. Types that came from {@link TruReflect#forTypeMirror(TypeMirror)} remember their mirrors.
+ * Other types, including class tokens and the generic types returned by core reflection, are
+ * mapped to mirrors via their elements. Either way, no classes are synthesized to answer a
+ * question.
+ *
+ * <p>Types from {@link TruReflect#forTypeMirrorLazily(TypeMirror)} are answered without loading
+ * their raw types, and supertypes found for them are converted just as lazily. Results for such
+ * types are not memoized, since they are only equal to each other by way of the compiler.
+ *
+ * <p>Results are memoized per pair of types, so repeated questions are map lookups. How often
+ * they hit is reported by the instance's {@linkplain TruReflect#metrics() metrics}. Since javac's
+ * utilities are not thread-safe, these methods should only be called on the processor's thread,
+ * unless model access is {@linkplain TruReflect#confineModelAccess(ModelExecutor) confined}, in
+ * which case they are answered on the model thread.
+ *
+ * @see TruReflect#typeRelations()
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+public final class TypeRelations {
+
+   /**
+    * A key for memoized results, made of two types.
+    */
+   private static final class Pair {
+      final Object first;
+      final Object second;
+
+      Pair(Object first, Object second) {
+         this.first = first;
+         this.second = second;
+      }
+
+      @Override public boolean equals(Object o) {
+         if (!(o instanceof Pair)) {
+            return false;
+         }
+         Pair other = (Pair) o;
+         return first.equals(other.first) && second.equals(other.second);
+      }
+
+      @Override public int hashCode() {
+         return first.hashCode() * 31 + second.hashCode();
+      }
+   }
+
+   private final TruReflect truReflect;
+   private final Environment env;
+   private final TruReflectClassLoader loader;
+   private final Map<Type, TypeMirror> mirrors = new ConcurrentHashMap<>();
+   private final Map<Pair, Boolean> subtypes = new ConcurrentHashMap<>();
+   private final Map<Pair, Boolean> assignable = new ConcurrentHashMap<>();
+   private final Map<Pair, Optional<Type>> supertypes = new ConcurrentHashMap<>();
+
+   TypeRelations(TruReflect truReflect, Environment env, TruReflectClassLoader loader) {
+      this.truReflect = truReflect;
+      this.env = env;
+      this.loader = loader;
+   }
+
+   /**
+    * Determines if one type is a subtype of another.
+    *
+    * @param type a type
+    * @param supertype another type
+    * @return true if the first type is a subtype of the second
+    * @throws IllegalArgumentException if either type has no corresponding type mirror
+    *
+    * @see Types#isSubtype(TypeMirror, TypeMirror)
+    */
+   public boolean isSubtype(Type type, Type supertype) {
+      ModelExecutor executor = truReflect.forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> isSubtype(type, supertype));
+      }
+      if (MirroredTypes.isLazy(type) || MirroredTypes.isLazy(supertype)) {
+         return env.typeUtils().isSubtype(mirrorOf(type), mirrorOf(supertype));
+      }
+      return memoized(subtypes, new Pair(type, supertype), loader.metrics().subtypeChecks(),
+            p -> env.typeUtils().isSubtype(mirrorOf(type), mirrorOf(supertype)));
+   }
+
+   /**
+    * Determines if a value of one type can be assigned to a variable of another type.
+    *
+    * @param from the type of a value
+    * @param to the type of a variable
+    * @return true if the value can be assigned to the variable
+    * @throws IllegalArgumentException if either type has no corresponding type mirror
+    *
+    * @see Types#isAssignable(TypeMirror, TypeMirror)
+    */
+   public boolean isAssignable(Type from, Type to) {
+      ModelExecutor executor = truReflect.forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> isAssignable(from, to));
+      }
+      if (MirroredTypes.isLazy(from) || MirroredTypes.isLazy(to)) {
+         return env.typeUtils().isAssignable(mirrorOf(from), mirrorOf(to));
+      }
+      return memoized(assignable, new Pair(from, to), loader.metrics().assignabilityChecks(),
+            p -> env.typeUtils().isAssignable(mirrorOf(from), mirrorOf(to)));
+   }
+
+   /**
+    * Returns the supertype of the given type whose raw type is the given class. For example, the
+    * supertype of {@code ArrayList<String>} for {@code Collection.class} is {@code
+    * Collection<String>}. If the given type is raw then the result is also raw.
+    *
+    * @param type a type
+    * @param superclass a class or interface
+    * @return the given type's parameterization of the given class, or {@code null} if the class is
+    *       not a supertype of the given type
+    * @throws IllegalArgumentException if the type or class has no corresponding type mirror
+    */
+   public Type asSuper(Type type, Class<?> superclass) {
+      ModelExecutor executor = truReflect.forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> asSuper(type, superclass));
+      }
+      if (MirroredTypes.isLazy(type)) {
+         return computeAsSuper(type, superclass);
+      }
+      return memoized(supertypes, new Pair(type, superclass), loader.metrics().supertypes(),
+            p -> Optional.ofNullable(computeAsSuper(type, superclass))).orElse(null);
+   }
+
+   /**
+    * Returns the memoized result for the given key, computing it if absent, and records whether
+    * the lookup was a hit.
+    */
+   private static <K, V> V memoized(Map<K, V> memo, K key, SynthesisMetrics.CacheStats stats,
+         Function<? super K, ? extends V> compute) {
+      V v = memo.get(key);
+      if (v != null) {
+         stats.hit();
+         return v;
+      }
+      stats.miss();
+      return memo.computeIfAbsent(key, compute);
+   }
+
+   private Type computeAsSuper(Type type, Class<?> superclass) {
+      TypeMirror mirror = mirrorOf(type);
+      if (superclass.isArray() || mirror.getKind() == TypeKind.ARRAY
+            || superclass.isPrimitive()) {
+         // arrays and primitives have no parameterized supertypes
+         return isSubtype(type, superclass) ? superclass : null;
+      }
+      TypeElement target = typeElementOf(superclass);
+      Deque<TypeMirror> queue = new ArrayDeque<>();
+      Set<Element> visited = new HashSet<>();
+      queue.add(mirror);
+      while (!queue.isEmpty()) {
+         TypeMirror m = queue.poll();
+         switch (m.getKind()) {
+            case DECLARED:
+               Element e = ((DeclaredType) m).asElement();
+               if (e.equals(target)) {
+                  return convert(m, type);
+               }
+               if (visited.add(e)) {
+                  queue.addAll(env.typeUtils().directSupertypes(m));
+               }
+               break;
+            case TYPEVAR:
+               queue.add(((javax.lang.model.type.TypeVariable) m).getUpperBound());
+               break;
+            case WILDCARD:
+               TypeMirror bound = ((javax.lang.model.type.WildcardType) m).getExtendsBound();
+               queue.add(bound != null ? bound : mirrorOf(Object.class));
+               break;
+            case INTERSECTION:
+               queue.addAll(((IntersectionType) m).getBounds());
+               break;
+            default:
+               break;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Resolves a type variable as seen from the given type. For example, resolving the type
+    * variable of {@code List<E>} in {@code ArrayList<String>} results in {@code String}. If the
+    * variable's class is a raw supertype of the given type, the result is the variable's erasure.
+    *
+    * @param variable a type variable
+    * @param in the type in whose context the variable is resolved
+    * @return the resolved type, or the variable itself if it can't be resolved (e.g. if it is
+    *       declared by a method or its class is not a supertype of the given type)
+    * @throws IllegalArgumentException if the type has no corresponding type mirror
+    */
+   public Type resolve(TypeVariable<?> variable, Type in) {
+      ModelExecutor executor = truReflect.forwardingExecutor();
+      if (executor != null) {
+         return executor.call(() -> resolve(variable, in));
+      }
+      GenericDeclaration d = variable.getGenericDeclaration();
+      if (!(d instanceof Class)) {
+         return variable;
+      }
+      Type sup = asSuper(in, (Class<?>) d);
+      if (sup instanceof ParameterizedType) {
+         TypeVariable<?> vars[] = d.getTypeParameters();
+         for (int i = 0; i < vars.length; i++) {
+            if (vars[i].getName().equals(variable.getName())) {
+               return ((ParameterizedType) sup).getActualTypeArguments()[i];
+            }
+         }
+      } else if (sup instanceof Class || sup instanceof MirroredTypes.LazyClassType) {
+         // a raw supertype
+         return convert(env.typeUtils().erasure(mirrorOf(variable)), in);
+      }
+      return variable;
+   }
+
+   /**
+    * Converts a mirror to a reflection type, lazily if the type it was derived from is lazy.
+    */
+   private Type convert(TypeMirror mirror, Type from) {
+      return MirroredTypes.isLazy(from)
+            ? truReflect.forTypeMirrorLazily(mirror) : truReflect.forTypeMirror(mirror);
+   }
+
+   /**
+    * Returns the type mirror that corresponds to the given reflection type.
+    *
+    * @param type a reflection type
+    * @return the corresponding type mirror
+    * @throws IllegalArgumentException if the type has no corresponding type mirror
+    */
+   public TypeMirror mirrorOf(Type type) {
+      if (type instanceof MirroredTypes.MirroredType) {
+         return ((MirroredTypes.MirroredType) type).mirror();
+      }
+      TypeMirror m = mirrors.get(type);
+      if (m != null) {
+         loader.metrics().typeMirrors().hit();
+      } else {
+         ModelExecutor executor = truReflect.forwardingExecutor();
+         if (executor != null) {
+            return executor.call(() -> mirrorOf(type));
+         }
+         loader.metrics().typeMirrors().miss();
+         // computed outside of the map, since it is recursive
+         m = computeMirror(type);
+         mirrors.putIfAbsent(type, m);
+      }
+      return m;
+   }
+
+   private TypeMirror computeMirror(Type type) {
+      Types types = env.typeUtils();
+      if (type instanceof Class) {
+         Class<?> clazz = (Class<?>) type;
+         if (clazz.isArray()) {
+            return types.getArrayType(mirrorOf(clazz.getComponentType()));
+         } else if (clazz == void.class) {
+            return types.getNoType(TypeKind.VOID);
+         } else if (clazz.isPrimitive()) {
+            return types.getPrimitiveType(primitiveKind(clazz));
+         }
+         // a class token for a generic type is its raw type
+         return types.erasure(typeElementOf(clazz).asType());
+      } else if (type instanceof ParameterizedType) {
+         ParameterizedType pt = (ParameterizedType) type;
+         TypeElement element = typeElementOf((Class<?>) pt.getRawType());
+         Type args[] = pt.getActualTypeArguments();
+         TypeMirror argMirrors[] = new TypeMirror[args.length];
+         for (int i = 0; i < args.length; i++) {
+            argMirrors[i] = mirrorOf(args[i]);
+         }
+         Type owner = pt.getOwnerType();
+         TypeMirror ownerMirror = owner == null ? null : mirrorOf(owner);
+         return ownerMirror instanceof DeclaredType
+               && !((DeclaredType) ownerMirror).getTypeArguments().isEmpty()
+               ? types.getDeclaredType((DeclaredType) ownerMirror, element, argMirrors)
+               : types.getDeclaredType(element, argMirrors);
+      } else if (type instanceof GenericArrayType) {
+         return types.getArrayType(mirrorOf(((GenericArrayType) type).getGenericComponentType()));
+      } else if (type instanceof WildcardType) {
+         WildcardType wt = (WildcardType) type;
+         Type upper[] = wt.getUpperBounds();
+         Type lower[] = wt.getLowerBounds();
+         TypeMirror extendsBound = upper.length == 0 || upper[0] == Object.class
+               ? null : mirrorOf(upper[0]);
+         TypeMirror superBound = lower.length == 0 ? null : mirrorOf(lower[0]);
+         return types.getWildcardType(extendsBound, superBound);
+      } else if (type instanceof TypeVariable) {
+         return typeParameterOf((TypeVariable<?>) type).asType();
+      }
+      throw new IllegalArgumentException("Unrecognized type " + type);
+   }
+
+   private static TypeKind primitiveKind(Class<?> clazz) {
+      if (clazz == boolean.class) {
+         return TypeKind.BOOLEAN;
+      } else if (clazz == byte.class) {
+         return TypeKind.BYTE;
+      } else if (clazz == char.class) {
+         return TypeKind.CHAR;
+      } else if (clazz == short.class) {
+         return TypeKind.SHORT;
+      } else if (clazz == int.class) {
+         return TypeKind.INT;
+      } else if (clazz == long.class) {
+         return TypeKind.LONG;
+      } else if (clazz == float.class) {
+         return TypeKind.FLOAT;
+      } else {
+         assert clazz == double.class;
+         return TypeKind.DOUBLE;
+      }
+   }
+
+   private TypeElement typeElementOf(Class<?> clazz) {
+      TypeElement element = loader.typeElementFor(clazz);
+      if (element == null) {
+         throw new IllegalArgumentException("No type element for " + clazz.getName());
+      }
+      return element;
+   }
+
+   private TypeParameterElement typeParameterOf(TypeVariable<?> variable) {
+      GenericDeclaration d = variable.getGenericDeclaration();
+      Iterable<? extends TypeParameterElement> params = null;
+      if (d instanceof Class) {
+         params = typeElementOf((Class<?>) d).getTypeParameters();
+      } else if (d instanceof Method || d instanceof Constructor) {
+         ExecutableElement executable = executableElementOf(d);
+         params = executable == null ? null : executable.getTypeParameters();
+      }
+      if (params != null) {
+         for (TypeParameterElement param : params) {
+            if (param.getSimpleName().contentEquals(variable.getName())) {
+               return param;
+            }
+         }
+      }
+      throw new IllegalArgumentException("No type parameter element for " + variable.getName()
+            + " declared by " + d);
+   }
+
+   private ExecutableElement executableElementOf(GenericDeclaration d) {
+      boolean isMethod = d instanceof Method;
+      Class<?> owner = isMethod
+            ? ((Method) d).getDeclaringClass() : ((Constructor<?>) d).getDeclaringClass();
+      String name = isMethod ? ((Method) d).getName() : null;
+      String descriptor = isMethod
+            ? org.objectweb.asm.Type.getMethodDescriptor((Method) d)
+            : org.objectweb.asm.Type.getConstructorDescriptor((Constructor<?>) d);
+      ElementKind kind = isMethod ? ElementKind.METHOD : ElementKind.CONSTRUCTOR;
+      for (Element e : typeElementOf(owner).getEnclosedElements()) {
+         if (e.getKind() == kind
+               && (name == null || e.getSimpleName().contentEquals(name))
+               && Objects.equals(descriptor,
+                     env.typeNameUtils().getDescriptor((ExecutableElement) e))) {
+            return (ExecutableElement) e;
+         }
+      }
+      return null;
+   }
+}
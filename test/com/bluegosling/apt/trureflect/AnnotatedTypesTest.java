@@ -0,0 +1,51 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.AnnotatedType;
+import java.util.Collections;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+
+import org.junit.Test;
+
+public class AnnotatedTypesTest {
+
+   private static final String SOURCE = "package q;\n"
+         + "public class Outer<T> {\n"
+         + "   public class Inner<U> {}\n"
+         + "   public static class Nested {}\n"
+         + "   public Outer<String>.Inner<Integer> inner;\n"
+         + "   public Nested nested;\n"
+         + "   public String[] array;\n"
+         + "   public String string;\n"
+         + "}\n";
+
+   private static AnnotatedType owner(TruReflect tru, TypeElement type, String fieldName) {
+      for (Element field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+         if (field.getSimpleName().contentEquals(fieldName)) {
+            // getAnnotatedOwnerType() is not part of the Java 8 API
+            return ((AnnotatedTypes.AnnotatedTypeImpl) tru.forAnnotatedTypeMirror(field.asType()))
+                  .getAnnotatedOwnerType();
+         }
+      }
+      throw new AssertionError("no field named " + fieldName);
+   }
+
+   @Test public void annotatedOwnerType() {
+      ProcessingFixture.process(Collections.singletonMap("q.Outer", SOURCE), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         TypeElement outer = round.type("q.Outer");
+         assertEquals("q.Outer<java.lang.String>",
+               owner(tru, outer, "inner").getType().getTypeName());
+         // the owner of a static nested type is the raw declaring class
+         assertSame(tru.forElement(outer), owner(tru, outer, "nested").getType());
+         assertNull(owner(tru, outer, "array"));
+         assertNull(owner(tru, outer, "string"));
+      });
+   }
+}
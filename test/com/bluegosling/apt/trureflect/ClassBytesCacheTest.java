@@ -0,0 +1,145 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ClassBytesCacheTest {
+
+   private static ClassBytesCache.Entry entry(int size) {
+      return new ClassBytesCache.Entry(new byte[size], new String[] { "a.B$C" },
+            new String[] { "a.B.C" });
+   }
+
+   @Test public void getAndPut() {
+      ClassBytesCache cache = new ClassBytesCache(1000);
+      ClassBytesCache.Entry e = entry(100);
+      assertNull(cache.get("a.B#123"));
+      cache.put("a.B#123", e);
+      assertSame(e, cache.get("a.B#123"));
+      assertNull(cache.get("a.B#456"));
+      assertEquals(1, cache.size());
+      assertEquals(100, cache.totalBytes());
+      assertEquals(1, cache.hitCount());
+      assertEquals(2, cache.missCount());
+   }
+
+   @Test public void replace() {
+      ClassBytesCache cache = new ClassBytesCache(1000);
+      cache.put("a.B#123", entry(100));
+      ClassBytesCache.Entry e = entry(200);
+      cache.put("a.B#123", e);
+      assertSame(e, cache.get("a.B#123"));
+      assertEquals(1, cache.size());
+      assertEquals(200, cache.totalBytes());
+   }
+
+   @Test public void evictsLeastRecentlyUsed() {
+      ClassBytesCache cache = new ClassBytesCache(300);
+      ClassBytesCache.Entry e1 = entry(100);
+      ClassBytesCache.Entry e2 = entry(100);
+      ClassBytesCache.Entry e3 = entry(100);
+      cache.put("e1", e1);
+      cache.put("e2", e2);
+      cache.put("e3", e3);
+      // touch e1 so that e2 is the least recently used
+      assertSame(e1, cache.get("e1"));
+      cache.put("e4", entry(150));
+      assertNull(cache.get("e2"));
+      assertNull(cache.get("e3"));
+      assertSame(e1, cache.get("e1"));
+      assertEquals(2, cache.size());
+      assertEquals(250, cache.totalBytes());
+   }
+
+   @Test public void tooLargeToCache() {
+      ClassBytesCache cache = new ClassBytesCache(100);
+      cache.put("e1", entry(50));
+      cache.put("e2", entry(101));
+      assertNull(cache.get("e2"));
+      assertEquals(1, cache.size());
+      assertEquals(50, cache.totalBytes());
+   }
+
+   @Test public void clear() {
+      ClassBytesCache cache = new ClassBytesCache(1000);
+      cache.put("e1", entry(50));
+      cache.put("e2", entry(50));
+      cache.clear();
+      assertEquals(0, cache.size());
+      assertEquals(0, cache.totalBytes());
+      assertNull(cache.get("e1"));
+   }
+
+   private static final String NAMES[] = { "x.A", "x.B", "x.C", "x.C.Inner", "x.D" };
+
+   private static Map<String, String> sources() {
+      Map<String, String> sources = new HashMap<>();
+      sources.put("x.A", "package x;\n"
+            + "public class A extends B<String> {\n"
+            + "   public C.Inner inner;\n"
+            + "   public java.util.List<D> ds() { return null; }\n"
+            + "}\n");
+      sources.put("x.B", "package x; public abstract class B<T> { protected T t; }");
+      sources.put("x.C", "package x; public class C { public static class Inner {} }");
+      sources.put("x.D", "package x; public interface D {}");
+      return sources;
+   }
+
+   /**
+    * Compiles the sources and loads every class, and the classes A references, through a new
+    * instance that uses the given cache. Returns the class files of the loaded classes.
+    */
+   private static Map<String, byte[]> compileAndLoad(ClassBytesCache cache,
+         SynthesisMetrics metrics[]) {
+      Map<String, byte[]> classBytes = new HashMap<>();
+      ProcessingFixture.process(sources(), round -> {
+         try (ClassBytesStore store = ClassBytesStore.direct(1 << 16, false)) {
+            TruReflect tru =
+                  new TruReflect(round.env()).useClassBytesCache(cache).retainClassBytes(store);
+            Class<?> a = round.load(tru, "x.A");
+            // the types A references are loaded while A is reflected on
+            assertSame(round.load(tru, "x.B"), a.getSuperclass());
+            assertEquals("x.B<java.lang.String>", a.getGenericSuperclass().getTypeName());
+            assertSame(round.load(tru, "x.C.Inner"), a.getField("inner").getType());
+            assertSame(round.load(tru, "x.C"), a.getField("inner").getType().getDeclaringClass());
+            Method ds = a.getMethod("ds");
+            assertSame(round.load(tru, "x.D"),
+                  ((ParameterizedType) ds.getGenericReturnType()).getActualTypeArguments()[0]);
+            assertEquals(1, round.load(tru, "x.B").getTypeParameters().length);
+            for (String name : NAMES) {
+               classBytes.put(name, tru.classBytesOf(round.load(tru, name)));
+            }
+            metrics[0] = tru.metrics();
+         }
+      });
+      return classBytes;
+   }
+
+   @Test public void hitsAcrossCompilations() {
+      ClassBytesCache cache = new ClassBytesCache(1 << 20);
+      SynthesisMetrics metrics[] = new SynthesisMetrics[1];
+      Map<String, byte[]> first = compileAndLoad(cache, metrics);
+      assertEquals(0, metrics[0].classBytesCache().hitCount());
+      assertEquals(NAMES.length, metrics[0].classBytesCache().missCount());
+      assertEquals(NAMES.length, cache.size());
+
+      Map<String, byte[]> second = compileAndLoad(cache, metrics);
+      // every class came from the cache, so no elements were crawled and no class files emitted
+      assertEquals(NAMES.length, metrics[0].classBytesCache().hitCount());
+      assertEquals(0, metrics[0].classBytesCache().missCount());
+      assertEquals(0, metrics[0].elementCrawl().count());
+      assertEquals(NAMES.length, metrics[0].classesSynthesized());
+      for (String name : NAMES) {
+         assertArrayEquals(name, first.get(name), second.get(name));
+      }
+   }
+}
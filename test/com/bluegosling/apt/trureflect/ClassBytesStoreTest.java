@@ -0,0 +1,125 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+import org.junit.Test;
+
+public class ClassBytesStoreTest {
+
+   private static List<byte[]> classFiles() {
+      Random r = new Random(42);
+      List<byte[]> classFiles = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+         byte b[] = new byte[r.nextInt(3000)];
+         // half are compressible, half are random
+         if (i % 2 == 0) {
+            for (int j = 0; j < b.length; j++) {
+               b[j] = (byte) (j % 7);
+            }
+         } else {
+            r.nextBytes(b);
+         }
+         classFiles.add(b);
+      }
+      // and one that is bigger than a segment
+      classFiles.add(new byte[10_000]);
+      return classFiles;
+   }
+
+   private static void checkStore(ClassBytesStore store) {
+      List<byte[]> classFiles = classFiles();
+      long total = 0;
+      for (int i = 0; i < classFiles.size(); i++) {
+         assertEquals(i, store.put(classFiles.get(i)));
+         total += classFiles.get(i).length;
+      }
+      assertEquals(classFiles.size(), store.count());
+      assertEquals(total, store.originalBytes());
+      for (int i = 0; i < classFiles.size(); i++) {
+         assertArrayEquals(classFiles.get(i), store.get(i));
+         assertEquals(classFiles.get(i).length, store.size(i));
+      }
+      try {
+         store.get(classFiles.size());
+         fail("Expecting IllegalArgumentException");
+      } catch (IllegalArgumentException expected) {
+      }
+   }
+
+   @Test public void direct() {
+      try (ClassBytesStore store = ClassBytesStore.direct(4096, false)) {
+         checkStore(store);
+         assertEquals(store.originalBytes(), store.storedBytes());
+         assertTrue(store.reservedBytes() >= store.storedBytes());
+      }
+   }
+
+   @Test public void compressed() {
+      try (ClassBytesStore store = ClassBytesStore.direct(4096, true)) {
+         checkStore(store);
+         assertTrue(store.toString(), store.storedBytes() < store.originalBytes());
+      }
+   }
+
+   @Test public void mapped() throws IOException {
+      Path dir = Files.createTempDirectory("classbytes");
+      try (ClassBytesStore store = ClassBytesStore.mapped(dir, 4096, true)) {
+         checkStore(store);
+      } finally {
+         Files.deleteIfExists(dir);
+      }
+   }
+
+   @Test public void closed() {
+      ClassBytesStore store = ClassBytesStore.direct(4096, false);
+      int handle = store.put(new byte[] { 1, 2, 3 });
+      store.close();
+      try {
+         store.get(handle);
+         fail("Expecting IllegalStateException");
+      } catch (IllegalStateException expected) {
+      }
+   }
+
+   @Test public void retainedBytesStayWithTheirStore() {
+      Map<String, String> sources = new HashMap<>();
+      sources.put("r.A", "package r; public class A {}");
+      sources.put("r.B", "package r; public class B {}");
+      sources.put("r.C", "package r; public class C {}");
+      ProcessingFixture.process(sources, round -> {
+         try (ClassBytesStore first = ClassBytesStore.direct(4096, false);
+               ClassBytesStore second = ClassBytesStore.direct(4096, false)) {
+            TruReflect tru = new TruReflect(round.env()).retainClassBytes(first);
+            Class<?> a = round.load(tru, "r.A");
+            byte aBytes[] = tru.classBytesOf(a);
+            assertNotNull(aBytes);
+            // switching stores doesn't lose, or mix up, what was already retained
+            tru.retainClassBytes(null);
+            Class<?> b = round.load(tru, "r.B");
+            assertArrayEquals(aBytes, tru.classBytesOf(a));
+            assertNull(tru.classBytesOf(b));
+            tru.retainClassBytes(second);
+            Class<?> c = round.load(tru, "r.C");
+            assertArrayEquals(aBytes, tru.classBytesOf(a));
+            assertArrayEquals(second.get(0), tru.classBytesOf(c));
+            assertEquals(1, first.count());
+            assertEquals(1, second.count());
+         }
+      });
+   }
+}
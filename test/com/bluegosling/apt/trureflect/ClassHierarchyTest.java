@@ -0,0 +1,117 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ClassHierarchyTest {
+
+   @Retention(RetentionPolicy.RUNTIME) @Inherited @interface Inheritable {
+   }
+
+   @Retention(RetentionPolicy.RUNTIME) @interface NotInheritable {
+   }
+
+   interface Named {
+      int CONSTANT = 1;
+
+      String name();
+
+      default String describe() {
+         return name();
+      }
+
+      static Named of(String name) {
+         return () -> name;
+      }
+   }
+
+   @Inheritable @NotInheritable static class Base implements Named {
+      int baseField;
+
+      @Override public String name() {
+         return "base";
+      }
+
+      private void hidden() {
+      }
+
+      void overridden(int i) {
+      }
+   }
+
+   static class Derived extends Base {
+      int derivedField;
+
+      @Override void overridden(int i) {
+      }
+
+      void overridden(long l) {
+      }
+   }
+
+   private final Map<Class<?>, ClassHierarchy> cache = new HashMap<>();
+
+   private ClassHierarchy hierarchyOf(Class<?> clazz) {
+      ClassHierarchy h = cache.get(clazz);
+      if (h == null) {
+         h = new ClassHierarchy(clazz, this::hierarchyOf);
+         cache.put(clazz, h);
+      }
+      return h;
+   }
+
+   @Test public void methods() throws Exception {
+      ClassHierarchy h = hierarchyOf(Derived.class);
+      assertEquals(Derived.class.getDeclaredMethod("overridden", int.class),
+            h.findMethod("overridden", int.class));
+      assertEquals(Derived.class.getDeclaredMethod("overridden", long.class),
+            h.findMethod("overridden", long.class));
+      assertEquals(Base.class.getDeclaredMethod("name"), h.findMethod("name"));
+      assertEquals(Named.class.getDeclaredMethod("describe"), h.findMethod("describe"));
+      assertEquals(Object.class.getDeclaredMethod("hashCode"), h.findMethod("hashCode"));
+      // not inherited
+      assertNull(h.findMethod("hidden"));
+      assertNull(h.findMethod("of", String.class));
+      for (Method m : h.allMethods()) {
+         assertFalse(m.toString(), m.getName().equals("overridden")
+               && m.getDeclaringClass() == Base.class);
+      }
+   }
+
+   @Test public void fields() throws Exception {
+      ClassHierarchy h = hierarchyOf(Derived.class);
+      Field fields[] = h.allFields().toArray(new Field[0]);
+      assertEquals(Derived.class.getDeclaredField("derivedField"), fields[0]);
+      assertTrue(h.allFields().contains(Base.class.getDeclaredField("baseField")));
+      assertTrue(h.allFields().contains(Named.class.getDeclaredField("CONSTANT")));
+   }
+
+   @Test public void annotations() {
+      ClassHierarchy h = hierarchyOf(Derived.class);
+      assertNotNull(h.getAnnotation(Inheritable.class));
+      assertFalse(h.isAnnotationPresent(NotInheritable.class));
+      assertEquals(1, h.annotations().size());
+      assertTrue(hierarchyOf(Base.class).isAnnotationPresent(NotInheritable.class));
+   }
+
+   @Test public void supertypesAreShared() {
+      ClassHierarchy h = hierarchyOf(Derived.class);
+      assertSame(hierarchyOf(Base.class), h.superclass());
+      assertSame(hierarchyOf(Named.class), h.superclass().interfaces().get(0));
+      assertNull(hierarchyOf(Named.class).superclass());
+   }
+}
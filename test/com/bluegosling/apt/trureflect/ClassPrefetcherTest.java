@@ -0,0 +1,54 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ClassPrefetcherTest {
+
+   private static Map<String, String> sources() {
+      Map<String, String> sources = new HashMap<>();
+      sources.put("f.A", "package f;\n"
+            + "public class A extends B<String> {\n"
+            + "   public C c;\n"
+            + "   public java.util.List<? extends D> ds() { return null; }\n"
+            + "}\n");
+      sources.put("f.B", "package f;\n"
+            + "@Deprecated public abstract class B<T extends CharSequence> {\n"
+            + "   protected T t;\n"
+            + "   public abstract <X extends D> X x(T t, int... rest) throws Exception;\n"
+            + "}\n");
+      sources.put("f.C", "package f; public enum C { ONE, TWO; public interface Inner {} }");
+      sources.put("f.D", "package f; public interface D extends Comparable<D> {}");
+      return sources;
+   }
+
+   @Test public void prefetchedClassesMatchSynthesizedClasses() {
+      ProcessingFixture.process(sources(), round -> {
+         try (ClassBytesStore prefetchedStore = ClassBytesStore.direct(1 << 16, false);
+               ClassBytesStore synthesizedStore = ClassBytesStore.direct(1 << 16, false)) {
+            TruReflect prefetching = new TruReflect(round.env()).retainClassBytes(prefetchedStore)
+                  .prefetchReferencedTypes(2, 1, TimeUnit.MINUTES);
+            TruReflect synthesizing =
+                  new TruReflect(round.env()).retainClassBytes(synthesizedStore);
+            for (String name : new String[] { "f.A", "f.C", "f.D" }) {
+               round.load(prefetching, name);
+            }
+            // B (the superclass), C and D were all prefetched when A was synthesized
+            assertEquals(3, prefetching.metrics().prefetch().hitCount());
+            for (String name : new String[] { "f.A", "f.B", "f.C", "f.D" }) {
+               byte prefetched[] = prefetching.classBytesOf(round.load(prefetching, name));
+               byte synthesized[] = synthesizing.classBytesOf(round.load(synthesizing, name));
+               assertNotNull(name, prefetched);
+               assertArrayEquals(name, synthesized, prefetched);
+            }
+         }
+      });
+   }
+}
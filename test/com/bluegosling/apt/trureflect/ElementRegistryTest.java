@@ -0,0 +1,60 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Proxy;
+
+import javax.lang.model.element.TypeElement;
+
+import org.junit.Test;
+
+public class ElementRegistryTest {
+
+   private static TypeElement newElement() {
+      // the registry only ever compares elements by identity
+      return (TypeElement) Proxy.newProxyInstance(TypeElement.class.getClassLoader(),
+            new Class<?>[] { TypeElement.class }, (proxy, method, args) -> {
+               throw new UnsupportedOperationException(method.getName());
+            });
+   }
+
+   @Test public void idsAreDense() {
+      ElementRegistry registry = new ElementRegistry();
+      int count = 1000;
+      TypeElement elements[] = new TypeElement[count];
+      for (int i = 0; i < count; i++) {
+         elements[i] = newElement();
+         assertEquals(ElementRegistry.NONE, registry.idOf(elements[i]));
+         assertEquals(i, registry.register(elements[i], "p.C" + i));
+      }
+      assertEquals(count, registry.size());
+      for (int i = 0; i < count; i++) {
+         assertEquals(i, registry.idOf(elements[i]));
+         assertEquals(i, registry.idOf("p.C" + i));
+         assertSame(elements[i], registry.element(i));
+         assertEquals("p.C" + i, registry.binaryName(i));
+      }
+      assertEquals(ElementRegistry.NONE, registry.idOf(newElement()));
+      assertEquals(ElementRegistry.NONE, registry.idOf("p.C" + count));
+   }
+
+   @Test public void sideTables() {
+      ElementRegistry registry = new ElementRegistry();
+      ElementRegistry.SideTable<String> table = new ElementRegistry.SideTable<>();
+      for (int i = 0; i < 100; i++) {
+         int id = registry.register(newElement(), "p.C" + i);
+         assertNull(registry.loadedClass(id));
+         registry.setLoadedClass(id, String.class);
+         if (i % 3 == 0) {
+            table.put(id, "v" + id);
+         }
+      }
+      for (int i = 0; i < 100; i++) {
+         assertSame(String.class, registry.loadedClass(i));
+         assertEquals(i % 3 == 0 ? "v" + i : null, table.get(i));
+      }
+      assertNull(table.get(1000));
+   }
+}
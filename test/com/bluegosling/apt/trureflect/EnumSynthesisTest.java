@@ -0,0 +1,101 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class EnumSynthesisTest {
+
+   private static List<String> names(int count, String prefix) {
+      List<String> names = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+         names.add(prefix + i);
+      }
+      return names;
+   }
+
+   private static String source(String simpleName, List<String> names) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("package e;\npublic enum ").append(simpleName).append(" {\n");
+      for (String name : names) {
+         sb.append("   ").append(name).append(",\n");
+      }
+      return sb.append("}\n").toString();
+   }
+
+   private static Set<String> names(Iterable<Method> methods, Class<?> declaringClass) {
+      Set<String> names = new HashSet<>();
+      for (Method m : methods) {
+         if (m.getDeclaringClass() == declaringClass) {
+            names.add(m.getName());
+         }
+      }
+      return names;
+   }
+
+   /**
+    * Checks the constants of the given enum and returns its class's declared methods.
+    */
+   @SuppressWarnings({ "unchecked", "rawtypes" })
+   private static Set<String> checkEnum(String simpleName, List<String> names) {
+      String className = "e." + simpleName;
+      Set<String> declaredMethods = new HashSet<>();
+      ProcessingFixture.process(
+            Collections.singletonMap(className, source(simpleName, names)), round -> {
+               TruReflect tru = new TruReflect(round.env());
+               Class<?> clazz = round.load(tru, className);
+               assertTrue(clazz.isEnum());
+               Object constants[] = clazz.getEnumConstants();
+               assertEquals(names.size(), constants.length);
+               for (int i = 0; i < constants.length; i++) {
+                  Enum<?> e = (Enum<?>) constants[i];
+                  assertEquals(i, e.ordinal());
+                  assertEquals(names.get(i), e.name());
+                  assertSame(e, Enum.valueOf((Class) clazz, names.get(i)));
+                  assertSame(e, clazz.getField(names.get(i)).get(null));
+               }
+               // only the methods of the enum itself are listed
+               assertEquals(new HashSet<>(Arrays.asList("values", "valueOf")),
+                     names(tru.hierarchyOf(clazz).allMethods(), clazz));
+               declaredMethods.addAll(names(Arrays.asList(clazz.getDeclaredMethods()), clazz));
+            });
+      return declaredMethods;
+   }
+
+   @Test public void moreConstantsThanFitInAByte() {
+      checkEnum("Byte", names(128, "C"));
+   }
+
+   @Test public void moreConstantsThanFitInOneInitializer() {
+      // too many for javac, but the synthesized initializer still assigns them all itself
+      assertEquals(new HashSet<>(Arrays.asList("values", "valueOf")),
+            checkEnum("Many", names(5000, "C")));
+   }
+
+   @Test public void moreConstantsThanOneMethodCanAssign() {
+      // assigned by synthetic helpers, which core reflection lists but the hierarchy view doesn't
+      Set<String> declared = checkEnum("Huge", names(10000, "C"));
+      assertTrue(declared.toString(), declared.contains("$assignConstants$0"));
+   }
+
+   @Test public void namesLongerThanOneConstantPoolEntry() {
+      StringBuilder prefix = new StringBuilder("N");
+      while (prefix.length() < 100) {
+         prefix.append("_long_name");
+      }
+      // 800 names of 100+ characters: over 80,000 bytes once joined
+      List<String> names = names(800, prefix.append('_').toString());
+      assertTrue(String.join(",", names).length() > 70_000);
+      checkEnum("Long", names);
+   }
+}
@@ -0,0 +1,54 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FingerprintsTest {
+
+   private static String fingerprintOfUser(String nestedKind) {
+      Map<String, String> sources = new HashMap<>();
+      sources.put("k.Outer", "package k; public class Outer { public static " + nestedKind
+            + " Nested {} }");
+      sources.put("k.User", "package k; public class User { public Outer.Nested nested; }");
+      String fingerprint[] = new String[1];
+      ProcessingFixture.process(sources, round -> {
+         fingerprint[0] = new Environment(round.env()).fingerprintUtils()
+               .getFingerprint(round.type("k.User"));
+      });
+      return fingerprint[0];
+   }
+
+   @Test public void referencedNestedTypeKind() {
+      assertEquals(fingerprintOfUser("class"), fingerprintOfUser("class"));
+      // the modifiers are the same, but the inner class flags in User's class file are not
+      assertFalse(fingerprintOfUser("class").equals(fingerprintOfUser("interface")));
+      assertFalse(fingerprintOfUser("interface").equals(fingerprintOfUser("@interface")));
+   }
+
+   private static String fingerprintOfInner(String mid) {
+      String source = "package k; public class Outer { " + mid + " Mid {"
+            + " public static class Inner {} } }";
+      String fingerprint[] = new String[1];
+      ProcessingFixture.process(Collections.singletonMap("k.Outer", source), round -> {
+         fingerprint[0] = new Environment(round.env()).fingerprintUtils()
+               .getFingerprint(round.type("k.Outer.Mid.Inner"));
+      });
+      return fingerprint[0];
+   }
+
+   @Test public void enclosingNestedTypeKindAndModifiers() {
+      assertEquals(fingerprintOfInner("static class"), fingerprintOfInner("static class"));
+      // Inner is the same, but the inner class flags recorded for Mid in its class file are not
+      assertFalse(fingerprintOfInner("static class").equals(fingerprintOfInner("interface")));
+      assertFalse(
+            fingerprintOfInner("static class").equals(fingerprintOfInner("public static class")));
+      assertFalse(
+            fingerprintOfInner("static class").equals(fingerprintOfInner("static final class")));
+   }
+}
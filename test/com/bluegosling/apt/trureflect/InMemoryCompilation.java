@@ -0,0 +1,164 @@
+package com.bluegosling.apt.trureflect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Runs the system Java compiler over in-memory sources, invoking a task from an annotation
+ * processor. All output is discarded, so tests and benchmarks can run without touching the file
+ * system.
+ * 
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+final class InMemoryCompilation {
+   
+   /**
+    * A task that is run from an annotation processor.
+    */
+   @FunctionalInterface
+   interface RoundTask {
+      /**
+       * Runs the task in a processing round.
+       * 
+       * @param env the processing environment
+       * @param roundEnv the round environment
+       * @throws Exception if the task fails
+       */
+      void run(ProcessingEnvironment env, RoundEnvironment roundEnv) throws Exception;
+   }
+   
+   private InMemoryCompilation() {
+   }
+   
+   /**
+    * Runs the compiler over the given sources, stopping after annotation processing. The given
+    * task is run in the first processing round.
+    * 
+    * @param sources a map of fully-qualified class names to source code
+    * @param task the task to run
+    */
+   static void process(Map<String, String> sources, RoundTask task) {
+      compile(sources, Collections.singletonList("-proc:only"), task);
+   }
+   
+   /**
+    * Runs the compiler over the given sources with the given options. The given task is run in the
+    * first processing round. Generated class files are written to memory and discarded.
+    * 
+    * @param sources a map of fully-qualified class names to source code
+    * @param options compiler options
+    * @param task the task to run
+    */
+   static void compile(Map<String, String> sources, List<String> options, RoundTask task) {
+      JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+      if (compiler == null) {
+         throw new IllegalStateException("No system Java compiler available; a JDK is required");
+      }
+      List<JavaFileObject> files = new ArrayList<>(sources.size());
+      for (Entry<String, String> entry : sources.entrySet()) {
+         files.add(new SourceFile(entry.getKey(), entry.getValue()));
+      }
+      StandardJavaFileManager standard = compiler.getStandardFileManager(null, null, null);
+      JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(standard) {
+         @Override
+         public JavaFileObject getJavaFileForOutput(Location location, String className,
+               Kind kind, FileObject sibling) {
+            return new DiscardedOutput(className, kind);
+         }
+      };
+      Throwable failure[] = new Throwable[1];
+      CompilationTask compilation =
+            compiler.getTask(null, fileManager, null, options, null, files);
+      compilation.setProcessors(Collections.singletonList(new AbstractProcessor() {
+         private boolean ran;
+         
+         @Override
+         public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton("*");
+         }
+         
+         @Override
+         public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+         }
+         
+         @Override
+         public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (!ran && !roundEnv.processingOver()) {
+               ran = true;
+               try {
+                  task.run(processingEnv, roundEnv);
+               } catch (Throwable th) {
+                  failure[0] = th;
+               }
+            }
+            return false;
+         }
+      }));
+      boolean success = compilation.call();
+      if (failure[0] != null) {
+         throw new RuntimeException("Task failed", failure[0]);
+      }
+      if (!success) {
+         throw new IllegalStateException("Compilation failed");
+      }
+   }
+   
+   private static URI uri(String className, Kind kind) {
+      return URI.create("mem:///" + className.replace('.', '/') + kind.extension);
+   }
+   
+   /**
+    * A source file whose contents are in memory.
+    */
+   private static class SourceFile extends SimpleJavaFileObject {
+      private final String source;
+      
+      SourceFile(String className, String source) {
+         super(uri(className, Kind.SOURCE), Kind.SOURCE);
+         this.source = source;
+      }
+      
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+         return source;
+      }
+   }
+   
+   /**
+    * An output file whose contents are discarded.
+    */
+   private static class DiscardedOutput extends SimpleJavaFileObject {
+      DiscardedOutput(String className, Kind kind) {
+         super(uri(className, kind), kind);
+      }
+      
+      @Override
+      public OutputStream openOutputStream() {
+         return new ByteArrayOutputStream();
+      }
+   }
+}
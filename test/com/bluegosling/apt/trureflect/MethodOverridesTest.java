@@ -0,0 +1,122 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MethodOverridesTest {
+
+   private static Map<String, String> sources() {
+      Map<String, String> sources = new HashMap<>();
+      sources.put("o.I", "package o;\n"
+            + "public interface I {\n"
+            + "   void m();\n"
+            + "   static void s() {}\n"
+            + "}\n");
+      sources.put("o.J", "package o; public interface J extends I { void m(); }");
+      sources.put("o.Base", "package o;\n"
+            + "public class Base {\n"
+            + "   public void m() {}\n"
+            + "   public static void st() {}\n"
+            + "   private void p() {}\n"
+            + "}\n");
+      // implements I.m with the method it inherits from Base
+      sources.put("o.Impl", "package o; public class Impl extends Base implements I {}");
+      sources.put("o.Sub", "package o;\n"
+            + "public class Sub extends Impl implements J {\n"
+            + "   @Override public void m() {}\n"
+            + "   public static void st() {}\n"
+            + "   private void p() {}\n"
+            + "}\n");
+      return sources;
+   }
+
+   @Test public void inheritedMethodImplementsInterface() {
+      ProcessingFixture.process(sources(), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         Method baseM = round.load(tru, "o.Base").getDeclaredMethod("m");
+         Method iM = round.load(tru, "o.I").getDeclaredMethod("m");
+
+         // Base knows nothing of I, but Impl maps Base's method to the one in I
+         assertEquals(Collections.emptyList(), tru.overridesOf(round.load(tru, "o.Base"))
+               .overriddenBy(baseM));
+         MethodOverrides impl = tru.overridesOf(round.load(tru, "o.Impl"));
+         assertEquals(Collections.singletonList(iM), impl.overriddenBy(baseM));
+         assertTrue(impl.overrides(baseM, iM));
+         // the interface method is implemented, so it is not listed separately
+         assertFalse(impl.methods().contains(iM));
+         assertTrue(impl.methods().contains(baseM));
+      });
+   }
+
+   @Test public void overridesAreTransitive() {
+      ProcessingFixture.process(sources(), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         Method subM = round.load(tru, "o.Sub").getDeclaredMethod("m");
+         Method baseM = round.load(tru, "o.Base").getDeclaredMethod("m");
+         Method iM = round.load(tru, "o.I").getDeclaredMethod("m");
+         Method jM = round.load(tru, "o.J").getDeclaredMethod("m");
+
+         MethodOverrides sub = tru.overridesOf(round.load(tru, "o.Sub"));
+         assertEquals(Arrays.asList(baseM, iM, jM), sub.overriddenBy(subM));
+         assertFalse(sub.methods().contains(baseM));
+         assertFalse(sub.methods().contains(jM));
+      });
+   }
+
+   @Test public void staticAndPrivateMethods() {
+      ProcessingFixture.process(sources(), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         Class<?> base = round.load(tru, "o.Base");
+         Class<?> sub = round.load(tru, "o.Sub");
+         Method baseSt = base.getDeclaredMethod("st");
+         Method subSt = sub.getDeclaredMethod("st");
+         Method baseP = base.getDeclaredMethod("p");
+         Method subP = sub.getDeclaredMethod("p");
+         Method iS = round.load(tru, "o.I").getDeclaredMethod("s");
+
+         MethodOverrides impl = tru.overridesOf(round.load(tru, "o.Impl"));
+         // static methods of classes are inherited, but not those of interfaces
+         assertTrue(impl.methods().contains(baseSt));
+         assertFalse(impl.methods().contains(iS));
+         // private methods are not inherited
+         assertFalse(impl.methods().contains(baseP));
+
+         MethodOverrides table = tru.overridesOf(sub);
+         // a static method hides the one in its superclass, it doesn't override it
+         assertEquals(Collections.emptyList(), table.overriddenBy(subSt));
+         assertFalse(table.methods().contains(baseSt));
+         // neither does a private method with the same signature
+         assertEquals(Collections.emptyList(), table.overriddenBy(subP));
+         assertTrue(table.methods().contains(subP));
+         assertFalse(table.methods().contains(baseP));
+      });
+   }
+
+   @Test public void tablesAreCached() {
+      ProcessingFixture.process(sources(), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         Class<?> sub = round.load(tru, "o.Sub");
+         MethodOverrides table = tru.overridesOf(sub);
+         // Sub, Impl, Base, Object, I, and J
+         assertEquals(6, tru.metrics().methodOverrides().missCount());
+         assertSame(table, tru.overridesOf(sub));
+         assertSame(table, tru.overridesOf(round.type("o.Sub")));
+         // tables for supertypes were computed, and cached, along the way
+         MethodOverrides impl = tru.overridesOf(round.load(tru, "o.Impl"));
+         assertSame(impl, tru.overridesOf(round.load(tru, "o.Impl")));
+         assertEquals(6, tru.metrics().methodOverrides().missCount());
+         assertSame(sub, table.type());
+         assertEquals(table.methods().size(), table.asMap().size());
+      });
+   }
+}
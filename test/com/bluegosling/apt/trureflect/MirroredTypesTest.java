@@ -0,0 +1,161 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+
+import org.junit.Test;
+
+public class MirroredTypesTest {
+
+   @SuppressWarnings("unused")
+   private static class Sample {
+      Map<String, List<? extends Number>> map;
+      List<? super Integer>[] array;
+      List<?> unbounded;
+   }
+
+   private static Type genericType(String field) throws NoSuchFieldException {
+      return Sample.class.getDeclaredField(field).getGenericType();
+   }
+
+   private static void assertSameAsJdk(Type jdk, Type ours) {
+      assertEquals(jdk, ours);
+      assertEquals(ours, jdk);
+      assertEquals(jdk.hashCode(), ours.hashCode());
+      assertEquals(jdk.toString(), ours.toString());
+   }
+
+   @Test public void parameterizedAndWildcard() throws Exception {
+      WildcardType wildcard = new MirroredTypes.WildcardTypeImpl(null,
+            new Type[] { Number.class }, new Type[0]);
+      ParameterizedType list = new MirroredTypes.ParameterizedTypeImpl(null, null, List.class,
+            new Type[] { wildcard });
+      ParameterizedType map = new MirroredTypes.ParameterizedTypeImpl(null, null, Map.class,
+            new Type[] { String.class, list });
+      assertSameAsJdk(genericType("map"), map);
+   }
+
+   @Test public void genericArray() throws Exception {
+      WildcardType wildcard = new MirroredTypes.WildcardTypeImpl(null,
+            new Type[] { Object.class }, new Type[] { Integer.class });
+      GenericArrayType array = new MirroredTypes.GenericArrayTypeImpl(null,
+            new MirroredTypes.ParameterizedTypeImpl(null, null, List.class,
+                  new Type[] { wildcard }));
+      assertSameAsJdk(genericType("array"), array);
+   }
+
+   @Test public void unboundedWildcard() throws Exception {
+      WildcardType wildcard = new MirroredTypes.WildcardTypeImpl(null,
+            new Type[] { Object.class }, new Type[0]);
+      assertSameAsJdk(((ParameterizedType) genericType("unbounded")).getActualTypeArguments()[0],
+            wildcard);
+   }
+
+   private static Map<String, String> sources() {
+      Map<String, String> sources = new HashMap<>();
+      sources.put("l.Plain", "package l; public class Plain {}");
+      sources.put("l.Iface", "package l; public interface Iface {}");
+      sources.put("l.Box", "package l; public class Box<T> {}");
+      sources.put("l.Holder", "package l;\n"
+            + "public class Holder {\n"
+            + "   public class Gen<T> {}\n"
+            + "   public Plain plain;\n"
+            + "   public Plain plain2;\n"
+            + "   public Iface iface;\n"
+            + "   public String string;\n"
+            + "   public Box<Plain> box;\n"
+            + "   public Box<Plain> box2;\n"
+            + "   public Box<Iface> other;\n"
+            + "   public Holder.Gen<Plain> gen;\n"
+            + "   public Box<?> any;\n"
+            + "   public Box<? extends Object> anyObject;\n"
+            + "   public Box<? extends Plain> extendsPlain;\n"
+            + "   public Box<? super Plain> superPlain;\n"
+            + "}\n");
+      return sources;
+   }
+
+   private static TypeMirror fieldType(TypeElement type, String name) {
+      for (Element e : type.getEnclosedElements()) {
+         if (e.getKind().isField() && e.getSimpleName().contentEquals(name)) {
+            return e.asType();
+         }
+      }
+      throw new AssertionError("no field named " + name);
+   }
+
+   @Test public void lazyTypesCompareByMirror() {
+      ProcessingFixture.process(sources(), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         TypeElement holder = round.type("l.Holder");
+         Type plain = tru.forTypeMirrorLazily(fieldType(holder, "plain"));
+         Type plain2 = tru.forTypeMirrorLazily(fieldType(holder, "plain2"));
+         Type iface = tru.forTypeMirrorLazily(fieldType(holder, "iface"));
+         Type box = tru.forTypeMirrorLazily(fieldType(holder, "box"));
+         Type box2 = tru.forTypeMirrorLazily(fieldType(holder, "box2"));
+         Type other = tru.forTypeMirrorLazily(fieldType(holder, "other"));
+         Type gen = tru.forTypeMirrorLazily(fieldType(holder, "gen"));
+
+         // a type that isn't parameterized stands in for its class
+         assertFalse(plain instanceof Class);
+         assertFalse(plain instanceof ParameterizedType);
+         assertEquals("l.Plain", plain.getTypeName());
+         assertEquals("class l.Plain", plain.toString());
+         assertEquals("interface l.Iface", iface.toString());
+         assertSame(String.class, tru.forTypeMirrorLazily(fieldType(holder, "string")));
+
+         assertEquals(plain, plain2);
+         assertEquals(plain.hashCode(), plain2.hashCode());
+         assertFalse(plain.equals(iface));
+         assertEquals(box, box2);
+         assertEquals(box.hashCode(), box2.hashCode());
+         assertFalse(box.equals(other));
+         assertFalse(box.equals(plain));
+         assertEquals("l.Box<l.Plain>", box.toString());
+         assertEquals("l.Holder$Gen<l.Plain>", gen.toString());
+         Type owner = ((ParameterizedType) gen).getOwnerType();
+         assertEquals(tru.forTypeMirrorLazily(holder.asType()), owner);
+         Set<Type> set = new HashSet<>(Arrays.asList(plain, plain2, iface, box, box2, other));
+         assertEquals(4, set.size());
+
+         // wildcards print like the JDK's, which omits an upper bound of Object
+         assertEquals("l.Box<?>", tru.forTypeMirrorLazily(fieldType(holder, "any")).toString());
+         assertEquals("l.Box<?>",
+               tru.forTypeMirrorLazily(fieldType(holder, "anyObject")).toString());
+         assertEquals("l.Box<? extends l.Plain>",
+               tru.forTypeMirrorLazily(fieldType(holder, "extendsPlain")).toString());
+         assertEquals("l.Box<? super l.Plain>",
+               tru.forTypeMirrorLazily(fieldType(holder, "superPlain")).toString());
+
+         // none of that needed a class
+         assertEquals(0, tru.metrics().classesSynthesized());
+
+         Type eagerBox = tru.forTypeMirror(fieldType(holder, "box"));
+         assertFalse(box.equals(eagerBox));
+         assertFalse(eagerBox.equals(box));
+         Class<?> plainClass = round.load(tru, "l.Plain");
+         assertFalse(plain.equals(plainClass));
+         assertSame(plainClass, ((MirroredTypes.LazyClassType) plain).asClass());
+         assertSame(round.load(tru, "l.Box"),
+               ((ParameterizedType) box).getRawType());
+         assertTrue(tru.metrics().classesSynthesized() > 0);
+      });
+   }
+}
@@ -0,0 +1,210 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+
+import org.junit.Test;
+
+public class ModelExecutorTest {
+
+   @Test public void callRunsOnModelThread() throws Exception {
+      try (ModelExecutor executor = new ModelExecutor()) {
+         assertTrue(!executor.isModelThread());
+         Thread modelThread = executor.call(Thread::currentThread);
+         assertTrue(modelThread != Thread.currentThread());
+         // nested calls run right away, on the same thread
+         assertSame(modelThread, executor.call(() -> executor.call(Thread::currentThread)));
+         assertEquals(2, executor.requestCount());
+      }
+   }
+
+   @Test public void exceptionsPropagate() {
+      try (ModelExecutor executor = new ModelExecutor()) {
+         try {
+            executor.call(() -> {
+               throw new IOException("checked");
+            });
+            fail("Expecting IOException");
+         } catch (IOException expected) {
+            assertEquals("checked", expected.getMessage());
+         }
+         try {
+            executor.call(() -> {
+               throw new IllegalStateException("unchecked");
+            });
+            fail("Expecting IllegalStateException");
+         } catch (IllegalStateException expected) {
+            assertEquals("unchecked", expected.getMessage());
+         }
+      }
+   }
+
+   @Test public void requestsAreBatched() throws Exception {
+      int threads = 8;
+      ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+      try (ModelExecutor executor = new ModelExecutor()) {
+         // hold up the model thread until the workers have queued their requests
+         CountDownLatch blocking = new CountDownLatch(1);
+         Future<?> blocker = pool.submit(() -> executor.call(() -> {
+            blocking.countDown();
+            while (executor.queuedCount() < threads) {
+               Thread.yield();
+            }
+            return null;
+         }));
+         blocking.await();
+         List<Future<Integer>> results = new ArrayList<>();
+         for (int i = 0; i < threads; i++) {
+            int n = i;
+            results.add(pool.submit(() -> executor.call(() -> n * n)));
+         }
+         blocker.get();
+         for (int i = 0; i < threads; i++) {
+            assertEquals(i * i, (int) results.get(i).get());
+         }
+         assertEquals(threads + 1, executor.requestCount());
+         // the blocker ran alone, and everything queued behind it in one batch
+         assertEquals(executor.toString(), 2, executor.batchCount());
+      } finally {
+         pool.shutdown();
+      }
+   }
+
+   @Test public void confinedTruReflect() {
+      Map<String, String> sources = new HashMap<>();
+      for (int i = 0; i < 20; i++) {
+         sources.put("c.T" + i, "package c;\n"
+               + "public class T" + i + (i == 0 ? "" : " extends T" + (i - 1)) + " {\n"
+               + "   public java.util.List<T" + i + "> list;\n"
+               + "   public T" + i + " self(T" + i + " other) { return other; }\n"
+               + "}\n");
+      }
+      ProcessingFixture.process(sources, round -> {
+         List<TypeElement> elements = new ArrayList<>();
+         for (int i = 0; i < 20; i++) {
+            elements.add(round.type("c.T" + i));
+         }
+         int threads = 4;
+         ExecutorService pool = Executors.newFixedThreadPool(threads);
+         try (ModelExecutor executor = new ModelExecutor()) {
+            // from here on, only the model thread may use the model
+            TruReflect tru = new TruReflect(round.env()).confineModelAccess(executor);
+            List<Future<List<Class<?>>>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+               results.add(pool.submit(() -> {
+                  assertTrue(!executor.isModelThread());
+                  List<Class<?>> classes = new ArrayList<>();
+                  Class<?> root = tru.forElement(elements.get(0));
+                  for (TypeElement element : elements) {
+                     Class<?> clazz = tru.forElement(element);
+                     // loads the superclass and the types of members, on the model thread
+                     assertEquals(1, clazz.getDeclaredFields().length);
+                     Method self = clazz.getDeclaredMethod("self", clazz);
+                     assertSame(clazz, self.getReturnType());
+                     assertTrue(tru.typeRelations().isSubtype(clazz, root));
+                     classes.add(clazz);
+                  }
+                  return classes;
+               }));
+            }
+            List<Class<?>> first = results.get(0).get();
+            for (Future<List<Class<?>>> result : results) {
+               assertEquals(first, result.get());
+            }
+            for (int i = 1; i < first.size(); i++) {
+               assertSame(first.get(i - 1), first.get(i).getSuperclass());
+            }
+            assertTrue(executor.toString(), executor.requestCount() > 0);
+            assertEquals(20, tru.metrics().classesSynthesized());
+         } finally {
+            pool.shutdown();
+         }
+      });
+   }
+
+   /**
+    * Returns element utilities that record the threads, other than the given executor's model
+    * thread, on which they are used.
+    */
+   private static Elements recordingElements(Elements elements, ModelExecutor executor,
+         Set<Thread> otherThreads) {
+      return (Elements) Proxy.newProxyInstance(Elements.class.getClassLoader(),
+            new Class<?>[] { Elements.class }, (proxy, method, args) -> {
+               if (!executor.isModelThread()) {
+                  otherThreads.add(Thread.currentThread());
+               }
+               try {
+                  return method.invoke(elements, args);
+               } catch (InvocationTargetException e) {
+                  throw e.getCause();
+               }
+            });
+   }
+
+   @Test public void confinedProfileWarmUp() throws IOException {
+      Path file = Files.createTempFile("profile", ".txt");
+      Files.write(file, Arrays.asList("p.A", "p.B", "p.C"), StandardCharsets.UTF_8);
+      Map<String, String> sources = new HashMap<>();
+      sources.put("p.A", "package p; public class A {}");
+      sources.put("p.B", "package p; public class B extends A {}");
+      sources.put("p.C", "package p; public class C { public B b; }");
+      SynthesisProfile profile = SynthesisProfile.load(file);
+      ProcessingFixture.process(sources, round -> {
+         ExecutorService pool = Executors.newSingleThreadExecutor();
+         try (ModelExecutor executor = new ModelExecutor()) {
+            Set<Thread> otherThreads = Collections.synchronizedSet(new HashSet<>());
+            Elements elements =
+                  recordingElements(round.env().getElementUtils(), executor, otherThreads);
+            TruReflect tru = new TruReflect(new Environment(elements, round.env().getTypeUtils()))
+                  .confineModelAccess(executor);
+            // constructing the instance uses the model on this thread, but nothing after that
+            otherThreads.clear();
+            // warming up on the calling thread, while holding the loader's lock, would deadlock
+            // with the model thread, so this is bounded
+            pool.submit(() -> tru.useProfile(profile)).get(1, TimeUnit.MINUTES);
+            assertEquals(Collections.emptySet(), otherThreads);
+            assertEquals(3, tru.metrics().classesSynthesized());
+            assertTrue(executor.toString(), executor.requestCount() > 0);
+         } finally {
+            pool.shutdown();
+         }
+      });
+   }
+
+   @Test public void closeRejectsNewRequests() {
+      ModelExecutor executor = new ModelExecutor();
+      executor.close();
+      try {
+         executor.call(() -> null);
+         fail("Expecting RejectedExecutionException");
+      } catch (RejectedExecutionException expected) {
+      }
+   }
+}
@@ -0,0 +1,116 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class NestSynthesisTest {
+
+   private static final Map<String, String> SOURCES = Collections.singletonMap("n.Outer",
+         "package n;\n"
+         + "public class Outer {\n"
+         + "   public class Inner {\n"
+         + "      protected class Deep {}\n"
+         + "   }\n"
+         + "   static class Nested {}\n"
+         + "   private interface Iface {}\n"
+         + "   public enum Kind { A, B }\n"
+         + "}\n");
+
+   private static Set<String> names(Class<?> classes[]) {
+      Set<String> names = new HashSet<>();
+      for (Class<?> c : classes) {
+         names.add(c.getName());
+      }
+      return names;
+   }
+
+   @Test public void memberClassMetadata() {
+      ProcessingFixture.process(SOURCES, round -> {
+         TruReflect tru = new TruReflect(round.env());
+         Class<?> outer = round.load(tru, "n.Outer");
+         Class<?> inner = round.load(tru, "n.Outer.Inner");
+         Class<?> deep = round.load(tru, "n.Outer.Inner.Deep");
+
+         assertFalse(outer.isMemberClass());
+         assertNull(outer.getDeclaringClass());
+         assertTrue(inner.isMemberClass());
+         assertSame(outer, inner.getDeclaringClass());
+         assertTrue(deep.isMemberClass());
+         assertSame(inner, deep.getDeclaringClass());
+         assertSame(inner, deep.getEnclosingClass());
+         assertEquals("Deep", deep.getSimpleName());
+
+         assertEquals(new HashSet<>(Arrays.asList("n.Outer$Inner", "n.Outer$Nested",
+               "n.Outer$Iface", "n.Outer$Kind")), names(outer.getDeclaredClasses()));
+         assertEquals(Collections.singleton("n.Outer$Inner$Deep"),
+               names(inner.getDeclaredClasses()));
+         assertEquals(0, deep.getDeclaredClasses().length);
+
+         // modifiers come from the InnerClasses attribute
+         Class<?> nested = round.load(tru, "n.Outer.Nested");
+         Class<?> iface = round.load(tru, "n.Outer.Iface");
+         Class<?> kind = round.load(tru, "n.Outer.Kind");
+         assertTrue(Modifier.isStatic(nested.getModifiers()));
+         assertFalse(Modifier.isStatic(inner.getModifiers()));
+         assertTrue(Modifier.isProtected(deep.getModifiers()));
+         assertTrue(iface.isInterface());
+         assertTrue(Modifier.isPrivate(iface.getModifiers()));
+         assertTrue(kind.isEnum());
+         assertTrue(Modifier.isStatic(kind.getModifiers()));
+      });
+   }
+
+   @Test public void nestHitsAndMisses() {
+      ProcessingFixture.process(SOURCES, round -> {
+         TruReflect tru = new TruReflect(round.env()).synthesizeNests(true);
+         SynthesisMetrics.CacheStats nest = tru.metrics().nest();
+         Class<?> deep = round.load(tru, "n.Outer.Inner.Deep");
+         // the whole nest was synthesized at once for the first class
+         assertEquals(0, nest.hitCount());
+         assertEquals(1, nest.missCount());
+
+         Class<?> inner = round.load(tru, "n.Outer.Inner");
+         Class<?> outer = round.load(tru, "n.Outer");
+         assertEquals(2, nest.hitCount());
+         assertEquals(1, nest.missCount());
+         assertSame(inner, deep.getDeclaringClass());
+         assertSame(outer, inner.getDeclaringClass());
+      });
+   }
+
+   @Test public void nothingCountedWhenDisabled() {
+      ProcessingFixture.process(SOURCES, round -> {
+         TruReflect tru = new TruReflect(round.env());
+         round.load(tru, "n.Outer.Inner");
+         round.load(tru, "n.Outer");
+         assertEquals(0, tru.metrics().nest().hitCount());
+         assertEquals(0, tru.metrics().nest().missCount());
+      });
+   }
+
+   @Test public void pendingNestMembersAreDefinedOnFreeze() {
+      ProcessingFixture.process(SOURCES, round -> {
+         TruReflect tru = new TruReflect(round.env()).synthesizeNests(true);
+         Class<?> outer = round.load(tru, "n.Outer");
+         TruReflectSnapshot snapshot = tru.freeze();
+         // the rest of the nest was already synthesized, so freezing only has to define it
+         assertEquals(5, tru.metrics().nest().hitCount());
+         assertEquals(1, tru.metrics().nest().missCount());
+         Class<?> nested = snapshot.forName("n.Outer$Nested");
+         assertSame(outer, nested.getDeclaringClass());
+         assertSame(nested, round.load(tru, "n.Outer.Nested"));
+      });
+   }
+}
@@ -0,0 +1,87 @@
+package com.bluegosling.apt.trureflect;
+
+import java.util.Map;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * A processing round of an {@linkplain InMemoryCompilation in-memory compilation}, with shortcuts
+ * for looking up the compiled types and synthesizing their classes. Tests compile their sources
+ * and run their checks in the round via {@link #process(Map, Task)}.
+ *
+ * @author Joshua Humphries (jhumphries131@gmail.com)
+ */
+final class ProcessingFixture {
+
+   /**
+    * A task that is run in a processing round.
+    */
+   @FunctionalInterface
+   interface Task {
+      /**
+       * Runs the task.
+       *
+       * @param fixture the processing round
+       * @throws Exception if the task fails
+       */
+      void run(ProcessingFixture fixture) throws Exception;
+   }
+
+   private final ProcessingEnvironment env;
+   private final RoundEnvironment roundEnv;
+
+   private ProcessingFixture(ProcessingEnvironment env, RoundEnvironment roundEnv) {
+      this.env = env;
+      this.roundEnv = roundEnv;
+   }
+
+   /**
+    * Compiles the given sources, stopping after annotation processing, and runs the given task in
+    * the first processing round.
+    *
+    * @param sources a map of fully-qualified class names to source code
+    * @param task the task to run
+    */
+   static void process(Map<String, String> sources, Task task) {
+      InMemoryCompilation.process(sources,
+            (env, roundEnv) -> task.run(new ProcessingFixture(env, roundEnv)));
+   }
+
+   ProcessingEnvironment env() {
+      return env;
+   }
+
+   RoundEnvironment roundEnv() {
+      return roundEnv;
+   }
+
+   /**
+    * Returns the type element with the given canonical name.
+    *
+    * @param name a canonical name
+    * @return the type element
+    * @throws IllegalArgumentException if there is no such type
+    */
+   TypeElement type(String name) {
+      TypeElement element = env.getElementUtils().getTypeElement(name);
+      if (element == null) {
+         throw new IllegalArgumentException("No type element for " + name);
+      }
+      return element;
+   }
+
+   /**
+    * Returns the class that the given instance synthesizes for the type with the given canonical
+    * name.
+    *
+    * @param tru a TruReflect instance for this round
+    * @param name a canonical name
+    * @return the class for the type
+    * @throws IllegalArgumentException if there is no such type
+    */
+   Class<?> load(TruReflect tru, String name) {
+      return tru.forElement(type(name));
+   }
+}
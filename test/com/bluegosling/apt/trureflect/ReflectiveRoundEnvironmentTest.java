@@ -0,0 +1,138 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.lang.model.element.Element;
+
+import org.junit.Test;
+
+public class ReflectiveRoundEnvironmentTest {
+
+   private static Map<String, String> annotatedSources() {
+      Map<String, String> sources = new HashMap<>();
+      sources.put("r.Marker", "package r;\n"
+            + "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)\n"
+            + "public @interface Marker {}\n");
+      sources.put("r.Inh", "package r;\n"
+            + "@java.lang.annotation.Inherited\n"
+            + "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)\n"
+            + "public @interface Inh {}\n");
+      sources.put("r.Base", "package r; @Inh public class Base {}");
+      sources.put("r.Sub", "package r; public class Sub extends Base {}");
+      sources.put("r.Iface", "package r; @Inh public interface Iface {}");
+      sources.put("r.Impl", "package r; public class Impl implements Iface {}");
+      sources.put("r.Annotated", "package r;\n"
+            + "@Marker public class Annotated {\n"
+            + "   @Marker private Annotated() {}\n"
+            + "   @Marker String field;\n"
+            + "   String unmarked;\n"
+            + "   @Marker void method(@Marker String param, int unmarked) {}\n"
+            + "   @Marker enum Kind { @Marker ONE, TWO }\n"
+            + "}\n");
+      return sources;
+   }
+
+   @SuppressWarnings("unchecked")
+   private static Class<? extends Annotation> annotation(ProcessingFixture round,
+         TruReflect tru, String name) {
+      return (Class<? extends Annotation>) round.load(tru, name);
+   }
+
+   @Test public void groupsByKind() {
+      ProcessingFixture.process(annotatedSources(), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         ReflectiveRoundEnvironment reflective =
+               new ReflectiveRoundEnvironment(tru, round.roundEnv());
+         // querying with a class from the processor's class path finds nothing
+         assertTrue(reflective.getElementsAnnotatedWith(Deprecated.class).isEmpty());
+
+         Class<? extends Annotation> marker = annotation(round, tru, "r.Marker");
+         Class<?> annotated = round.load(tru, "r.Annotated");
+         Class<?> kind = round.load(tru, "r.Annotated.Kind");
+         Constructor<?> ctor = annotated.getDeclaredConstructor();
+         Method method = annotated.getDeclaredMethod("method", String.class, int.class);
+
+         assertEquals(new HashSet<>(Arrays.asList(annotated, kind)),
+               reflective.getTypesAnnotatedWith(marker));
+         assertEquals(new HashSet<>(Arrays.asList(ctor, method)),
+               reflective.getExecutablesAnnotatedWith(marker));
+         assertEquals(new HashSet<>(Arrays.asList(annotated.getDeclaredField("field"),
+               kind.getDeclaredField("ONE"))), reflective.getFieldsAnnotatedWith(marker));
+         assertEquals(new HashSet<>(Arrays.asList(method.getParameters()[0])),
+               reflective.getParametersAnnotatedWith(marker));
+         assertEquals(7, reflective.getElementsAnnotatedWith(marker).size());
+      });
+   }
+
+   @Test public void inheritedAnnotations() {
+      ProcessingFixture.process(annotatedSources(), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         ReflectiveRoundEnvironment reflective =
+               new ReflectiveRoundEnvironment(tru, round.roundEnv());
+         // @Inherited only applies to superclasses, not to interfaces
+         assertEquals(
+               new HashSet<>(Arrays.asList(round.load(tru, "r.Base"), round.load(tru, "r.Sub"),
+                     round.load(tru, "r.Iface"))),
+               reflective.getTypesAnnotatedWith(annotation(round, tru, "r.Inh")));
+      });
+   }
+
+   private static Map<String, String> plainSources() {
+      Map<String, String> sources = new HashMap<>();
+      sources.put("s.A", "package s; public class A { private A(int i) {} int f; }");
+      sources.put("s.B", "package s; public class B { void m(String s) {} }");
+      sources.put("s.C", "package s; public class C { class Inner {} }");
+      return sources;
+   }
+
+   @Test public void findFirstOnlySynthesizesFirstRoot() {
+      ProcessingFixture.process(plainSources(), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         ReflectiveRoundEnvironment reflective =
+               new ReflectiveRoundEnvironment(tru, round.roundEnv());
+         Element first = round.roundEnv().getRootElements().iterator().next();
+         AnnotatedElement found = reflective.stream().findFirst().get();
+         assertEquals(1, tru.metrics().classesSynthesized());
+         assertSame(tru.forElement(first), found);
+         assertEquals(1, tru.metrics().classesSynthesized());
+      });
+   }
+
+   @Test public void streamsEveryElement() {
+      ProcessingFixture.process(plainSources(), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         ReflectiveRoundEnvironment reflective =
+               new ReflectiveRoundEnvironment(tru, round.roundEnv());
+         List<AnnotatedElement> all = reflective.stream().collect(Collectors.toList());
+         Class<?> a = round.load(tru, "s.A");
+         Class<?> b = round.load(tru, "s.B");
+         Class<?> c = round.load(tru, "s.C");
+         Class<?> inner = round.load(tru, "s.C.Inner");
+         Constructor<?> privateCtor = a.getDeclaredConstructor(int.class);
+         Method m = b.getDeclaredMethod("m", String.class);
+         assertTrue(all.containsAll(Arrays.asList(a, b, c, inner, privateCtor,
+               privateCtor.getParameters()[0], a.getDeclaredField("f"), m,
+               m.getParameters()[0], b.getDeclaredConstructor(), c.getDeclaredConstructor(),
+               inner.getDeclaredConstructors()[0])));
+         assertEquals(12, all.size());
+         // each class comes before its members, and nested classes after their enclosing class
+         assertTrue(all.indexOf(a) < all.indexOf(privateCtor));
+         assertTrue(all.indexOf(privateCtor) < all.indexOf(privateCtor.getParameters()[0]));
+         assertTrue(all.indexOf(c) < all.indexOf(inner));
+         assertEquals(4, tru.metrics().classesSynthesized());
+      });
+   }
+}
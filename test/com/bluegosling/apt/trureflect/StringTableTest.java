@@ -0,0 +1,59 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+
+import org.junit.Test;
+
+public class StringTableTest {
+
+   @Test public void canonicalize() {
+      StringTable table = new StringTable();
+      String first = new String("java/lang/Object");
+      String second = new String("java/lang/Object");
+      assertSame(first, table.canonicalize(first));
+      assertSame(first, table.canonicalize(second));
+      assertSame(first, table.canonicalize(new StringBuilder("java/lang/").append("Object")));
+      // the canonical instance itself is not a duplicate
+      assertSame(first, table.canonicalize(first));
+      assertEquals(1, table.size());
+      assertEquals(4, table.lookupCount());
+      assertEquals(2, table.deduplicatedCount());
+      // 24 bytes for the string and 48 for its 16 chars (with the array header)
+      assertEquals(2 * (24 + 48), table.duplicateBytes());
+   }
+
+   @Test public void onlyRetainedNamesAreCanonicalized() {
+      String source = "package t;\n"
+            + "public class Outer {\n"
+            + "   public static class Inner {}\n"
+            + "   public java.util.List<String> names(Inner inner) { return null; }\n"
+            + "}\n";
+      ProcessingFixture.process(Collections.singletonMap("t.Outer", source), round -> {
+         Environment environment = new Environment(round.env());
+         TruReflect tru = new TruReflect(environment);
+         TypeElement outer = round.type("t.Outer");
+         Class<?> inner = tru.forElement(outer).getDeclaredClasses()[0];
+         StringTable table = tru.stringTable();
+         assertSame(environment.stringTable(), table);
+         // the binary name of a loaded class is already in the table
+         String binaryName = new String(inner.getName());
+         assertNotSame(binaryName, table.canonicalize(binaryName));
+         // descriptors and signatures are only written to class files, so they are not kept
+         ExecutableElement method =
+               ElementFilter.methodsIn(outer.getEnclosedElements()).get(0);
+         String descriptor = new String("(Lt/Outer$Inner;)Ljava/util/List;");
+         assertEquals(descriptor, environment.typeNameUtils().getDescriptor(method));
+         assertSame(descriptor, table.canonicalize(descriptor));
+         String signature = environment.signatureUtils().getMethodSignature(method);
+         assertSame(signature, table.canonicalize(signature));
+      });
+   }
+}
@@ -0,0 +1,73 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+public class SynthesisEventsTest {
+
+   private static final String PREFIX = "com.bluegosling.apt.trureflect.";
+
+   private static final Map<String, String> SOURCES = Collections.singletonMap("e.Recorded",
+         "package e;\n"
+         + "public class Recorded {\n"
+         + "   String name;\n"
+         + "   public int size() { return 0; }\n"
+         + "}\n");
+
+   @Test public void synthesisIsRecorded() throws Exception {
+      assumeTrue(SynthesisEvents.ENABLED);
+      List<String> eventNames = Arrays.asList(PREFIX + "FindClass", PREFIX + "CreateClass",
+            PREFIX + "DefineClass");
+      Path dump = Files.createTempFile("trureflect", ".jfr");
+      try {
+         byte classBytes[][] = new byte[1][];
+         try (Recording recording = new Recording();
+               ClassBytesStore store =
+                     ClassBytesStore.direct(ClassBytesStore.DEFAULT_SEGMENT_SIZE, false)) {
+            for (String name : eventNames) {
+               recording.enable(name);
+            }
+            recording.start();
+            ProcessingFixture.process(SOURCES, round -> {
+               TruReflect tru = new TruReflect(round.env()).retainClassBytes(store);
+               classBytes[0] = tru.classBytesOf(round.load(tru, "e.Recorded"));
+            });
+            recording.stop();
+            recording.dump(dump);
+         }
+
+         List<RecordedEvent> events = new ArrayList<>();
+         for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+            if (eventNames.contains(event.getEventType().getName())
+                  && "e.Recorded".equals(event.getString("className"))) {
+               events.add(event);
+            }
+         }
+         // exactly one of each, all describing the same class file
+         assertEquals(events.toString(), eventNames.size(), events.size());
+         for (String name : eventNames) {
+            RecordedEvent event = events.stream()
+                  .filter(e -> e.getEventType().getName().equals(name))
+                  .findFirst()
+                  .orElseThrow(() -> new AssertionError("No " + name + " event: " + events));
+            assertEquals(name, classBytes[0].length, event.getInt("bytes"));
+         }
+      } finally {
+         Files.delete(dump);
+      }
+   }
+}
@@ -0,0 +1,78 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+import org.junit.Test;
+
+public class SynthesisMetricsTest {
+
+   @Test public void cacheStats() {
+      SynthesisMetrics.CacheStats stats = new SynthesisMetrics.CacheStats();
+      assertTrue(Double.isNaN(stats.hitRate()));
+      stats.hit();
+      stats.hit();
+      stats.hit();
+      stats.miss();
+      assertEquals(3, stats.hitCount());
+      assertEquals(1, stats.missCount());
+      assertEquals(0.75, stats.hitRate(), 0);
+   }
+
+   @Test public void timer() {
+      SynthesisMetrics.Timer timer = new SynthesisMetrics.Timer();
+      timer.record(100);
+      timer.record(250);
+      assertEquals(2, timer.count());
+      assertEquals(350, timer.totalNanos());
+   }
+
+   @Test public void bindTo() {
+      SynthesisMetrics metrics = new SynthesisMetrics();
+      Map<String, LongSupplier> counters = new LinkedHashMap<>();
+      Map<String, LongSupplier> timers = new LinkedHashMap<>();
+      Map<String, DoubleSupplier> gauges = new LinkedHashMap<>();
+      metrics.bindTo(new SynthesisMetrics.Binder() {
+         @Override
+         public void counter(String name, String description, LongSupplier value) {
+            counters.put(name, value);
+         }
+
+         @Override
+         public void timer(String name, String description, LongSupplier count,
+               LongSupplier totalNanos) {
+            timers.put(name, totalNanos);
+         }
+
+         @Override
+         public void gauge(String name, String description, DoubleSupplier value) {
+            gauges.put(name, value);
+         }
+      }, "tr");
+
+      // bound metrics read current values
+      metrics.classSynthesized(123);
+      metrics.classSynthesized(77);
+      metrics.typeMirrorConverted();
+      metrics.classDefinition().record(500);
+      metrics.loadedClasses().miss();
+      assertEquals(2, counters.get("tr.classes.synthesized").getAsLong());
+      assertEquals(200, counters.get("tr.bytes.emitted").getAsLong());
+      assertEquals(1, counters.get("tr.conversions.typeMirror").getAsLong());
+      assertEquals(0, counters.get("tr.conversions.annotationMirror").getAsLong());
+      assertEquals(500, timers.get("tr.phase.define").getAsLong());
+      assertEquals(4, timers.size());
+      assertEquals(1, counters.get("tr.cache.loaded.misses").getAsLong());
+      assertEquals(0.0, gauges.get("tr.cache.loaded.hitRate").getAsDouble(), 0);
+      assertTrue(Double.isNaN(gauges.get("tr.cache.bytes.hitRate").getAsDouble()));
+      metrics.subtypeChecks().hit();
+      assertEquals(1, counters.get("tr.cache.subtype.hits").getAsLong());
+      // every cache has a hit rate
+      assertEquals(10, gauges.size());
+   }
+}
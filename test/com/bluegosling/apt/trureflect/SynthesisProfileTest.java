@@ -0,0 +1,78 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SynthesisProfileTest {
+
+   @Test public void missingFileIsEmpty() throws IOException {
+      Path dir = Files.createTempDirectory("profile");
+      SynthesisProfile profile = SynthesisProfile.load(dir.resolve("none.txt"));
+      assertEquals(0, profile.size());
+      assertEquals(Collections.emptyMap(), profile.entries());
+   }
+
+   @Test public void saveAndLoad() throws IOException {
+      Path file = Files.createTempDirectory("profile").resolve("sub/profile.txt");
+      SynthesisProfile profile = SynthesisProfile.load(file);
+      profile.record("a.B", "a.B");
+      profile.record("a.B$C", "a.B.C");
+      profile.record("a.B$1", "");
+      profile.record("a.B", "a.B");
+      assertEquals(2, profile.recordedCount());
+      profile.save();
+
+      Map<String, String> expected = new LinkedHashMap<>();
+      expected.put("a.B", "a.B");
+      expected.put("a.B$C", "a.B.C");
+      SynthesisProfile reloaded = SynthesisProfile.load(file);
+      assertEquals(expected, reloaded.entries());
+      assertEquals(0, reloaded.recordedCount());
+   }
+
+   @Test public void ignoresCommentsAndMalformedLines() throws IOException {
+      Path file = Files.createTempFile("profile", ".txt");
+      Files.write(file, Arrays.asList("# comment", "", "a.B", "\ta.C", "  a.D$E\ta.D.E  "),
+            StandardCharsets.UTF_8);
+      SynthesisProfile profile = SynthesisProfile.load(file);
+      assertEquals(2, profile.size());
+      assertEquals("a.B", profile.entries().get("a.B"));
+      assertEquals("a.D.E", profile.entries().get("a.D$E"));
+      assertTrue(profile.toString(), profile.toString().contains("loaded=2"));
+   }
+
+   @Test public void warmUpOnlyKeepsClassesThatAreUsed() throws IOException {
+      Path file = Files.createTempFile("profile", ".txt");
+      Files.write(file, Arrays.asList("w.Base", "w.Used", "w.Unused"), StandardCharsets.UTF_8);
+      Map<String, String> sources = new HashMap<>();
+      sources.put("w.Base", "package w; public class Base {}");
+      sources.put("w.Used", "package w; public class Used extends Base {}");
+      sources.put("w.Unused", "package w; public class Unused {}");
+      sources.put("w.Fresh", "package w; public class Fresh {}");
+      SynthesisProfile profile = SynthesisProfile.load(file);
+      ProcessingFixture.process(sources, round -> {
+         TruReflect tru = new TruReflect(round.env()).useProfile(profile);
+         // warming up records nothing
+         assertEquals(0, profile.recordedCount());
+         round.load(tru, "w.Used");
+         round.load(tru, "w.Fresh");
+      });
+      profile.save();
+      // the superclass is kept because the class that uses it is
+      assertEquals(Arrays.asList("w.Used", "w.Base", "w.Fresh"),
+            new ArrayList<>(SynthesisProfile.load(file).entries().keySet()));
+   }
+}
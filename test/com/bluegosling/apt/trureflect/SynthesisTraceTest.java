@@ -0,0 +1,64 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class SynthesisTraceTest {
+
+   /**
+    * Simulates synthesis of a class: records it, then its references, then its cost.
+    */
+   private static void synthesize(SynthesisTrace trace, String className, String member,
+         String... references) {
+      trace.synthesizing(className);
+      for (String ref : references) {
+         trace.reference(className, member, ref);
+      }
+      trace.synthesized(className, 100, 1000);
+   }
+
+   @Test public void explain() {
+      SynthesisTrace trace = new SynthesisTrace();
+      assertTrue(trace.beginRequest("a.Root"));
+      assertTrue(!trace.beginRequest("a.Other"));
+      synthesize(trace, "a.Root", "field", "a.Mid");
+      synthesize(trace, "a.Mid", SynthesisTrace.DECLARATION, "a.Leaf", "a.Root");
+      trace.endRequest();
+      // synthesized later, outside of any request, but still attributed to the root
+      synthesize(trace, "a.Leaf", "m()V");
+
+      assertEquals(3, trace.synthesizedCount());
+      assertEquals(Collections.singletonList("a.Root"), trace.explain("a.Root"));
+      assertEquals(Arrays.asList("a.Root#field", "a.Mid"), trace.explain("a.Mid"));
+      assertEquals(Arrays.asList("a.Root#field", "a.Mid", "a.Leaf"), trace.explain("a.Leaf"));
+      assertEquals(Collections.emptyList(), trace.explain("a.Unknown"));
+   }
+
+   @Test public void report() throws IOException {
+      SynthesisTrace trace = new SynthesisTrace();
+      trace.beginRequest("a.Big");
+      synthesize(trace, "a.Big", "wide", "a.X1", "a.X2", "a.X3");
+      synthesize(trace, "a.X1", "f");
+      synthesize(trace, "a.X2", "f");
+      synthesize(trace, "a.X3", "f");
+      trace.endRequest();
+      trace.beginRequest("a.Small");
+      synthesize(trace, "a.Small", "f");
+      trace.endRequest();
+
+      StringBuilder sb = new StringBuilder();
+      trace.writeReport(sb, 1);
+      String report = sb.toString();
+      assertTrue(report, report.startsWith("5 classes synthesized from 2 roots"));
+      assertTrue(report, report.contains("4 classes")
+            && report.contains("a.Big" + System.lineSeparator()));
+      assertTrue(report, report.contains("3 classes") && report.contains("a.Big#wide"));
+      assertTrue(report, !report.contains("a.Small"));
+   }
+}
@@ -0,0 +1,88 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.lang.model.element.TypeElement;
+
+import org.junit.Test;
+
+public class TruReflectRegistryTest {
+
+   private static final Map<String, String> SOURCES =
+         Collections.singletonMap("g.Foo", "package g; public class Foo {}");
+
+   @Test public void acquireShareAndRelease() {
+      ProcessingFixture.process(SOURCES, round -> {
+         TruReflect first = TruReflectRegistry.acquire(round.env());
+         TruReflect second = TruReflectRegistry.acquire(round.env().getElementUtils(),
+               round.env().getTypeUtils());
+         assertSame(first, second);
+         assertEquals(2, TruReflectRegistry.referenceCount(first));
+
+         // classes are synthesized once and shared
+         TypeElement foo = round.type("g.Foo");
+         assertSame(first.forElement(foo), second.forElement(foo));
+
+         TruReflectRegistry.release(first);
+         assertEquals(1, TruReflectRegistry.referenceCount(first));
+         assertSame(first, TruReflectRegistry.acquire(round.env()));
+         TruReflectRegistry.release(first);
+         TruReflectRegistry.release(second);
+         assertEquals(0, TruReflectRegistry.referenceCount(first));
+
+         try {
+            TruReflectRegistry.release(first);
+            fail("Expecting IllegalArgumentException");
+         } catch (IllegalArgumentException expected) {
+         }
+
+         // once released, a new instance is created
+         TruReflect third = TruReflectRegistry.acquire(round.env());
+         try {
+            assertNotSame(first, third);
+            assertNotSame(first.forElement(foo), third.forElement(foo));
+         } finally {
+            TruReflectRegistry.release(third);
+         }
+      });
+   }
+
+   @Test public void compilationsDoNotShare() {
+      AtomicReference<TruReflect> previous = new AtomicReference<>();
+      ProcessingFixture.process(SOURCES, round -> {
+         previous.set(TruReflectRegistry.acquire(round.env()));
+      });
+      try {
+         ProcessingFixture.process(SOURCES, round -> {
+            TruReflect tru = TruReflectRegistry.acquire(round.env());
+            try {
+               assertNotSame(previous.get(), tru);
+               assertEquals(1, TruReflectRegistry.referenceCount(tru));
+            } finally {
+               TruReflectRegistry.release(tru);
+            }
+         });
+      } finally {
+         TruReflectRegistry.release(previous.get());
+      }
+   }
+
+   @Test public void releasingUnregisteredInstanceFails() {
+      ProcessingFixture.process(SOURCES, round -> {
+         TruReflect tru = new TruReflect(round.env());
+         assertEquals(0, TruReflectRegistry.referenceCount(tru));
+         try {
+            TruReflectRegistry.release(tru);
+            fail("Expecting IllegalArgumentException");
+         } catch (IllegalArgumentException expected) {
+         }
+      });
+   }
+}
@@ -0,0 +1,95 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+
+import org.junit.Test;
+
+public class TruReflectSnapshotTest {
+
+   private static Map<String, String> sources() {
+      Map<String, String> sources = new HashMap<>();
+      sources.put("s.Foo", "package s;\n"
+            + "public class Foo {\n"
+            + "   public java.util.List<String> list;\n"
+            + "   public Bar bar(int i) { return null; }\n"
+            + "}\n");
+      sources.put("s.Bar", "package s; public class Bar {}");
+      sources.put("s.Unused", "package s; public class Unused {}");
+      return sources;
+   }
+
+   @Test public void lookupsAfterFreezing() {
+      ProcessingFixture.process(sources(), round -> {
+         TruReflect tru = new TruReflect(round.env()).recordConversions(true);
+         TypeElement foo = round.type("s.Foo");
+         VariableElement list = ElementFilter.fieldsIn(foo.getEnclosedElements()).get(0);
+         ExecutableElement bar = ElementFilter.methodsIn(foo.getEnclosedElements()).get(0);
+         Class<?> fooClass = tru.forElement(foo);
+         Type listType = tru.forTypeMirror(list.asType());
+         TruReflectSnapshot snapshot = tru.freeze();
+         assertSame(snapshot, tru.freeze());
+
+         assertSame(fooClass, snapshot.forElement(foo));
+         assertSame(foo, snapshot.elementOf(fooClass));
+         assertSame(fooClass, snapshot.forName("s.Foo"));
+         assertEquals("list", ((Field) snapshot.forElement((Element) list)).getName());
+         Method barMethod = (Method) snapshot.forElement(bar);
+         // classes that synthesized classes refer to are loaded as part of freezing
+         assertSame(barMethod.getReturnType(), snapshot.forName("s.Bar"));
+         assertSame(listType, snapshot.forTypeMirror(list.asType()));
+         assertNull(snapshot.forTypeMirror(bar.getReturnType()));
+         assertNull(snapshot.forName("s.Unused"));
+
+         // the snapshot can be read from other threads
+         ExecutorService pool = Executors.newSingleThreadExecutor();
+         try {
+            assertSame(fooClass, pool.submit(() -> snapshot.forElement(foo)).get());
+         } finally {
+            pool.shutdown();
+         }
+      });
+   }
+
+   @Test public void rejectsNewSynthesis() {
+      ProcessingFixture.process(sources(), round -> {
+         TruReflect tru = new TruReflect(round.env());
+         TypeElement foo = round.type("s.Foo");
+         Class<?> fooClass = tru.forElement(foo);
+         TypeMirror listType =
+               ElementFilter.fieldsIn(foo.getEnclosedElements()).get(0).asType();
+         tru.forTypeMirror(listType);
+         TruReflectSnapshot snapshot = tru.freeze();
+         // conversions are only recorded if asked for
+         assertNull(snapshot.forTypeMirror(listType));
+         // already loaded classes can still be converted
+         assertSame(fooClass, tru.forElement(foo));
+         assertNotNull(round.load(tru, "s.Bar"));
+         try {
+            round.load(tru, "s.Unused");
+            fail("Expecting IllegalStateException");
+         } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("s.Unused"));
+         }
+      });
+   }
+}
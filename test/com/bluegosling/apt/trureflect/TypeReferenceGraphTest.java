@@ -0,0 +1,56 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class TypeReferenceGraphTest {
+
+   @Test public void edges() {
+      TypeReferenceGraph graph = new TypeReferenceGraph();
+      graph.addReferences("a.A", Arrays.asList("a.B", "a.A", "java.lang.Object"));
+      graph.addReferences("a.B", Arrays.asList("java.lang.Object"));
+
+      assertEquals(3, graph.typeCount());
+      assertEquals(3, graph.referenceCount());
+      assertTrue(graph.contains("java.lang.Object"));
+      assertFalse(graph.contains("a.C"));
+      // self references are dropped
+      assertEquals(Arrays.asList("a.B", "java.lang.Object"), graph.references("a.A"));
+      assertEquals(Collections.emptyList(), graph.references("java.lang.Object"));
+      assertEquals(Collections.emptyList(), graph.references("a.C"));
+      assertEquals(Arrays.asList("a.A", "a.B"), graph.referencedBy("java.lang.Object"));
+      assertEquals(Collections.emptyList(), graph.referencedBy("a.A"));
+   }
+
+   @Test public void growsPastInitialCapacity() {
+      TypeReferenceGraph graph = new TypeReferenceGraph();
+      for (int i = 0; i < 1000; i++) {
+         graph.addReferences("a.T" + i, Arrays.asList("a.Common", "a.T" + (i + 1)));
+      }
+      assertEquals(1002, graph.typeCount());
+      assertEquals(1000, graph.referencedBy("a.Common").size());
+      assertEquals(Arrays.asList("a.Common", "a.T501"), graph.references("a.T500"));
+   }
+
+   @Test public void dependents() {
+      TypeReferenceGraph graph = new TypeReferenceGraph();
+      graph.addReferences("a.A", Arrays.asList("a.B"));
+      graph.addReferences("a.B", Arrays.asList("a.C"));
+      graph.addReferences("a.C", Arrays.asList("a.B", "a.D"));
+      graph.addReferences("a.E", Arrays.asList("a.D"));
+      graph.addReferences("a.F", Arrays.asList("a.A"));
+
+      assertEquals(new HashSet<>(Arrays.asList("a.A", "a.B", "a.C", "a.F")),
+            graph.dependents(Collections.singleton("a.C")));
+      assertEquals(new HashSet<>(Arrays.asList("a.A", "a.B", "a.C", "a.E", "a.F")),
+            graph.dependents(Arrays.asList("a.D", "a.D")));
+      assertEquals(Collections.emptySet(), graph.dependents(Arrays.asList("a.F", "a.Unknown")));
+   }
+}
@@ -0,0 +1,163 @@
+package com.bluegosling.apt.trureflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+
+import org.junit.Test;
+
+public class TypeRelationsTest {
+
+   private static final Map<String, String> SOURCES = Collections.singletonMap("t.Fields",
+         "package t;\n"
+         + "class Box<T> {}\n"
+         + "class StrBox extends Box<String> {}\n"
+         + "class RawBox extends Box {}\n"
+         + "class Pair<A, B> extends Box<B> implements Comparable<Pair<A, B>> {\n"
+         + "   public int compareTo(Pair<A, B> o) { return 0; }\n"
+         + "}\n"
+         + "public class Fields {\n"
+         + "   Box<String> boxOfString;\n"
+         + "   Box<? extends CharSequence> boxOfSequence;\n"
+         + "   Box<Object> boxOfObject;\n"
+         + "   Box rawBox;\n"
+         + "   StrBox strBox;\n"
+         + "   RawBox rawSubBox;\n"
+         + "   Pair<Integer, String> pair;\n"
+         + "   Comparable<Pair<Integer, String>> comparablePair;\n"
+         + "   String string;\n"
+         + "   CharSequence sequence;\n"
+         + "   Object object;\n"
+         + "   Integer boxed;\n"
+         + "   int i;\n"
+         + "   long l;\n"
+         + "   String strings[];\n"
+         + "   Object objects[];\n"
+         + "}\n");
+
+   private static List<TypeMirror> fieldMirrors(ProcessingFixture round) {
+      List<TypeMirror> mirrors = new ArrayList<>();
+      for (Element e : round.type("t.Fields").getEnclosedElements()) {
+         if (e.getKind() == ElementKind.FIELD) {
+            mirrors.add(e.asType());
+         }
+      }
+      return mirrors;
+   }
+
+   @Test public void relationsMatchCompiler() {
+      ProcessingFixture.process(SOURCES, round -> {
+         TruReflect tru = new TruReflect(round.env());
+         TypeRelations relations = tru.typeRelations();
+         Types types = round.env().getTypeUtils();
+         List<TypeMirror> mirrors = fieldMirrors(round);
+         // types converted from mirrors, which remember them, and generic types from reflection
+         // on the synthesized class, which are mapped back to mirrors via elements
+         List<Type> converted = new ArrayList<>();
+         for (TypeMirror m : mirrors) {
+            converted.add(tru.forTypeMirror(m));
+         }
+         List<Type> reflected = new ArrayList<>();
+         for (java.lang.reflect.Field f : round.load(tru, "t.Fields").getDeclaredFields()) {
+            reflected.add(f.getGenericType());
+         }
+         assertEquals(mirrors.size(), reflected.size());
+         for (int i = 0; i < mirrors.size(); i++) {
+            for (int j = 0; j < mirrors.size(); j++) {
+               String msg = mirrors.get(i) + " -> " + mirrors.get(j);
+               boolean subtype = types.isSubtype(mirrors.get(i), mirrors.get(j));
+               boolean assignable = types.isAssignable(mirrors.get(i), mirrors.get(j));
+               assertEquals(msg, subtype,
+                     relations.isSubtype(converted.get(i), converted.get(j)));
+               assertEquals(msg, subtype,
+                     relations.isSubtype(reflected.get(i), reflected.get(j)));
+               assertEquals(msg, assignable,
+                     relations.isAssignable(converted.get(i), converted.get(j)));
+               assertEquals(msg, assignable,
+                     relations.isAssignable(reflected.get(i), reflected.get(j)));
+            }
+         }
+      });
+   }
+
+   @Test public void asSuperAndResolve() {
+      ProcessingFixture.process(SOURCES, round -> {
+         TruReflect tru = new TruReflect(round.env());
+         TypeRelations relations = tru.typeRelations();
+         Class<?> box = round.load(tru, "t.Box");
+         Class<?> strBox = round.load(tru, "t.StrBox");
+         Class<?> rawSubBox = round.load(tru, "t.RawBox");
+         Class<?> pair = round.load(tru, "t.Pair");
+         Type pairType = round.load(tru, "t.Fields").getDeclaredField("pair").getGenericType();
+         TypeVariable<?> t = box.getTypeParameters()[0];
+
+         ParameterizedType boxOfString = (ParameterizedType) relations.asSuper(strBox, box);
+         assertSame(box, boxOfString.getRawType());
+         assertEquals(Arrays.asList(String.class),
+               Arrays.asList(boxOfString.getActualTypeArguments()));
+         // the supertype of a raw type is raw
+         assertSame(box, relations.asSuper(rawSubBox, box));
+         assertSame(box, relations.asSuper(pair, box));
+         assertNull(relations.asSuper(strBox, pair));
+         ParameterizedType comparable =
+               (ParameterizedType) relations.asSuper(pairType, Comparable.class);
+         assertEquals(pairType, comparable.getActualTypeArguments()[0]);
+
+         assertSame(String.class, relations.resolve(t, strBox));
+         assertSame(String.class, relations.resolve(t, pairType));
+         assertSame(Object.class, relations.resolve(t, rawSubBox));
+         // a variable of a class that isn't a supertype is left alone
+         assertSame(t, relations.resolve(t, String.class));
+         TypeVariable<?> b = pair.getTypeParameters()[1];
+         assertEquals(b, relations.resolve(t, pair.getGenericSuperclass()));
+         // B is only bounded by Object, so it has no Box supertype
+         assertSame(t, relations.resolve(t, b));
+      });
+   }
+
+   @Test public void resultsAreMemoized() {
+      ProcessingFixture.process(SOURCES, round -> {
+         TruReflect tru = new TruReflect(round.env());
+         TypeRelations relations = tru.typeRelations();
+         Class<?> strBox = round.load(tru, "t.StrBox");
+         Class<?> box = round.load(tru, "t.Box");
+         SynthesisMetrics metrics = tru.metrics();
+         Type sup = relations.asSuper(strBox, box);
+         assertEquals(1, metrics.supertypes().missCount());
+         assertSame(sup, relations.asSuper(strBox, box));
+         assertEquals(1, metrics.supertypes().hitCount());
+         // equal types share results, even if they are different objects
+         Type generic = strBox.getGenericSuperclass();
+         assertTrue(generic != sup);
+         Type fromGeneric = relations.asSuper(generic, box);
+         assertSame(fromGeneric, relations.asSuper(generic, box));
+         assertEquals(sup, fromGeneric);
+         assertEquals(2, metrics.supertypes().missCount());
+         assertEquals(2, metrics.supertypes().hitCount());
+         assertTrue(relations.isSubtype(strBox, box));
+         assertTrue(relations.isSubtype(strBox, box));
+         assertEquals(1, metrics.subtypeChecks().missCount());
+         assertEquals(1, metrics.subtypeChecks().hitCount());
+         assertEquals(0, metrics.assignabilityChecks().hitCount());
+         // a class's mirror is computed once
+         long mirrorHits = metrics.typeMirrors().hitCount();
+         assertSame(relations.mirrorOf(strBox), relations.mirrorOf(strBox));
+         assertEquals(mirrorHits + 2, metrics.typeMirrors().hitCount());
+      });
+   }
+}